@@ -15,12 +15,14 @@ import li.cil.sedna.device.virtio.AbstractVirtIODevice;
 import li.cil.sedna.device.virtio.VirtIOFileSystemDevice;
 import li.cil.sedna.devicetree.DeviceTreeRegistry;
 import li.cil.sedna.devicetree.provider.*;
+import li.cil.sedna.fs.MemoryFileSystem;
 import li.cil.sedna.riscv.R5CPU;
 import li.cil.sedna.riscv.device.R5CoreLocalInterrupter;
 import li.cil.sedna.riscv.device.R5PlatformLevelInterruptController;
 import li.cil.sedna.riscv.devicetree.R5CoreLocalInterrupterProvider;
 import li.cil.sedna.riscv.devicetree.R5PlatformLevelInterruptControllerProvider;
 import li.cil.sedna.serialization.serializers.*;
+import li.cil.sedna.utils.ByteRing;
 
 import java.util.BitSet;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -42,8 +44,10 @@ public final class Sedna {
         Ceres.putSerializer(AtomicInteger.class, new AtomicIntegerSerializer());
         Ceres.putSerializer(BitSet.class, new BitSetSerializer());
         Ceres.putSerializer(ByteArrayFIFOQueue.class, new ByteArrayFIFOQueueSerializer());
+        Ceres.putSerializer(ByteRing.class, new ByteRingSerializer());
         Ceres.putSerializer(VirtIOFileSystemDevice.FileSystemFileMap.class, new FileSystemFileMapSerializer());
         Ceres.putSerializer(Int2LongArrayMap.class, new Int2LongArrayMapSerializer());
+        Ceres.putSerializer(MemoryFileSystem.class, new MemoryFileSystemSerializer());
         Ceres.putSerializer(R5CPU.class, new R5CPUSerializer());
         Ceres.putSerializer(SparseBlockDevice.SparseBlockMap.class, new SparseBlockMapSerializer());
 
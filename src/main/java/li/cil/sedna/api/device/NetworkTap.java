@@ -0,0 +1,23 @@
+package li.cil.sedna.api.device;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Network taps observe the frames passing through a network device, e.g. for packet capture.
+ * <p>
+ * Taps are called synchronously by the device, on whatever thread is transferring the frame, so
+ * implementations must be thread-safe and should return quickly; they must not block.
+ */
+public interface NetworkTap {
+    /**
+     * Called for each frame sent or received by the guest.
+     * <p>
+     * The frame must not be modified and is only valid for the duration of this call.
+     *
+     * @param frame      the buffer containing the frame.
+     * @param offset     the offset of the frame in the buffer.
+     * @param length     the length of the frame.
+     * @param isTransmit {@code true} if the frame was sent by the guest; {@code false} if it was received.
+     */
+    void capture(ByteBuffer frame, int offset, int length, boolean isTransmit);
+}
@@ -0,0 +1,28 @@
+package li.cil.sedna.api.device;
+
+/**
+ * Rate limiters restrict how much I/O a device may perform over time.
+ * <p>
+ * Devices query {@link #hasCapacity()} before starting an operation and report the size of each performed
+ * operation via {@link #consume(int)}. Since the size of an operation is usually only known once it has been
+ * started, implementations must allow going into debt, which then has to be paid off before further operations
+ * are allowed.
+ * <p>
+ * A single rate limiter may be shared by multiple devices, e.g. to limit the total I/O of a virtual machine.
+ * Implementations must therefore be thread-safe.
+ */
+public interface RateLimiter {
+    /**
+     * Checks whether another operation may be started at this time.
+     *
+     * @return {@code true} if another operation may be started; {@code false} otherwise.
+     */
+    boolean hasCapacity();
+
+    /**
+     * Accounts for a single operation that has been performed.
+     *
+     * @param bytes the number of bytes transferred by the operation.
+     */
+    void consume(int bytes);
+}
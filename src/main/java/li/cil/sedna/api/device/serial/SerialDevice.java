@@ -7,6 +7,42 @@ public interface SerialDevice {
 
     void putByte(byte value);
 
+    /**
+     * Reads as many bytes as currently available from the device, up to the specified length.
+     *
+     * @param buffer the array to read bytes into.
+     * @param offset the offset in the array to write the first byte to.
+     * @param length the maximum number of bytes to read.
+     * @return the number of bytes read, which may be zero.
+     */
+    default int read(final byte[] buffer, final int offset, final int length) {
+        int count = 0;
+        while (count < length) {
+            final int value = read();
+            if (value < 0) {
+                break;
+            }
+            buffer[offset + count++] = (byte) value;
+        }
+        return count;
+    }
+
+    /**
+     * Writes as many bytes to the device as it can currently accept, up to the specified length.
+     *
+     * @param buffer the array to write bytes from.
+     * @param offset the offset in the array of the first byte to write.
+     * @param length the maximum number of bytes to write.
+     * @return the number of bytes written, which may be zero.
+     */
+    default int write(final byte[] buffer, final int offset, final int length) {
+        int count = 0;
+        while (count < length && canPutByte()) {
+            putByte(buffer[offset + count++]);
+        }
+        return count;
+    }
+
     default void flush() {
     }
 }
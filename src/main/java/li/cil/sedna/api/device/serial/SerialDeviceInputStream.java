@@ -13,4 +13,15 @@ public class SerialDeviceInputStream extends InputStream {
     public int read() {
         return serialDevice.read();
     }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) {
+        if (len == 0) {
+            return 0;
+        }
+
+        // Like read(), signal no available data as end of stream.
+        final int count = serialDevice.read(b, off, len);
+        return count > 0 ? count : -1;
+    }
 }
@@ -19,4 +19,11 @@ public class SerialDeviceOutputStream extends OutputStream {
             serialDevice.putByte((byte) b);
         }
     }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        if (serialDevice.write(b, off, len) < len) {
+            throw new IOException("device is not ready");
+        }
+    }
 }
@@ -0,0 +1,482 @@
+package li.cil.sedna.device.block;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import li.cil.sedna.api.device.BlockDevice;
+import li.cil.sedna.utils.DirectByteBufferUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A block device that caches the contents of another block device.
+ * <p>
+ * Data is cached in fixed-size blocks, stored in a single off-heap buffer. When the cache is full, the least
+ * recently used block is evicted. When sequential reads are detected, the following blocks are loaded ahead of
+ * time on a background executor.
+ * <p>
+ * In {@link WriteMode#WRITE_THROUGH} mode writes are passed on to the lower device immediately. In
+ * {@link WriteMode#WRITE_BACK} mode modified blocks are only written to the lower device when they are evicted,
+ * or when {@link #flush()} is called, e.g. in response to a {@code VIRTIO_BLK_T_FLUSH} request.
+ * <p>
+ * The lower device is only ever accessed while holding a lock on it, so lower devices that are not thread-safe
+ * may be used even with read-ahead enabled.
+ */
+public final class CachedBlockDevice implements BlockDevice {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    private static final int SEQUENTIAL_READ_THRESHOLD = 2;
+    private static final int DEFAULT_READ_AHEAD_BLOCK_COUNT = 4;
+
+    public enum WriteMode {
+        WRITE_THROUGH,
+        WRITE_BACK,
+    }
+
+    private final BlockDevice lower;
+    private final int blockSize;
+    private final int blockCount;
+    private final WriteMode writeMode;
+    @Nullable private final Executor readAheadExecutor;
+    private final int readAheadBlockCount;
+
+    private final ByteBuffer data;
+    private final Long2IntLinkedOpenHashMap slotByBlock;
+    private final long[] blockBySlot;
+    private final IntArrayList freeSlots;
+    private final BitSet dirtySlots;
+    // Token of the read-ahead scheduled for each block. A read-ahead only installs its data if its token is still
+    // current, so a task that was superseded while it read from the lower device cannot install stale data.
+    private final Long2LongOpenHashMap pendingReadAheads = new Long2LongOpenHashMap();
+    private long nextReadAheadToken = 1;
+
+    private long lastReadBlock = -1;
+    private int sequentialReadCount;
+    private int runningReadAheadCount;
+    private boolean isClosed;
+
+    private long hitCount;
+    private long missCount;
+    private long readAheadCount;
+    private long writeBackCount;
+
+    public CachedBlockDevice(final BlockDevice lower, final int cacheSize) {
+        this(lower, DEFAULT_BLOCK_SIZE, Math.max(1, cacheSize / DEFAULT_BLOCK_SIZE), WriteMode.WRITE_THROUGH, ForkJoinPool.commonPool(), DEFAULT_READ_AHEAD_BLOCK_COUNT);
+    }
+
+    public CachedBlockDevice(final BlockDevice lower, final int cacheSize, final WriteMode writeMode) {
+        this(lower, DEFAULT_BLOCK_SIZE, Math.max(1, cacheSize / DEFAULT_BLOCK_SIZE), writeMode, ForkJoinPool.commonPool(), DEFAULT_READ_AHEAD_BLOCK_COUNT);
+    }
+
+    /**
+     * Creates a new cache in front of the specified block device.
+     *
+     * @param lower               the block device to cache.
+     * @param blockSize           the size of a single cached block, in bytes.
+     * @param blockCount          the maximum number of blocks to keep in the cache.
+     * @param writeMode           whether to write modified blocks immediately or on eviction and flush.
+     * @param readAheadExecutor   the executor to load blocks ahead on, or {@code null} to disable read-ahead.
+     * @param readAheadBlockCount the number of blocks to load ahead once sequential access is detected.
+     */
+    public CachedBlockDevice(final BlockDevice lower, final int blockSize, final int blockCount, final WriteMode writeMode,
+                             @Nullable final Executor readAheadExecutor, final int readAheadBlockCount) {
+        if (blockSize <= 0 || blockCount <= 0 || (long) blockSize * blockCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid cache size.");
+        }
+
+        this.lower = lower;
+        this.blockSize = blockSize;
+        this.blockCount = blockCount;
+        this.writeMode = writeMode;
+        this.readAheadExecutor = readAheadExecutor;
+        this.readAheadBlockCount = Math.min(readAheadBlockCount, blockCount / 2);
+
+        data = ByteBuffer.allocateDirect(blockSize * blockCount);
+        slotByBlock = new Long2IntLinkedOpenHashMap(blockCount);
+        slotByBlock.defaultReturnValue(-1);
+        blockBySlot = new long[blockCount];
+        freeSlots = new IntArrayList(blockCount);
+        for (int slot = blockCount - 1; slot >= 0; slot--) {
+            freeSlots.add(slot);
+        }
+        dirtySlots = new BitSet(blockCount);
+    }
+
+    public WriteMode getWriteMode() {
+        return writeMode;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getReadAheadCount() {
+        return readAheadCount;
+    }
+
+    public synchronized long getWriteBackCount() {
+        return writeBackCount;
+    }
+
+    public synchronized void resetStatistics() {
+        hitCount = 0;
+        missCount = 0;
+        readAheadCount = 0;
+        writeBackCount = 0;
+    }
+
+    @Override
+    public boolean isReadonly() {
+        return lower.isReadonly();
+    }
+
+    @Override
+    public long getCapacity() {
+        return lower.getCapacity();
+    }
+
+    @Override
+    public InputStream getInputStream(final long offset) {
+        if (offset < 0 || offset > getCapacity()) {
+            throw new IllegalArgumentException();
+        }
+
+        return new CachedInputStream(offset);
+    }
+
+    @Override
+    public OutputStream getOutputStream(final long offset) {
+        if (isReadonly()) {
+            throw new UnsupportedOperationException();
+        }
+
+        if (offset < 0 || offset > getCapacity()) {
+            throw new IllegalArgumentException();
+        }
+
+        return new CachedOutputStream(offset);
+    }
+
+    @Override
+    public synchronized void flush() {
+        if (isClosed) {
+            return;
+        }
+
+        try {
+            for (int slot = dirtySlots.nextSetBit(0); slot >= 0; slot = dirtySlots.nextSetBit(slot + 1)) {
+                writeBack(slot);
+            }
+        } catch (final IOException e) {
+            LOGGER.error("Failed writing back cached blocks.", e);
+        }
+
+        synchronized (lower) {
+            lower.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+
+            flush();
+            isClosed = true;
+            slotByBlock.clear();
+            pendingReadAheads.clear();
+
+            // Read-aheads that already started may still write to the buffer, so wait for them before releasing it.
+            boolean isInterrupted = false;
+            while (runningReadAheadCount > 0) {
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    isInterrupted = true;
+                }
+            }
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            DirectByteBufferUtils.release(data);
+        }
+
+        synchronized (lower) {
+            lower.close();
+        }
+    }
+
+    private synchronized int read(final long offset, final byte[] b, final int off, final int len) throws IOException {
+        if (isClosed) {
+            throw new IOException("Device has been closed.");
+        }
+
+        final long blockIndex = offset / blockSize;
+        final int localOffset = (int) (offset - blockIndex * blockSize);
+        final int count = (int) Math.min(Math.min(len, blockSize - localOffset), getCapacity() - offset);
+
+        int slot = slotByBlock.getAndMoveToLast(blockIndex);
+        if (slot >= 0) {
+            hitCount++;
+        } else {
+            missCount++;
+            slot = load(blockIndex);
+        }
+
+        data.get(slot * blockSize + localOffset, b, off, count);
+
+        if (blockIndex != lastReadBlock) {
+            sequentialReadCount = blockIndex == lastReadBlock + 1 ? sequentialReadCount + 1 : 0;
+            lastReadBlock = blockIndex;
+            if (sequentialReadCount >= SEQUENTIAL_READ_THRESHOLD) {
+                scheduleReadAhead(blockIndex + 1);
+            }
+        }
+
+        return count;
+    }
+
+    private synchronized int write(final long offset, final byte[] b, final int off, final int len) throws IOException {
+        if (isClosed) {
+            throw new IOException("Device has been closed.");
+        }
+
+        final long blockIndex = offset / blockSize;
+        final int localOffset = (int) (offset - blockIndex * blockSize);
+        final int count = (int) Math.min(Math.min(len, blockSize - localOffset), getCapacity() - offset);
+
+        pendingReadAheads.remove(blockIndex);
+        int slot = slotByBlock.getAndMoveToLast(blockIndex);
+        if (slot < 0) {
+            if (count == getBlockLength(blockIndex)) {
+                slot = allocate(blockIndex);
+            } else {
+                slot = load(blockIndex);
+            }
+        }
+
+        data.put(slot * blockSize + localOffset, b, off, count);
+
+        if (writeMode == WriteMode.WRITE_THROUGH) {
+            synchronized (lower) {
+                lower.getOutputStream(offset).write(b, off, count);
+            }
+        } else {
+            dirtySlots.set(slot);
+        }
+
+        return count;
+    }
+
+    private int load(final long blockIndex) throws IOException {
+        final byte[] buffer = new byte[getBlockLength(blockIndex)];
+        readLower(blockIndex, buffer);
+
+        final int slot = allocate(blockIndex);
+        data.put(slot * blockSize, buffer);
+        return slot;
+    }
+
+    private int allocate(final long blockIndex) throws IOException {
+        pendingReadAheads.remove(blockIndex);
+
+        final int slot;
+        if (!freeSlots.isEmpty()) {
+            slot = freeSlots.popInt();
+        } else {
+            // Only drop the evicted block once it has been written back, so its data is kept if that fails.
+            final long evictedBlock = slotByBlock.firstLongKey();
+            slot = slotByBlock.get(evictedBlock);
+            if (dirtySlots.get(slot)) {
+                assert blockBySlot[slot] == evictedBlock;
+                writeBack(slot);
+            }
+            slotByBlock.removeFirstInt();
+        }
+
+        slotByBlock.putAndMoveToLast(blockIndex, slot);
+        blockBySlot[slot] = blockIndex;
+        return slot;
+    }
+
+    private void writeBack(final int slot) throws IOException {
+        final long blockIndex = blockBySlot[slot];
+        final byte[] buffer = new byte[getBlockLength(blockIndex)];
+        data.get(slot * blockSize, buffer);
+
+        synchronized (lower) {
+            lower.getOutputStream(blockIndex * blockSize).write(buffer);
+        }
+
+        dirtySlots.clear(slot);
+        writeBackCount++;
+    }
+
+    private void scheduleReadAhead(final long firstBlockIndex) {
+        if (readAheadExecutor == null) {
+            return;
+        }
+
+        final long blockLimit = (getCapacity() + blockSize - 1) / blockSize;
+        for (long blockIndex = firstBlockIndex; blockIndex < Math.min(blockLimit, firstBlockIndex + readAheadBlockCount); blockIndex++) {
+            if (slotByBlock.containsKey(blockIndex) || pendingReadAheads.containsKey(blockIndex)) {
+                continue;
+            }
+
+            final long readAheadBlockIndex = blockIndex;
+            final long token = nextReadAheadToken++;
+            pendingReadAheads.put(blockIndex, token);
+            readAheadExecutor.execute(() -> readAhead(readAheadBlockIndex, token));
+        }
+    }
+
+    private void readAhead(final long blockIndex, final long token) {
+        synchronized (this) {
+            if (isClosed || pendingReadAheads.get(blockIndex) != token) {
+                return;
+            }
+            runningReadAheadCount++;
+        }
+
+        try {
+            final byte[] buffer = new byte[getBlockLength(blockIndex)];
+            try {
+                readLower(blockIndex, buffer);
+            } catch (final IOException e) {
+                synchronized (this) {
+                    pendingReadAheads.remove(blockIndex, token);
+                }
+                return;
+            }
+
+            synchronized (this) {
+                // Block may have been loaded, written or scheduled again in the meantime, or the device may have
+                // been closed. In all of these cases the data read above may be stale.
+                if (isClosed || pendingReadAheads.get(blockIndex) != token || slotByBlock.containsKey(blockIndex)) {
+                    return;
+                }
+
+                try {
+                    final int slot = allocate(blockIndex);
+                    data.put(slot * blockSize, buffer);
+                    readAheadCount++;
+                } catch (final IOException e) {
+                    LOGGER.error("Failed writing back cached block.", e);
+                }
+            }
+        } finally {
+            synchronized (this) {
+                runningReadAheadCount--;
+                notifyAll();
+            }
+        }
+    }
+
+    private void readLower(final long blockIndex, final byte[] buffer) throws IOException {
+        synchronized (lower) {
+            final InputStream stream = lower.getInputStream(blockIndex * blockSize);
+            int readCount = 0;
+            while (readCount < buffer.length) {
+                final int read = stream.read(buffer, readCount, buffer.length - readCount);
+                if (read < 0) {
+                    throw new IOException();
+                }
+                readCount += read;
+            }
+        }
+    }
+
+    private int getBlockLength(final long blockIndex) {
+        return (int) Math.min(blockSize, getCapacity() - blockIndex * blockSize);
+    }
+
+    private final class CachedInputStream extends InputStream {
+        private long offset;
+
+        public CachedInputStream(final long offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            if (read(b, 0, 1) < 0) {
+                return -1;
+            }
+            return b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(@Nonnull final byte[] b, final int off, final int len) throws IOException {
+            if (offset >= getCapacity()) {
+                return -1;
+            }
+
+            int totalCount = 0;
+            while (totalCount < len && offset < getCapacity()) {
+                final int count = CachedBlockDevice.this.read(offset, b, off + totalCount, len - totalCount);
+                offset += count;
+                totalCount += count;
+            }
+
+            return totalCount;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final long skipped = Math.max(0, Math.min(n, getCapacity() - offset));
+            offset += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, getCapacity() - offset);
+        }
+    }
+
+    private final class CachedOutputStream extends OutputStream {
+        private long offset;
+
+        public CachedOutputStream(final long offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@Nonnull final byte[] b, final int off, final int len) throws IOException {
+            int totalCount = 0;
+            while (totalCount < len) {
+                if (offset >= getCapacity()) {
+                    throw new IOException();
+                }
+
+                final int count = CachedBlockDevice.this.write(offset, b, off + totalCount, len - totalCount);
+                offset += count;
+                totalCount += count;
+            }
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package li.cil.sedna.device.block;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectLinkedOpenHashMap;
+import li.cil.sedna.api.device.BlockDevice;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A read-only block device backed by a chunked, compressed image file.
+ * <p>
+ * The image is split into fixed-size chunks which are compressed independently. An index of chunk offsets stored
+ * after the header allows locating the chunk containing any offset in constant time. Recently used decompressed
+ * chunks are kept in a small LRU cache, so sequential reads only decompress each chunk once.
+ * <p>
+ * Image layout, all values little-endian:
+ * <pre>
+ * struct header {
+ *     u32 magic;                      // 'SCZI'
+ *     u32 version;
+ *     u32 chunk_size;                 // uncompressed size of a chunk
+ *     u32 chunk_count;
+ *     u64 capacity;                   // uncompressed size of the image
+ *     u64 offsets[chunk_count + 1];   // file offsets of the chunks, plus end of last chunk
+ * };
+ * </pre>
+ * Chunks whose compressed size would not be smaller than their uncompressed size are stored as-is.
+ * <p>
+ * Images can be created using {@link #convert(InputStream, File, int)}.
+ */
+public final class CompressedBlockDevice implements BlockDevice {
+    private static final int MAGIC = 0x495A4353; // 'SCZI'
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    private static final int DEFAULT_CACHED_CHUNK_COUNT = 16;
+
+    private final FileChannel channel;
+    private final long capacity;
+    private final int chunkSize;
+    private final long[] offsets;
+    private final int cachedChunkCount;
+    private final Int2ObjectLinkedOpenHashMap<byte[]> cache;
+    private final Inflater inflater = new Inflater();
+    private ByteBuffer compressedBuffer = ByteBuffer.allocate(0);
+
+    public static CompressedBlockDevice open(final File file) throws IOException {
+        return open(file, DEFAULT_CACHED_CHUNK_COUNT);
+    }
+
+    public static CompressedBlockDevice open(final File file, final int cachedChunkCount) throws IOException {
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return new CompressedBlockDevice(channel, cachedChunkCount);
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public static void convert(final File input, final File output) throws IOException {
+        try (final InputStream stream = new FileInputStream(input)) {
+            convert(stream, output, DEFAULT_CHUNK_SIZE);
+        }
+    }
+
+    public static void convert(final InputStream input, final File output, final int chunkSize) throws IOException {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive.");
+        }
+
+        // The number of chunks, and with it the size of the index, is only known once the input has been fully
+        // consumed, so compressed chunks are collected in a temporary file and copied behind the index at the end.
+        final File dataFile = File.createTempFile("sedna", ".chunks", output.getAbsoluteFile().getParentFile());
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try (final FileChannel channel = FileChannel.open(output.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             final FileChannel dataChannel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ,
+                 StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)) {
+            final byte[] chunk = new byte[chunkSize];
+            final byte[] compressed = new byte[chunkSize];
+            final ByteArrayOutputStream index = new ByteArrayOutputStream();
+            final ByteBuffer offset = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+            long capacity = 0;
+            long dataLength = 0;
+            int chunkCount = 0;
+
+            int chunkLength;
+            while ((chunkLength = input.readNBytes(chunk, 0, chunkSize)) > 0) {
+                deflater.reset();
+                deflater.setInput(chunk, 0, chunkLength);
+                deflater.finish();
+
+                int compressedLength = 0;
+                while (!deflater.finished() && compressedLength < chunkLength) {
+                    compressedLength += deflater.deflate(compressed, compressedLength, chunkLength - compressedLength);
+                }
+
+                final ByteBuffer chunkData;
+                if (deflater.finished() && compressedLength < chunkLength) {
+                    chunkData = ByteBuffer.wrap(compressed, 0, compressedLength);
+                } else {
+                    chunkData = ByteBuffer.wrap(chunk, 0, chunkLength);
+                }
+
+                index.write(offset.putLong(0, dataLength).array());
+                dataLength += chunkData.remaining();
+                writeFully(dataChannel, chunkData, dataLength - chunkData.remaining());
+
+                capacity += chunkLength;
+                chunkCount++;
+
+                if (chunkLength < chunkSize) {
+                    break;
+                }
+            }
+            index.write(offset.putLong(0, dataLength).array());
+
+            final long dataStart = HEADER_SIZE + (chunkCount + 1) * 8L;
+            final ByteBuffer offsets = ByteBuffer.wrap(index.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i <= chunkCount; i++) {
+                offsets.putLong(i * 8, offsets.getLong(i * 8) + dataStart);
+            }
+
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(chunkSize);
+            header.putInt(chunkCount);
+            header.putLong(capacity);
+            header.flip();
+
+            writeFully(channel, header, 0);
+            writeFully(channel, offsets, HEADER_SIZE);
+
+            long position = 0;
+            while (position < dataLength) {
+                position += dataChannel.transferTo(position, dataLength - position, channel.position(dataStart + position));
+            }
+        } finally {
+            deflater.end();
+            Files.deleteIfExists(dataFile.toPath());
+        }
+    }
+
+    private CompressedBlockDevice(final FileChannel channel, final int cachedChunkCount) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, 0);
+        header.flip();
+
+        if (header.getInt() != MAGIC) {
+            throw new IOException("invalid compressed image header");
+        }
+        if (header.getInt() != VERSION) {
+            throw new IOException("unsupported compressed image version");
+        }
+
+        this.channel = channel;
+        this.chunkSize = header.getInt();
+        final int chunkCount = header.getInt();
+        this.capacity = header.getLong();
+        this.cachedChunkCount = Math.max(1, cachedChunkCount);
+        this.cache = new Int2ObjectLinkedOpenHashMap<>(this.cachedChunkCount);
+
+        if (chunkSize <= 0 || chunkCount < 0 || chunkCount >= Integer.MAX_VALUE / 8 ||
+            capacity < 0 || (capacity + chunkSize - 1) / chunkSize != chunkCount) {
+            throw new IOException("invalid compressed image header");
+        }
+
+        final ByteBuffer index = ByteBuffer.allocate((chunkCount + 1) * 8).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, index, HEADER_SIZE);
+        index.flip();
+        offsets = new long[chunkCount + 1];
+        index.asLongBuffer().get(offsets);
+
+        if (offsets[0] < HEADER_SIZE + index.capacity()) {
+            throw new IOException("invalid compressed image index");
+        }
+        for (int i = 0; i < chunkCount; i++) {
+            final long length = offsets[i + 1] - offsets[i];
+            if (length <= 0 || length > chunkSize) {
+                throw new IOException("invalid compressed image index");
+            }
+        }
+    }
+
+    @Override
+    public boolean isReadonly() {
+        return true;
+    }
+
+    @Override
+    public long getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public InputStream getInputStream(final long offset) {
+        if (offset < 0 || offset > capacity) {
+            throw new IllegalArgumentException();
+        }
+
+        return new CompressedInputStream(offset);
+    }
+
+    @Override
+    public OutputStream getOutputStream(final long offset) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        cache.clear();
+        inflater.end();
+        channel.close();
+    }
+
+    private synchronized int read(final long offset, final byte[] b, final int off, final int len) throws IOException {
+        final int chunkIndex = (int) (offset / chunkSize);
+        final int localOffset = (int) (offset - (long) chunkIndex * chunkSize);
+
+        final byte[] chunk = getChunk(chunkIndex);
+        final int count = Math.min(len, chunk.length - localOffset);
+        System.arraycopy(chunk, localOffset, b, off, count);
+
+        return count;
+    }
+
+    private byte[] getChunk(final int chunkIndex) throws IOException {
+        byte[] chunk = cache.getAndMoveToLast(chunkIndex);
+        if (chunk != null) {
+            return chunk;
+        }
+
+        final int chunkLength = (int) Math.min(chunkSize, capacity - (long) chunkIndex * chunkSize);
+        final int compressedLength = (int) (offsets[chunkIndex + 1] - offsets[chunkIndex]);
+        if (chunkLength <= 0) {
+            throw new IOException("invalid compressed image chunk");
+        }
+
+        if (cache.size() >= cachedChunkCount) {
+            chunk = cache.removeFirst();
+            if (chunk.length != chunkLength) {
+                chunk = new byte[chunkLength];
+            }
+        } else {
+            chunk = new byte[chunkLength];
+        }
+
+        if (compressedLength == chunkLength) {
+            readFully(channel, ByteBuffer.wrap(chunk), offsets[chunkIndex]);
+        } else {
+            if (compressedBuffer.capacity() < compressedLength) {
+                compressedBuffer = ByteBuffer.allocate(chunkSize);
+            }
+            compressedBuffer.clear().limit(compressedLength);
+            readFully(channel, compressedBuffer, offsets[chunkIndex]);
+
+            inflater.reset();
+            inflater.setInput(compressedBuffer.array(), 0, compressedLength);
+            try {
+                int inflatedLength = 0;
+                while (inflatedLength < chunkLength && !inflater.finished()) {
+                    final int inflated = inflater.inflate(chunk, inflatedLength, chunkLength - inflatedLength);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    inflatedLength += inflated;
+                }
+                if (inflatedLength != chunkLength) {
+                    throw new IOException("invalid compressed image chunk");
+                }
+            } catch (final DataFormatException e) {
+                throw new IOException(e);
+            }
+        }
+
+        cache.putAndMoveToLast(chunkIndex, chunk);
+        return chunk;
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("unexpected end of compressed image");
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private final class CompressedInputStream extends InputStream {
+        private long offset;
+
+        public CompressedInputStream(final long offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            if (read(b, 0, 1) < 0) {
+                return -1;
+            }
+            return b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(@Nonnull final byte[] b, final int off, final int len) throws IOException {
+            if (offset >= capacity) {
+                return -1;
+            }
+
+            int totalCount = 0;
+            while (totalCount < len && offset < capacity) {
+                final int count = CompressedBlockDevice.this.read(offset, b, off + totalCount, len - totalCount);
+                offset += count;
+                totalCount += count;
+            }
+
+            return totalCount;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final long skipped = Math.max(0, Math.min(n, capacity - offset));
+            offset += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, capacity - offset);
+        }
+    }
+}
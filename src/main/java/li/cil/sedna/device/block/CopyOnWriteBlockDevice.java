@@ -0,0 +1,537 @@
+package li.cil.sedna.device.block;
+
+import li.cil.sedna.api.device.BlockDevice;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A block device that stores all modifications to a lower block device in an overlay file.
+ * <p>
+ * Unlike {@link SparseBlockDevice}, modified blocks are not kept in memory. Instead, they are appended to an image
+ * file and located via a two-level cluster mapping table. Mapping tables are loaded lazily, so opening a large
+ * image is cheap and only the tables of regions that are actually accessed are ever held in memory.
+ * <p>
+ * Image layout, all values little-endian:
+ * <pre>
+ * struct header {
+ *     u32 magic;             // 'SCOW'
+ *     u32 version;
+ *     u32 cluster_bits;      // log2 of the cluster size
+ *     u32 l1_size;           // number of entries in the L1 table
+ *     u64 capacity;          // capacity of the device in bytes
+ *     u64 l1_offset;         // offset of the L1 table in the file
+ *     u32 backing_length;    // length of the backing file reference
+ *     u8  backing[];         // UTF-8 backing file reference, relative to the image
+ * };
+ * </pre>
+ * The L1 table holds file offsets of L2 tables, each L2 table is one cluster in size and holds file offsets of data
+ * clusters. An offset of zero means the cluster has not been written yet and is read from the lower device. L2 tables
+ * and data clusters are only ever appended to the end of the file.
+ * <p>
+ * The backing file reference is purely informational for devices created with an explicit lower device. When using
+ * {@link #open(File, boolean)} it is used to resolve the lower device, which may itself be an overlay image, which
+ * allows chaining multiple overlays over a shared, read-only base image. Chains are limited to
+ * {@value #MAX_BACKING_CHAIN_LENGTH} images, and may not reference an image more than once.
+ */
+public final class CopyOnWriteBlockDevice implements BlockDevice {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final int MAGIC = 0x574F4353; // 'SCOW'
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 36;
+    private static final int MIN_CLUSTER_BITS = 9;
+    private static final int MAX_CLUSTER_BITS = 21;
+    private static final int DEFAULT_CLUSTER_BITS = 16;
+    private static final int MAX_BACKING_CHAIN_LENGTH = 16;
+
+    private final FileChannel channel;
+    private final BlockDevice lower;
+    private final boolean ownsLower;
+    private final boolean readonly;
+    @Nullable private final String backingReference;
+    private final long capacity;
+    private final int clusterBits;
+    private final int clusterSize;
+    private final int l2Bits;
+    private final long l1Offset;
+    private final long[] l1;
+    private final long[][] l2Tables;
+    private long endOfFile;
+
+    public static CopyOnWriteBlockDevice create(final File file, final BlockDevice lower, @Nullable final String backingReference) throws IOException {
+        return create(file, lower, backingReference, 1 << DEFAULT_CLUSTER_BITS);
+    }
+
+    public static CopyOnWriteBlockDevice create(final File file, final BlockDevice lower, @Nullable final String backingReference, final int clusterSize) throws IOException {
+        if (Integer.bitCount(clusterSize) != 1) {
+            throw new IllegalArgumentException("Cluster size must be a power of two.");
+        }
+
+        final int clusterBits = Integer.numberOfTrailingZeros(clusterSize);
+        if (clusterBits < MIN_CLUSTER_BITS || clusterBits > MAX_CLUSTER_BITS) {
+            throw new IllegalArgumentException("Cluster size out of range.");
+        }
+
+        final long capacity = lower.getCapacity();
+        final long l1Size = getL1Size(capacity, clusterBits);
+        if (l1Size > Integer.MAX_VALUE / 8) {
+            throw new IllegalArgumentException("Lower BlockDevice is too large.");
+        }
+
+        final byte[] backing = backingReference != null ? backingReference.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        final long l1Offset = align8(HEADER_SIZE + backing.length);
+
+        final ByteBuffer header = ByteBuffer.allocate((int) l1Offset + (int) l1Size * 8).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(clusterBits);
+        header.putInt((int) l1Size);
+        header.putLong(capacity);
+        header.putLong(l1Offset);
+        header.putInt(backing.length);
+        header.put(backing);
+        header.clear();
+
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            writeFully(channel, header, 0);
+            return new CopyOnWriteBlockDevice(channel, lower, false, false);
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public static CopyOnWriteBlockDevice open(final File file, final BlockDevice lower, final boolean readonly) throws IOException {
+        final FileChannel channel = openChannel(file, readonly);
+        try {
+            return new CopyOnWriteBlockDevice(channel, lower, false, readonly);
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public static CopyOnWriteBlockDevice open(final File file, final boolean readonly) throws IOException {
+        return open(file, readonly, new HashSet<>());
+    }
+
+    private static CopyOnWriteBlockDevice open(final File file, final boolean readonly, final Set<Path> openedImages) throws IOException {
+        if (!openedImages.add(file.getCanonicalFile().toPath())) {
+            throw new IOException("overlay image backing chain contains a cycle");
+        }
+        if (openedImages.size() > MAX_BACKING_CHAIN_LENGTH) {
+            throw new IOException("overlay image backing chain is too long");
+        }
+
+        final FileChannel channel = openChannel(file, readonly);
+        BlockDevice lower = null;
+        try {
+            final String backingReference = readHeader(channel).backingReference;
+            if (backingReference == null) {
+                lower = NullBlockDevice.get(true);
+            } else {
+                final File backingFile = file.toPath().resolveSibling(backingReference).toFile();
+                if (isImage(backingFile)) {
+                    lower = open(backingFile, true, openedImages);
+                } else {
+                    lower = ByteBufferBlockDevice.createFromFile(backingFile, true);
+                }
+            }
+
+            return new CopyOnWriteBlockDevice(channel, lower, true, readonly);
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            if (lower != null) {
+                lower.close();
+            }
+            throw e;
+        }
+    }
+
+    public static boolean isImage(final File file) {
+        if (!file.isFile()) {
+            return false;
+        }
+
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            return channel.read(magic, 0) == 4 && magic.getInt(0) == MAGIC;
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+    private CopyOnWriteBlockDevice(final FileChannel channel, final BlockDevice lower, final boolean ownsLower, final boolean readonly) throws IOException {
+        final Header header = readHeader(channel);
+
+        this.channel = channel;
+        this.lower = lower;
+        this.ownsLower = ownsLower;
+        this.readonly = readonly;
+        this.backingReference = header.backingReference;
+        this.capacity = header.capacity;
+        this.clusterBits = header.clusterBits;
+        this.clusterSize = 1 << clusterBits;
+        this.l2Bits = clusterBits - 3;
+        this.l1Offset = header.l1Offset;
+
+        final ByteBuffer l1Buffer = ByteBuffer.allocate(header.l1Size * 8).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, l1Buffer, l1Offset);
+        l1Buffer.flip();
+        l1 = new long[header.l1Size];
+        l1Buffer.asLongBuffer().get(l1);
+        l2Tables = new long[header.l1Size][];
+
+        endOfFile = Math.max(channel.size(), l1Offset + header.l1Size * 8L);
+    }
+
+    @Nullable
+    public String getBackingReference() {
+        return backingReference;
+    }
+
+    public int getClusterSize() {
+        return clusterSize;
+    }
+
+    @Override
+    public boolean isReadonly() {
+        return readonly;
+    }
+
+    @Override
+    public long getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public InputStream getInputStream(final long offset) {
+        if (offset < 0 || offset > capacity) {
+            throw new IllegalArgumentException();
+        }
+
+        return new CopyOnWriteInputStream(offset);
+    }
+
+    @Override
+    public OutputStream getOutputStream(final long offset) {
+        if (isReadonly()) {
+            throw new UnsupportedOperationException();
+        }
+
+        if (offset < 0 || offset > capacity) {
+            throw new IllegalArgumentException();
+        }
+
+        return new CopyOnWriteOutputStream(offset);
+    }
+
+    @Override
+    public void flush() {
+        if (readonly) {
+            return;
+        }
+
+        try {
+            channel.force(false);
+        } catch (final IOException e) {
+            LOGGER.error("Failed flushing overlay image.", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            if (ownsLower) {
+                lower.close();
+            }
+        }
+    }
+
+    private synchronized int read(final long offset, final byte[] b, final int off, final int len) throws IOException {
+        final long clusterIndex = offset >>> clusterBits;
+        final int localOffset = (int) (offset & (clusterSize - 1));
+        final int count = (int) Math.min(Math.min(len, clusterSize - localOffset), capacity - offset);
+
+        final long clusterOffset = getClusterOffset(clusterIndex);
+        if (clusterOffset != 0) {
+            readFully(channel, ByteBuffer.wrap(b, off, count), clusterOffset + localOffset);
+        } else {
+            readLower(offset, b, off, count);
+        }
+
+        return count;
+    }
+
+    private synchronized int write(final long offset, final byte[] b, final int off, final int len) throws IOException {
+        final long clusterIndex = offset >>> clusterBits;
+        final int localOffset = (int) (offset & (clusterSize - 1));
+        final int count = (int) Math.min(Math.min(len, clusterSize - localOffset), capacity - offset);
+
+        final long clusterOffset = getClusterOffset(clusterIndex);
+        if (clusterOffset != 0) {
+            writeFully(channel, ByteBuffer.wrap(b, off, count), clusterOffset + localOffset);
+        } else {
+            final long clusterStart = clusterIndex << clusterBits;
+            final byte[] cluster = new byte[clusterSize];
+            if (count < clusterSize) {
+                readLower(clusterStart, cluster, 0, (int) Math.min(clusterSize, capacity - clusterStart));
+            }
+            System.arraycopy(b, off, cluster, localOffset, count);
+
+            final long newClusterOffset = allocate(clusterSize);
+            writeFully(channel, ByteBuffer.wrap(cluster), newClusterOffset);
+            setClusterOffset(clusterIndex, newClusterOffset);
+        }
+
+        return count;
+    }
+
+    private void readLower(final long offset, final byte[] b, final int off, final int len) throws IOException {
+        int readCount = 0;
+        if (offset < lower.getCapacity()) {
+            final InputStream stream = lower.getInputStream(offset);
+            while (readCount < len) {
+                final int read = stream.read(b, off + readCount, len - readCount);
+                if (read < 0) {
+                    break;
+                }
+                readCount += read;
+            }
+        }
+
+        // Lower device may be smaller than this one, e.g. when there is no backing file at all.
+        Arrays.fill(b, off + readCount, off + len, (byte) 0);
+    }
+
+    private long getClusterOffset(final long clusterIndex) throws IOException {
+        final int l1Index = (int) (clusterIndex >>> l2Bits);
+        final long[] l2 = getL2Table(l1Index);
+        if (l2 == null) {
+            return 0;
+        }
+        return l2[(int) (clusterIndex & ((1 << l2Bits) - 1))];
+    }
+
+    private void setClusterOffset(final long clusterIndex, final long clusterOffset) throws IOException {
+        final int l1Index = (int) (clusterIndex >>> l2Bits);
+        final int l2Index = (int) (clusterIndex & ((1 << l2Bits) - 1));
+
+        long[] l2 = getL2Table(l1Index);
+        if (l2 == null) {
+            final long l2Offset = allocate(clusterSize);
+            writeFully(channel, ByteBuffer.allocate(clusterSize), l2Offset);
+
+            l2 = new long[1 << l2Bits];
+            l2Tables[l1Index] = l2;
+
+            // Only link the new table after it was written, so a crash leaves the image consistent.
+            l1[l1Index] = l2Offset;
+            writeLong(l1Offset + l1Index * 8L, l2Offset);
+        }
+
+        l2[l2Index] = clusterOffset;
+        writeLong(l1[l1Index] + l2Index * 8L, clusterOffset);
+    }
+
+    @Nullable
+    private long[] getL2Table(final int l1Index) throws IOException {
+        long[] l2 = l2Tables[l1Index];
+        if (l2 == null && l1[l1Index] != 0) {
+            final ByteBuffer buffer = ByteBuffer.allocate(clusterSize).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, buffer, l1[l1Index]);
+            buffer.flip();
+
+            l2 = new long[1 << l2Bits];
+            buffer.asLongBuffer().get(l2);
+            l2Tables[l1Index] = l2;
+        }
+        return l2;
+    }
+
+    private long allocate(final int size) {
+        final long offset = endOfFile;
+        endOfFile += size;
+        return offset;
+    }
+
+    private void writeLong(final long position, final long value) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putLong(0, value);
+        writeFully(channel, buffer, position);
+    }
+
+    private static FileChannel openChannel(final File file, final boolean readonly) throws IOException {
+        return readonly
+            ? FileChannel.open(file.toPath(), StandardOpenOption.READ)
+            : FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static Header readHeader(final FileChannel channel) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, buffer, 0);
+        buffer.flip();
+
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("invalid overlay image header");
+        }
+        if (buffer.getInt() != VERSION) {
+            throw new IOException("unsupported overlay image version");
+        }
+
+        final Header header = new Header();
+        header.clusterBits = buffer.getInt();
+        header.l1Size = buffer.getInt();
+        header.capacity = buffer.getLong();
+        header.l1Offset = buffer.getLong();
+        final int backingLength = buffer.getInt();
+
+        if (header.clusterBits < MIN_CLUSTER_BITS || header.clusterBits > MAX_CLUSTER_BITS) {
+            throw new IOException("invalid overlay image cluster size");
+        }
+        if (header.capacity < 0 || header.l1Size > Integer.MAX_VALUE / 8 ||
+            header.l1Size != getL1Size(header.capacity, header.clusterBits)) {
+            throw new IOException("invalid overlay image L1 table size");
+        }
+        if (backingLength < 0 || header.l1Offset < HEADER_SIZE + backingLength) {
+            throw new IOException("invalid overlay image backing file reference");
+        }
+
+        if (backingLength > 0) {
+            final ByteBuffer backing = ByteBuffer.allocate(backingLength);
+            readFully(channel, backing, HEADER_SIZE);
+            header.backingReference = new String(backing.array(), StandardCharsets.UTF_8);
+        }
+
+        return header;
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("unexpected end of overlay image");
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static long getL1Size(final long capacity, final int clusterBits) {
+        // Rounds up without overflowing for capacities close to Long.MAX_VALUE.
+        final long clusterCount = (capacity >>> clusterBits) + ((capacity & ((1L << clusterBits) - 1)) != 0 ? 1 : 0);
+        final int l2Bits = clusterBits - 3;
+        return (clusterCount + (1L << l2Bits) - 1) >>> l2Bits;
+    }
+
+    private static long align8(final long value) {
+        return (value + 7) & ~7L;
+    }
+
+    private static final class Header {
+        public int clusterBits;
+        public int l1Size;
+        public long capacity;
+        public long l1Offset;
+        @Nullable public String backingReference;
+    }
+
+    private final class CopyOnWriteInputStream extends InputStream {
+        private long offset;
+
+        public CopyOnWriteInputStream(final long offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            if (read(b, 0, 1) < 0) {
+                return -1;
+            }
+            return b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(@Nonnull final byte[] b, final int off, final int len) throws IOException {
+            if (offset >= capacity) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+
+            int totalCount = 0;
+            while (totalCount < len && offset < capacity) {
+                final int count = CopyOnWriteBlockDevice.this.read(offset, b, off + totalCount, len - totalCount);
+                offset += count;
+                totalCount += count;
+            }
+
+            return totalCount;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final long skipped = Math.max(0, Math.min(n, capacity - offset));
+            offset += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, capacity - offset);
+        }
+    }
+
+    private final class CopyOnWriteOutputStream extends OutputStream {
+        private long offset;
+
+        public CopyOnWriteOutputStream(final long offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@Nonnull final byte[] b, final int off, final int len) throws IOException {
+            int totalCount = 0;
+            while (totalCount < len) {
+                if (offset >= capacity) {
+                    throw new IOException();
+                }
+
+                final int count = CopyOnWriteBlockDevice.this.write(offset, b, off + totalCount, len - totalCount);
+                offset += count;
+                totalCount += count;
+            }
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package li.cil.sedna.device.block;
+
+import li.cil.ceres.api.Serialized;
+import li.cil.sedna.api.device.BlockDevice;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A block device that stores its data in a shared {@link DeduplicatingBlockStore}.
+ * <p>
+ * Each device only holds a table mapping its blocks to blocks in the store. Blocks that are modified are written
+ * to the store as new blocks, so blocks shared with other devices are never changed. Blocks consisting only of
+ * zeros are not stored at all.
+ * <p>
+ * This makes {@link #snapshot()} cheap: it only copies the mapping table.
+ * <p>
+ * In turn, every write replaces the whole block it touches: the parts of the block that are not overwritten are
+ * read back, and the complete block is hashed and stored as a new block. A single sector written into a large
+ * block costs as much as writing the full block. Choose a block size close to the typical write size of the
+ * guest, or coalesce small writes by putting a {@link CachedBlockDevice} in write-back mode in front of this
+ * device.
+ * <p>
+ * The mapping table is serialized with the device, and references blocks by their id in the store. Closing the
+ * device keeps its blocks in the store, so a deserialized device continues to work with the store after it has
+ * been closed and opened again. Use {@link #delete()} to release the blocks of a device that is no longer needed.
+ */
+public final class DeduplicatingBlockDevice implements BlockDevice {
+    private static final int ZERO_BLOCK = -1;
+
+    private final DeduplicatingBlockStore store;
+    private final long capacity;
+    private final int blockSize;
+    private final boolean readonly;
+    @Serialized private int[] blocks;
+    private boolean isClosed;
+
+    /**
+     * Creates a new device with the specified capacity, initially filled with zeros.
+     *
+     * @param store    the store to keep block data in.
+     * @param capacity the capacity of the device in bytes.
+     * @param readonly whether the device is read-only.
+     */
+    public DeduplicatingBlockDevice(final DeduplicatingBlockStore store, final long capacity, final boolean readonly) {
+        this.store = store;
+        this.capacity = capacity;
+        this.blockSize = store.getBlockSize();
+        this.readonly = readonly;
+
+        final long blockCount = (capacity + blockSize - 1) / blockSize;
+        if (blockCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Capacity is too large.");
+        }
+
+        blocks = new int[(int) blockCount];
+        Arrays.fill(blocks, ZERO_BLOCK);
+    }
+
+    private DeduplicatingBlockDevice(final DeduplicatingBlockDevice other, final boolean readonly) {
+        this.store = other.store;
+        this.capacity = other.capacity;
+        this.blockSize = other.blockSize;
+        this.readonly = readonly;
+        this.blocks = other.blocks.clone();
+
+        for (final int block : blocks) {
+            if (block != ZERO_BLOCK) {
+                store.retain(block);
+            }
+        }
+    }
+
+    /**
+     * Creates a new device with the contents of the specified block device.
+     * <p>
+     * Blocks already present in the store, e.g. because the same image was imported for another virtual machine,
+     * will be shared.
+     *
+     * @param store    the store to keep block data in.
+     * @param source   the block device to copy the contents of.
+     * @param readonly whether the device is read-only.
+     * @return the new device.
+     * @throws IOException if reading from the source device or writing to the store fails.
+     */
+    public static DeduplicatingBlockDevice create(final DeduplicatingBlockStore store, final BlockDevice source, final boolean readonly) throws IOException {
+        final DeduplicatingBlockDevice device = new DeduplicatingBlockDevice(store, source.getCapacity(), readonly);
+        try {
+            final InputStream stream = source.getInputStream();
+            final byte[] block = new byte[device.blockSize];
+            for (int blockIndex = 0; blockIndex < device.blocks.length; blockIndex++) {
+                final int length = stream.readNBytes(block, 0, block.length);
+                Arrays.fill(block, length, block.length, (byte) 0);
+                device.blocks[blockIndex] = device.store(block);
+            }
+        } catch (final IOException | RuntimeException e) {
+            device.delete();
+            throw e;
+        }
+        return device;
+    }
+
+    /**
+     * Creates a copy of this device sharing all blocks with this device.
+     * <p>
+     * Subsequent writes to either device will not be visible in the other.
+     *
+     * @return the snapshot.
+     */
+    public synchronized DeduplicatingBlockDevice snapshot() {
+        return snapshot(readonly);
+    }
+
+    public synchronized DeduplicatingBlockDevice snapshot(final boolean readonly) {
+        if (isClosed) {
+            throw new IllegalStateException();
+        }
+        return new DeduplicatingBlockDevice(this, readonly);
+    }
+
+    @Override
+    public boolean isReadonly() {
+        return readonly;
+    }
+
+    @Override
+    public long getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public InputStream getInputStream(final long offset) {
+        if (offset < 0 || offset > capacity) {
+            throw new IllegalArgumentException();
+        }
+
+        return new DeduplicatingInputStream(offset);
+    }
+
+    @Override
+    public OutputStream getOutputStream(final long offset) {
+        if (isReadonly()) {
+            throw new UnsupportedOperationException();
+        }
+
+        if (offset < 0 || offset > capacity) {
+            throw new IllegalArgumentException();
+        }
+
+        return new DeduplicatingOutputStream(offset);
+    }
+
+    /**
+     * Closes the device. Its blocks remain in the store.
+     */
+    @Override
+    public synchronized void close() {
+        isClosed = true;
+    }
+
+    /**
+     * Closes the device and releases all its blocks from the store. Blocks no other device references are
+     * removed from the store.
+     */
+    public synchronized void delete() {
+        isClosed = true;
+        for (int i = 0; i < blocks.length; i++) {
+            if (blocks[i] != ZERO_BLOCK) {
+                store.release(blocks[i]);
+                blocks[i] = ZERO_BLOCK;
+            }
+        }
+    }
+
+    private synchronized int read(final long offset, final byte[] b, final int off, final int len) throws IOException {
+        if (isClosed) {
+            throw new IOException("Device has been closed.");
+        }
+
+        final int blockIndex = (int) (offset / blockSize);
+        final int localOffset = (int) (offset - (long) blockIndex * blockSize);
+        final int count = (int) Math.min(Math.min(len, blockSize - localOffset), capacity - offset);
+
+        final int block = blocks[blockIndex];
+        if (block == ZERO_BLOCK) {
+            Arrays.fill(b, off, off + count, (byte) 0);
+        } else {
+            store.read(block, localOffset, b, off, count);
+        }
+
+        return count;
+    }
+
+    private synchronized int write(final long offset, final byte[] b, final int off, final int len) throws IOException {
+        if (isClosed) {
+            throw new IOException("Device has been closed.");
+        }
+
+        final int blockIndex = (int) (offset / blockSize);
+        final int localOffset = (int) (offset - (long) blockIndex * blockSize);
+        final int count = (int) Math.min(Math.min(len, blockSize - localOffset), capacity - offset);
+
+        // Only read back the parts of the old block that are not overwritten.
+        final int oldBlock = blocks[blockIndex];
+        final byte[] data = new byte[blockSize];
+        if (oldBlock != ZERO_BLOCK) {
+            if (localOffset > 0) {
+                store.read(oldBlock, 0, data, 0, localOffset);
+            }
+            final int end = localOffset + count;
+            if (end < blockSize) {
+                store.read(oldBlock, end, data, end, blockSize - end);
+            }
+        }
+        System.arraycopy(b, off, data, localOffset, count);
+
+        blocks[blockIndex] = store(data);
+        if (oldBlock != ZERO_BLOCK) {
+            store.release(oldBlock);
+        }
+
+        return count;
+    }
+
+    private int store(final byte[] block) throws IOException {
+        for (final byte value : block) {
+            if (value != 0) {
+                return store.put(block);
+            }
+        }
+        return ZERO_BLOCK;
+    }
+
+    private final class DeduplicatingInputStream extends InputStream {
+        private long offset;
+
+        public DeduplicatingInputStream(final long offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            if (read(b, 0, 1) < 0) {
+                return -1;
+            }
+            return b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(@Nonnull final byte[] b, final int off, final int len) throws IOException {
+            if (offset >= capacity) {
+                return -1;
+            }
+
+            int totalCount = 0;
+            while (totalCount < len && offset < capacity) {
+                final int count = DeduplicatingBlockDevice.this.read(offset, b, off + totalCount, len - totalCount);
+                offset += count;
+                totalCount += count;
+            }
+
+            return totalCount;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final long skipped = Math.max(0, Math.min(n, capacity - offset));
+            offset += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, capacity - offset);
+        }
+    }
+
+    private final class DeduplicatingOutputStream extends OutputStream {
+        private long offset;
+
+        public DeduplicatingOutputStream(final long offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@Nonnull final byte[] b, final int off, final int len) throws IOException {
+            int totalCount = 0;
+            while (totalCount < len) {
+                if (offset >= capacity) {
+                    throw new IOException();
+                }
+
+                final int count = DeduplicatingBlockDevice.this.write(offset, b, off + totalCount, len - totalCount);
+                offset += count;
+                totalCount += count;
+            }
+        }
+    }
+}
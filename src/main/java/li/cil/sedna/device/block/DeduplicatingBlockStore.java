@@ -0,0 +1,332 @@
+package li.cil.sedna.device.block;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A reference-counted store for fixed-size blocks, keyed by the hash of their contents.
+ * <p>
+ * Blocks with identical contents are only stored once, no matter how many {@link DeduplicatingBlockDevice}s
+ * reference them. Block data lives in a file. The index from content hash to block, and the reference count of
+ * each block, live in memory and are written to an index file next to the data file by {@link #flush()} and
+ * {@link #close()}. Opening an existing store loads that index again, so the ids of blocks referenced by the
+ * serialized mapping of a {@link DeduplicatingBlockDevice} remain valid across restarts. Changes made after the
+ * last flush are lost if the process terminates without closing the store.
+ * <p>
+ * Slots of blocks that are no longer referenced are reused, but only after the next flush. Until then the index
+ * on disk, and mappings serialized along with it, may still reference them, so overwriting them earlier would
+ * corrupt the persisted state should the process terminate before the next flush.
+ * <p>
+ * This class is thread-safe, so a single store may be shared by devices of many virtual machines. Hashing
+ * happens outside the lock of the store, using a digest per thread.
+ */
+public final class DeduplicatingBlockStore implements Closeable {
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final int HASH_SIZE = 32;
+    private static final String INDEX_FILE_SUFFIX = ".index";
+    private static final int INDEX_MAGIC = 0x58444253; // 'SBDX'
+    private static final int INDEX_VERSION = 1;
+    private static final int INDEX_HEADER_SIZE = 16;
+    private static final int INDEX_ENTRY_SIZE = 4 + HASH_SIZE;
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final FileChannel channel;
+    private final File indexFile;
+    private final int blockSize;
+    private final Object2IntOpenHashMap<ByteBuffer> slotByHash = new Object2IntOpenHashMap<>();
+    private final ArrayList<ByteBuffer> hashBySlot = new ArrayList<>();
+    private final IntArrayList referenceCounts = new IntArrayList();
+    private final IntArrayList freeSlots = new IntArrayList();
+    private final IntArrayList releasedSlots = new IntArrayList(); // Freed since the last flush, not reusable yet.
+    private boolean isClosed;
+
+    /**
+     * Opens the store in the specified file, creating it if it does not exist yet.
+     *
+     * @param file      the file to store block data in. The index is stored in a file with the same name and
+     *                  an additional {@code .index} suffix.
+     * @param blockSize the size of blocks in the store. Must match the block size of an existing store.
+     * @return the opened store.
+     * @throws IOException if the store cannot be opened or its index is invalid.
+     */
+    public static DeduplicatingBlockStore open(final File file, final int blockSize) throws IOException {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive.");
+        }
+
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            final DeduplicatingBlockStore store = new DeduplicatingBlockStore(channel, new File(file.getPath() + INDEX_FILE_SUFFIX), blockSize);
+            store.loadIndex();
+            return store;
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private DeduplicatingBlockStore(final FileChannel channel, final File indexFile, final int blockSize) {
+        this.channel = channel;
+        this.indexFile = indexFile;
+        this.blockSize = blockSize;
+        slotByHash.defaultReturnValue(-1);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * The number of unique blocks currently stored.
+     *
+     * @return the number of unique blocks.
+     */
+    public synchronized int getBlockCount() {
+        return slotByHash.size();
+    }
+
+    /**
+     * Adds a block to the store, or adds a reference to an existing block with the same contents.
+     * <p>
+     * Each call to this method must be matched by a call to {@link #release(int)} once the block is no longer used.
+     *
+     * @param data the contents of the block. Must be exactly {@link #getBlockSize()} bytes long.
+     * @return the id of the block in the store.
+     * @throws IOException if writing the block to the store fails.
+     */
+    public int put(final byte[] data) throws IOException {
+        if (data.length != blockSize) {
+            throw new IllegalArgumentException();
+        }
+
+        final ByteBuffer hash = ByteBuffer.wrap(DIGEST.get().digest(data));
+
+        synchronized (this) {
+            if (isClosed) {
+                throw new IOException("Store has been closed.");
+            }
+
+            final int existingSlot = slotByHash.getInt(hash);
+            if (existingSlot >= 0) {
+                referenceCounts.set(existingSlot, referenceCounts.getInt(existingSlot) + 1);
+                return existingSlot;
+            }
+
+            final int slot;
+            if (!freeSlots.isEmpty()) {
+                slot = freeSlots.popInt();
+            } else {
+                slot = hashBySlot.size();
+                hashBySlot.add(null);
+                referenceCounts.add(0);
+            }
+
+            final ByteBuffer buffer = ByteBuffer.wrap(data);
+            long position = (long) slot * blockSize;
+            try {
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            } catch (final IOException e) {
+                freeSlots.push(slot);
+                throw e;
+            }
+
+            hashBySlot.set(slot, hash);
+            referenceCounts.set(slot, 1);
+            slotByHash.put(hash, slot);
+            return slot;
+        }
+    }
+
+    /**
+     * Adds a reference to an existing block.
+     *
+     * @param id the id of the block.
+     */
+    public synchronized void retain(final int id) {
+        validate(id);
+        referenceCounts.set(id, referenceCounts.getInt(id) + 1);
+    }
+
+    /**
+     * Removes a reference to a block. When no more references remain, the block is removed from the store.
+     *
+     * @param id the id of the block.
+     */
+    public synchronized void release(final int id) {
+        validate(id);
+        final int referenceCount = referenceCounts.getInt(id) - 1;
+        referenceCounts.set(id, referenceCount);
+        if (referenceCount == 0) {
+            slotByHash.removeInt(hashBySlot.get(id));
+            hashBySlot.set(id, null);
+            releasedSlots.push(id);
+        }
+    }
+
+    /**
+     * Reads data from a block.
+     *
+     * @param id     the id of the block to read from.
+     * @param offset the offset into the block to start reading at.
+     * @param b      the array to read into.
+     * @param off    the offset into the array to write to.
+     * @param len    the number of bytes to read.
+     * @throws IOException if reading from the store fails.
+     */
+    public void read(final int id, final int offset, final byte[] b, final int off, final int len) throws IOException {
+        synchronized (this) {
+            // Ids come from device mappings, which may have been deserialized from corrupt data.
+            if (!isValid(id)) {
+                throw new IOException("Invalid block id.");
+            }
+        }
+
+        if (offset < 0 || len < 0 || offset + len > blockSize) {
+            throw new IllegalArgumentException();
+        }
+
+        final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        long position = (long) id * blockSize + offset;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                Arrays.fill(b, buffer.position(), off + len, (byte) 0);
+                break;
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Writes block data and the index to disk.
+     *
+     * @throws IOException if writing fails.
+     */
+    public synchronized void flush() throws IOException {
+        if (isClosed) {
+            return;
+        }
+
+        // Data first, so the index never references blocks that are not on disk.
+        channel.force(false);
+        saveIndex();
+
+        // The index on disk no longer references released slots, so they may be overwritten now.
+        freeSlots.addAll(releasedSlots);
+        releasedSlots.clear();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+
+        try {
+            flush();
+        } finally {
+            isClosed = true;
+            slotByHash.clear();
+            hashBySlot.clear();
+            referenceCounts.clear();
+            freeSlots.clear();
+            releasedSlots.clear();
+            channel.close();
+        }
+    }
+
+    private void validate(final int id) {
+        if (!isValid(id)) {
+            throw new IllegalArgumentException("Invalid block id.");
+        }
+    }
+
+    private boolean isValid(final int id) {
+        return id >= 0 && id < referenceCounts.size() && referenceCounts.getInt(id) > 0;
+    }
+
+    private void loadIndex() throws IOException {
+        if (!indexFile.exists()) {
+            return;
+        }
+
+        final ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(indexFile.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        if (index.remaining() < INDEX_HEADER_SIZE || index.getInt() != INDEX_MAGIC || index.getInt() != INDEX_VERSION) {
+            throw new IOException("invalid block store index");
+        }
+        if (index.getInt() != blockSize) {
+            throw new IOException("block size does not match block store");
+        }
+        final int slotCount = index.getInt();
+        if (slotCount < 0 || index.remaining() != (long) slotCount * INDEX_ENTRY_SIZE) {
+            throw new IOException("invalid block store index");
+        }
+
+        for (int slot = 0; slot < slotCount; slot++) {
+            final int referenceCount = index.getInt();
+            final byte[] hash = new byte[HASH_SIZE];
+            index.get(hash);
+            if (referenceCount < 0) {
+                throw new IOException("invalid block store index");
+            }
+
+            referenceCounts.add(referenceCount);
+            if (referenceCount > 0) {
+                final ByteBuffer key = ByteBuffer.wrap(hash);
+                hashBySlot.add(key);
+                slotByHash.put(key, slot);
+            } else {
+                hashBySlot.add(null);
+                freeSlots.push(slot);
+            }
+        }
+    }
+
+    private void saveIndex() throws IOException {
+        final int slotCount = referenceCounts.size();
+        final ByteBuffer index = ByteBuffer.allocate(INDEX_HEADER_SIZE + slotCount * INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        index.putInt(INDEX_MAGIC);
+        index.putInt(INDEX_VERSION);
+        index.putInt(blockSize);
+        index.putInt(slotCount);
+        for (int slot = 0; slot < slotCount; slot++) {
+            final ByteBuffer hash = hashBySlot.get(slot);
+            index.putInt(referenceCounts.getInt(slot));
+            if (hash != null) {
+                index.put(hash.duplicate());
+            } else {
+                index.position(index.position() + HASH_SIZE);
+            }
+        }
+
+        // Replace atomically, so a crash while saving leaves the previous index intact.
+        final Path temporaryFile = new File(indexFile.getPath() + ".tmp").toPath();
+        Files.write(temporaryFile, index.array());
+        Files.move(temporaryFile, indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
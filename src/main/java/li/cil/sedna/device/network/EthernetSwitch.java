@@ -0,0 +1,556 @@
+package li.cil.sedna.device.network;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import li.cil.sedna.api.device.Steppable;
+import li.cil.sedna.device.virtio.VirtIONetworkDevice;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A virtual layer two switch connecting multiple network endpoints.
+ * <p>
+ * Ports are either attached to a {@link VirtIONetworkDevice}, in which case frames are read from and written to
+ * the device directly, or are {@link HostPort}s, which exchange frames with code running on other threads via a
+ * pair of {@link FrameRing}s.
+ * <p>
+ * The switch learns which MAC addresses live behind which port. Frames to known unicast addresses are only
+ * forwarded to the port the address was learned on, other frames are flooded to all ports of the same VLAN.
+ * Frames sent through a ring are copied once per destination, straight from the ring into the guest memory or
+ * ring of the destination. Frames sent by a device are first read from guest memory into a buffer of the switch,
+ * and then copied once per destination from there.
+ * <p>
+ * Each port is a member of one VLAN, by default VLAN zero. Trunk ports additionally carry all other VLANs,
+ * which are sent and received with an 802.1Q tag.
+ * <p>
+ * Forwarding either happens when this switch is stepped, e.g. by adding it to a board, or on a dedicated
+ * thread started using {@link #start()}. Only one of the two may be used at a time.
+ */
+public final class EthernetSwitch implements Steppable, Closeable {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    public static final int DEFAULT_VLAN = 0;
+    public static final int MAX_VLAN = 4094;
+    public static final int DEFAULT_MAX_FRAME_SIZE = 1518;
+    public static final int DEFAULT_RING_CAPACITY = 256;
+
+    private static final int ETHERNET_HEADER_SIZE = 14;
+    private static final int VLAN_TAG_SIZE = 4;
+    private static final int ETHER_TYPE_VLAN = 0x8100;
+    private static final int MAX_MAC_TABLE_SIZE = 8192;
+
+    // Number of frames forwarded from a single port per step, to keep busy ports from starving others.
+    private static final int MAX_FRAMES_PER_PORT = 64;
+    private static final long IDLE_PARK_NANOS = 100_000;
+
+    private final int maxFrameSize;
+    private final Long2ObjectOpenHashMap<Port> macTable = new Long2ObjectOpenHashMap<>();
+    private final ByteBuffer deviceFrameBuffer;
+    private final ByteBuffer[] deviceFrames = new ByteBuffer[1];
+    private final ByteBuffer[] deliveredFrames = new ByteBuffer[1];
+    private volatile Port[] ports = new Port[0];
+    @Nullable private Thread thread;
+    private volatile boolean isRunning;
+
+    public EthernetSwitch() {
+        this(DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * Creates a new switch forwarding frames up to the specified size.
+     * <p>
+     * The maximum frame size excludes VLAN tags. To connect devices using jumbo frames, this must be at least
+     * the MTU of those devices plus 18 bytes for the Ethernet header and checksum.
+     *
+     * @param maxFrameSize the maximum size of frames forwarded by this switch.
+     */
+    public EthernetSwitch(final int maxFrameSize) {
+        if (maxFrameSize < ETHERNET_HEADER_SIZE) {
+            throw new IllegalArgumentException();
+        }
+
+        this.maxFrameSize = maxFrameSize;
+        this.deviceFrameBuffer = ByteBuffer.allocate(FrameRing.HEADROOM + maxFrameSize + VLAN_TAG_SIZE);
+        this.deviceFrames[0] = deviceFrameBuffer.position(FrameRing.HEADROOM).slice();
+    }
+
+    /**
+     * Attaches a network device to this switch, in the default VLAN.
+     *
+     * @param device the device to attach.
+     * @return the port the device is attached to.
+     */
+    public Port attach(final VirtIONetworkDevice device) {
+        return attach(device, DEFAULT_VLAN, false);
+    }
+
+    /**
+     * Attaches a network device to this switch.
+     *
+     * @param device the device to attach.
+     * @param vlanId the VLAN the port is a member of. Frames of this VLAN are sent to the device untagged.
+     * @param trunk  whether the port also carries all other VLANs, using tagged frames.
+     * @return the port the device is attached to.
+     */
+    public Port attach(final VirtIONetworkDevice device, final int vlanId, final boolean trunk) {
+        validateVlan(vlanId);
+        return addPort(new DevicePort(device, vlanId, trunk));
+    }
+
+    /**
+     * Creates a new port for exchanging frames with code running outside the virtual machines, in the
+     * default VLAN.
+     *
+     * @return the new port.
+     */
+    public HostPort attachHost() {
+        return attachHost(DEFAULT_VLAN, false);
+    }
+
+    /**
+     * Creates a new port for exchanging frames with code running outside the virtual machines.
+     *
+     * @param vlanId the VLAN the port is a member of. Frames of this VLAN are passed untagged.
+     * @param trunk  whether the port also carries all other VLANs, using tagged frames.
+     * @return the new port.
+     */
+    public HostPort attachHost(final int vlanId, final boolean trunk) {
+        validateVlan(vlanId);
+        return addPort(new HostPort(vlanId, trunk, DEFAULT_RING_CAPACITY, maxFrameSize + VLAN_TAG_SIZE));
+    }
+
+    /**
+     * Starts forwarding frames on a dedicated thread.
+     * <p>
+     * The switch must not be stepped while the thread is running.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+
+        isRunning = true;
+        thread = new Thread(this::run, "Ethernet Switch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the forwarding thread started via {@link #start()}, if it is running.
+     */
+    @Override
+    public synchronized void close() {
+        if (thread == null) {
+            return;
+        }
+
+        isRunning = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    @Override
+    public void step(final int cycles) {
+        forward();
+    }
+
+    /**
+     * Forwards pending frames from all ports.
+     * <p>
+     * This is what {@link #step(int)} and the forwarding thread do. It must not be called concurrently.
+     *
+     * @return the number of frames processed.
+     */
+    public int forward() {
+        int frameCount = 0;
+        for (final Port port : ports) {
+            for (int i = 0; i < MAX_FRAMES_PER_PORT; i++) {
+                final ByteBuffer frame = port.poll();
+                if (frame == null) {
+                    break;
+                }
+
+                forward(port, frame);
+                port.release();
+                port.receivedFrameCount++;
+                frameCount++;
+            }
+        }
+        return frameCount;
+    }
+
+    private void run() {
+        while (isRunning) {
+            try {
+                if (forward() == 0) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            } catch (final Throwable e) {
+                LOGGER.error("Error while forwarding frames", e);
+                isRunning = false;
+            }
+        }
+    }
+
+    private synchronized <T extends Port> T addPort(final T port) {
+        final Port[] newPorts = Arrays.copyOf(ports, ports.length + 1);
+        newPorts[ports.length] = port;
+        ports = newPorts;
+        return port;
+    }
+
+    private synchronized void removePort(final Port port) {
+        final Port[] oldPorts = ports;
+        for (int i = 0; i < oldPorts.length; i++) {
+            if (oldPorts[i] == port) {
+                final Port[] newPorts = new Port[oldPorts.length - 1];
+                System.arraycopy(oldPorts, 0, newPorts, 0, i);
+                System.arraycopy(oldPorts, i + 1, newPorts, i, oldPorts.length - i - 1);
+                ports = newPorts;
+                port.isDetached = true;
+                return;
+            }
+        }
+    }
+
+    private void forward(final Port source, final ByteBuffer frame) {
+        if (frame.remaining() < ETHERNET_HEADER_SIZE) {
+            source.droppedFrameCount++;
+            return;
+        }
+
+        // Normalize frame to untagged, remember VLAN it belongs to.
+        final int vlanId;
+        final int offset = frame.position();
+        if (getShort(frame, offset + 12) == ETHER_TYPE_VLAN) {
+            if (!source.isTrunk || frame.remaining() < ETHERNET_HEADER_SIZE + VLAN_TAG_SIZE) {
+                source.droppedFrameCount++;
+                return;
+            }
+
+            vlanId = getShort(frame, offset + 14) & 0xFFF;
+            removeTag(frame);
+        } else {
+            vlanId = source.vlanId;
+        }
+
+        final int start = frame.position();
+        final long sourceMac = getMac(frame, start + 6);
+        if (!isMulticast(sourceMac)) {
+            learn(vlanId, sourceMac, source);
+        }
+
+        final long destinationMac = getMac(frame, start);
+        if (!isMulticast(destinationMac)) {
+            final Port destination = macTable.get(key(vlanId, destinationMac));
+            if (destination != null && !destination.isDetached) {
+                if (destination != source) {
+                    deliver(destination, frame, vlanId != destination.vlanId, vlanId);
+                }
+                return;
+            }
+        }
+
+        flood(source, frame, vlanId);
+    }
+
+    private void flood(final Port source, final ByteBuffer frame, final int vlanId) {
+        // Deliver untagged frames first, then tag in place for the remaining ports.
+        boolean needsTagged = false;
+        for (final Port port : ports) {
+            if (port == source) {
+                continue;
+            }
+            if (port.vlanId == vlanId) {
+                deliver(port, frame, false, vlanId);
+            } else if (port.isTrunk) {
+                needsTagged = true;
+            }
+        }
+
+        if (needsTagged) {
+            insertTag(frame, vlanId);
+            for (final Port port : ports) {
+                if (port != source && port.vlanId != vlanId && port.isTrunk) {
+                    deliver(port, frame, false, vlanId);
+                }
+            }
+        }
+    }
+
+    private void deliver(final Port destination, final ByteBuffer frame, final boolean tagged, final int vlanId) {
+        if (tagged) {
+            if (!destination.isTrunk) {
+                return;
+            }
+            insertTag(frame, vlanId);
+        }
+
+        final int position = frame.position();
+        if (destination.offer(frame)) {
+            destination.sentFrameCount++;
+        } else {
+            destination.droppedFrameCount++;
+        }
+        frame.position(position);
+    }
+
+    private void learn(final int vlanId, final long mac, final Port port) {
+        final long key = key(vlanId, mac);
+        if (macTable.get(key) == port) {
+            return;
+        }
+
+        if (macTable.size() >= MAX_MAC_TABLE_SIZE) {
+            macTable.clear();
+        }
+        macTable.put(key, port);
+    }
+
+    private static void insertTag(final ByteBuffer frame, final int vlanId) {
+        final int start = frame.position() - VLAN_TAG_SIZE;
+        for (int i = 0; i < 12; i++) {
+            frame.put(start + i, frame.get(start + VLAN_TAG_SIZE + i));
+        }
+        putShort(frame, start + 12, ETHER_TYPE_VLAN);
+        putShort(frame, start + 14, vlanId);
+        frame.position(start);
+    }
+
+    private static void removeTag(final ByteBuffer frame) {
+        final int start = frame.position();
+        for (int i = 11; i >= 0; i--) {
+            frame.put(start + VLAN_TAG_SIZE + i, frame.get(start + i));
+        }
+        frame.position(start + VLAN_TAG_SIZE);
+    }
+
+    private static void validateVlan(final int vlanId) {
+        if (vlanId < 0 || vlanId > MAX_VLAN) {
+            throw new IllegalArgumentException();
+        }
+    }
+
+    private static long key(final int vlanId, final long mac) {
+        return ((long) vlanId << 48) | mac;
+    }
+
+    private static boolean isMulticast(final long mac) {
+        return (mac & 0x0100_0000_0000L) != 0;
+    }
+
+    private static long getMac(final ByteBuffer frame, final int offset) {
+        return ((long) getShort(frame, offset) << 32) |
+               ((long) getShort(frame, offset + 2) << 16) |
+               getShort(frame, offset + 4);
+    }
+
+    private static int getShort(final ByteBuffer frame, final int offset) {
+        return ((frame.get(offset) & 0xFF) << 8) | (frame.get(offset + 1) & 0xFF);
+    }
+
+    private static void putShort(final ByteBuffer frame, final int offset, final int value) {
+        frame.put(offset, (byte) (value >>> 8));
+        frame.put(offset + 1, (byte) value);
+    }
+
+    /**
+     * A port of a switch.
+     * <p>
+     * Frame counters are updated by the thread forwarding frames and may lag behind when read from other threads.
+     */
+    public abstract class Port {
+        private final int vlanId;
+        private final boolean isTrunk;
+        private volatile boolean isDetached;
+        private long receivedFrameCount, sentFrameCount, droppedFrameCount;
+
+        private Port(final int vlanId, final boolean isTrunk) {
+            this.vlanId = vlanId;
+            this.isTrunk = isTrunk;
+        }
+
+        public int getVlanId() {
+            return vlanId;
+        }
+
+        public boolean isTrunk() {
+            return isTrunk;
+        }
+
+        /**
+         * The number of frames received by the switch through this port.
+         *
+         * @return the number of frames received.
+         */
+        public long getReceivedFrameCount() {
+            return receivedFrameCount;
+        }
+
+        /**
+         * The number of frames sent by the switch through this port.
+         *
+         * @return the number of frames sent.
+         */
+        public long getSentFrameCount() {
+            return sentFrameCount;
+        }
+
+        /**
+         * The number of frames that could not be delivered to this port, e.g. because the receiver was not
+         * ready, or that were received through this port but were malformed.
+         *
+         * @return the number of dropped frames.
+         */
+        public long getDroppedFrameCount() {
+            return droppedFrameCount;
+        }
+
+        /**
+         * Removes this port from the switch. Frames will no longer be forwarded from or to this port.
+         */
+        public void detach() {
+            removePort(this);
+        }
+
+        /**
+         * Get the next frame sent into the switch through this port.
+         * <p>
+         * The returned buffer must have at least {@link FrameRing#HEADROOM} bytes in front of its position.
+         *
+         * @return the next frame, or {@code null} if there is none.
+         */
+        @Nullable
+        abstract ByteBuffer poll();
+
+        /**
+         * Completes processing of the frame returned by {@link #poll()}.
+         */
+        abstract void release();
+
+        /**
+         * Copies a frame out of the switch through this port.
+         *
+         * @param frame the frame to send.
+         * @return {@code true} if the frame was sent; {@code false} if it had to be dropped.
+         */
+        abstract boolean offer(ByteBuffer frame);
+    }
+
+    private final class DevicePort extends Port {
+        private final VirtIONetworkDevice device;
+
+        private DevicePort(final VirtIONetworkDevice device, final int vlanId, final boolean isTrunk) {
+            super(vlanId, isTrunk);
+            this.device = device;
+        }
+
+        @Nullable
+        @Override
+        ByteBuffer poll() {
+            // Read into a slice of the shared buffer, so we keep headroom in front of the frame.
+            final ByteBuffer slice = deviceFrames[0];
+            if (device.readEthernetFrames(deviceFrames, 0, 1) == 0) {
+                return null;
+            }
+
+            deviceFrameBuffer.limit(FrameRing.HEADROOM + slice.limit()).position(FrameRing.HEADROOM);
+            return deviceFrameBuffer;
+        }
+
+        @Override
+        void release() {
+            deviceFrameBuffer.clear();
+        }
+
+        @Override
+        boolean offer(final ByteBuffer frame) {
+            deliveredFrames[0] = frame;
+            final boolean result = device.writeEthernetFrames(deliveredFrames, 0, 1) > 0;
+            deliveredFrames[0] = null;
+            return result;
+        }
+    }
+
+    /**
+     * A port for exchanging frames with code outside the virtual machines.
+     * <p>
+     * Frames are passed in and out through two rings. Each ring may be used by one thread on the host side,
+     * which may be the same thread or different threads.
+     */
+    public final class HostPort extends Port {
+        private final FrameRing transmitRing;
+        private final FrameRing receiveRing;
+
+        private HostPort(final int vlanId, final boolean isTrunk, final int ringCapacity, final int maxFrameSize) {
+            super(vlanId, isTrunk);
+            this.transmitRing = new FrameRing(ringCapacity, maxFrameSize);
+            this.receiveRing = new FrameRing(ringCapacity, maxFrameSize);
+        }
+
+        /**
+         * The ring frames are sent into the switch through. The host side is the producer of this ring.
+         *
+         * @return the transmit ring.
+         */
+        public FrameRing getTransmitRing() {
+            return transmitRing;
+        }
+
+        /**
+         * The ring frames are received from the switch through. The host side is the consumer of this ring.
+         *
+         * @return the receive ring.
+         */
+        public FrameRing getReceiveRing() {
+            return receiveRing;
+        }
+
+        /**
+         * Copies a frame into the switch.
+         *
+         * @param frame the frame to send.
+         * @return {@code true} if the frame was queued; {@code false} if the transmit ring is full.
+         */
+        public boolean transmit(final ByteBuffer frame) {
+            return transmitRing.offer(frame);
+        }
+
+        /**
+         * Copies the next frame received from the switch into the specified buffer.
+         *
+         * @param frame the buffer to copy the frame into.
+         * @return the size of the frame, {@code 0} if the frame did not fit and was dropped, or {@code -1} if
+         * there are no pending frames.
+         */
+        public int receive(final ByteBuffer frame) {
+            return receiveRing.poll(frame);
+        }
+
+        @Nullable
+        @Override
+        ByteBuffer poll() {
+            return transmitRing.peek();
+        }
+
+        @Override
+        void release() {
+            transmitRing.release();
+        }
+
+        @Override
+        boolean offer(final ByteBuffer frame) {
+            return receiveRing.offer(frame);
+        }
+    }
+}
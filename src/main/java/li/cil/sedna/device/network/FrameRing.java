@@ -0,0 +1,163 @@
+package li.cil.sedna.device.network;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock-free ring of Ethernet frames for exactly one producer and one consumer thread.
+ * <p>
+ * All slots are allocated up front, so passing frames through the ring does not allocate. Frames are written
+ * directly into a slot obtained via {@link #acquire()} and published via {@link #commit()}. The consumer reads
+ * them in place via {@link #peek()} and returns the slot via {@link #release()}.
+ * <p>
+ * Slots reserve some headroom in front of the frame, so that a VLAN tag can be inserted in place.
+ */
+public final class FrameRing {
+    /**
+     * Number of bytes reserved in front of each frame, enough to insert one 802.1Q tag.
+     */
+    public static final int HEADROOM = 4;
+
+    private final ByteBuffer[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // Next slot to read, written by consumer.
+    private final AtomicLong tail = new AtomicLong(); // Next slot to write, written by producer.
+    private long cachedHead, cachedTail;
+
+    /**
+     * Creates a new ring.
+     *
+     * @param capacity     the number of frames the ring can hold. Rounded up to the next power of two.
+     * @param maxFrameSize the maximum size of frames stored in the ring.
+     */
+    public FrameRing(final int capacity, final int maxFrameSize) {
+        if (capacity <= 0 || capacity > (1 << 16) || maxFrameSize <= 0) {
+            throw new IllegalArgumentException();
+        }
+
+        final int size = Integer.highestOneBit(capacity - 1) << 1;
+        slots = new ByteBuffer[Math.max(1, size)];
+        mask = slots.length - 1;
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = ByteBuffer.allocate(HEADROOM + maxFrameSize);
+        }
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Obtains the next free slot to write a frame into. May only be called by the producer.
+     * <p>
+     * The returned buffer is positioned after the headroom. The frame must be written into it using relative
+     * puts, after which it must be published using {@link #commit()}.
+     *
+     * @return the buffer to write the frame into, or {@code null} if the ring is full.
+     */
+    @Nullable
+    public ByteBuffer acquire() {
+        final long index = tail.get();
+        if (index - cachedHead >= slots.length) {
+            cachedHead = head.get();
+            if (index - cachedHead >= slots.length) {
+                return null;
+            }
+        }
+
+        final ByteBuffer slot = slots[(int) index & mask];
+        slot.clear().position(HEADROOM);
+        return slot;
+    }
+
+    /**
+     * Publishes the frame written into the slot most recently returned by {@link #acquire()}. May only be
+     * called by the producer.
+     * <p>
+     * The frame is taken to span from the headroom to the current position of the slot.
+     */
+    public void commit() {
+        final long index = tail.get();
+        final ByteBuffer slot = slots[(int) index & mask];
+        slot.limit(slot.position()).position(HEADROOM);
+        tail.lazySet(index + 1);
+    }
+
+    /**
+     * Copies a frame into the ring. May only be called by the producer.
+     *
+     * @param frame the frame to copy, between its position and limit. The position is advanced on success.
+     * @return {@code true} if the frame was added; {@code false} if the ring is full or the frame is too large.
+     */
+    public boolean offer(final ByteBuffer frame) {
+        final ByteBuffer slot = acquire();
+        if (slot == null || slot.remaining() < frame.remaining()) {
+            return false;
+        }
+
+        slot.put(frame);
+        commit();
+        return true;
+    }
+
+    /**
+     * Returns the oldest frame in the ring without removing it. May only be called by the consumer.
+     * <p>
+     * The frame lies between the position and limit of the returned buffer. The buffer may be modified in place,
+     * including its position, until {@link #release()} is called.
+     *
+     * @return the oldest frame, or {@code null} if the ring is empty.
+     */
+    @Nullable
+    public ByteBuffer peek() {
+        final long index = head.get();
+        if (index >= cachedTail) {
+            cachedTail = tail.get();
+            if (index >= cachedTail) {
+                return null;
+            }
+        }
+
+        return slots[(int) index & mask];
+    }
+
+    /**
+     * Removes the frame most recently returned by {@link #peek()}. May only be called by the consumer.
+     */
+    public void release() {
+        head.lazySet(head.get() + 1);
+    }
+
+    /**
+     * Copies the oldest frame into the specified buffer and removes it. May only be called by the consumer.
+     *
+     * @param frame the buffer to copy the frame into. The frame is written at the buffer's position.
+     * @return the size of the frame, or {@code -1} if the ring is empty. If the frame does not fit into the
+     * buffer, it is dropped and {@code 0} is returned.
+     */
+    public int poll(final ByteBuffer frame) {
+        final ByteBuffer slot = peek();
+        if (slot == null) {
+            return -1;
+        }
+
+        final int length = slot.remaining();
+        if (length > frame.remaining()) {
+            release();
+            return 0;
+        }
+
+        frame.put(slot);
+        release();
+        return length;
+    }
+}
@@ -0,0 +1,102 @@
+package li.cil.sedna.device.network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Constants and helpers for building and parsing IPv4 packets in Ethernet frames.
+ * <p>
+ * All multibyte accesses assume big-endian buffers, which is the default byte order of {@link ByteBuffer}s.
+ */
+final class IpPackets {
+    public static final int ETHERNET_HEADER_SIZE = 14;
+    public static final int IPV4_HEADER_SIZE = 20;
+    public static final int UDP_HEADER_SIZE = 8;
+    public static final int TCP_HEADER_SIZE = 20;
+    public static final int ICMP_HEADER_SIZE = 8;
+
+    public static final int ETHER_TYPE_IPV4 = 0x0800;
+    public static final int ETHER_TYPE_ARP = 0x0806;
+
+    public static final int PROTOCOL_ICMP = 1;
+    public static final int PROTOCOL_TCP = 6;
+    public static final int PROTOCOL_UDP = 17;
+
+    public static final int TCP_FIN = 0x01;
+    public static final int TCP_SYN = 0x02;
+    public static final int TCP_RST = 0x04;
+    public static final int TCP_PSH = 0x08;
+    public static final int TCP_ACK = 0x10;
+
+    public static final int IPV4_FLAG_DONT_FRAGMENT = 0x4000;
+    public static final int IPV4_DEFAULT_TTL = 64;
+
+    private IpPackets() {
+    }
+
+    public static void putEthernetHeader(final ByteBuffer frame, final int offset, final byte[] destination, final byte[] source, final int etherType) {
+        frame.put(offset, destination);
+        frame.put(offset + 6, source);
+        frame.putShort(offset + 12, (short) etherType);
+    }
+
+    public static void putIpv4Header(final ByteBuffer frame, final int offset, final int protocol, final int source, final int destination, final int payloadLength, final int id) {
+        frame.put(offset, (byte) 0x45); // Version 4, 5 words header.
+        frame.put(offset + 1, (byte) 0);
+        frame.putShort(offset + 2, (short) (IPV4_HEADER_SIZE + payloadLength));
+        frame.putShort(offset + 4, (short) id);
+        frame.putShort(offset + 6, (short) IPV4_FLAG_DONT_FRAGMENT);
+        frame.put(offset + 8, (byte) IPV4_DEFAULT_TTL);
+        frame.put(offset + 9, (byte) protocol);
+        frame.putShort(offset + 10, (short) 0);
+        frame.putInt(offset + 12, source);
+        frame.putInt(offset + 16, destination);
+        frame.putShort(offset + 10, checksum(sum(frame, offset, IPV4_HEADER_SIZE, 0)));
+    }
+
+    /**
+     * Computes and stores the checksum of a TCP or UDP segment, including the IPv4 pseudo header.
+     *
+     * @param frame          the frame containing the segment.
+     * @param offset         the offset of the segment in the frame.
+     * @param length         the length of the segment, including its header.
+     * @param protocol       the protocol of the segment.
+     * @param source         the IPv4 source address.
+     * @param destination    the IPv4 destination address.
+     * @param checksumOffset the offset of the checksum field relative to the start of the segment.
+     */
+    public static void putTransportChecksum(final ByteBuffer frame, final int offset, final int length, final int protocol, final int source, final int destination, final int checksumOffset) {
+        frame.putShort(offset + checksumOffset, (short) 0);
+        int sum = (source >>> 16) + (source & 0xFFFF) + (destination >>> 16) + (destination & 0xFFFF) + protocol + length;
+        sum = sum(frame, offset, length, sum);
+        short checksum = checksum(sum);
+        if (checksum == 0 && protocol == PROTOCOL_UDP) {
+            checksum = (short) 0xFFFF;
+        }
+        frame.putShort(offset + checksumOffset, checksum);
+    }
+
+    public static int sum(final ByteBuffer buffer, int offset, int length, int sum) {
+        for (; length > 1; offset += 2, length -= 2) {
+            sum += buffer.getShort(offset) & 0xFFFF;
+        }
+        if (length > 0) {
+            sum += (buffer.get(offset) & 0xFF) << 8;
+        }
+        return sum;
+    }
+
+    public static short checksum(int sum) {
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return (short) ~sum;
+    }
+
+    public static int getUnsignedShort(final ByteBuffer buffer, final int offset) {
+        return buffer.getShort(offset) & 0xFFFF;
+    }
+
+    public static int getUnsignedByte(final ByteBuffer buffer, final int offset) {
+        return buffer.get(offset) & 0xFF;
+    }
+}
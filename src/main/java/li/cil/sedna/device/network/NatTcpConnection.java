@@ -0,0 +1,557 @@
+package li.cil.sedna.device.network;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static li.cil.sedna.device.network.IpPackets.*;
+
+/**
+ * Terminates a TCP connection of the guest and relays its data through a host {@link SocketChannel}.
+ * <p>
+ * The guest side is a minimal TCP implementation: segments received out of order are dropped and re-requested
+ * via duplicate ACKs, and unacknowledged data is retransmitted go-back-N style after a timeout. This is plenty,
+ * since the link to the guest only loses frames when the guest runs out of receive buffers.
+ * <p>
+ * Data flows through two fixed buffers, one per direction. The window advertised to the guest is the free
+ * space in the buffer towards the host, and the host channel is only read while there is space in the
+ * buffer towards the guest, so a slow peer on either side applies backpressure to the other.
+ */
+final class NatTcpConnection implements UserModeNetwork.SelectionHandler {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_WINDOW = 0xFFFF;
+    private static final int DEFAULT_MSS = 536;
+    private static final int MAX_MSS = UserModeNetworkInterface.MTU - IPV4_HEADER_SIZE - TCP_HEADER_SIZE;
+    private static final int MSS_OPTION_SIZE = 4;
+    private static final int TCP_OPTION_END = 0;
+    private static final int TCP_OPTION_NOP = 1;
+    private static final int TCP_OPTION_MSS = 2;
+
+    private static final long INITIAL_RETRANSMIT_TIMEOUT_MILLIS = 200;
+    private static final long MAX_RETRANSMIT_TIMEOUT_MILLIS = 5000;
+    private static final int MAX_RETRANSMIT_COUNT = 10;
+
+    private static final int STATE_CONNECTING = 0; // Guest sent SYN, connecting to host.
+    private static final int STATE_SYN_RECEIVED = 1; // Sent SYN-ACK to guest, waiting for ACK.
+    private static final int STATE_SYN_SENT = 2; // Forwarded connection, sent SYN to guest, waiting for SYN-ACK.
+    private static final int STATE_ESTABLISHED = 3; // Includes half-closed connections.
+    private static final int STATE_CLOSED = 4;
+
+    private final UserModeNetworkInterface networkInterface;
+    private final long key;
+    private final int guestPort;
+    private final int remoteAddress;
+    private final int remotePort;
+    private final SocketChannel channel;
+    private SelectionKey selectionKey;
+    private int state;
+
+    // Our side of the connection, in sequence space of data sent to the guest.
+    private final int initialSequence = ThreadLocalRandom.current().nextInt();
+    private int unacknowledgedSequence;
+    private int nextSequence;
+    private int highestSequence; // Highest sequence sent so far, nextSequence may be lower after retransmits.
+    private int guestWindow;
+    private int maxSegmentSize = DEFAULT_MSS;
+
+    // The guest's side of the connection.
+    private int receiveSequence;
+
+    // Data from the guest not yet written to the host. Write mode, data lies in [0, position).
+    private final ByteBuffer toHost = ByteBuffer.allocate(BUFFER_SIZE);
+    // Data from the host not yet acknowledged by the guest, starting at unacknowledgedSequence. Write mode.
+    private final ByteBuffer toGuest = ByteBuffer.allocate(BUFFER_SIZE);
+    private int sentLength;
+
+    private boolean isHostEndOfStream, isFinSent, isFinAcknowledged;
+    private boolean isGuestEndOfStream, isHostOutputShutdown;
+
+    private boolean isRetransmitTimerArmed;
+    private long retransmitDeadline;
+    private long retransmitTimeout = INITIAL_RETRANSMIT_TIMEOUT_MILLIS;
+    private int retransmitCount;
+
+    private NatTcpConnection(final UserModeNetworkInterface networkInterface, final long key, final int guestPort, final int remoteAddress, final int remotePort, final SocketChannel channel) {
+        this.networkInterface = networkInterface;
+        this.key = key;
+        this.guestPort = guestPort;
+        this.remoteAddress = remoteAddress;
+        this.remotePort = remotePort;
+        this.channel = channel;
+        this.unacknowledgedSequence = initialSequence;
+        this.nextSequence = initialSequence + 1;
+        this.highestSequence = nextSequence;
+    }
+
+    public static long key(final int guestPort, final int remoteAddress, final int remotePort) {
+        return ((long) remoteAddress << 32) | ((long) remotePort << 16) | guestPort;
+    }
+
+    /**
+     * Creates a connection for a SYN sent by the guest and starts connecting to the host.
+     */
+    public static NatTcpConnection connect(final UserModeNetworkInterface networkInterface, final long key,
+                                           final int guestPort, final int remoteAddress, final int remotePort,
+                                           final InetSocketAddress target,
+                                           final ByteBuffer segment, final int offset, final int headerLength) throws IOException {
+        final SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            final boolean isConnected = channel.connect(target);
+
+            final NatTcpConnection connection = new NatTcpConnection(networkInterface, key, guestPort, remoteAddress, remotePort, channel);
+            connection.receiveSequence = segment.getInt(offset + 4) + 1;
+            connection.guestWindow = getUnsignedShort(segment, offset + 14);
+            connection.maxSegmentSize = getMaxSegmentSize(segment, offset, headerLength);
+            connection.state = STATE_CONNECTING;
+            connection.selectionKey = channel.register(networkInterface.getNetwork().getSelector(), SelectionKey.OP_CONNECT, connection);
+            if (isConnected) {
+                connection.handleConnected();
+            }
+            return connection;
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a connection for a host connection forwarded into the guest and sends the SYN to the guest.
+     */
+    public static NatTcpConnection accept(final UserModeNetworkInterface networkInterface, final long key,
+                                          final int guestPort, final int remoteAddress, final int remotePort,
+                                          final SocketChannel channel) throws IOException {
+        try {
+            channel.configureBlocking(false);
+            final NatTcpConnection connection = new NatTcpConnection(networkInterface, key, guestPort, remoteAddress, remotePort, channel);
+            connection.maxSegmentSize = MAX_MSS;
+            connection.state = STATE_SYN_SENT;
+            connection.selectionKey = channel.register(networkInterface.getNetwork().getSelector(), 0, connection);
+            connection.sendSegment(TCP_SYN, connection.initialSequence, 0, 0);
+            connection.armRetransmitTimer();
+            return connection;
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Answers a segment not belonging to any connection with a reset.
+     */
+    public static void sendReset(final UserModeNetworkInterface networkInterface, final int guestPort,
+                                 final int remoteAddress, final int remotePort,
+                                 final ByteBuffer segment, final int offset, final int length, final int headerLength) {
+        final int flags = getUnsignedByte(segment, offset + 13);
+        final int sequence, acknowledgement, replyFlags;
+        if ((flags & TCP_ACK) != 0) {
+            sequence = segment.getInt(offset + 8);
+            acknowledgement = 0;
+            replyFlags = TCP_RST;
+        } else {
+            sequence = 0;
+            acknowledgement = segment.getInt(offset + 4) + length - headerLength +
+                              ((flags & TCP_SYN) != 0 ? 1 : 0) + ((flags & TCP_FIN) != 0 ? 1 : 0);
+            replyFlags = TCP_RST | TCP_ACK;
+        }
+
+        final ByteBuffer packet = networkInterface.beginPacket();
+        final int tcp = packet.position();
+        putHeader(packet, tcp, remotePort, guestPort, sequence, acknowledgement, replyFlags, 0, TCP_HEADER_SIZE);
+        packet.position(tcp + TCP_HEADER_SIZE);
+        networkInterface.sendPacket(PROTOCOL_TCP, remoteAddress, UserModeNetworkInterface.GUEST_ADDRESS);
+    }
+
+    public long getKey() {
+        return key;
+    }
+
+    public boolean isClosed() {
+        return state == STATE_CLOSED;
+    }
+
+    public void handleSegment(final ByteBuffer segment, final int offset, final int length, final int headerLength) {
+        final int sequence = segment.getInt(offset + 4);
+        final int acknowledgement = segment.getInt(offset + 8);
+        final int flags = getUnsignedByte(segment, offset + 13);
+        final int window = getUnsignedShort(segment, offset + 14);
+
+        if ((flags & TCP_RST) != 0) {
+            close();
+            return;
+        }
+
+        switch (state) {
+            case STATE_CONNECTING:
+                // Guest retransmitted its SYN, we're still waiting for the host.
+                return;
+            case STATE_SYN_SENT:
+                if ((flags & (TCP_SYN | TCP_ACK)) == (TCP_SYN | TCP_ACK) && acknowledgement == nextSequence) {
+                    receiveSequence = sequence + 1;
+                    unacknowledgedSequence = acknowledgement;
+                    guestWindow = window;
+                    maxSegmentSize = getMaxSegmentSize(segment, offset, headerLength);
+                    state = STATE_ESTABLISHED;
+                    disarmRetransmitTimer();
+                    sendAcknowledgement();
+                    updateInterest();
+                }
+                return;
+            case STATE_SYN_RECEIVED:
+                if ((flags & (TCP_SYN | TCP_ACK)) == TCP_SYN) {
+                    sendSegment(TCP_SYN | TCP_ACK, initialSequence, 0, 0);
+                    return;
+                }
+                if ((flags & TCP_ACK) == 0 || acknowledgement != nextSequence) {
+                    return;
+                }
+                unacknowledgedSequence = acknowledgement;
+                state = STATE_ESTABLISHED;
+                disarmRetransmitTimer();
+                break;
+            case STATE_ESTABLISHED:
+                break;
+            default:
+                return;
+        }
+
+        if ((flags & TCP_ACK) != 0) {
+            handleAcknowledgement(acknowledgement, window);
+        }
+
+        final int payloadLength = length - headerLength;
+        if (payloadLength > 0 || (flags & TCP_FIN) != 0) {
+            handleData(segment, offset + headerLength, payloadLength, sequence, (flags & TCP_FIN) != 0);
+        }
+
+        if (state == STATE_ESTABLISHED) {
+            sendToGuest();
+            closeIfDone();
+            updateInterest();
+        }
+    }
+
+    public void update(final long now) {
+        if (state == STATE_CLOSED || !isRetransmitTimerArmed || now - retransmitDeadline < 0) {
+            return;
+        }
+
+        if (++retransmitCount > MAX_RETRANSMIT_COUNT) {
+            abort();
+            return;
+        }
+
+        retransmitTimeout = Math.min(retransmitTimeout * 2, MAX_RETRANSMIT_TIMEOUT_MILLIS);
+        retransmitDeadline = now + retransmitTimeout;
+
+        switch (state) {
+            case STATE_SYN_RECEIVED -> sendSegment(TCP_SYN | TCP_ACK, initialSequence, 0, 0);
+            case STATE_SYN_SENT -> sendSegment(TCP_SYN, initialSequence, 0, 0);
+            case STATE_ESTABLISHED -> {
+                // Go back to the first unacknowledged byte and send everything again.
+                sentLength = 0;
+                nextSequence = unacknowledgedSequence;
+                if (isFinSent && !isFinAcknowledged) {
+                    isFinSent = false;
+                }
+
+                if (guestWindow == 0 && toGuest.position() > 0) {
+                    // Window probe, so we learn when the guest opens its window again.
+                    sendSegment(TCP_ACK, unacknowledgedSequence, 0, 1);
+                } else {
+                    sendToGuest();
+                }
+            }
+        }
+    }
+
+    public void close() {
+        if (state == STATE_CLOSED) {
+            return;
+        }
+
+        state = STATE_CLOSED;
+        try {
+            channel.close();
+        } catch (final IOException ignored) {
+        }
+        networkInterface.removeConnection(this);
+    }
+
+    @Override
+    public void handleSelection(final SelectionKey key) {
+        try {
+            if (key.isConnectable() && channel.finishConnect()) {
+                handleConnected();
+            }
+            if (key.isValid() && key.isReadable()) {
+                readFromHost();
+            }
+            if (key.isValid() && key.isWritable()) {
+                writeToHost();
+            }
+            if (state == STATE_ESTABLISHED) {
+                sendToGuest();
+                closeIfDone();
+                updateInterest();
+            }
+        } catch (final IOException e) {
+            LOGGER.debug("Connection to host failed: {}", e.getMessage());
+            abort();
+        }
+    }
+
+    private void handleConnected() {
+        state = STATE_SYN_RECEIVED;
+        selectionKey.interestOps(0);
+        sendSegment(TCP_SYN | TCP_ACK, initialSequence, 0, 0);
+        armRetransmitTimer();
+    }
+
+    private void handleAcknowledgement(final int acknowledgement, final int window) {
+        guestWindow = window;
+
+        final int acknowledged = acknowledgement - unacknowledgedSequence;
+        if (acknowledged <= 0 || acknowledgement - highestSequence > 0) {
+            return;
+        }
+
+        final int dataAcknowledged = Math.min(acknowledged, toGuest.position());
+        toGuest.flip();
+        toGuest.position(dataAcknowledged);
+        toGuest.compact();
+        sentLength = Math.max(0, sentLength - dataAcknowledged);
+        unacknowledgedSequence = acknowledgement;
+        if (nextSequence - acknowledgement < 0) {
+            nextSequence = acknowledgement;
+        }
+        if (acknowledged > dataAcknowledged) {
+            isFinSent = true;
+            isFinAcknowledged = true;
+        }
+
+        retransmitTimeout = INITIAL_RETRANSMIT_TIMEOUT_MILLIS;
+        retransmitCount = 0;
+        if (unacknowledgedSequence != nextSequence) {
+            armRetransmitTimer();
+        } else {
+            disarmRetransmitTimer();
+        }
+    }
+
+    private void handleData(final ByteBuffer segment, final int offset, final int length, final int sequence, final boolean isFin) {
+        if (sequence != receiveSequence || isGuestEndOfStream) {
+            // Out of order or retransmitted, tell the guest what we expect next.
+            sendAcknowledgement();
+            return;
+        }
+
+        final int accepted = Math.min(length, toHost.remaining());
+        toHost.put(toHost.position(), segment, offset, accepted);
+        toHost.position(toHost.position() + accepted);
+        receiveSequence += accepted;
+        if (isFin && accepted == length) {
+            isGuestEndOfStream = true;
+            receiveSequence++;
+        }
+
+        try {
+            writeToHost();
+        } catch (final IOException e) {
+            LOGGER.debug("Connection to host failed: {}", e.getMessage());
+            abort();
+            return;
+        }
+
+        sendAcknowledgement();
+    }
+
+    private void readFromHost() throws IOException {
+        while (toGuest.hasRemaining()) {
+            final int count = channel.read(toGuest);
+            if (count < 0) {
+                isHostEndOfStream = true;
+                break;
+            }
+            if (count == 0) {
+                break;
+            }
+        }
+    }
+
+    private void writeToHost() throws IOException {
+        if (toHost.position() > 0) {
+            final boolean wasWindowClosed = toHost.remaining() < maxSegmentSize;
+            toHost.flip();
+            channel.write(toHost);
+            toHost.compact();
+
+            // Let the guest know it may send again, it won't ask.
+            if (wasWindowClosed && toHost.remaining() >= maxSegmentSize && state == STATE_ESTABLISHED) {
+                sendAcknowledgement();
+            }
+        }
+
+        if (isGuestEndOfStream && toHost.position() == 0 && !isHostOutputShutdown) {
+            isHostOutputShutdown = true;
+            channel.shutdownOutput();
+        }
+    }
+
+    private void sendToGuest() {
+        while (true) {
+            final int unsent = toGuest.position() - sentLength;
+            final int length = Math.min(Math.min(unsent, maxSegmentSize), guestWindow - sentLength);
+            if (length <= 0) {
+                break;
+            }
+
+            sendSegment(TCP_ACK | TCP_PSH, unacknowledgedSequence + sentLength, sentLength, length);
+            sentLength += length;
+            nextSequence = unacknowledgedSequence + sentLength;
+            if (!isRetransmitTimerArmed) {
+                armRetransmitTimer();
+            }
+        }
+
+        if (isHostEndOfStream && !isFinSent && sentLength == toGuest.position()) {
+            sendSegment(TCP_FIN | TCP_ACK, nextSequence, 0, 0);
+            nextSequence++;
+            isFinSent = true;
+            if (!isRetransmitTimerArmed) {
+                armRetransmitTimer();
+            }
+        }
+
+        // Make sure we keep probing a closed window.
+        if (toGuest.position() > sentLength && guestWindow <= sentLength && !isRetransmitTimerArmed) {
+            armRetransmitTimer();
+        }
+    }
+
+    private void sendAcknowledgement() {
+        sendSegment(TCP_ACK, nextSequence, 0, 0);
+    }
+
+    private void sendSegment(final int flags, final int sequence, final int dataOffset, final int dataLength) {
+        final ByteBuffer packet = networkInterface.beginPacket();
+        final int tcp = packet.position();
+        final boolean isSyn = (flags & TCP_SYN) != 0;
+        final int headerLength = TCP_HEADER_SIZE + (isSyn ? MSS_OPTION_SIZE : 0);
+        final int acknowledgement = (flags & TCP_ACK) != 0 ? receiveSequence : 0;
+        final int window = Math.min(toHost.remaining(), MAX_WINDOW);
+
+        putHeader(packet, tcp, remotePort, guestPort, sequence, acknowledgement, flags, window, headerLength);
+        if (isSyn) {
+            packet.put(tcp + TCP_HEADER_SIZE, (byte) TCP_OPTION_MSS);
+            packet.put(tcp + TCP_HEADER_SIZE + 1, (byte) MSS_OPTION_SIZE);
+            packet.putShort(tcp + TCP_HEADER_SIZE + 2, (short) MAX_MSS);
+        }
+
+        packet.position(tcp + headerLength);
+        if (dataLength > 0) {
+            packet.put(packet.position(), toGuest, dataOffset, dataLength);
+            packet.position(packet.position() + dataLength);
+        }
+
+        networkInterface.sendPacket(PROTOCOL_TCP, remoteAddress, UserModeNetworkInterface.GUEST_ADDRESS);
+
+        final int endSequence = sequence + dataLength + ((flags & (TCP_SYN | TCP_FIN)) != 0 ? 1 : 0);
+        if (endSequence - highestSequence > 0) {
+            highestSequence = endSequence;
+        }
+    }
+
+    private void updateInterest() {
+        if (state == STATE_CLOSED || !selectionKey.isValid()) {
+            return;
+        }
+
+        int interestOps = 0;
+        if (!isHostEndOfStream && toGuest.hasRemaining()) {
+            interestOps |= SelectionKey.OP_READ;
+        }
+        if (toHost.position() > 0) {
+            interestOps |= SelectionKey.OP_WRITE;
+        }
+        selectionKey.interestOps(interestOps);
+    }
+
+    private void closeIfDone() {
+        if (isGuestEndOfStream && isHostOutputShutdown && isFinSent && isFinAcknowledged) {
+            close();
+        }
+    }
+
+    private void abort() {
+        if (state == STATE_CLOSED) {
+            return;
+        }
+
+        if (state == STATE_CONNECTING) {
+            sendSegment(TCP_RST | TCP_ACK, 0, 0, 0);
+        } else {
+            sendSegment(TCP_RST | TCP_ACK, nextSequence, 0, 0);
+        }
+        close();
+    }
+
+    private void armRetransmitTimer() {
+        isRetransmitTimerArmed = true;
+        retransmitDeadline = UserModeNetwork.getTimeMillis() + retransmitTimeout;
+    }
+
+    private void disarmRetransmitTimer() {
+        isRetransmitTimerArmed = false;
+        retransmitTimeout = INITIAL_RETRANSMIT_TIMEOUT_MILLIS;
+        retransmitCount = 0;
+    }
+
+    private static void putHeader(final ByteBuffer packet, final int offset, final int sourcePort, final int destinationPort,
+                                  final int sequence, final int acknowledgement, final int flags, final int window,
+                                  final int headerLength) {
+        packet.putShort(offset, (short) sourcePort);
+        packet.putShort(offset + 2, (short) destinationPort);
+        packet.putInt(offset + 4, sequence);
+        packet.putInt(offset + 8, acknowledgement);
+        packet.put(offset + 12, (byte) ((headerLength / 4) << 4));
+        packet.put(offset + 13, (byte) flags);
+        packet.putShort(offset + 14, (short) window);
+        packet.putShort(offset + 16, (short) 0);
+        packet.putShort(offset + 18, (short) 0);
+    }
+
+    private static int getMaxSegmentSize(final ByteBuffer segment, final int offset, final int headerLength) {
+        int option = offset + TCP_HEADER_SIZE;
+        while (option < offset + headerLength) {
+            final int kind = getUnsignedByte(segment, option);
+            if (kind == TCP_OPTION_END) {
+                break;
+            }
+            if (kind == TCP_OPTION_NOP) {
+                option++;
+                continue;
+            }
+            if (option + 1 >= offset + headerLength) {
+                break;
+            }
+            final int length = getUnsignedByte(segment, option + 1);
+            if (length < 2) {
+                break;
+            }
+            if (kind == TCP_OPTION_MSS && length == MSS_OPTION_SIZE && option + MSS_OPTION_SIZE <= offset + headerLength) {
+                return Math.max(1, Math.min(getUnsignedShort(segment, option + 2), MAX_MSS));
+            }
+            option += length;
+        }
+        return DEFAULT_MSS;
+    }
+}
@@ -0,0 +1,118 @@
+package li.cil.sedna.device.network;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+
+import static li.cil.sedna.device.network.IpPackets.PROTOCOL_UDP;
+import static li.cil.sedna.device.network.IpPackets.UDP_HEADER_SIZE;
+
+/**
+ * Maps a UDP port in the guest onto a host {@link DatagramChannel}.
+ * <p>
+ * The binding is not connected, so the guest may exchange datagrams with any number of peers through it.
+ * Bindings are closed after a period without any traffic.
+ */
+final class NatUdpBinding implements UserModeNetwork.SelectionHandler {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final long IDLE_TIMEOUT_MILLIS = 60 * 1000;
+
+    // Number of datagrams received per selection, to keep busy bindings from starving others.
+    private static final int MAX_DATAGRAMS_PER_SELECTION = 64;
+
+    private final UserModeNetworkInterface networkInterface;
+    private final int guestPort;
+    private final DatagramChannel channel;
+    private long lastActivity;
+
+    private NatUdpBinding(final UserModeNetworkInterface networkInterface, final int guestPort, final DatagramChannel channel) {
+        this.networkInterface = networkInterface;
+        this.guestPort = guestPort;
+        this.channel = channel;
+        this.lastActivity = UserModeNetwork.getTimeMillis();
+    }
+
+    public static NatUdpBinding open(final UserModeNetworkInterface networkInterface, final int guestPort) throws IOException {
+        final DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.bind(null);
+            channel.configureBlocking(false);
+            final NatUdpBinding binding = new NatUdpBinding(networkInterface, guestPort, channel);
+            channel.register(networkInterface.getNetwork().getSelector(), SelectionKey.OP_READ, binding);
+            return binding;
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public void send(final ByteBuffer payload, final InetSocketAddress target) {
+        lastActivity = UserModeNetwork.getTimeMillis();
+        try {
+            // Datagrams are dropped when the socket buffer is full, as they would be on a real network.
+            channel.send(payload, target);
+        } catch (final IOException e) {
+            LOGGER.debug("Failed sending datagram to {}: {}", target, e.getMessage());
+        }
+    }
+
+    /**
+     * Closes this binding if it has been idle for too long.
+     *
+     * @return {@code true} if the binding was closed.
+     */
+    public boolean update(final long now) {
+        if (now - lastActivity > IDLE_TIMEOUT_MILLIS) {
+            close();
+            return true;
+        }
+        return false;
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (final IOException ignored) {
+        }
+    }
+
+    @Override
+    public void handleSelection(final SelectionKey key) {
+        try {
+            for (int i = 0; i < MAX_DATAGRAMS_PER_SELECTION; i++) {
+                // Receive directly into the outgoing frame, after the UDP header.
+                final ByteBuffer packet = networkInterface.beginPacket();
+                final int udp = packet.position();
+                packet.position(udp + UDP_HEADER_SIZE);
+                packet.limit(udp + UDP_HEADER_SIZE + UserModeNetworkInterface.MAX_UDP_PAYLOAD_SIZE);
+
+                final SocketAddress sender = channel.receive(packet);
+                if (sender == null) {
+                    break;
+                }
+
+                lastActivity = UserModeNetwork.getTimeMillis();
+
+                final InetSocketAddress senderAddress = (InetSocketAddress) sender;
+                final Integer source = networkInterface.mapToGuest(senderAddress);
+                if (source == null) {
+                    continue;
+                }
+
+                packet.putShort(udp, (short) senderAddress.getPort());
+                packet.putShort(udp + 2, (short) guestPort);
+                packet.putShort(udp + 4, (short) (packet.position() - udp));
+                networkInterface.sendPacket(PROTOCOL_UDP, source, UserModeNetworkInterface.GUEST_ADDRESS);
+            }
+        } catch (final IOException e) {
+            LOGGER.debug("Failed receiving datagram: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package li.cil.sedna.device.network;
+
+import li.cil.sedna.api.device.NetworkTap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link NetworkTap} writing all frames it sees to a file in pcapng format, e.g. for inspection in Wireshark.
+ * <p>
+ * Frames are copied into a bounded off-heap ring along with a host timestamp, and written to the file by a
+ * background thread. Capturing never blocks: if the ring is full, because the writer cannot keep up, or another
+ * thread is capturing a frame at the same time, the frame is dropped and counted in
+ * {@link #getDroppedFrameCount()}.
+ */
+public final class PacketCapture implements NetworkTap, Closeable {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    public static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_SNAP_LENGTH = 0xFFFF;
+
+    // Record layout in the ring: length, timestamp, original length, captured length, flags, data.
+    private static final int RECORD_HEADER_SIZE = 24;
+    private static final int RECORD_ALIGNMENT = 8;
+    private static final int RECORD_WRAP = -1;
+
+    private static final int PCAPNG_SECTION_HEADER_BLOCK = 0x0A0D0D0A;
+    private static final int PCAPNG_INTERFACE_DESCRIPTION_BLOCK = 0x00000001;
+    private static final int PCAPNG_ENHANCED_PACKET_BLOCK = 0x00000006;
+    private static final int PCAPNG_BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+    private static final int PCAPNG_LINK_TYPE_ETHERNET = 1;
+    private static final short PCAPNG_OPTION_END = 0;
+    private static final short PCAPNG_OPTION_IF_TSRESOL = 9;
+    private static final short PCAPNG_OPTION_EPB_FLAGS = 2;
+    private static final int PCAPNG_EPB_FLAGS_INBOUND = 1;
+    private static final int PCAPNG_EPB_FLAGS_OUTBOUND = 2;
+    private static final int PCAPNG_ENHANCED_PACKET_BLOCK_OVERHEAD = 32 + 8 + 4; // Header, flags, end of options.
+    private static final byte TIMESTAMP_RESOLUTION_NANOS = 9;
+
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+
+    private final FileChannel channel;
+    private final ByteBuffer ring;
+    private final int snapLength;
+    private final long timestampOffset;
+    private final AtomicLong head = new AtomicLong(); // Written by the writer thread.
+    private final AtomicLong tail = new AtomicLong(); // Written by the thread holding the capture lock.
+    private final AtomicBoolean captureLock = new AtomicBoolean();
+    private final AtomicLong capturedFrameCount = new AtomicLong();
+    private final AtomicLong droppedFrameCount = new AtomicLong();
+    private final ByteBuffer writeBuffer;
+    private final Thread thread;
+    private volatile boolean isRunning = true;
+
+    private PacketCapture(final FileChannel channel, final int bufferSize, final int snapLength) {
+        this.channel = channel;
+        this.ring = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+        this.snapLength = snapLength;
+        this.timestampOffset = System.currentTimeMillis() * 1_000_000L - System.nanoTime();
+        this.writeBuffer = ByteBuffer.allocateDirect(Math.max(64 * 1024, 2 * (PCAPNG_ENHANCED_PACKET_BLOCK_OVERHEAD + snapLength)))
+            .order(ByteOrder.LITTLE_ENDIAN);
+        this.thread = new Thread(this::run, "Packet Capture");
+        this.thread.setDaemon(true);
+    }
+
+    public static PacketCapture open(final Path path) throws IOException {
+        return open(path, DEFAULT_BUFFER_SIZE, DEFAULT_SNAP_LENGTH);
+    }
+
+    /**
+     * Creates a new capture writing to the specified file, replacing it if it exists.
+     *
+     * @param path       the file to write to.
+     * @param bufferSize the size of the ring frames are buffered in before being written, in bytes.
+     * @param snapLength the maximum number of bytes captured per frame. Frames are truncated to this length.
+     * @return the new capture.
+     * @throws IOException if the file cannot be opened or written.
+     */
+    public static PacketCapture open(final Path path, final int bufferSize, final int snapLength) throws IOException {
+        if (snapLength <= 0 || bufferSize % RECORD_ALIGNMENT != 0 || bufferSize < alignedRecordSize(snapLength)) {
+            throw new IllegalArgumentException();
+        }
+
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            final PacketCapture capture = new PacketCapture(channel, bufferSize, snapLength);
+            capture.writeHeader();
+            capture.thread.start();
+            return capture;
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The number of frames captured so far, including those not yet written to the file.
+     *
+     * @return the number of captured frames.
+     */
+    public long getCapturedFrameCount() {
+        return capturedFrameCount.get();
+    }
+
+    /**
+     * The number of frames that could not be captured.
+     *
+     * @return the number of dropped frames.
+     */
+    public long getDroppedFrameCount() {
+        return droppedFrameCount.get();
+    }
+
+    @Override
+    public void capture(final ByteBuffer frame, final int offset, final int length, final boolean isTransmit) {
+        if (!isRunning || !captureLock.compareAndSet(false, true)) {
+            droppedFrameCount.incrementAndGet();
+            return;
+        }
+
+        try {
+            final int capturedLength = Math.min(length, snapLength);
+            final int recordSize = alignedRecordSize(capturedLength);
+            final int capacity = ring.capacity();
+
+            long position = tail.get();
+            int index = (int) (position % capacity);
+            final int padding = capacity - index < recordSize ? capacity - index : 0;
+            if (position + padding + recordSize - head.get() > capacity) {
+                droppedFrameCount.incrementAndGet();
+                return;
+            }
+
+            if (padding > 0) {
+                ring.putInt(index, RECORD_WRAP);
+                position += padding;
+                index = 0;
+            }
+
+            ring.putInt(index, recordSize);
+            ring.putLong(index + 4, timestampOffset + System.nanoTime());
+            ring.putInt(index + 12, length);
+            ring.putInt(index + 16, capturedLength);
+            ring.putInt(index + 20, isTransmit ? PCAPNG_EPB_FLAGS_OUTBOUND : PCAPNG_EPB_FLAGS_INBOUND);
+            ring.put(index + RECORD_HEADER_SIZE, frame, offset, capturedLength);
+
+            tail.lazySet(position + recordSize);
+            capturedFrameCount.incrementAndGet();
+        } finally {
+            captureLock.set(false);
+        }
+    }
+
+    /**
+     * Stops capturing, writes all pending frames and closes the file.
+     */
+    @Override
+    public void close() {
+        if (!isRunning) {
+            return;
+        }
+
+        isRunning = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (isRunning) {
+                if (!drain()) {
+                    flush();
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+
+            // Wait for a capture that may still be in progress, then write everything that's left. The lock
+            // is never released, so no further frames are captured.
+            while (!captureLock.compareAndSet(false, true)) {
+                Thread.onSpinWait();
+            }
+            drain();
+            flush();
+        } catch (final IOException e) {
+            LOGGER.error("Failed writing packet capture", e);
+            isRunning = false;
+        } finally {
+            try {
+                channel.close();
+            } catch (final IOException e) {
+                LOGGER.error(e);
+            }
+        }
+    }
+
+    private boolean drain() throws IOException {
+        final int capacity = ring.capacity();
+        long position = head.get();
+        final long end = tail.get();
+        if (position == end) {
+            return false;
+        }
+
+        while (position < end) {
+            final int index = (int) (position % capacity);
+            final int recordSize = ring.getInt(index);
+            if (recordSize == RECORD_WRAP) {
+                position += capacity - index;
+                continue;
+            }
+
+            final long timestamp = ring.getLong(index + 4);
+            final int length = ring.getInt(index + 12);
+            final int capturedLength = ring.getInt(index + 16);
+            final int flags = ring.getInt(index + 20);
+            final int paddedLength = align(capturedLength, 4);
+            final int blockLength = PCAPNG_ENHANCED_PACKET_BLOCK_OVERHEAD + paddedLength;
+
+            if (writeBuffer.remaining() < blockLength) {
+                flush();
+            }
+
+            writeBuffer.putInt(PCAPNG_ENHANCED_PACKET_BLOCK);
+            writeBuffer.putInt(blockLength);
+            writeBuffer.putInt(0); // Interface id.
+            writeBuffer.putInt((int) (timestamp >>> 32));
+            writeBuffer.putInt((int) timestamp);
+            writeBuffer.putInt(capturedLength);
+            writeBuffer.putInt(length);
+            writeBuffer.put(writeBuffer.position(), ring, index + RECORD_HEADER_SIZE, capturedLength);
+            writeBuffer.position(writeBuffer.position() + capturedLength);
+            for (int i = capturedLength; i < paddedLength; i++) {
+                writeBuffer.put((byte) 0);
+            }
+            writeBuffer.putShort(PCAPNG_OPTION_EPB_FLAGS);
+            writeBuffer.putShort((short) 4);
+            writeBuffer.putInt(flags);
+            writeBuffer.putInt(PCAPNG_OPTION_END);
+            writeBuffer.putInt(blockLength);
+
+            position += recordSize;
+            head.lazySet(position);
+        }
+
+        return true;
+    }
+
+    private void flush() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            channel.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+    private void writeHeader() throws IOException {
+        final int sectionHeaderLength = 28;
+        writeBuffer.putInt(PCAPNG_SECTION_HEADER_BLOCK);
+        writeBuffer.putInt(sectionHeaderLength);
+        writeBuffer.putInt(PCAPNG_BYTE_ORDER_MAGIC);
+        writeBuffer.putShort((short) 1); // Major version.
+        writeBuffer.putShort((short) 0); // Minor version.
+        writeBuffer.putLong(-1); // Section length not specified.
+        writeBuffer.putInt(sectionHeaderLength);
+
+        final int interfaceDescriptionLength = 32;
+        writeBuffer.putInt(PCAPNG_INTERFACE_DESCRIPTION_BLOCK);
+        writeBuffer.putInt(interfaceDescriptionLength);
+        writeBuffer.putShort((short) PCAPNG_LINK_TYPE_ETHERNET);
+        writeBuffer.putShort((short) 0); // Reserved.
+        writeBuffer.putInt(snapLength);
+        writeBuffer.putShort(PCAPNG_OPTION_IF_TSRESOL);
+        writeBuffer.putShort((short) 1);
+        writeBuffer.putInt(TIMESTAMP_RESOLUTION_NANOS); // Value and padding.
+        writeBuffer.putInt(PCAPNG_OPTION_END);
+        writeBuffer.putInt(interfaceDescriptionLength);
+
+        flush();
+    }
+
+    private static int alignedRecordSize(final int capturedLength) {
+        return align(RECORD_HEADER_SIZE + capturedLength, RECORD_ALIGNMENT);
+    }
+
+    private static int align(final int value, final int alignment) {
+        return (value + alignment - 1) & -alignment;
+    }
+}
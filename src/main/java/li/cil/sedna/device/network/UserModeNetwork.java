@@ -0,0 +1,324 @@
+package li.cil.sedna.device.network;
+
+import li.cil.sedna.device.virtio.VirtIONetworkDevice;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A user-mode network backend, giving virtual machines access to the host network without any privileges.
+ * <p>
+ * Each {@link UserModeNetworkInterface} attached to this network is a private NAT, similar to what QEMU calls
+ * user networking: the guest lives in {@code 10.0.2.0/24} and is given address {@code 10.0.2.15} via DHCP. The
+ * virtual gateway at {@code 10.0.2.2} answers ARP and pings, and connections to it are mapped to the host's
+ * loopback interface. If an upstream DNS server is configured, it is reachable via {@code 10.0.2.3}.
+ * <p>
+ * Guest TCP connections and UDP flows are mapped onto host {@link java.nio.channels.SocketChannel}s and
+ * {@link java.nio.channels.DatagramChannel}s. All channels of all attached interfaces are driven by a single
+ * {@link Selector}, so one host thread serves many virtual machines. Only IPv4 is supported.
+ * <p>
+ * The network is driven either by calling {@link #poll(long)} repeatedly, or on a dedicated thread started
+ * using {@link #start()}. Attaching and detaching interfaces is safe from any thread.
+ */
+public final class UserModeNetwork implements Closeable {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final long POLL_INTERVAL_MILLIS = 1;
+
+    // Blocking tasks queued beyond this are dropped, e.g. pings to unreachable hosts each block for a while.
+    private static final int MAX_PENDING_BLOCKING_TASKS = 16;
+
+    private final Selector selector;
+    @Nullable private final InetAddress dnsServer;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ArrayList<UserModeNetworkInterface> interfaces = new ArrayList<>();
+    @Nullable private ExecutorService echoExecutor;
+    @Nullable private Thread thread;
+    private volatile boolean isRunning;
+
+    private UserModeNetwork(final Selector selector, @Nullable final InetAddress dnsServer) {
+        this.selector = selector;
+        this.dnsServer = dnsServer;
+    }
+
+    public static UserModeNetwork create() throws IOException {
+        return create(null);
+    }
+
+    /**
+     * Creates a new user-mode network.
+     *
+     * @param dnsServer the upstream DNS server guests are pointed to, or {@code null} to not provide DNS.
+     * @return the new network.
+     * @throws IOException if the selector could not be opened.
+     */
+    public static UserModeNetwork create(@Nullable final InetAddress dnsServer) throws IOException {
+        return new UserModeNetwork(Selector.open(), dnsServer);
+    }
+
+    /**
+     * Attaches a network device to this network.
+     * <p>
+     * The device should use the default MTU of 1500 bytes.
+     *
+     * @param device the device to attach.
+     * @return the interface the device is attached to.
+     */
+    public UserModeNetworkInterface attach(final VirtIONetworkDevice device) {
+        return attach(new DeviceEndpoint(device));
+    }
+
+    /**
+     * Attaches a switch port to this network, so that all devices connected to the switch may use it.
+     * <p>
+     * Only one guest on the switch can use DHCP and NAT at a time, since all guests are assigned the same address.
+     *
+     * @param port the port to attach.
+     * @return the interface the port is attached to.
+     */
+    public UserModeNetworkInterface attach(final EthernetSwitch.HostPort port) {
+        return attach(new HostPortEndpoint(port));
+    }
+
+    /**
+     * Starts driving this network on a dedicated thread.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+
+        isRunning = true;
+        thread = new Thread(this::run, "User Mode Network");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Processes pending frames from all interfaces and pending events on all host channels.
+     * <p>
+     * This must not be called concurrently, and not while the thread started via {@link #start()} is running.
+     *
+     * @param timeoutMillis the maximum time to wait for host channels to become ready.
+     * @throws IOException if selecting fails.
+     */
+    public void poll(final long timeoutMillis) throws IOException {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+
+        if (timeoutMillis > 0) {
+            selector.select(timeoutMillis);
+        } else {
+            selector.selectNow();
+        }
+
+        for (final SelectionKey key : selector.selectedKeys()) {
+            if (key.isValid()) {
+                ((SelectionHandler) key.attachment()).handleSelection(key);
+            }
+        }
+        selector.selectedKeys().clear();
+
+        final long now = getTimeMillis();
+        for (final UserModeNetworkInterface networkInterface : interfaces) {
+            networkInterface.update(now);
+        }
+    }
+
+    @Override
+    public void close() {
+        final Thread thread;
+        synchronized (this) {
+            thread = this.thread;
+            this.thread = null;
+        }
+
+        if (thread != null) {
+            isRunning = false;
+            selector.wakeup();
+            try {
+                thread.join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        for (final UserModeNetworkInterface networkInterface : interfaces) {
+            networkInterface.closeChannels();
+        }
+        interfaces.clear();
+
+        try {
+            selector.close();
+        } catch (final IOException e) {
+            LOGGER.error(e);
+        }
+
+        synchronized (this) {
+            if (echoExecutor != null) {
+                echoExecutor.shutdownNow();
+                echoExecutor = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the time used for timeouts in this network, in milliseconds. This is monotonic, i.e. it is not
+     * affected by changes to the system clock, and only meaningful relative to other values returned by it.
+     */
+    static long getTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    @Nullable
+    InetAddress getDnsServer() {
+        return dnsServer;
+    }
+
+    /**
+     * Runs a task on the thread driving this network.
+     */
+    void execute(final Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs a potentially blocking task on a background thread. The task is dropped if too many tasks are
+     * already waiting to run.
+     */
+    synchronized void executeBlocking(final Runnable task) {
+        if (echoExecutor == null) {
+            echoExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_PENDING_BLOCKING_TASKS),
+                runnable -> {
+                    final Thread thread = new Thread(runnable, "User Mode Network Echo");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.DiscardPolicy());
+        }
+        echoExecutor.execute(task);
+    }
+
+    void remove(final UserModeNetworkInterface networkInterface) {
+        execute(() -> {
+            if (interfaces.remove(networkInterface)) {
+                networkInterface.closeChannels();
+            }
+        });
+    }
+
+    private UserModeNetworkInterface attach(final FrameEndpoint endpoint) {
+        final UserModeNetworkInterface networkInterface = new UserModeNetworkInterface(this, endpoint);
+        execute(() -> interfaces.add(networkInterface));
+        return networkInterface;
+    }
+
+    private void run() {
+        while (isRunning) {
+            try {
+                poll(POLL_INTERVAL_MILLIS);
+            } catch (final ClosedSelectorException e) {
+                break;
+            } catch (final Throwable e) {
+                LOGGER.error("Error in user mode network", e);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Implemented by attachments of selection keys registered with the selector of a network.
+     */
+    interface SelectionHandler {
+        void handleSelection(SelectionKey key);
+    }
+
+    /**
+     * Source and sink of Ethernet frames of a guest.
+     */
+    interface FrameEndpoint {
+        /**
+         * Returns the next frame sent by the guest, which stays valid until {@link #release()} is called.
+         */
+        @Nullable
+        ByteBuffer poll();
+
+        void release();
+
+        boolean offer(ByteBuffer frame);
+    }
+
+    private static final class DeviceEndpoint implements FrameEndpoint {
+        private final VirtIONetworkDevice device;
+        private final ByteBuffer[] frames = {ByteBuffer.allocate(UserModeNetworkInterface.MAX_FRAME_SIZE)};
+        private final ByteBuffer[] outgoingFrames = new ByteBuffer[1];
+
+        public DeviceEndpoint(final VirtIONetworkDevice device) {
+            this.device = device;
+        }
+
+        @Nullable
+        @Override
+        public ByteBuffer poll() {
+            return device.readEthernetFrames(frames, 0, 1) > 0 ? frames[0] : null;
+        }
+
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public boolean offer(final ByteBuffer frame) {
+            outgoingFrames[0] = frame;
+            final boolean result = device.writeEthernetFrames(outgoingFrames, 0, 1) > 0;
+            outgoingFrames[0] = null;
+            return result;
+        }
+    }
+
+    private static final class HostPortEndpoint implements FrameEndpoint {
+        private final EthernetSwitch.HostPort port;
+
+        public HostPortEndpoint(final EthernetSwitch.HostPort port) {
+            this.port = port;
+        }
+
+        @Nullable
+        @Override
+        public ByteBuffer poll() {
+            return port.getReceiveRing().peek();
+        }
+
+        @Override
+        public void release() {
+            port.getReceiveRing().release();
+        }
+
+        @Override
+        public boolean offer(final ByteBuffer frame) {
+            return port.transmit(frame);
+        }
+    }
+}
@@ -0,0 +1,632 @@
+package li.cil.sedna.device.network;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+
+import static li.cil.sedna.device.network.IpPackets.*;
+
+/**
+ * A private NAT for a single guest, part of a {@link UserModeNetwork}.
+ * <p>
+ * All methods not documented otherwise are called on the thread driving the network.
+ */
+public final class UserModeNetworkInterface {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    public static final int NETWORK_ADDRESS = 0x0A000200; // 10.0.2.0
+    public static final int NETWORK_MASK = 0xFFFFFF00; // 255.255.255.0
+    public static final int GATEWAY_ADDRESS = 0x0A000202; // 10.0.2.2
+    public static final int DNS_ADDRESS = 0x0A000203; // 10.0.2.3
+    public static final int GUEST_ADDRESS = 0x0A00020F; // 10.0.2.15
+
+    static final int MTU = 1500;
+    static final int MAX_FRAME_SIZE = ETHERNET_HEADER_SIZE + MTU;
+
+    private static final InetAddress LOOPBACK_ADDRESS = getLoopbackAddress();
+    private static final byte[] GATEWAY_MAC = {0x52, 0x55, 0x0A, 0x00, 0x02, 0x02};
+    private static final byte[] BROADCAST_MAC = {-1, -1, -1, -1, -1, -1};
+
+    private static final int ARP_PACKET_SIZE = 28;
+    private static final int ARP_OPERATION_REQUEST = 1;
+    private static final int ARP_OPERATION_REPLY = 2;
+
+    private static final int ICMP_ECHO_REPLY = 0;
+    private static final int ICMP_ECHO_REQUEST = 8;
+    private static final int ICMP_ECHO_TIMEOUT_MILLIS = 1000;
+
+    private static final int DHCP_SERVER_PORT = 67;
+    private static final int DHCP_CLIENT_PORT = 68;
+    private static final int DHCP_MAGIC_COOKIE = 0x63825363;
+    private static final int DHCP_OPTIONS_OFFSET = 240;
+    private static final int DHCP_DISCOVER = 1;
+    private static final int DHCP_OFFER = 2;
+    private static final int DHCP_REQUEST = 3;
+    private static final int DHCP_ACK = 5;
+    private static final int DHCP_NAK = 6;
+    private static final int DHCP_OPTION_PAD = 0;
+    private static final int DHCP_OPTION_SUBNET_MASK = 1;
+    private static final int DHCP_OPTION_ROUTER = 3;
+    private static final int DHCP_OPTION_DNS = 6;
+    private static final int DHCP_OPTION_REQUESTED_ADDRESS = 50;
+    private static final int DHCP_OPTION_LEASE_TIME = 51;
+    private static final int DHCP_OPTION_MESSAGE_TYPE = 53;
+    private static final int DHCP_OPTION_SERVER_ID = 54;
+    private static final int DHCP_OPTION_END = 255;
+    private static final int DHCP_LEASE_TIME_SECONDS = 86400;
+
+    static final int MAX_UDP_PAYLOAD_SIZE = MTU - IPV4_HEADER_SIZE - UDP_HEADER_SIZE;
+
+    private static final int DNS_PORT = 53;
+
+    // Ports used as source ports for connections forwarded into the guest.
+    private static final int FIRST_FORWARD_PORT = 49152;
+
+    // Number of frames processed from the guest per update, to keep busy guests from starving others.
+    private static final int MAX_FRAMES_PER_UPDATE = 64;
+
+    private final UserModeNetwork network;
+    private final UserModeNetwork.FrameEndpoint endpoint;
+    private final byte[] guestMac = BROADCAST_MAC.clone();
+    private final ByteBuffer outgoingFrame = ByteBuffer.allocate(MAX_FRAME_SIZE);
+    private final Long2ObjectOpenHashMap<NatTcpConnection> tcpConnections = new Long2ObjectOpenHashMap<>();
+    private final Int2ObjectOpenHashMap<NatUdpBinding> udpBindings = new Int2ObjectOpenHashMap<>();
+    private final ArrayList<ServerSocketChannel> forwards = new ArrayList<>();
+    private final ArrayList<NatTcpConnection> closedConnections = new ArrayList<>();
+    private int nextIpId;
+    private int nextForwardPort = FIRST_FORWARD_PORT;
+    private boolean isClosed;
+
+    UserModeNetworkInterface(final UserModeNetwork network, final UserModeNetwork.FrameEndpoint endpoint) {
+        this.network = network;
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Forwards TCP connections made to the specified host address to the specified port of the guest.
+     * <p>
+     * This may be called from any thread.
+     *
+     * @param hostAddress the host address to listen on.
+     * @param guestPort   the port in the guest to forward connections to.
+     * @return the address actually bound, e.g. to find out the port when binding to port zero.
+     * @throws IOException if binding the host address fails.
+     */
+    public InetSocketAddress addTcpForward(final InetSocketAddress hostAddress, final int guestPort) throws IOException {
+        if (guestPort <= 0 || guestPort > 0xFFFF) {
+            throw new IllegalArgumentException();
+        }
+
+        final ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.bind(hostAddress);
+            channel.configureBlocking(false);
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        network.execute(() -> {
+            try {
+                if (isClosed) {
+                    channel.close();
+                    return;
+                }
+                channel.register(network.getSelector(), SelectionKey.OP_ACCEPT,
+                    (UserModeNetwork.SelectionHandler) key -> acceptForward(channel, guestPort));
+                forwards.add(channel);
+            } catch (final IOException e) {
+                LOGGER.error(e);
+            }
+        });
+
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    /**
+     * Detaches this interface from its network, closing all host channels used by it.
+     * <p>
+     * This may be called from any thread.
+     */
+    public void detach() {
+        network.remove(this);
+    }
+
+    void update(final long now) {
+        for (int i = 0; i < MAX_FRAMES_PER_UPDATE; i++) {
+            final ByteBuffer frame = endpoint.poll();
+            if (frame == null) {
+                break;
+            }
+
+            try {
+                handleFrame(frame);
+            } finally {
+                endpoint.release();
+            }
+        }
+
+        for (final NatTcpConnection connection : tcpConnections.values()) {
+            connection.update(now);
+        }
+        udpBindings.values().removeIf(binding -> binding.update(now));
+        removeClosedConnections();
+    }
+
+    void closeChannels() {
+        isClosed = true;
+        for (final NatTcpConnection connection : tcpConnections.values()) {
+            connection.close();
+        }
+        for (final NatUdpBinding binding : udpBindings.values()) {
+            binding.close();
+        }
+        for (final ServerSocketChannel channel : forwards) {
+            try {
+                channel.close();
+            } catch (final IOException ignored) {
+            }
+        }
+        tcpConnections.clear();
+        udpBindings.clear();
+        forwards.clear();
+        closedConnections.clear();
+    }
+
+    UserModeNetwork getNetwork() {
+        return network;
+    }
+
+    /**
+     * Maps an address the guest sends packets to onto the host address to send them to.
+     *
+     * @return the host address, or {@code null} if the address is not reachable.
+     */
+    @Nullable
+    InetSocketAddress mapToHost(final int address, final int port) {
+        if (address == GATEWAY_ADDRESS) {
+            return new InetSocketAddress(LOOPBACK_ADDRESS, port);
+        }
+
+        if (address == DNS_ADDRESS) {
+            final InetAddress dnsServer = network.getDnsServer();
+            if (dnsServer != null && port == DNS_PORT) {
+                return new InetSocketAddress(dnsServer, DNS_PORT);
+            }
+            return null;
+        }
+
+        if ((address & NETWORK_MASK) == NETWORK_ADDRESS || Integer.compareUnsigned(address, 0xE0000000) >= 0 ||
+            (address >>> 24) == 127 || address == 0) {
+            return null;
+        }
+
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(new byte[]{
+                (byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address
+            }), port);
+        } catch (final UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Maps a host address packets were received from onto the address the guest sees as their source.
+     *
+     * @return the guest-side address, or {@code null} if the address cannot be represented in the guest.
+     */
+    @Nullable
+    Integer mapToGuest(final InetSocketAddress hostAddress) {
+        final InetAddress address = hostAddress.getAddress();
+        if (address.isLoopbackAddress()) {
+            return GATEWAY_ADDRESS;
+        }
+        if (hostAddress.getPort() == DNS_PORT && address.equals(network.getDnsServer())) {
+            return DNS_ADDRESS;
+        }
+        if (address instanceof Inet4Address) {
+            final byte[] bytes = address.getAddress();
+            return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+        }
+        return null;
+    }
+
+    /**
+     * Prepares the outgoing frame for a new IPv4 packet.
+     *
+     * @return the outgoing frame, positioned at the start of the IPv4 payload.
+     */
+    ByteBuffer beginPacket() {
+        outgoingFrame.clear();
+        outgoingFrame.position(ETHERNET_HEADER_SIZE + IPV4_HEADER_SIZE);
+        return outgoingFrame;
+    }
+
+    /**
+     * Completes the packet written into the frame returned by {@link #beginPacket()} and sends it to the guest.
+     * <p>
+     * The payload is taken to end at the current position of the frame. For TCP and UDP packets, the checksum
+     * is computed, for ICMP packets the checksum must already have been computed.
+     *
+     * @return {@code true} if the frame was accepted by the guest.
+     */
+    boolean sendPacket(final int protocol, final int source, final int destination) {
+        final int payloadOffset = ETHERNET_HEADER_SIZE + IPV4_HEADER_SIZE;
+        final int payloadLength = outgoingFrame.position() - payloadOffset;
+
+        putEthernetHeader(outgoingFrame, 0, guestMac, GATEWAY_MAC, ETHER_TYPE_IPV4);
+        putIpv4Header(outgoingFrame, ETHERNET_HEADER_SIZE, protocol, source, destination, payloadLength, nextIpId++);
+        if (protocol == PROTOCOL_TCP) {
+            putTransportChecksum(outgoingFrame, payloadOffset, payloadLength, protocol, source, destination, 16);
+        } else if (protocol == PROTOCOL_UDP) {
+            putTransportChecksum(outgoingFrame, payloadOffset, payloadLength, protocol, source, destination, 6);
+        }
+
+        outgoingFrame.flip();
+        return endpoint.offer(outgoingFrame);
+    }
+
+    void removeConnection(final NatTcpConnection connection) {
+        closedConnections.add(connection);
+    }
+
+    private static InetAddress getLoopbackAddress() {
+        try {
+            return InetAddress.getByAddress(new byte[]{127, 0, 0, 1});
+        } catch (final UnknownHostException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private void removeClosedConnections() {
+        for (final NatTcpConnection connection : closedConnections) {
+            tcpConnections.remove(connection.getKey(), connection);
+        }
+        closedConnections.clear();
+    }
+
+    private void acceptForward(final ServerSocketChannel serverChannel, final int guestPort) {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                final int remotePort = allocateForwardPort(guestPort);
+                if (remotePort < 0) {
+                    channel.close();
+                    continue;
+                }
+
+                final long key = NatTcpConnection.key(guestPort, GATEWAY_ADDRESS, remotePort);
+                tcpConnections.put(key, NatTcpConnection.accept(this, key, guestPort, GATEWAY_ADDRESS, remotePort, channel));
+            }
+        } catch (final IOException e) {
+            LOGGER.error(e);
+        }
+    }
+
+    private int allocateForwardPort(final int guestPort) {
+        for (int i = FIRST_FORWARD_PORT; i <= 0xFFFF; i++) {
+            final int port = nextForwardPort;
+            nextForwardPort = port >= 0xFFFF ? FIRST_FORWARD_PORT : port + 1;
+            if (!tcpConnections.containsKey(NatTcpConnection.key(guestPort, GATEWAY_ADDRESS, port))) {
+                return port;
+            }
+        }
+        return -1;
+    }
+
+    private void handleFrame(final ByteBuffer frame) {
+        final int offset = frame.position();
+        final int length = frame.remaining();
+        if (length < ETHERNET_HEADER_SIZE) {
+            return;
+        }
+
+        // Remember where to send our frames; we only ever talk to a single guest.
+        if ((frame.get(offset + 6) & 1) == 0) {
+            frame.get(offset + 6, guestMac);
+        }
+
+        switch (getUnsignedShort(frame, offset + 12)) {
+            case ETHER_TYPE_ARP -> handleArp(frame, offset + ETHERNET_HEADER_SIZE, length - ETHERNET_HEADER_SIZE);
+            case ETHER_TYPE_IPV4 -> handleIpv4(frame, offset + ETHERNET_HEADER_SIZE, length - ETHERNET_HEADER_SIZE);
+        }
+    }
+
+    private void handleArp(final ByteBuffer frame, final int offset, final int length) {
+        if (length < ARP_PACKET_SIZE ||
+            getUnsignedShort(frame, offset) != 1 || // Ethernet
+            getUnsignedShort(frame, offset + 2) != ETHER_TYPE_IPV4 ||
+            getUnsignedByte(frame, offset + 4) != 6 ||
+            getUnsignedByte(frame, offset + 5) != 4 ||
+            getUnsignedShort(frame, offset + 6) != ARP_OPERATION_REQUEST) {
+            return;
+        }
+
+        final int targetAddress = frame.getInt(offset + 24);
+        if (targetAddress != GATEWAY_ADDRESS && targetAddress != DNS_ADDRESS) {
+            return;
+        }
+
+        final byte[] senderMac = new byte[6];
+        frame.get(offset + 8, senderMac);
+        final int senderAddress = frame.getInt(offset + 14);
+
+        outgoingFrame.clear();
+        putEthernetHeader(outgoingFrame, 0, senderMac, GATEWAY_MAC, ETHER_TYPE_ARP);
+        final int arp = ETHERNET_HEADER_SIZE;
+        outgoingFrame.putShort(arp, (short) 1);
+        outgoingFrame.putShort(arp + 2, (short) ETHER_TYPE_IPV4);
+        outgoingFrame.put(arp + 4, (byte) 6);
+        outgoingFrame.put(arp + 5, (byte) 4);
+        outgoingFrame.putShort(arp + 6, (short) ARP_OPERATION_REPLY);
+        outgoingFrame.put(arp + 8, GATEWAY_MAC);
+        outgoingFrame.putInt(arp + 14, targetAddress);
+        outgoingFrame.put(arp + 18, senderMac);
+        outgoingFrame.putInt(arp + 24, senderAddress);
+        outgoingFrame.limit(ETHERNET_HEADER_SIZE + ARP_PACKET_SIZE);
+        endpoint.offer(outgoingFrame);
+    }
+
+    private void handleIpv4(final ByteBuffer frame, final int offset, final int length) {
+        if (length < IPV4_HEADER_SIZE || (getUnsignedByte(frame, offset) >>> 4) != 4) {
+            return;
+        }
+
+        final int headerLength = (getUnsignedByte(frame, offset) & 0xF) * 4;
+        final int totalLength = getUnsignedShort(frame, offset + 2);
+        if (headerLength < IPV4_HEADER_SIZE || totalLength < headerLength || totalLength > length) {
+            return;
+        }
+
+        // Fragments are not supported; the guest learns the MTU via DHCP and the device.
+        if ((getUnsignedShort(frame, offset + 6) & 0x3FFF) != 0) {
+            return;
+        }
+
+        final int protocol = getUnsignedByte(frame, offset + 9);
+        final int source = frame.getInt(offset + 12);
+        final int destination = frame.getInt(offset + 16);
+        final int payloadOffset = offset + headerLength;
+        final int payloadLength = totalLength - headerLength;
+
+        if (protocol == PROTOCOL_UDP) {
+            handleUdp(frame, payloadOffset, payloadLength, source, destination);
+            return;
+        }
+
+        if (source != GUEST_ADDRESS) {
+            return;
+        }
+
+        switch (protocol) {
+            case PROTOCOL_TCP -> handleTcp(frame, payloadOffset, payloadLength, destination);
+            case PROTOCOL_ICMP -> handleIcmp(frame, payloadOffset, payloadLength, destination);
+        }
+    }
+
+    private void handleUdp(final ByteBuffer frame, final int offset, final int length, final int source, final int destination) {
+        if (length < UDP_HEADER_SIZE) {
+            return;
+        }
+
+        final int sourcePort = getUnsignedShort(frame, offset);
+        final int destinationPort = getUnsignedShort(frame, offset + 2);
+        final int udpLength = getUnsignedShort(frame, offset + 4);
+        if (udpLength < UDP_HEADER_SIZE || udpLength > length) {
+            return;
+        }
+
+        if (destinationPort == DHCP_SERVER_PORT) {
+            handleDhcp(frame, offset + UDP_HEADER_SIZE, udpLength - UDP_HEADER_SIZE);
+            return;
+        }
+
+        if (source != GUEST_ADDRESS) {
+            return;
+        }
+
+        final InetSocketAddress target = mapToHost(destination, destinationPort);
+        if (target == null) {
+            return;
+        }
+
+        NatUdpBinding binding = udpBindings.get(sourcePort);
+        if (binding == null) {
+            try {
+                binding = NatUdpBinding.open(this, sourcePort);
+            } catch (final IOException e) {
+                LOGGER.error(e);
+                return;
+            }
+            udpBindings.put(sourcePort, binding);
+        }
+
+        final int limit = frame.limit();
+        final int position = frame.position();
+        frame.limit(offset + udpLength).position(offset + UDP_HEADER_SIZE);
+        binding.send(frame, target);
+        frame.limit(limit).position(position);
+    }
+
+    private void handleTcp(final ByteBuffer frame, final int offset, final int length, final int destination) {
+        if (length < TCP_HEADER_SIZE) {
+            return;
+        }
+
+        final int sourcePort = getUnsignedShort(frame, offset);
+        final int destinationPort = getUnsignedShort(frame, offset + 2);
+        final int headerLength = (getUnsignedByte(frame, offset + 12) >>> 4) * 4;
+        final int flags = getUnsignedByte(frame, offset + 13);
+        if (headerLength < TCP_HEADER_SIZE || headerLength > length) {
+            return;
+        }
+
+        final long key = NatTcpConnection.key(sourcePort, destination, destinationPort);
+        final NatTcpConnection connection = tcpConnections.get(key);
+        if (connection != null && !connection.isClosed()) {
+            connection.handleSegment(frame, offset, length, headerLength);
+            return;
+        }
+
+        if ((flags & TCP_RST) != 0) {
+            return;
+        }
+
+        if ((flags & (TCP_SYN | TCP_ACK)) == TCP_SYN) {
+            final InetSocketAddress target = mapToHost(destination, destinationPort);
+            if (target != null) {
+                try {
+                    tcpConnections.put(key, NatTcpConnection.connect(this, key, sourcePort, destination, destinationPort, target, frame, offset, headerLength));
+                    return;
+                } catch (final IOException e) {
+                    LOGGER.debug("Failed connecting to {}: {}", target, e.getMessage());
+                }
+            }
+        }
+
+        NatTcpConnection.sendReset(this, sourcePort, destination, destinationPort, frame, offset, length, headerLength);
+    }
+
+    private void handleIcmp(final ByteBuffer frame, final int offset, final int length, final int destination) {
+        if (length < ICMP_HEADER_SIZE || getUnsignedByte(frame, offset) != ICMP_ECHO_REQUEST) {
+            return;
+        }
+
+        final byte[] echo = new byte[length];
+        frame.get(offset, echo);
+
+        if (destination == GATEWAY_ADDRESS || destination == DNS_ADDRESS) {
+            sendEchoReply(destination, echo);
+            return;
+        }
+
+        final InetSocketAddress target = mapToHost(destination, 0);
+        if (target == null) {
+            return;
+        }
+
+        // Java has no unprivileged raw sockets, so we ask the JVM to do its best to ping the host. This blocks,
+        // so it runs on a background thread and we send the reply once it completes.
+        network.executeBlocking(() -> {
+            try {
+                if (target.getAddress().isReachable(ICMP_ECHO_TIMEOUT_MILLIS)) {
+                    network.execute(() -> {
+                        if (!isClosed) {
+                            sendEchoReply(destination, echo);
+                        }
+                    });
+                }
+            } catch (final IOException ignored) {
+            }
+        });
+    }
+
+    private void sendEchoReply(final int source, final byte[] echo) {
+        if (echo.length > MTU - IPV4_HEADER_SIZE) {
+            return;
+        }
+
+        final ByteBuffer packet = beginPacket();
+        final int offset = packet.position();
+        packet.put(echo);
+        packet.put(offset, (byte) ICMP_ECHO_REPLY);
+        packet.putShort(offset + 2, (short) 0);
+        packet.putShort(offset + 2, checksum(sum(packet, offset, echo.length, 0)));
+        sendPacket(PROTOCOL_ICMP, source, GUEST_ADDRESS);
+    }
+
+    private void handleDhcp(final ByteBuffer frame, final int offset, final int length) {
+        if (length < DHCP_OPTIONS_OFFSET ||
+            getUnsignedByte(frame, offset) != 1 || // BOOTREQUEST
+            frame.getInt(offset + 236) != DHCP_MAGIC_COOKIE) {
+            return;
+        }
+
+        int messageType = 0;
+        int requestedAddress = 0;
+        for (int option = offset + DHCP_OPTIONS_OFFSET; option < offset + length; ) {
+            final int code = getUnsignedByte(frame, option);
+            if (code == DHCP_OPTION_END) {
+                break;
+            }
+            if (code == DHCP_OPTION_PAD) {
+                option++;
+                continue;
+            }
+            if (option + 1 >= offset + length) {
+                break;
+            }
+            final int optionLength = getUnsignedByte(frame, option + 1);
+            if (option + 2 + optionLength > offset + length) {
+                break;
+            }
+            if (code == DHCP_OPTION_MESSAGE_TYPE && optionLength == 1) {
+                messageType = getUnsignedByte(frame, option + 2);
+            } else if (code == DHCP_OPTION_REQUESTED_ADDRESS && optionLength == 4) {
+                requestedAddress = frame.getInt(option + 2);
+            }
+            option += 2 + optionLength;
+        }
+
+        final int replyType;
+        if (messageType == DHCP_DISCOVER) {
+            replyType = DHCP_OFFER;
+        } else if (messageType == DHCP_REQUEST) {
+            replyType = requestedAddress == 0 || requestedAddress == GUEST_ADDRESS ? DHCP_ACK : DHCP_NAK;
+        } else {
+            return;
+        }
+
+        final int transactionId = frame.getInt(offset + 4);
+        final byte[] clientMac = new byte[6];
+        frame.get(offset + 28, clientMac);
+
+        final ByteBuffer packet = beginPacket();
+        final int udp = packet.position();
+        final int dhcp = udp + UDP_HEADER_SIZE;
+        for (int i = udp; i < dhcp + DHCP_OPTIONS_OFFSET; i++) {
+            packet.put(i, (byte) 0);
+        }
+        packet.put(dhcp, (byte) 2); // BOOTREPLY
+        packet.put(dhcp + 1, (byte) 1); // Ethernet
+        packet.put(dhcp + 2, (byte) 6);
+        packet.putInt(dhcp + 4, transactionId);
+        if (replyType != DHCP_NAK) {
+            packet.putInt(dhcp + 16, GUEST_ADDRESS);
+            packet.putInt(dhcp + 20, GATEWAY_ADDRESS);
+        }
+        packet.put(dhcp + 28, clientMac);
+        packet.putInt(dhcp + 236, DHCP_MAGIC_COOKIE);
+
+        packet.position(dhcp + DHCP_OPTIONS_OFFSET);
+        packet.put((byte) DHCP_OPTION_MESSAGE_TYPE).put((byte) 1).put((byte) replyType);
+        packet.put((byte) DHCP_OPTION_SERVER_ID).put((byte) 4).putInt(GATEWAY_ADDRESS);
+        if (replyType != DHCP_NAK) {
+            packet.put((byte) DHCP_OPTION_LEASE_TIME).put((byte) 4).putInt(DHCP_LEASE_TIME_SECONDS);
+            packet.put((byte) DHCP_OPTION_SUBNET_MASK).put((byte) 4).putInt(NETWORK_MASK);
+            packet.put((byte) DHCP_OPTION_ROUTER).put((byte) 4).putInt(GATEWAY_ADDRESS);
+            if (network.getDnsServer() != null) {
+                packet.put((byte) DHCP_OPTION_DNS).put((byte) 4).putInt(DNS_ADDRESS);
+            }
+        }
+        packet.put((byte) DHCP_OPTION_END);
+
+        packet.putShort(udp, (short) DHCP_SERVER_PORT);
+        packet.putShort(udp + 2, (short) DHCP_CLIENT_PORT);
+        packet.putShort(udp + 4, (short) (packet.position() - udp));
+        sendPacket(PROTOCOL_UDP, GATEWAY_ADDRESS, 0xFFFFFFFF);
+    }
+}
@@ -0,0 +1,198 @@
+package li.cil.sedna.device.qos;
+
+import li.cil.sedna.api.device.RateLimiter;
+import li.cil.sedna.api.device.rtc.RealTimeCounter;
+import li.cil.sedna.device.rtc.MonotonicRealTimeCounter;
+
+/**
+ * Rate limiter using two token buckets, one for bandwidth in bytes per second and one for operations per second.
+ * <p>
+ * Each bucket is refilled at its configured rate up to its burst size. Operations may be started as long as
+ * neither bucket is empty. Operations may overdraw a bucket, the debt is then paid off by the refill.
+ * <p>
+ * Time is measured using a {@link RealTimeCounter}. Use {@link MonotonicRealTimeCounter} to limit relative to
+ * host time, or the CPU of a board to limit relative to guest time, so that a paused or slowed down virtual
+ * machine is not granted more I/O than it would have at full speed. The counter must not go backwards.
+ * <p>
+ * Create instances of this type using a builder obtained by calling {@link #builder(RealTimeCounter)}.
+ */
+public final class TokenBucketRateLimiter implements RateLimiter {
+    private final RealTimeCounter clock;
+    private final Bucket bytes;
+    private final Bucket operations;
+    private long lastTime;
+
+    private TokenBucketRateLimiter(final RealTimeCounter clock, final Bucket bytes, final Bucket operations) {
+        this.clock = clock;
+        this.bytes = bytes;
+        this.operations = operations;
+        this.lastTime = clock.getTime();
+    }
+
+    /**
+     * Creates a new builder for setting up a rate limiter using method chaining.
+     *
+     * @param clock the clock used to measure time when refilling the buckets.
+     * @return a new builder.
+     */
+    public static Builder builder(final RealTimeCounter clock) {
+        return new Builder(clock);
+    }
+
+    /**
+     * Creates a new builder for setting up a rate limiter based on host time, using a monotonic clock that is not
+     * affected by adjustments of the host's wall clock.
+     *
+     * @return a new builder.
+     */
+    public static Builder builder() {
+        return builder(MonotonicRealTimeCounter.get());
+    }
+
+    @Override
+    public synchronized boolean hasCapacity() {
+        refill();
+        return bytes.hasTokens() && operations.hasTokens();
+    }
+
+    @Override
+    public synchronized void consume(final int count) {
+        refill();
+        bytes.take(count);
+        operations.take(1);
+    }
+
+    /**
+     * Restores both buckets to their burst size.
+     */
+    public synchronized void reset() {
+        lastTime = clock.getTime();
+        bytes.fill();
+        operations.fill();
+    }
+
+    private void refill() {
+        final long time = clock.getTime();
+        final long elapsed = time - lastTime;
+        if (elapsed <= 0) {
+            return;
+        }
+
+        lastTime = time;
+        final double seconds = elapsed / (double) clock.getFrequency();
+        bytes.refill(seconds);
+        operations.refill(seconds);
+    }
+
+    private static final class Bucket {
+        private final double rate;
+        private final double capacity;
+        private double tokens;
+
+        public Bucket(final double rate, final double capacity) {
+            this.rate = rate;
+            this.capacity = capacity;
+            this.tokens = capacity;
+        }
+
+        public boolean hasTokens() {
+            return rate <= 0 || tokens > 0;
+        }
+
+        public void take(final double count) {
+            if (rate > 0) {
+                tokens -= count;
+            }
+        }
+
+        public void refill(final double seconds) {
+            if (rate > 0) {
+                tokens = Math.min(capacity, tokens + seconds * rate);
+            }
+        }
+
+        public void fill() {
+            tokens = capacity;
+        }
+    }
+
+    /**
+     * Builder for {@link TokenBucketRateLimiter} instances using method chaining.
+     * <p>
+     * Limits that are not configured are unlimited.
+     */
+    public static final class Builder {
+        private final RealTimeCounter clock;
+        private long bytesPerSecond;
+        private long bytesBurst;
+        private int operationsPerSecond;
+        private int operationsBurst;
+
+        private Builder(final RealTimeCounter clock) {
+            this.clock = clock;
+        }
+
+        /**
+         * Configures the bandwidth limit, with a burst size of one second worth of data.
+         *
+         * @param bytesPerSecond the number of bytes that may be transferred per second.
+         * @return this builder for method chaining.
+         */
+        public Builder bandwidth(final long bytesPerSecond) {
+            return bandwidth(bytesPerSecond, bytesPerSecond);
+        }
+
+        /**
+         * Configures the bandwidth limit.
+         *
+         * @param bytesPerSecond the number of bytes that may be transferred per second.
+         * @param burst          the maximum number of bytes that may be transferred at once after being idle.
+         * @return this builder for method chaining.
+         */
+        public Builder bandwidth(final long bytesPerSecond, final long burst) {
+            if (bytesPerSecond <= 0 || burst <= 0) {
+                throw new IllegalArgumentException();
+            }
+            this.bytesPerSecond = bytesPerSecond;
+            this.bytesBurst = burst;
+            return this;
+        }
+
+        /**
+         * Configures the operations limit, with a burst size of one second worth of operations.
+         *
+         * @param operationsPerSecond the number of operations that may be performed per second.
+         * @return this builder for method chaining.
+         */
+        public Builder operations(final int operationsPerSecond) {
+            return operations(operationsPerSecond, operationsPerSecond);
+        }
+
+        /**
+         * Configures the operations limit.
+         *
+         * @param operationsPerSecond the number of operations that may be performed per second.
+         * @param burst               the maximum number of operations that may be performed at once after being idle.
+         * @return this builder for method chaining.
+         */
+        public Builder operations(final int operationsPerSecond, final int burst) {
+            if (operationsPerSecond <= 0 || burst <= 0) {
+                throw new IllegalArgumentException();
+            }
+            this.operationsPerSecond = operationsPerSecond;
+            this.operationsBurst = burst;
+            return this;
+        }
+
+        /**
+         * Finishes construction of a {@link TokenBucketRateLimiter} and returns it.
+         *
+         * @return the rate limiter configured using this builder.
+         */
+        public TokenBucketRateLimiter build() {
+            return new TokenBucketRateLimiter(clock,
+                new Bucket(bytesPerSecond, bytesBurst),
+                new Bucket(operationsPerSecond, operationsBurst));
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package li.cil.sedna.device.rtc;
+
+import li.cil.sedna.api.device.rtc.RealTimeCounter;
+
+/**
+ * A counter based on {@link System#nanoTime()}, which never goes backwards or jumps when the host's wall clock is
+ * adjusted. Its value is not related to any calendar time, so it is only suitable for measuring durations.
+ */
+public final class MonotonicRealTimeCounter implements RealTimeCounter {
+    private static final MonotonicRealTimeCounter INSTANCE = new MonotonicRealTimeCounter();
+
+    private static final int NANOSECONDS_PER_SECOND = 1_000_000_000;
+    private static final int FREQUENCY = 10_000_000;
+
+    public static RealTimeCounter get() {
+        return INSTANCE;
+    }
+
+    @Override
+    public long getTime() {
+        return System.nanoTime() / (NANOSECONDS_PER_SECOND / FREQUENCY);
+    }
+
+    @Override
+    public int getFrequency() {
+        return FREQUENCY;
+    }
+}
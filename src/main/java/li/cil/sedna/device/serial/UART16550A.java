@@ -1,6 +1,5 @@
 package li.cil.sedna.device.serial;
 
-import it.unimi.dsi.fastutil.bytes.ByteArrayFIFOQueue;
 import li.cil.ceres.api.Serialized;
 import li.cil.sedna.api.Interrupt;
 import li.cil.sedna.api.Sizes;
@@ -9,6 +8,9 @@ import li.cil.sedna.api.device.MemoryMappedDevice;
 import li.cil.sedna.api.device.Resettable;
 import li.cil.sedna.api.device.Steppable;
 import li.cil.sedna.api.device.serial.SerialDevice;
+import li.cil.sedna.utils.ByteRing;
+
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.util.Collections.singleton;
 
@@ -112,28 +114,37 @@ public final class UART16550A implements Resettable, Steppable, MemoryMappedDevi
 
     private static final int FIFO_QUEUE_CAPACITY = 16;
 
+    // Events raised by the host side, applied to the registers by the guest side.
+    private static final int EVENT_DATA_RECEIVED = 1 << 0;
+    private static final int EVENT_OVERRUN = 1 << 1;
+    private static final int EVENT_BREAK = 1 << 2;
+    private static final int EVENT_TRANSMIT_EMPTY = 1 << 3;
+
     private byte rbr;
     private byte thr;
     private byte ier;
     private byte iir;
-    private byte fcr;
+    private volatile byte fcr; // Read by the host side to determine FIFO capacity.
     private byte lcr;
     private byte mcr;
-    private byte lsr;
+    private byte lsr; // Only holds error bits, data ready and transmitter empty bits are derived from the FIFOs.
     private byte msr;
     private byte scr;
     private short dl;
 
     private int triggerLevel;
-    private final ByteArrayFIFOQueue receiveFifo = new ByteArrayFIFOQueue(FIFO_QUEUE_CAPACITY);
-    private final ByteArrayFIFOQueue transmitFifo = new ByteArrayFIFOQueue(FIFO_QUEUE_CAPACITY);
 
-    private boolean interruptUpdatePending;
+    // The host side (read(), putByte()) and the guest side (load(), store(), step()) usually run on different
+    // threads. Data is passed through single-producer single-consumer rings, all other state is owned by the
+    // guest side. The host side only ever posts events, which the guest side applies in step() or when polled.
+    private final ByteRing receiveFifo = new ByteRing(FIFO_QUEUE_CAPACITY); // Host produces, guest consumes.
+    private final ByteRing transmitFifo = new ByteRing(FIFO_QUEUE_CAPACITY); // Guest produces, host consumes.
+    private final AtomicInteger pendingEvents = new AtomicInteger();
+
     private boolean transmitInterruptPending;
     private boolean timeoutInterruptPending;
 
     private final transient Interrupt interrupt = new Interrupt();
-    private final transient Object lock = new Object();
 
     public UART16550A() {
         reset();
@@ -145,66 +156,50 @@ public final class UART16550A implements Resettable, Steppable, MemoryMappedDevi
 
     @Override
     public int read() {
-        synchronized (lock) {
-            if ((lsr & UART_LSR_TEMT) != 0) {
-                return -1;
-            }
-
-            final byte value;
-            if ((fcr & UART_FCR_FE) != 0) {
-                value = transmitFifo.dequeueByte();
-                if (transmitFifo.isEmpty()) {
-                    lsr |= UART_LSR_THRE | UART_LSR_TEMT;
-                }
-            } else {
-                value = thr;
-                lsr |= UART_LSR_THRE | UART_LSR_TEMT;
-            }
-
-            if ((lsr & UART_LSR_THRE) != 0 && !transmitInterruptPending) {
-                transmitInterruptPending = true;
-                interruptUpdatePending = true;
-            }
+        final int value = transmitFifo.poll();
+        if (value >= 0 && transmitFifo.isEmpty()) {
+            postEvents(EVENT_TRANSMIT_EMPTY);
+        }
+        return value;
+    }
 
-            return value;
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) {
+        final int count = transmitFifo.read(buffer, offset, length);
+        if (count > 0 && transmitFifo.isEmpty()) {
+            postEvents(EVENT_TRANSMIT_EMPTY);
         }
+        return count;
     }
 
     @Override
     public boolean canPutByte() {
-        return receiveFifo.size() < FIFO_QUEUE_CAPACITY;
+        return receiveFifo.size() < getFifoCapacity();
     }
 
     @Override
     public void putByte(final byte value) {
-        synchronized (lock) {
-            if ((fcr & UART_FCR_FE) != 0) {
-                if (receiveFifo.size() < FIFO_QUEUE_CAPACITY) {
-                    receiveFifo.enqueue(value);
-                } else {
-                    lsr |= UART_LSR_OE;
-                }
-            } else {
-                if ((lsr & UART_LSR_DR) != 0) {
-                    lsr |= UART_LSR_OE;
-                }
-                rbr = value;
-            }
-
-            lsr |= UART_LSR_DR;
+        if (canPutByte() && receiveFifo.offer(value)) {
+            postEvents(EVENT_DATA_RECEIVED);
+        } else {
+            postEvents(EVENT_DATA_RECEIVED | EVENT_OVERRUN);
+        }
+    }
 
-            timeoutInterruptPending = true; // Not correct, but good enough.
-            interruptUpdatePending = true;
+    @Override
+    public int write(final byte[] buffer, final int offset, final int length) {
+        // Unlike putByte(), only write what fits, so callers can use this for flow control.
+        final int count = receiveFifo.write(buffer, offset, Math.min(length, getFifoCapacity() - receiveFifo.size()));
+        if (count > 0) {
+            postEvents(EVENT_DATA_RECEIVED);
         }
+        return count;
     }
 
     public void putBreak() {
-        synchronized (lock) {
-            rbr = 0;
-            // QEMU says: when the LSR_DR is set a null byte is pushed into the fifo.
-            putByte((byte) 0);
-            lsr |= UART_LSR_BI | UART_LSR_DR;
-        }
+        // QEMU says: when the LSR_DR is set a null byte is pushed into the fifo.
+        putByte((byte) 0);
+        postEvents(EVENT_BREAK);
     }
 
     @Override
@@ -216,7 +211,7 @@ public final class UART16550A implements Resettable, Steppable, MemoryMappedDevi
         fcr = 0;
         lcr = 0;
         mcr = (byte) UART_MCR_AO2;
-        lsr = (byte) (UART_LSR_THRE | UART_LSR_TEMT);
+        lsr = 0;
         msr = (byte) (UART_MSR_CTS | UART_MSR_DCD | UART_MSR_DSR);
         scr = 0;
         dl = UART_DL_12;
@@ -224,9 +219,9 @@ public final class UART16550A implements Resettable, Steppable, MemoryMappedDevi
         triggerLevel = 1;
 
         receiveFifo.clear();
-        transmitFifo.clear();
+        transmitFifo.discard();
+        pendingEvents.set(0);
 
-        interruptUpdatePending = false;
         transmitInterruptPending = false;
         timeoutInterruptPending = false;
         interrupt.lowerInterrupt();
@@ -234,8 +229,8 @@ public final class UART16550A implements Resettable, Steppable, MemoryMappedDevi
 
     @Override
     public void step(final int cycles) {
-        if (interruptUpdatePending) {
-            updateInterrupts();
+        if (pendingEvents.get() != 0) {
+            applyEvents();
         }
     }
 
@@ -258,28 +253,23 @@ public final class UART16550A implements Resettable, Steppable, MemoryMappedDevi
                 if ((lcr & UART_LCR_DLAB) != 0) { // UART_DLL
                     return (byte) dl;
                 } else { // UART_RBR
-                    final byte result;
-                    synchronized (lock) {
-                        if ((fcr & UART_FCR_FE) != 0) { // FIFO enabled
-                            result = receiveFifo.isEmpty() ? 0 : receiveFifo.dequeueByte();
-                            if (receiveFifo.isEmpty()) {
-                                lsr &= ~(UART_LSR_DR | UART_LSR_BI);
-                                timeoutInterruptPending = false;
-                            } else {
-                                timeoutInterruptPending = true; // Not correct, but good enough.
-                            }
-                        } else { // No FIFO
-                            result = rbr;
-                            lsr &= ~(UART_LSR_DR | UART_LSR_BI);
-                        }
-                        updateInterrupts();
+                    final int value = receiveFifo.poll();
+                    if (value >= 0) {
+                        rbr = (byte) value;
+                    }
+                    if (receiveFifo.isEmpty()) {
+                        lsr &= ~UART_LSR_BI;
+                        timeoutInterruptPending = false;
+                    } else {
+                        timeoutInterruptPending = true; // Not correct, but good enough.
                     }
+                    updateInterrupts();
 
                     if ((mcr & UART_MCR_LBM) == 0) {
                         // TODO Fire event that input was accepted?
                     }
 
-                    return result;
+                    return rbr;
                 }
             }
 
@@ -292,14 +282,16 @@ public final class UART16550A implements Resettable, Steppable, MemoryMappedDevi
                 }
             }
             case UART_IIR_OFFSET -> {
-                synchronized (lock) {
-                    final byte result = iir;
-                    if ((iir & UART_IIR_ID_MASK) == UART_IIR_THRI) {
-                        transmitInterruptPending = false;
-                        updateInterrupts();
-                    }
-                    return result;
+                if (pendingEvents.get() != 0) {
+                    applyEvents();
                 }
+
+                final byte result = iir;
+                if ((iir & UART_IIR_ID_MASK) == UART_IIR_THRI) {
+                    transmitInterruptPending = false;
+                    updateInterrupts();
+                }
+                return result;
             }
             case UART_LCR_OFFSET -> {
                 return lcr;
@@ -308,14 +300,22 @@ public final class UART16550A implements Resettable, Steppable, MemoryMappedDevi
                 return mcr;
             }
             case UART_LSR_OFFSET -> {
-                synchronized (lock) {
-                    final byte result = lsr;
-                    if ((lsr & (UART_LSR_BI | UART_LSR_OE)) != 0) {
-                        lsr &= ~(UART_LSR_BI | UART_LSR_OE);
-                        updateInterrupts();
-                    }
-                    return result;
+                if (pendingEvents.get() != 0) {
+                    applyEvents();
                 }
+
+                int result = lsr;
+                if (!receiveFifo.isEmpty()) {
+                    result |= UART_LSR_DR;
+                }
+                if (transmitFifo.isEmpty()) {
+                    result |= UART_LSR_THRE | UART_LSR_TEMT;
+                }
+                if ((lsr & (UART_LSR_BI | UART_LSR_OE)) != 0) {
+                    lsr &= ~(UART_LSR_BI | UART_LSR_OE);
+                    updateInterrupts();
+                }
+                return (byte) result;
             }
             case UART_MSR_OFFSET -> {
                 if ((mcr & UART_MCR_LBM) != 0) {
@@ -324,14 +324,12 @@ public final class UART16550A implements Resettable, Steppable, MemoryMappedDevi
                         (mcr & 0b0010) << 3 | // RTS [1] -> [4]
                         (mcr & 0b0001) << 5); // DTR [0] -> [5]
                 } else {
-                    synchronized (lock) {
-                        final byte result = msr;
-                        if ((msr & UART_MSR_DIRTY) != 0) {
-                            msr &= ~UART_MSR_DIRTY;
-                            updateInterrupts();
-                        }
-                        return result;
+                    final byte result = msr;
+                    if ((msr & UART_MSR_DIRTY) != 0) {
+                        msr &= ~UART_MSR_DIRTY;
+                        updateInterrupts();
                     }
+                    return result;
                 }
             }
             case UART_SCR_OFFSET -> {
@@ -350,21 +348,15 @@ public final class UART16550A implements Resettable, Steppable, MemoryMappedDevi
             case UART_THR_OFFSET -> {
                 if ((lcr & UART_LCR_DLAB) != 0) { // UART_DLL
                     dl = (short) ((dl & 0xFF00) | (value & 0x00FF));
-                } else { // UART_RBR
-                    synchronized (lock) {
-                        thr = (byte) value;
-                        if ((fcr & UART_FCR_FE) != 0) {
-                            if (transmitFifo.size() >= FIFO_QUEUE_CAPACITY) {
-                                transmitFifo.dequeueByte();
-                            }
-                            transmitFifo.enqueue(thr);
-                        }
-
-                        transmitInterruptPending = false;
-                        lsr &= ~(UART_LSR_THRE | UART_LSR_TEMT);
-
-                        updateInterrupts();
+                } else { // UART_THR
+                    thr = (byte) value;
+                    // Like on hardware, bytes written while the FIFO (or the holding register) is full are lost.
+                    if (transmitFifo.size() < getFifoCapacity()) {
+                        transmitFifo.offer(thr);
                     }
+
+                    transmitInterruptPending = false;
+                    updateInterrupts();
                 }
             }
 
@@ -373,56 +365,47 @@ public final class UART16550A implements Resettable, Steppable, MemoryMappedDevi
                 if ((lcr & UART_LCR_DLAB) != 0) { // UART_DLM
                     dl = (short) ((value << 8) | (dl & 0x00FF));
                 } else { // UART_IER
-                    synchronized (lock) {
-                        final int changes = ier ^ (byte) value;
-                        ier = (byte) (value & 0b1111);
+                    final int changes = ier ^ (byte) value;
+                    ier = (byte) (value & 0b1111);
 
-                        if ((changes & UART_IER_THRI) != 0) {
-                            transmitInterruptPending = (ier & UART_IER_THRI) != 0 && (lsr & UART_LSR_THRE) != 0;
-                        }
+                    if ((changes & UART_IER_THRI) != 0) {
+                        transmitInterruptPending = (ier & UART_IER_THRI) != 0 && transmitFifo.isEmpty();
+                    }
 
-                        if (changes != 0) {
-                            updateInterrupts();
-                        }
+                    if (changes != 0) {
+                        updateInterrupts();
                     }
                 }
             }
             case UART_FCR_OFFSET -> {
-                synchronized (lock) {
-                    final int changes = fcr ^ (byte) value;
-                    final boolean forceClear = (changes & UART_FCR_FE) != 0;
-
-                    if (forceClear || (value & UART_FCR_RFR) != 0) {
-                        synchronized (receiveFifo) {
-                            lsr &= ~(UART_LSR_DR | UART_LSR_BI);
-                            timeoutInterruptPending = false;
-                            receiveFifo.clear();
-                        }
-                    }
-                    if (forceClear || (value & UART_FCR_XFR) != 0) {
-                        synchronized (transmitFifo) {
-                            lsr |= UART_LSR_THRE | UART_LSR_TEMT;
-                            transmitInterruptPending = true;
-                            transmitFifo.clear();
-                        }
-                    }
+                final int changes = fcr ^ (byte) value;
+                final boolean forceClear = (changes & UART_FCR_FE) != 0;
 
-                    fcr = (byte) (value & (UART_FCR_FE | UART_FCR_DMS | UART_FCR_ITL_MASK));
+                if (forceClear || (value & UART_FCR_RFR) != 0) {
+                    lsr &= ~UART_LSR_BI;
+                    timeoutInterruptPending = false;
+                    receiveFifo.clear();
+                }
+                if (forceClear || (value & UART_FCR_XFR) != 0) {
+                    transmitInterruptPending = true;
+                    transmitFifo.discard();
+                }
 
-                    if ((fcr & UART_FCR_FE) != 0) {
-                        iir |= UART_IIR_FIFO_ENABLED;
-                        switch (fcr & UART_FCR_ITL_MASK) {
-                            case UART_FCR_ITL1 -> triggerLevel = 1;
-                            case UART_FCR_ITL2 -> triggerLevel = 4;
-                            case UART_FCR_ITL3 -> triggerLevel = 8;
-                            case UART_FCR_ITL4 -> triggerLevel = 14;
-                        }
-                    } else {
-                        iir &= ~UART_IIR_FIFO_ENABLED;
-                    }
+                fcr = (byte) (value & (UART_FCR_FE | UART_FCR_DMS | UART_FCR_ITL_MASK));
 
-                    updateInterrupts();
+                if ((fcr & UART_FCR_FE) != 0) {
+                    iir |= UART_IIR_FIFO_ENABLED;
+                    switch (fcr & UART_FCR_ITL_MASK) {
+                        case UART_FCR_ITL1 -> triggerLevel = 1;
+                        case UART_FCR_ITL2 -> triggerLevel = 4;
+                        case UART_FCR_ITL3 -> triggerLevel = 8;
+                        case UART_FCR_ITL4 -> triggerLevel = 14;
+                    }
+                } else {
+                    iir &= ~UART_IIR_FIFO_ENABLED;
                 }
+
+                updateInterrupts();
             }
             case UART_LCR_OFFSET -> lcr = (byte) value;
             case UART_MCR_OFFSET -> mcr = (byte) (value & 0b11111);
@@ -435,13 +418,42 @@ public final class UART16550A implements Resettable, Steppable, MemoryMappedDevi
         return singleton(interrupt);
     }
 
+    private int getFifoCapacity() {
+        return (fcr & UART_FCR_FE) != 0 ? FIFO_QUEUE_CAPACITY : 1;
+    }
+
+    private void postEvents(final int events) {
+        int value;
+        do {
+            value = pendingEvents.get();
+        } while ((value & events) != events && !pendingEvents.compareAndSet(value, value | events));
+    }
+
+    private void applyEvents() {
+        final int events = pendingEvents.getAndSet(0);
+        if ((events & EVENT_DATA_RECEIVED) != 0) {
+            timeoutInterruptPending = true; // Not correct, but good enough.
+        }
+        if ((events & EVENT_OVERRUN) != 0) {
+            lsr |= UART_LSR_OE;
+        }
+        if ((events & EVENT_BREAK) != 0) {
+            lsr |= UART_LSR_BI;
+        }
+        if ((events & EVENT_TRANSMIT_EMPTY) != 0 && transmitFifo.isEmpty()) {
+            transmitInterruptPending = true;
+        }
+
+        updateInterrupts();
+    }
+
     private void updateInterrupts() {
         final int niir;
         if ((ier & UART_IER_RLSI) != 0 && (lsr & UART_LSR_IRQ_MASK) != 0) {
             niir = UART_IIR_RLSI;
         } else if ((ier & UART_IER_RDI) != 0 && timeoutInterruptPending) {
             niir = UART_IIR_CTI;
-        } else if ((ier & UART_IER_RDI) != 0 && (lsr & UART_LSR_DR) != 0 &&
+        } else if ((ier & UART_IER_RDI) != 0 && !receiveFifo.isEmpty() &&
             ((fcr & UART_FCR_FE) == 0 || receiveFifo.size() > triggerLevel)) {
             niir = UART_IIR_RDI;
         } else if ((ier & UART_IER_THRI) != 0 && transmitInterruptPending) {
@@ -461,6 +461,11 @@ public abstract class AbstractVirtIODevice implements MemoryMappedDevice, Interr
             return;
         }
         queues[queueIndex].dispatchQueueNotifications = enabled;
+        try {
+            queues[queueIndex].updateNotificationSuppression();
+        } catch (final MemoryAccessException e) {
+            error();
+        }
     }
 
     /**
@@ -669,7 +674,14 @@ public abstract class AbstractVirtIODevice implements MemoryMappedDevice, Interr
                     queues[queueSel].num = intValue;
                 }
             }
-            case VIRTIO_MMIO_QUEUE_READY -> queues[queueSel].ready = intValue != 0 ? 1 : 0;
+            case VIRTIO_MMIO_QUEUE_READY -> {
+                queues[queueSel].ready = intValue != 0 ? 1 : 0;
+                try {
+                    queues[queueSel].updateNotificationSuppression();
+                } catch (final MemoryAccessException e) {
+                    error();
+                }
+            }
             case VIRTIO_MMIO_QUEUE_NOTIFY -> {
                 // 3.1.1: Driver must not send buffer available notifications before DRIVER_OK.
                 if ((status & VIRTIO_STATUS_DRIVER_OK) == 0) {
@@ -807,6 +819,12 @@ public abstract class AbstractVirtIODevice implements MemoryMappedDevice, Interr
         }
 
         abstract void handleQueueNotification(final int queueIndex) throws VirtIODeviceException, MemoryAccessException;
+
+        /**
+         * Tells the driver whether we want to be notified of new available buffers, depending on
+         * whether notifications are dispatched to the device.
+         */
+        abstract void updateNotificationSuppression() throws MemoryAccessException;
     }
 
     /**
@@ -836,6 +854,9 @@ public abstract class AbstractVirtIODevice implements MemoryMappedDevice, Interr
         private static final int VIRTQ_DESC_F_WRITE = 2;
         private static final int VIRTQ_DESC_F_INDIRECT = 4;
 
+        private static final int VIRTQ_USED_F_NO_NOTIFY = 1;
+        private static final int VIRTQ_AVAIL_F_NO_INTERRUPT = 1;
+
         /**
          * This is where we last stopped iterating the available descriptors ring buffer.
          */
@@ -849,7 +870,20 @@ public abstract class AbstractVirtIODevice implements MemoryMappedDevice, Interr
 
         @Override
         public boolean hasNext() throws MemoryAccessException {
-            return ready != 0 && lastAvailIdx != getAvailIdx();
+            if (ready == 0) {
+                return false;
+            }
+            if (lastAvailIdx != getAvailIdx()) {
+                return true;
+            }
+            if (!dispatchQueueNotifications || (getNegotiatedFeatures() & VIRTIO_F_RING_EVENT_IDX) == 0) {
+                return false;
+            }
+
+            // 2.6.7.2: Queue is drained, ask for a notification when the next buffer is made available.
+            // Check again afterwards, in case the driver made a buffer available before seeing the update.
+            setUsedAvailEvent(lastAvailIdx);
+            return lastAvailIdx != getAvailIdx();
         }
 
         @Override
@@ -861,6 +895,15 @@ public abstract class AbstractVirtIODevice implements MemoryMappedDevice, Interr
             return new DescriptorChainImpl(getAvailRing(lastAvailIdx++));
         }
 
+        @Override
+        public void rewind(final int count) {
+            if (count < 0 || count > num) {
+                throw new IllegalArgumentException();
+            }
+
+            lastAvailIdx -= count; // Underflow by design.
+        }
+
         @Override
         void handleQueueNotification(final int queueIndex) throws VirtIODeviceException, MemoryAccessException {
             if (ready == 0 || !dispatchQueueNotifications) {
@@ -872,6 +915,21 @@ public abstract class AbstractVirtIODevice implements MemoryMappedDevice, Interr
             }
         }
 
+        @Override
+        void updateNotificationSuppression() throws MemoryAccessException {
+            if (ready == 0) {
+                return;
+            }
+
+            if ((getNegotiatedFeatures() & VIRTIO_F_RING_EVENT_IDX) != 0) {
+                // When notifications are ignored, pick an event index the driver will only pass after
+                // the available index wrapped around, so it practically never notifies us.
+                setUsedAvailEvent(dispatchQueueNotifications ? lastAvailIdx : lastAvailIdx - 1);
+            } else {
+                setUsedFlags(dispatchQueueNotifications ? 0 : VIRTQ_USED_F_NO_NOTIFY);
+            }
+        }
+
         // The following methods provide access to a struct with the following layout:
         // struct virtq_desc {
         //     le64 addr;
@@ -968,6 +1026,14 @@ public abstract class AbstractVirtIODevice implements MemoryMappedDevice, Interr
             return index & (num - 1);
         }
 
+        /**
+         * 2.6.7.2: checks whether moving an index from {@code oldIndex} to {@code newIndex} passed the
+         * index {@code eventIndex} the other side asked to be notified at.
+         */
+        static boolean needsEvent(final short eventIndex, final short newIndex, final short oldIndex) {
+            return ((newIndex - eventIndex - 1) & 0xFFFF) < ((newIndex - oldIndex) & 0xFFFF);
+        }
+
         final class DescriptorChainImpl implements DescriptorChain {
             final short headDescIdx;
             final int readableByteCount;
@@ -1062,20 +1128,20 @@ public abstract class AbstractVirtIODevice implements MemoryMappedDevice, Interr
                 isUsed = true;
 
                 // 2.6.8.2: set len prior to updating used idx.
-                short index = getUsedIdx();
-                setUsedRing(index, headDescIdx, writtenByteCount);
-                index++; // Overflow by design.
+                final short oldIndex = getUsedIdx();
+                setUsedRing(oldIndex, headDescIdx, writtenByteCount);
+                final short index = (short) (oldIndex + 1); // Overflow by design.
                 setUsedIdx(index);
 
                 // 2.6.7: Used Buffer Notification Suppression
                 final boolean sendNotification;
                 if ((getNegotiatedFeatures() & VIRTIO_F_RING_EVENT_IDX) == 0) {
-                    final int flags = getAvailFlags();
-                    sendNotification = flags == 0;
+                    sendNotification = (getAvailFlags() & VIRTQ_AVAIL_F_NO_INTERRUPT) == 0;
                 } else {
-                    short usedEvent = getAvailUsedEvent();
-                    usedEvent++;
-                    sendNotification = index == usedEvent;
+                    // Used buffers are published one at a time, so this only triggers when used_event is
+                    // exactly the old index, same as a plain comparison would. It is kept in the general form
+                    // so it stays correct should used index updates ever be batched.
+                    sendNotification = needsEvent(getAvailUsedEvent(), index, oldIndex);
                 }
 
                 if (sendNotification) {
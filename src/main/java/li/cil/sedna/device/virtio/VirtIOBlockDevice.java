@@ -2,11 +2,13 @@ package li.cil.sedna.device.virtio;
 
 import li.cil.ceres.api.Serialized;
 import li.cil.sedna.api.device.BlockDevice;
+import li.cil.sedna.api.device.RateLimiter;
 import li.cil.sedna.api.device.Steppable;
 import li.cil.sedna.api.memory.MemoryAccessException;
 import li.cil.sedna.api.memory.MemoryMap;
 import li.cil.sedna.device.block.NullBlockDevice;
 
+import javax.annotation.Nullable;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
@@ -102,6 +104,7 @@ public final class VirtIOBlockDevice extends AbstractVirtIODevice implements Ste
     private static final ThreadLocal<byte[]> COPY_BUFFER = ThreadLocal.withInitial(() -> new byte[MAX_SEGMENT_SIZE * MAX_SEGMENT_COUNT]);
 
     private BlockDevice block;
+    @Nullable private RateLimiter rateLimiter;
     private int remainingByteProcessingQuota;
     @Serialized private boolean hasPendingRequest;
 
@@ -131,6 +134,18 @@ public final class VirtIOBlockDevice extends AbstractVirtIODevice implements Ste
         }
     }
 
+    /**
+     * Sets the rate limiter used to throttle requests processed by this device.
+     * <p>
+     * When no rate limiter is set, throughput is limited relative to the number of cycles this device is
+     * stepped by.
+     *
+     * @param rateLimiter the rate limiter to use, or {@code null} to use the default limit.
+     */
+    public void setRateLimiter(@Nullable final RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
     @Override
     public void close() throws IOException {
         block.close();
@@ -160,12 +175,12 @@ public final class VirtIOBlockDevice extends AbstractVirtIODevice implements Ste
         }
 
         try {
-            while (remainingByteProcessingQuota > 0) {
+            while (hasProcessingQuota()) {
                 final int processedBytes = processRequest();
                 if (processedBytes < 0) {
                     break;
                 }
-                remainingByteProcessingQuota -= processedBytes;
+                consumeProcessingQuota(processedBytes);
             }
         } catch (final Throwable e) {
             error();
@@ -391,6 +406,24 @@ public final class VirtIOBlockDevice extends AbstractVirtIODevice implements Ste
         return processedBytes;
     }
 
+    private boolean hasProcessingQuota() {
+        final RateLimiter rateLimiter = this.rateLimiter;
+        if (rateLimiter != null) {
+            return rateLimiter.hasCapacity();
+        } else {
+            return remainingByteProcessingQuota > 0;
+        }
+    }
+
+    private void consumeProcessingQuota(final int processedBytes) {
+        final RateLimiter rateLimiter = this.rateLimiter;
+        if (rateLimiter != null) {
+            rateLimiter.consume(processedBytes);
+        } else {
+            remainingByteProcessingQuota -= processedBytes;
+        }
+    }
+
     private static long capacityToSectorCount(final long capacity) {
         // We may lose some bytes here, but that's better than claiming there are
         // more bytes than there actually are.
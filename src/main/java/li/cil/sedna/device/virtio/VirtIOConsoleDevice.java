@@ -1,17 +1,33 @@
 package li.cil.sedna.device.virtio;
 
-import it.unimi.dsi.fastutil.bytes.ByteArrayFIFOQueue;
 import li.cil.ceres.api.Serialized;
 import li.cil.sedna.api.device.serial.SerialDevice;
 import li.cil.sedna.api.memory.MemoryAccessException;
 import li.cil.sedna.api.memory.MemoryMap;
 
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * VirtIO console device.
+ * <p>
+ * By default, this only provides a single port, the console. Additional named ports may be specified, in which
+ * case the device offers {@code VIRTIO_CONSOLE_F_MULTIPORT}. In Linux, these show up as
+ * {@code /dev/virtio-ports/<name>}, and can be used for dedicated data channels between guest and host, separate
+ * from the interactive console. Access the individual ports via {@link #getPort(int)}. The device itself provides
+ * access to the console port.
+ */
 @SuppressWarnings("PointlessBitwiseExpression")
 public final class VirtIOConsoleDevice extends AbstractVirtIODevice implements SerialDevice {
+    public static final int MAX_PORT_COUNT = 7; // Limited by maximum number of virtqueues.
+
     private static final short DEFAULT_COLUMN_COUNT = 80;
     private static final short DEFAULT_ROW_COUNT = 25;
 
     private static final int BUFFER_SIZE = 4 * 1024;
+    private static final int MAX_TRANSMIT_CHAIN_SIZE = 64 * 1024;
 
     private static final long VIRTIO_CONSOLE_F_SIZE = 1L << 0; // Configuration for cols and rows.
     private static final long VIRTIO_CONSOLE_F_MULTIPORT = 1L << 1; // Configuration max_nr_ports, control virtqueues.
@@ -36,94 +52,109 @@ public final class VirtIOConsoleDevice extends AbstractVirtIODevice implements S
     private static final int VIRTQ_RECEIVE_CONTROL = 2; // control receiveq
     private static final int VIRTQ_TRANSMIT_CONTROL = 3; // control transmitq
 
-    // Store input and output in own buffers to avoid storing chains for serialization.
-    @Serialized private final ByteArrayFIFOQueue transmitBuffer = new ByteArrayFIFOQueue(BUFFER_SIZE);
-    @Serialized private final ByteArrayFIFOQueue receiveBuffer = new ByteArrayFIFOQueue(BUFFER_SIZE);
+    // struct virtio_console_control {
+    //     le32 id;
+    //     le16 event;
+    //     le16 value;
+    // };
+    private static final int CONTROL_MESSAGE_SIZE = 8;
+    private static final int MAX_PORT_NAME_LENGTH = 255;
+
+    // Control messages still to be sent to the driver for a port, sent in this order.
+    private static final int PENDING_DEVICE_ADD = 1 << 0;
+    private static final int PENDING_CONSOLE_PORT = 1 << 1;
+    private static final int PENDING_PORT_NAME = 1 << 2;
+    private static final int PENDING_PORT_OPEN = 1 << 3;
+
+    @Serialized private final Port[] ports;
+    private final ByteBuffer controlBuffer = ByteBuffer.allocate(CONTROL_MESSAGE_SIZE + MAX_PORT_NAME_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
 
     public VirtIOConsoleDevice(final MemoryMap memoryMap) {
+        this(memoryMap, new String[0]);
+    }
+
+    /**
+     * Creates a new console device with additional named ports.
+     *
+     * @param memoryMap the memory map to use for accessing guest memory.
+     * @param portNames the names of the ports in addition to the console port. At most
+     *                  {@code MAX_PORT_COUNT - 1} ports may be specified.
+     */
+    public VirtIOConsoleDevice(final MemoryMap memoryMap, final String... portNames) {
         super(memoryMap, VirtIODeviceSpec
             .builder(VirtIODeviceType.VIRTIO_DEVICE_ID_CONSOLE)
-            .features(VIRTIO_CONSOLE_F_SIZE)
-            .queueCount(2)
-            .configSpaceSize(4)
+            .features(VIRTIO_CONSOLE_F_SIZE | (portNames.length > 0 ? VIRTIO_CONSOLE_F_MULTIPORT : 0))
+            .queueCount(portNames.length > 0 ? 2 + 2 * (portNames.length + 1) : 2)
+            .configSpaceSize(portNames.length > 0 ? 8 : 4)
             .build());
-    }
 
-    @Override
-    public int read() {
-        if (hasDeviceFailed()) {
-            return -1;
+        if (portNames.length + 1 > MAX_PORT_COUNT) {
+            throw new IllegalArgumentException("too many ports");
         }
 
-        if (transmitBuffer.isEmpty()) {
-            try {
-                // 5.3.6.1: The driver MUST NOT put a device-writable buffer in a transmitq.
-                final DescriptorChain transmit = validateReadOnlyDescriptorChain(VIRTQ_TRANSMIT, null);
-                if (transmit != null) {
-                    while (transmit.readableBytes() > 0) {
-                        transmitBuffer.enqueue(transmit.get());
-                    }
-                    transmit.use();
-                }
-            } catch (final VirtIODeviceException | MemoryAccessException e) {
-                error();
-                return -1;
+        ports = new Port[portNames.length + 1];
+        ports[0] = new Port(0, null);
+        for (int i = 0; i < portNames.length; i++) {
+            final byte[] name = portNames[i].getBytes(StandardCharsets.UTF_8);
+            if (name.length == 0 || name.length > MAX_PORT_NAME_LENGTH) {
+                throw new IllegalArgumentException("invalid port name");
             }
+            ports[i + 1] = new Port(i + 1, name);
         }
+    }
 
-        if (transmitBuffer.isEmpty()) {
-            return -1;
-        }
+    public int getPortCount() {
+        return ports.length;
+    }
 
-        return transmitBuffer.dequeueByte() & 0xFF;
+    /**
+     * Returns the port with the specified index. Port zero is the console port.
+     * <p>
+     * Ports other than the console port are only usable if the driver supports
+     * {@code VIRTIO_CONSOLE_F_MULTIPORT}.
+     *
+     * @param index the index of the port.
+     * @return the port.
+     */
+    public Port getPort(final int index) {
+        return ports[index];
     }
 
     @Override
-    public boolean canPutByte() {
-        if (hasDeviceFailed()) {
-            return false;
-        }
+    public int read() {
+        return ports[0].read();
+    }
 
-        return receiveBuffer.size() < BUFFER_SIZE;
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) {
+        return ports[0].read(buffer, offset, length);
     }
 
     @Override
-    public void putByte(final byte value) {
-        if (hasDeviceFailed()) {
-            return;
-        }
+    public boolean canPutByte() {
+        return ports[0].canPutByte();
+    }
 
-        if (receiveBuffer.size() < BUFFER_SIZE) {
-            receiveBuffer.enqueue(value);
-        }
+    @Override
+    public void putByte(final byte value) {
+        ports[0].putByte(value);
+    }
 
-        if (receiveBuffer.size() >= BUFFER_SIZE) {
-            flush();
-        }
+    @Override
+    public int write(final byte[] buffer, final int offset, final int length) {
+        return ports[0].write(buffer, offset, length);
     }
 
     @Override
     public void flush() {
-        if (hasDeviceFailed()) {
-            return;
-        }
-
-        while (!receiveBuffer.isEmpty()) {
-            try {
-                // 5.3.6.1: The driver MUST NOT put a device-readable in a receiveq.
-                final DescriptorChain receive = validateWriteOnlyDescriptorChain(VIRTQ_RECEIVE, null);
-                if (receive == null) {
-                    return;
-                }
+        ports[0].flush();
+    }
 
-                while (receive.writableBytes() > 0 && !receiveBuffer.isEmpty()) {
-                    receive.put(receiveBuffer.dequeueByte());
-                }
-                receive.use();
-            } catch (final VirtIODeviceException | MemoryAccessException e) {
-                error();
-                return;
-            }
+    @Override
+    public void reset() {
+        super.reset();
+        for (final Port port : ports) {
+            port.reset();
         }
     }
 
@@ -131,6 +162,9 @@ public final class VirtIOConsoleDevice extends AbstractVirtIODevice implements S
     protected void initializeConfig() {
         setConfigValue(VIRTIO_CONSOLE_CFG_COLS_OFFSET, DEFAULT_COLUMN_COUNT);
         setConfigValue(VIRTIO_CONSOLE_CFG_ROWS_OFFSET, DEFAULT_ROW_COUNT);
+        if (ports.length > 1) {
+            setConfigValue(VIRTIO_CONSOLE_CFG_MAX_NR_PORTS_OFFSET, ports.length);
+        }
     }
 
     @Override
@@ -142,11 +176,316 @@ public final class VirtIOConsoleDevice extends AbstractVirtIODevice implements S
 
     @Override
     protected void handleFeaturesNegotiated() {
-        setQueueNotifications(VIRTQ_RECEIVE, false);
-        setQueueNotifications(VIRTQ_TRANSMIT, false);
+        for (final Port port : ports) {
+            setQueueNotifications(port.getReceiveQueueIndex(), false);
+            setQueueNotifications(port.getTransmitQueueIndex(), false);
+        }
+    }
+
+    @Override
+    protected void handleQueueNotification(final int queueIndex) throws VirtIODeviceException, MemoryAccessException {
+        if (!isMultiport()) {
+            return;
+        }
+
+        if (queueIndex == VIRTQ_TRANSMIT_CONTROL) {
+            processControlMessages();
+        }
+        if (queueIndex == VIRTQ_TRANSMIT_CONTROL || queueIndex == VIRTQ_RECEIVE_CONTROL) {
+            sendControlMessages();
+        }
+    }
+
+    private boolean isMultiport() {
+        return (getNegotiatedFeatures() & VIRTIO_CONSOLE_F_MULTIPORT) != 0;
     }
 
     private boolean hasDeviceFailed() {
         return (getStatus() & VIRTIO_STATUS_FAILED) != 0;
     }
+
+    private void processControlMessages() throws VirtIODeviceException, MemoryAccessException {
+        final VirtqueueIterator queue = getQueueIterator(VIRTQ_TRANSMIT_CONTROL);
+        if (queue == null) {
+            return;
+        }
+
+        while (queue.hasNext()) {
+            final DescriptorChain chain = queue.next();
+            if (chain.readableBytes() < CONTROL_MESSAGE_SIZE || chain.writableBytes() > 0) {
+                throw new VirtIODeviceException();
+            }
+
+            controlBuffer.clear().limit(CONTROL_MESSAGE_SIZE);
+            chain.get(controlBuffer);
+            controlBuffer.flip();
+            final int id = controlBuffer.getInt();
+            final int event = controlBuffer.getShort() & 0xFFFF;
+            final int value = controlBuffer.getShort() & 0xFFFF;
+            chain.skip(chain.readableBytes());
+            chain.use();
+
+            switch (event) {
+                case VIRTIO_CONSOLE_DEVICE_READY -> {
+                    if (value != 0) {
+                        for (final Port port : ports) {
+                            port.pendingControlMessages |= PENDING_DEVICE_ADD;
+                        }
+                    }
+                }
+                case VIRTIO_CONSOLE_PORT_READY -> {
+                    if (id >= 0 && id < ports.length && value != 0) {
+                        final Port port = ports[id];
+                        port.isReady = true;
+                        port.pendingControlMessages |= PENDING_PORT_OPEN;
+                        if (id == 0) {
+                            port.pendingControlMessages |= PENDING_CONSOLE_PORT;
+                        }
+                        if (port.name != null) {
+                            port.pendingControlMessages |= PENDING_PORT_NAME;
+                        }
+                    }
+                }
+                case VIRTIO_CONSOLE_PORT_OPEN -> {
+                    if (id >= 0 && id < ports.length) {
+                        ports[id].isOpenInGuest = value != 0;
+                    }
+                }
+            }
+        }
+    }
+
+    private void sendControlMessages() throws VirtIODeviceException, MemoryAccessException {
+        for (final Port port : ports) {
+            while (port.pendingControlMessages != 0) {
+                final DescriptorChain chain = validateWriteOnlyDescriptorChain(VIRTQ_RECEIVE_CONTROL, null);
+                if (chain == null) {
+                    return;
+                }
+
+                final int pending = Integer.lowestOneBit(port.pendingControlMessages);
+                controlBuffer.clear();
+                controlBuffer.putInt(port.id);
+                switch (pending) {
+                    case PENDING_DEVICE_ADD -> controlBuffer.putShort((short) VIRTIO_CONSOLE_DEVICE_ADD).putShort((short) 0);
+                    case PENDING_CONSOLE_PORT -> controlBuffer.putShort((short) VIRTIO_CONSOLE_CONSOLE_PORT).putShort((short) 1);
+                    case PENDING_PORT_NAME -> {
+                        assert port.name != null;
+                        controlBuffer.putShort((short) VIRTIO_CONSOLE_PORT_NAME).putShort((short) 1).put(port.name);
+                    }
+                    case PENDING_PORT_OPEN -> controlBuffer.putShort((short) VIRTIO_CONSOLE_PORT_OPEN).putShort((short) 1);
+                }
+                controlBuffer.flip();
+
+                if (controlBuffer.remaining() > chain.writableBytes()) {
+                    controlBuffer.limit(chain.writableBytes());
+                }
+                chain.put(controlBuffer);
+                chain.use();
+
+                port.pendingControlMessages &= ~pending;
+            }
+        }
+    }
+
+    /**
+     * A single port of the console device.
+     * <p>
+     * Data written by the guest is read from the port's transmit queue one descriptor chain at a time, and
+     * data written by the host is buffered until the buffer is full or {@link #flush()} is called.
+     */
+    @Serialized
+    public final class Port implements SerialDevice { // Must be public for serialization.
+        private final transient int id;
+        @Nullable private final transient byte[] name;
+
+        // Store input and output in own buffers to avoid storing chains for serialization.
+        private byte[] transmitBuffer = new byte[BUFFER_SIZE];
+        private int transmitPosition, transmitLimit;
+        private final byte[] receiveBuffer = new byte[BUFFER_SIZE];
+        private int receivePosition, receiveLimit;
+
+        private int pendingControlMessages;
+        private boolean isReady;
+        private boolean isOpenInGuest;
+
+        private Port(final int id, @Nullable final byte[] name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        /**
+         * Whether the driver has set up this port.
+         *
+         * @return {@code true} if the port is ready; {@code false} otherwise.
+         */
+        public boolean isReady() {
+            return id == 0 ? (getStatus() & VIRTIO_STATUS_DRIVER_OK) != 0 : isReady;
+        }
+
+        /**
+         * Whether a program in the guest currently has this port open. Always {@code false} for the console
+         * port if the driver does not support {@code VIRTIO_CONSOLE_F_MULTIPORT}.
+         *
+         * @return {@code true} if the port is open in the guest; {@code false} otherwise.
+         */
+        public boolean isOpenInGuest() {
+            return isOpenInGuest;
+        }
+
+        @Override
+        public int read() {
+            if (!hasTransmitData()) {
+                return -1;
+            }
+
+            return transmitBuffer[transmitPosition++] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) {
+            int count = 0;
+            while (count < length && hasTransmitData()) {
+                final int chunk = Math.min(length - count, transmitLimit - transmitPosition);
+                System.arraycopy(transmitBuffer, transmitPosition, buffer, offset + count, chunk);
+                transmitPosition += chunk;
+                count += chunk;
+            }
+            return count;
+        }
+
+        @Override
+        public boolean canPutByte() {
+            if (hasDeviceFailed()) {
+                return false;
+            }
+
+            return receiveLimit - receivePosition < receiveBuffer.length;
+        }
+
+        @Override
+        public void putByte(final byte value) {
+            if (!canPutByte()) {
+                return;
+            }
+
+            compactReceiveBuffer();
+            receiveBuffer[receiveLimit++] = value;
+
+            if (receiveLimit >= receiveBuffer.length) {
+                flush();
+            }
+        }
+
+        @Override
+        public int write(final byte[] buffer, final int offset, final int length) {
+            int count = 0;
+            while (count < length && canPutByte()) {
+                compactReceiveBuffer();
+                final int chunk = Math.min(length - count, receiveBuffer.length - receiveLimit);
+                System.arraycopy(buffer, offset + count, receiveBuffer, receiveLimit, chunk);
+                receiveLimit += chunk;
+                count += chunk;
+
+                if (receiveLimit >= receiveBuffer.length) {
+                    flush();
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public void flush() {
+            if (hasDeviceFailed() || !isQueueAvailable()) {
+                return;
+            }
+
+            while (receivePosition < receiveLimit) {
+                try {
+                    // 5.3.6.1: The driver MUST NOT put a device-readable in a receiveq.
+                    final DescriptorChain receive = validateWriteOnlyDescriptorChain(getReceiveQueueIndex(), null);
+                    if (receive == null) {
+                        return;
+                    }
+
+                    final int length = Math.min(receive.writableBytes(), receiveLimit - receivePosition);
+                    receive.put(receiveBuffer, receivePosition, length);
+                    receivePosition += length;
+                    receive.use();
+                } catch (final VirtIODeviceException | MemoryAccessException e) {
+                    error();
+                    return;
+                }
+            }
+
+            receivePosition = 0;
+            receiveLimit = 0;
+        }
+
+        private void reset() {
+            transmitPosition = 0;
+            transmitLimit = 0;
+            receivePosition = 0;
+            receiveLimit = 0;
+            pendingControlMessages = 0;
+            isReady = false;
+            isOpenInGuest = false;
+        }
+
+        private int getReceiveQueueIndex() {
+            return id == 0 ? VIRTQ_RECEIVE : 2 + 2 * id;
+        }
+
+        private int getTransmitQueueIndex() {
+            return id == 0 ? VIRTQ_TRANSMIT : 3 + 2 * id;
+        }
+
+        private boolean isQueueAvailable() {
+            return id == 0 || isMultiport();
+        }
+
+        private boolean hasTransmitData() {
+            if (transmitPosition < transmitLimit) {
+                return true;
+            }
+
+            if (hasDeviceFailed() || !isQueueAvailable()) {
+                return false;
+            }
+
+            try {
+                // 5.3.6.1: The driver MUST NOT put a device-writable buffer in a transmitq.
+                final DescriptorChain transmit = validateReadOnlyDescriptorChain(getTransmitQueueIndex(), null);
+                if (transmit == null) {
+                    return false;
+                }
+
+                final int length = transmit.readableBytes();
+                if (length > MAX_TRANSMIT_CHAIN_SIZE) {
+                    throw new VirtIODeviceException();
+                }
+                if (length > transmitBuffer.length) {
+                    transmitBuffer = new byte[length];
+                }
+
+                transmit.get(transmitBuffer, 0, length);
+                transmit.use();
+
+                transmitPosition = 0;
+                transmitLimit = length;
+                return true;
+            } catch (final VirtIODeviceException | MemoryAccessException e) {
+                error();
+                return false;
+            }
+        }
+
+        private void compactReceiveBuffer() {
+            if (receivePosition > 0 && receiveLimit == receiveBuffer.length) {
+                System.arraycopy(receiveBuffer, receivePosition, receiveBuffer, 0, receiveLimit - receivePosition);
+                receiveLimit -= receivePosition;
+                receivePosition = 0;
+            }
+        }
+    }
 }
@@ -29,7 +29,7 @@ public final class VirtIODeviceSpec {
 
         this.deviceId = deviceId;
         this.vendorId = vendorId;
-        this.features = features | AbstractVirtIODevice.VIRTIO_F_VERSION_1;
+        this.features = features | AbstractVirtIODevice.VIRTIO_F_VERSION_1 | AbstractVirtIODevice.VIRTIO_F_RING_EVENT_IDX;
         this.configSpaceSizeInBytes = configSpaceSizeInBytes;
         this.virtQueueCount = virtQueueCount;
     }
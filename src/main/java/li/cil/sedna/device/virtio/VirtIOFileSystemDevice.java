@@ -1,7 +1,8 @@
 package li.cil.sedna.device.virtio;
 
-import it.unimi.dsi.fastutil.ints.Int2ObjectArrayMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import li.cil.ceres.api.Serialized;
+import li.cil.sedna.api.device.RateLimiter;
 import li.cil.sedna.api.device.Steppable;
 import li.cil.sedna.api.memory.MemoryAccessException;
 import li.cil.sedna.api.memory.MemoryMap;
@@ -19,8 +20,10 @@ import java.nio.file.NoSuchFileException;
 import java.nio.file.NotDirectoryException;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
-import java.util.Arrays;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 
 /**
  * Plan 9 file protocol device.
@@ -37,7 +40,8 @@ import java.util.List;
  */
 @SuppressWarnings("PointlessBitwiseExpression")
 public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implements Steppable {
-    private static final int VIRTIO_9P_MAX_MESSAGE_SIZE = 8 * 1024;
+    private static final int VIRTIO_9P_MAX_MESSAGE_SIZE = 512 * 1024;
+    private static final int VIRTIO_9P_MIN_MESSAGE_SIZE = 8 * 1024;
     private static final String VIRTIO_9P_VERSION = "9P2000.L";
     private static final int BYTES_PER_THOUSAND_CYCLES = 32;
 
@@ -160,16 +164,39 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
     private static final int LINUX_ERRNO_ENOSPC = 28;    // No space left on device
     private static final int LINUX_ERRNO_ENOTEMPTY = 39; // Directory not empty
     private static final int LINUX_ERRNO_EPROTO = 71;    // Protocol error
+    private static final int LINUX_ERRNO_EMSGSIZE = 90;  // Message too long
     private static final int LINUX_ERRNO_ENOTSUPP = 524;  // Not supported
 
     private static final int VIRTQ_REQUEST = 0;
 
+    // size[4] id[1] tag[2]
+    private static final int P9_HEADER_SIZE = 4 + 1 + 2;
+
+    // Upper bound for requests taken from the queue but not yet completed when using an executor.
+    private static final int MAX_IN_FLIGHT_REQUESTS = 16;
+
     private final String tag;
+    // Not serialized, the owner of the file system is responsible for persisting its contents, if needed.
     private final FileSystem fileSystem;
+    @Nullable private RateLimiter rateLimiter;
+    @Nullable private Executor executor;
     private int remainingByteProcessingQuota;
 
     @Serialized private final FileSystemFileMap files = new FileSystemFileMap();
+    // Lets requests abandoned by a reset notice they must not add fids. Changed on the thread stepping the device
+    // while holding the lock on files, where requests running on the executor read it.
+    private int resetCount;
     @Serialized private boolean hasPendingRequest;
+    @Serialized private int messageSize = VIRTIO_9P_MIN_MESSAGE_SIZE;
+
+    // Reused for all requests, grown up to the maximum message size on demand.
+    private ByteBuffer requestBuffer = allocateMessageBuffer(VIRTIO_9P_MIN_MESSAGE_SIZE);
+    private ByteBuffer replyBuffer = allocateMessageBuffer(VIRTIO_9P_MIN_MESSAGE_SIZE);
+
+    // Requests taken from the queue but not yet completed, in the order they were received. Only used with an executor.
+    private final List<PendingRequest> inFlightRequests = new ArrayList<>();
+    private final Queue<PendingRequest> completedRequests = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<ByteBuffer> messageBufferPool = new ArrayDeque<>();
 
     public VirtIOFileSystemDevice(final MemoryMap memoryMap, final String tag, final FileSystem fileSystem) {
         super(memoryMap, VirtIODeviceSpec
@@ -182,10 +209,65 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
         this.fileSystem = fileSystem;
     }
 
+    /**
+     * Sets the rate limiter used to throttle requests processed by this device.
+     * <p>
+     * When no rate limiter is set, throughput is limited relative to the number of cycles this device is
+     * stepped by.
+     *
+     * @param rateLimiter the rate limiter to use, or {@code null} to use the default limit.
+     */
+    public void setRateLimiter(@Nullable final RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Sets the executor used to process requests concurrently.
+     * <p>
+     * When no executor is set, requests are processed one after the other while stepping this device. When an
+     * executor is set, independent requests are run on it in parallel, and their replies are sent when this
+     * device is stepped next after they complete. Requests referencing the same fid are still processed in
+     * the order the driver sent them. In this mode {@code Tflush} cancels requests that have not started yet,
+     * and interrupts reads between chunks.
+     * <p>
+     * The {@link FileSystem} used by this device must be thread-safe to be used with an executor.
+     * <p>
+     * Requests that are in flight are not serialized. Wait until {@link #hasInFlightRequests()} returns
+     * {@code false} before serializing this device.
+     *
+     * @param executor the executor to run requests on, or {@code null} to process requests synchronously.
+     */
+    public void setExecutor(@Nullable final Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Whether there are requests that have been taken from the queue, but have not been replied to yet.
+     * <p>
+     * This can only be the case if an executor has been set via {@link #setExecutor(Executor)}.
+     *
+     * @return {@code true} if there are requests in flight; {@code false} otherwise.
+     */
+    public boolean hasInFlightRequests() {
+        return !inFlightRequests.isEmpty();
+    }
+
     @Override
     public void reset() {
         super.reset();
 
+        // Requests still running will finish eventually, but their descriptor chains are no longer valid.
+        for (final PendingRequest request : inFlightRequests) {
+            request.isAbandoned = true;
+            if (!request.isDispatched) {
+                releaseMessageBuffers(request);
+            }
+        }
+        inFlightRequests.clear();
+
+        synchronized (files) {
+            resetCount++;
+        }
         closeFilesAndClearFIDs();
     }
 
@@ -195,7 +277,7 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
             remainingByteProcessingQuota += Math.max(1, cycles * BYTES_PER_THOUSAND_CYCLES / 1000);
         }
 
-        if (!hasPendingRequest) {
+        if (!hasPendingRequest && inFlightRequests.isEmpty() && completedRequests.isEmpty()) {
             return;
         }
 
@@ -204,12 +286,16 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
         }
 
         try {
-            while (remainingByteProcessingQuota > 0) {
-                final int processedBytes = processRequest();
-                if (processedBytes < 0) {
-                    break;
+            if (executor != null || !inFlightRequests.isEmpty() || !completedRequests.isEmpty()) {
+                processRequestsConcurrently();
+            } else {
+                while (hasProcessingQuota()) {
+                    final int processedBytes = processRequest();
+                    if (processedBytes < 0) {
+                        break;
+                    }
+                    consumeProcessingQuota(processedBytes);
                 }
-                remainingByteProcessingQuota -= processedBytes;
             }
         } catch (final Throwable e) {
             error();
@@ -231,21 +317,263 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
         hasPendingRequest = true;
     }
 
-    private int processRequest() throws VirtIODeviceException, IOException {
-        final VirtqueueIterator queue = getQueueIterator(VIRTQ_REQUEST);
-        if (queue == null) {
-            hasPendingRequest = false;
-            return -1;
+    private boolean hasProcessingQuota() {
+        final RateLimiter rateLimiter = this.rateLimiter;
+        if (rateLimiter != null) {
+            return rateLimiter.hasCapacity();
+        } else {
+            return remainingByteProcessingQuota > 0;
         }
+    }
 
-        if (!queue.hasNext()) {
-            hasPendingRequest = false;
+    private void consumeProcessingQuota(final int processedBytes) {
+        final RateLimiter rateLimiter = this.rateLimiter;
+        if (rateLimiter != null) {
+            rateLimiter.consume(processedBytes);
+        } else {
+            remainingByteProcessingQuota -= processedBytes;
+        }
+    }
+
+    private int processRequest() throws VirtIODeviceException, MemoryAccessException {
+        final DescriptorChain chain = nextChain();
+        if (chain == null) {
             return -1;
         }
-        final DescriptorChain chain = queue.next();
 
-        final int processedBytes = chain.readableBytes() + chain.writableBytes();
+        final int requestSize = chain.readableBytes();
+        validateRequestSize(requestSize);
+        if (requestSize > messageSize) {
+            return requestSize + putOversizedRequestReply(chain);
+        }
+
+        if (requestBuffer.capacity() < requestSize) {
+            requestBuffer = allocateMessageBuffer(requestSize);
+        }
+        final ByteBuffer request = requestBuffer.clear().limit(requestSize);
+        chain.get(request);
+        request.flip();
+
+        final int replySize = Math.min(chain.writableBytes(), VIRTIO_9P_MAX_MESSAGE_SIZE);
+        if (replyBuffer.capacity() < replySize) {
+            replyBuffer = allocateMessageBuffer(replySize);
+        }
+        final ByteBuffer reply = replyBuffer.clear().limit(replySize).position(P9_HEADER_SIZE);
+
+        executeRequest(request, reply, null);
+
+        chain.skip(chain.readableBytes());
+        chain.put(reply);
+        chain.use();
+
+        // Reply buffer has been flipped when the reply was written, so its limit is the reply size.
+        return requestSize + reply.limit();
+    }
+
+    private void processRequestsConcurrently() throws VirtIODeviceException, MemoryAccessException {
+        completeRequests();
+
+        while (inFlightRequests.size() < MAX_IN_FLIGHT_REQUESTS && hasProcessingQuota()) {
+            if (!receiveRequest()) {
+                break;
+            }
+        }
+
+        dispatchRequests();
+
+        // Requests run synchronously when the executor was removed while requests were in flight.
+        completeRequests();
+    }
+
+    private boolean receiveRequest() throws VirtIODeviceException, MemoryAccessException {
+        final DescriptorChain chain = nextChain();
+        if (chain == null) {
+            return false;
+        }
+
+        final int requestSize = chain.readableBytes();
+        validateRequestSize(requestSize);
+        if (requestSize > messageSize) {
+            consumeProcessingQuota(requestSize + putOversizedRequestReply(chain));
+            return true;
+        }
+
+        final ByteBuffer request = acquireMessageBuffer(requestSize);
+        chain.get(request);
+        request.flip();
+
+        final byte id = request.get(4);
+        final short tag = request.getShort(5);
+
+        if (id == P9_MSG_TFLUSH) {
+            // size[4] Tflush tag[2] oldtag[2]
+            // size[4] Rflush tag[2]
+            final short oldtag = request.getShort(P9_HEADER_SIZE);
+            releaseMessageBuffer(request);
+            consumeProcessingQuota(requestSize);
+
+            final PendingRequest target = findInFlightRequest(oldtag);
+            if (target == null) {
+                putFlushReply(chain, tag);
+            } else if (!target.isDispatched) {
+                // flush(5): The server should answer the flush message immediately. If it recognizes oldtag as the
+                // tag of a pending transaction, it should abort any pending response and discard that tag.
+                // The flushed request must not be answered, but its descriptor chain still has to be returned,
+                // or the driver could never reuse the buffers. It is returned with a used length of zero, which
+                // virtio drivers treat as no reply, e.g. Linux only completes requests with a non-zero length.
+                // The driver releases the old tag once it receives the Rflush, which is sent after this.
+                inFlightRequests.remove(target);
+                releaseMessageBuffers(target);
+                target.chain.use();
+                putFlushReply(chain, tag);
+            } else {
+                // Already running, reply once it has completed or noticed it was cancelled.
+                target.isCancelled = true;
+                target.flushes.add(new PendingFlush(chain, tag));
+            }
+            return true;
+        }
+
+        final int replySize = Math.min(chain.writableBytes(), VIRTIO_9P_MAX_MESSAGE_SIZE);
+        final ByteBuffer reply = acquireMessageBuffer(replySize);
+        inFlightRequests.add(new PendingRequest(chain, request, reply, id, tag, getRequestFIDs(id, request), resetCount));
+        return true;
+    }
+
+    private void dispatchRequests() {
+        for (int i = 0; i < inFlightRequests.size(); i++) {
+            final PendingRequest pending = inFlightRequests.get(i);
+            if (pending.isDispatched || !canDispatch(i)) {
+                continue;
+            }
+
+            pending.isDispatched = true;
+            final Executor executor = this.executor;
+            if (executor != null) {
+                executor.execute(() -> runRequest(pending));
+            } else {
+                runRequest(pending);
+            }
+        }
+    }
+
+    private boolean canDispatch(final int index) {
+        final PendingRequest pending = inFlightRequests.get(index);
+
+        // Requests without known fids, e.g. Tversion, have to wait for everything before them to complete, and
+        // block everything after them. Other requests have to wait for earlier requests on the same fids.
+        if (pending.fids == null) {
+            return index == 0;
+        }
+        for (int i = 0; i < index; i++) {
+            final PendingRequest earlier = inFlightRequests.get(i);
+            if (earlier.fids == null) {
+                return false;
+            }
+            for (final int fid : pending.fids) {
+                for (final int earlierFid : earlier.fids) {
+                    if (fid == earlierFid) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private void runRequest(final PendingRequest pending) {
+        try {
+            if (pending.isCancelled) {
+                pending.isInterrupted = true;
+            } else {
+                pending.reply.clear().limit(pending.replySize).position(P9_HEADER_SIZE);
+                executeRequest(pending.request, pending.reply, pending);
+            }
+        } catch (final CancellationException e) {
+            pending.isInterrupted = true;
+        } catch (final Throwable e) {
+            pending.failure = e;
+        }
+        completedRequests.add(pending);
+    }
+
+    private void completeRequests() throws VirtIODeviceException, MemoryAccessException {
+        PendingRequest pending;
+        while ((pending = completedRequests.poll()) != null) {
+            releaseMessageBuffer(pending.request);
+            if (pending.isAbandoned) {
+                releaseMessageBuffer(pending.reply);
+                continue;
+            }
+
+            inFlightRequests.remove(pending);
+
+            if (pending.failure != null) {
+                releaseMessageBuffer(pending.reply);
+                throw new VirtIODeviceException();
+            }
+
+            // Interrupted requests are completed without a reply, i.e. with a used length of zero, same as flushed
+            // requests that had not been dispatched yet.
+            if (!pending.isInterrupted) {
+                pending.chain.skip(pending.chain.readableBytes());
+                pending.chain.put(pending.reply);
+            }
+            pending.chain.use();
+            consumeProcessingQuota(pending.requestSize + (pending.isInterrupted ? 0 : pending.reply.limit()));
+            releaseMessageBuffer(pending.reply);
+
+            for (final PendingFlush flush : pending.flushes) {
+                putFlushReply(flush.chain(), flush.tag());
+            }
+        }
+    }
+
+    @Nullable
+    private PendingRequest findInFlightRequest(final short tag) {
+        for (final PendingRequest pending : inFlightRequests) {
+            if (pending.tag == tag) {
+                return pending;
+            }
+        }
+        return null;
+    }
 
+    private void putFlushReply(final DescriptorChain chain, final short tag) throws VirtIODeviceException, MemoryAccessException {
+        final ByteBuffer reply = replyBuffer.clear().position(P9_HEADER_SIZE);
+        putReply(P9_MSG_TFLUSH, tag, reply);
+        chain.skip(chain.readableBytes());
+        chain.put(reply);
+        chain.use();
+    }
+
+    /**
+     * Answers a request exceeding the negotiated message size with an error, without reading more than its header.
+     *
+     * @return the size of the reply.
+     */
+    private int putOversizedRequestReply(final DescriptorChain chain) throws VirtIODeviceException, MemoryAccessException {
+        final ByteBuffer reply = replyBuffer.clear().limit(P9_HEADER_SIZE);
+        chain.get(reply);
+        final short tag = reply.getShort(5);
+        lerror(reply, tag, LINUX_ERRNO_EMSGSIZE);
+        chain.skip(chain.readableBytes());
+        chain.put(reply);
+        chain.use();
+        return reply.limit();
+    }
+
+    @Nullable
+    private DescriptorChain nextChain() throws VirtIODeviceException, MemoryAccessException {
+        final VirtqueueIterator queue = getQueueIterator(VIRTQ_REQUEST);
+        if (queue == null || !queue.hasNext()) {
+            hasPendingRequest = false;
+            return null;
+        }
+        return queue.next();
+    }
+
+    private static void validateRequestSize(final int requestSize) throws VirtIODeviceException {
         // struct p9_fcall {
         //     u32 size;
         //     u8 id;
@@ -258,31 +586,97 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
         //     u8 *sdata;
         // };
 
-        final ByteBuffer request = ByteBuffer.allocate(chain.readableBytes()).order(ByteOrder.LITTLE_ENDIAN);
-        final ByteBuffer reply = ByteBuffer.allocate(VIRTIO_9P_MAX_MESSAGE_SIZE - chain.readableBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        // Without a complete header there is no tag to reply with. Requests larger than the negotiated message size
+        // are answered with an error instead.
+        if (requestSize < P9_HEADER_SIZE) {
+            throw new VirtIODeviceException();
+        }
+    }
 
-        chain.get(request);
-        request.flip();
+    /**
+     * Returns the fids a request operates on, used to keep requests on the same fids in order.
+     *
+     * @return the fids of the request, or {@code null} if the request must not run concurrently with any other.
+     */
+    @Nullable
+    private static int[] getRequestFIDs(final byte id, final ByteBuffer request) {
+        final int body = P9_HEADER_SIZE;
+        final int limit = request.limit();
+        switch (id) {
+            case P9_MSG_TWALK: {
+                if (body + 8 > limit) return null;
+                return new int[]{request.getInt(body), request.getInt(body + 4)};
+            }
+            case P9_MSG_TRENAMEAT: {
+                // olddirfid[4] oldname[s] newdirfid[4]
+                if (body + 6 > limit) return null;
+                final int newdirfidPosition = body + 6 + (request.getShort(body + 4) & 0xFFFF);
+                if (newdirfidPosition + 4 > limit) return null;
+                return new int[]{request.getInt(body), request.getInt(newdirfidPosition)};
+            }
+            case P9_MSG_TREAD:
+            case P9_MSG_TWRITE:
+            case P9_MSG_TCLUNK:
+            case P9_MSG_TATTACH:
+            case P9_MSG_TSTATFS:
+            case P9_MSG_TLOPEN:
+            case P9_MSG_TLCREATE:
+            case P9_MSG_TGETATTR:
+            case P9_MSG_TREADDIR:
+            case P9_MSG_TFSYNC:
+            case P9_MSG_TMKDIR:
+            case P9_MSG_TUNLINKAT: {
+                if (body + 4 > limit) return null;
+                return new int[]{request.getInt(body)};
+            }
+            default:
+                return null;
+        }
+    }
 
+    private ByteBuffer acquireMessageBuffer(final int size) {
+        final Iterator<ByteBuffer> iterator = messageBufferPool.iterator();
+        while (iterator.hasNext()) {
+            final ByteBuffer buffer = iterator.next();
+            if (buffer.capacity() >= size) {
+                iterator.remove();
+                return buffer.clear().limit(size);
+            }
+        }
+        return allocateMessageBuffer(size).limit(size);
+    }
+
+    private void releaseMessageBuffer(final ByteBuffer buffer) {
+        if (messageBufferPool.size() < 2 * MAX_IN_FLIGHT_REQUESTS) {
+            messageBufferPool.add(buffer);
+        }
+    }
+
+    private void releaseMessageBuffers(final PendingRequest pending) {
+        releaseMessageBuffer(pending.request);
+        releaseMessageBuffer(pending.reply);
+    }
+
+    private void executeRequest(final ByteBuffer request, final ByteBuffer reply, @Nullable final PendingRequest pending) {
         request.getInt(); // size, unused
         final byte id = request.get();
         final short tag = request.getShort();
 
         try {
             switch (id) {
-                case P9_MSG_TVERSION -> version(chain, request, id, tag, reply);
-                case P9_MSG_TFLUSH -> flush(chain, id, tag);
-                case P9_MSG_TWALK -> walk(chain, request, reply, id, tag);
-                case P9_MSG_TREAD -> read(chain, request, id, tag, reply);
-                case P9_MSG_TWRITE -> write(chain, request, id, tag, reply);
-                case P9_MSG_TCLUNK -> clunk(chain, request, id, tag);
+                case P9_MSG_TVERSION -> version(request, id, tag, reply);
+                case P9_MSG_TFLUSH -> putReply(id, tag, reply); // Requests are processed in order, nothing to flush.
+                case P9_MSG_TWALK -> walk(request, id, tag, reply, pending);
+                case P9_MSG_TREAD -> read(request, id, tag, reply, pending);
+                case P9_MSG_TWRITE -> write(request, id, tag, reply);
+                case P9_MSG_TCLUNK -> clunk(request, id, tag, reply);
 
                 // P9_MSG_TREMOVE
 
-                case P9_MSG_TATTACH -> attach(chain, request, id, tag, reply);
-                case P9_MSG_TSTATFS -> statfs(chain, reply, id, tag);
-                case P9_MSG_TLOPEN -> open(chain, request, id, tag, reply);
-                case P9_MSG_TLCREATE -> create(chain, request, id, tag, reply);
+                case P9_MSG_TATTACH -> attach(request, id, tag, reply, pending);
+                case P9_MSG_TSTATFS -> statfs(id, tag, reply);
+                case P9_MSG_TLOPEN -> open(request, id, tag, reply);
+                case P9_MSG_TLCREATE -> create(request, id, tag, reply);
 
 
                 // P9_MSG_TSYMLINK
@@ -290,112 +684,62 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
                 // P9_MSG_TRENAME
                 // P9_MSG_TREADLINK
 
-                case P9_MSG_TGETATTR -> getattr(chain, request, id, tag, reply);
+                case P9_MSG_TGETATTR -> getattr(request, id, tag, reply);
 
                 // P9_MSG_TSETATTR
                 // P9_MSG_TXATTRWALK
 
-                case P9_MSG_TREADDIR -> {
-                    // size[4] Treaddir tag[2] fid[4] offset[8] count[4]
-                    // size[4] Rreaddir tag[2] count[4] data[count]
-                    final int fid = request.getInt();
-                    final long offset = request.getLong();
-                    final int count = request.getInt();
-
-                    final FileSystemFile dir = getFile(fid);
-                    final Path path = dir.getPath();
-                    final List<DirectoryEntry> entries = dir.readdir(fileSystem);
-
-                    reply.putInt(0); // count, filled in later.
-                    final int dataStart = reply.position();
-                    for (int i = (int) offset; i < entries.size(); i++) {
-                        final DirectoryEntry entry = entries.get(i);
-                        final int length = 13 // qid[13]
-                            + 8 // offset[8]
-                            + 1 // type[1]
-                            + 2 // nname[2]
-                            + entry.name.length(); // name[nname]
-                        if (reply.position() - dataStart + length > count) {
-                            break;
-                        }
-
-                        final byte d_type = switch (entry.type) {
-                            case FILE -> DT_REG;
-                            case DIRECTORY -> DT_DIR;
-                            default -> DT_UNKNOWN;
-                        };
-
-                        // qid[13] offset[8] type[1] name[s]
-                        putQID(reply, getQID(path.resolve(entry.name)));
-                        reply.putLong(i + 1);
-                        reply.put(d_type);
-                        putString(reply, entry.name);
-                    }
-                    reply.putInt(0, reply.position() - dataStart);
-
-                    putReply(chain, id, tag, reply);
-                }
-                case P9_MSG_TFSYNC -> fsync(chain, request, id, tag);
+                case P9_MSG_TREADDIR -> readdir(request, id, tag, reply);
+                case P9_MSG_TFSYNC -> fsync(request, id, tag, reply);
 
 
                 // P9_MSG_TLOCK
                 // P9_MSG_TGETLOCK
                 // P9_MSG_TLINK
 
-                case P9_MSG_TMKDIR -> mkdir(chain, request, id, tag, reply);
-                case P9_MSG_TRENAMEAT -> renameat(chain, request, id, tag);
-                case P9_MSG_TUNLINKAT -> unlinkat(chain, request, id, tag);
+                case P9_MSG_TMKDIR -> mkdir(request, id, tag, reply);
+                case P9_MSG_TRENAMEAT -> renameat(request, id, tag, reply);
+                case P9_MSG_TUNLINKAT -> unlinkat(request, id, tag, reply);
                 default -> throw new UnsupportedOperationException();
             }
-        } catch (final MemoryAccessException e) {
-            throw e;
         } catch (final SecurityException e) {
-            lerror(chain, tag, LINUX_ERRNO_EPERM);
+            lerror(reply, tag, LINUX_ERRNO_EPERM);
         } catch (final NoSuchFileException e) {
-            lerror(chain, tag, LINUX_ERRNO_ENOENT);
+            lerror(reply, tag, LINUX_ERRNO_ENOENT);
         } catch (final FileAlreadyExistsException e) {
-            lerror(chain, tag, LINUX_ERRNO_EEXIST);
+            lerror(reply, tag, LINUX_ERRNO_EEXIST);
         } catch (final NotDirectoryException e) {
-            lerror(chain, tag, LINUX_ERRNO_ENOTDIR);
+            lerror(reply, tag, LINUX_ERRNO_ENOTDIR);
         } catch (final DirectoryNotEmptyException e) {
-            lerror(chain, tag, LINUX_ERRNO_ENOTEMPTY);
+            lerror(reply, tag, LINUX_ERRNO_ENOTEMPTY);
+        } catch (final NoSpaceLeftException e) {
+            lerror(reply, tag, LINUX_ERRNO_ENOSPC);
         } catch (final IOException e) {
-            lerror(chain, tag, LINUX_ERRNO_EIO);
+            lerror(reply, tag, LINUX_ERRNO_EIO);
         } catch (final UnsupportedOperationException e) {
-            lerror(chain, tag, LINUX_ERRNO_ENOTSUPP);
+            lerror(reply, tag, LINUX_ERRNO_ENOTSUPP);
         }
-
-        chain.use();
-
-        return processedBytes;
     }
 
-    private void version(final DescriptorChain chain, final ByteBuffer request, final byte id, final short tag, final ByteBuffer reply) throws IOException, VirtIODeviceException {
+    private void version(final ByteBuffer request, final byte id, final short tag, final ByteBuffer reply) throws IOException {
         // size[4] Tversion tag[2] msize[4] version[s]
         // size[4] Rversion tag[2] msize[4] version[s]
         final int msize = request.getInt();
         // offered version is ignored. We always reply with ours.
 
         // version(5): The server responds with its own maximum, msize, which must be less than or equal to the client's value.
-        reply.putInt(Math.min(msize, VIRTIO_9P_MAX_MESSAGE_SIZE));
+        messageSize = Math.max(VIRTIO_9P_MIN_MESSAGE_SIZE, Math.min(msize, VIRTIO_9P_MAX_MESSAGE_SIZE));
+        reply.putInt(messageSize);
         putString(reply, VIRTIO_9P_VERSION);
 
         // version(5): A successful version request initializes the connection. All outstanding I/O on the connection
         // is aborted; all active fids are freed (`clunked') automatically.
         closeFilesAndClearFIDs();
 
-        putReply(chain, id, tag, reply);
-    }
-
-    private void flush(final DescriptorChain chain, final byte id, final short tag) throws MemoryAccessException, VirtIODeviceException {
-        // size[4] Tflush tag[2] oldtag[2]
-        // size[4] Rflush tag[2]
-
-        // No-op.
-        putReply(chain, id, tag);
+        putReply(id, tag, reply);
     }
 
-    private void walk(final DescriptorChain chain, final ByteBuffer request, final ByteBuffer reply, final byte id, final short tag) throws VirtIODeviceException, IOException {
+    private void walk(final ByteBuffer request, final byte id, final short tag, final ByteBuffer reply, @Nullable final PendingRequest pending) throws IOException {
         // size[4] Twalk tag[2] fid[4] newfid[4] nwname[2] nwname*(wname[s])
         // size[4] Rwalk tag[2] nwqid[2] nwqid*(wqid[13])
 
@@ -409,8 +753,10 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
             throw new IOException();
         }
         // walk(5): if newfid is in use or otherwise illegal, an Rerror is returned.
-        if (files.containsKey(newfid)) {
-            throw new IOException();
+        synchronized (files) {
+            if (files.containsKey(newfid)) {
+                throw new IOException();
+            }
         }
 
         final QID[] qids = new QID[nwname];
@@ -447,7 +793,7 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
         // walk(5): If the full sequence of nwname elements is walked successfully,
         //          newfid will represent the file that results.
         if (i == nwname) {
-            establishFID(newfid, path);
+            establishFID(newfid, path, pending);
         }
 
         reply.putShort((short) i);
@@ -455,10 +801,10 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
             putQID(reply, qids[j]);
         }
 
-        putReply(chain, id, tag, reply);
+        putReply(id, tag, reply);
     }
 
-    private void read(final DescriptorChain chain, final ByteBuffer request, final byte id, final short tag, final ByteBuffer reply) throws IOException, VirtIODeviceException {
+    private void read(final ByteBuffer request, final byte id, final short tag, final ByteBuffer reply, @Nullable final PendingRequest pending) throws IOException {
         // size[4] Tread tag[2] fid[4] offset[8] count[4]
         // size[4] Rread tag[2] count[4] data[count]
         final int fid = request.getInt();
@@ -467,15 +813,27 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
 
         final FileSystemFile file = getFile(fid);
 
+        final int countPosition = reply.position();
         reply.putInt(0); // reserve, will be replaced below
-        reply.limit(reply.position() + count);
-        count = file.read(fileSystem, offset, reply);
-        reply.putInt(0, count);
+        reply.limit(reply.position() + Math.max(0, Math.min(count, reply.remaining())));
 
-        putReply(chain, id, tag, reply);
+        // Read straight into the reply, filling it as far as possible to keep round trips low.
+        final int dataPosition = reply.position();
+        while (reply.hasRemaining()) {
+            if (pending != null && pending.isCancelled) {
+                throw new CancellationException();
+            }
+            if (file.read(fileSystem, offset + (reply.position() - dataPosition), reply) <= 0) {
+                break;
+            }
+        }
+        count = reply.position() - dataPosition;
+        reply.putInt(countPosition, count);
+
+        putReply(id, tag, reply);
     }
 
-    private void write(final DescriptorChain chain, final ByteBuffer request, final byte id, final short tag, final ByteBuffer reply) throws IOException, VirtIODeviceException {
+    private void write(final ByteBuffer request, final byte id, final short tag, final ByteBuffer reply) throws IOException {
         // size[4] Twrite tag[2] fid[4] offset[8] count[4] data[count]
         // size[4] Rwrite tag[2] count[4]
         final int fid = request.getInt();
@@ -484,24 +842,34 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
 
         final FileSystemFile file = getFile(fid);
 
+        if (count < 0 || count > request.remaining()) {
+            throw new IOException();
+        }
+
         request.limit(request.position() + count);
-        count = file.write(fileSystem, offset, request);
+        final int dataPosition = request.position();
+        while (request.hasRemaining()) {
+            if (file.write(fileSystem, offset + (request.position() - dataPosition), request) <= 0) {
+                break;
+            }
+        }
+        count = request.position() - dataPosition;
         reply.putInt(count);
 
-        putReply(chain, id, tag, reply);
+        putReply(id, tag, reply);
     }
 
-    private void clunk(final DescriptorChain chain, final ByteBuffer request, final byte id, final short tag) throws IOException, VirtIODeviceException {
+    private void clunk(final ByteBuffer request, final byte id, final short tag, final ByteBuffer reply) throws IOException {
         // size[4] Tclunk tag[2] fid[4]
         // size[4] Rclunk tag[2]
         final int fid = request.getInt();
 
         clunk(fid);
 
-        putReply(chain, id, tag);
+        putReply(id, tag, reply);
     }
 
-    private void attach(final DescriptorChain chain, final ByteBuffer request, final byte id, final short tag, final ByteBuffer reply) throws IOException, VirtIODeviceException {
+    private void attach(final ByteBuffer request, final byte id, final short tag, final ByteBuffer reply, @Nullable final PendingRequest pending) throws IOException {
         // size[4] Tattach tag[2] fid[4] afid[4] uname[s] aname[s] n_uname[4]
         // size[4] Rattach tag[2] qid[13]
         final int fid = request.getInt();
@@ -512,13 +880,13 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
 
         // We don't do UIDs and all that. Just create the fid for the root of the file system and return QID for root.
 
-        final FileSystemFile file = establishFID(fid, fileSystem.getRoot());
+        final FileSystemFile file = establishFID(fid, fileSystem.getRoot(), pending);
 
         putQID(reply, getQID(file));
-        putReply(chain, id, tag, reply);
+        putReply(id, tag, reply);
     }
 
-    private void statfs(final DescriptorChain chain, final ByteBuffer reply, final byte id, final short tag) throws IOException, VirtIODeviceException {
+    private void statfs(final byte id, final short tag, final ByteBuffer reply) throws IOException {
         // size[4] Tstatfs tag[2] fid[4]
         // size[4] Rstatfs tag[2] type[4] bsize[4] blocks[8] bfree[8] bavail[8]
         //                        files[8] ffree[8] fsid[8] namelen[4]
@@ -534,10 +902,10 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
         reply.putLong(0); // fsid
         reply.putInt(stats.maxNameLength);
 
-        putReply(chain, id, tag, reply);
+        putReply(id, tag, reply);
     }
 
-    private void open(final DescriptorChain chain, final ByteBuffer request, final byte id, final short tag, final ByteBuffer reply) throws IOException, VirtIODeviceException {
+    private void open(final ByteBuffer request, final byte id, final short tag, final ByteBuffer reply) throws IOException {
         // size[4] Tlopen tag[2] fid[4] flags[4]
         // size[4] Rlopen tag[2] qid[13] iounit[4]
         final int fid = request.getInt();
@@ -553,11 +921,11 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
 
         putQID(reply, getQID(file));
         final int readWriteSumRequestResponseHeaderSize = 34;
-        reply.putInt(VIRTIO_9P_MAX_MESSAGE_SIZE - readWriteSumRequestResponseHeaderSize);
-        putReply(chain, id, tag, reply);
+        reply.putInt(messageSize - readWriteSumRequestResponseHeaderSize);
+        putReply(id, tag, reply);
     }
 
-    private void create(final DescriptorChain chain, final ByteBuffer request, final byte id, final short tag, final ByteBuffer reply) throws IOException, VirtIODeviceException {
+    private void create(final ByteBuffer request, final byte id, final short tag, final ByteBuffer reply) throws IOException {
         // size[4] Tlcreate tag[2] fid[4] name[s] flags[4] mode[4] gid[4]
         // size[4] Rlcreate tag[2] qid[13] iounit[4]
         final int fid = request.getInt();
@@ -577,11 +945,11 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
 
         putQID(reply, getQID(file));
         final int readWriteSumRequestResponseHeaderSize = 34;
-        reply.putInt(VIRTIO_9P_MAX_MESSAGE_SIZE - readWriteSumRequestResponseHeaderSize);
-        putReply(chain, id, tag, reply);
+        reply.putInt(messageSize - readWriteSumRequestResponseHeaderSize);
+        putReply(id, tag, reply);
     }
 
-    private void getattr(final DescriptorChain chain, final ByteBuffer request, final byte id, final short tag, final ByteBuffer reply) throws IOException, VirtIODeviceException {
+    private void getattr(final ByteBuffer request, final byte id, final short tag, final ByteBuffer reply) throws IOException {
         // size[4] Tgetattr tag[2] fid[4] request_mask[8]
         // size[4] Rgetattr tag[2] valid[8] qid[13] mode[4] uid[4] gid[4] nlink[8]
         //                  rdev[8] size[8] blksize[8] blocks[8]
@@ -652,20 +1020,66 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
         reply.putLong(0); // gen, reserved.
         reply.putLong(0); // data_version, reserved.
 
-        putReply(chain, id, tag, reply);
+        putReply(id, tag, reply);
+    }
+
+    private void readdir(final ByteBuffer request, final byte id, final short tag, final ByteBuffer reply) throws IOException {
+        // size[4] Treaddir tag[2] fid[4] offset[8] count[4]
+        // size[4] Rreaddir tag[2] count[4] data[count]
+        final int fid = request.getInt();
+        final long offset = request.getLong();
+        final int count = request.getInt();
+
+        final FileSystemFile dir = getFile(fid);
+        final Path path = dir.getPath();
+
+        final int countPosition = reply.position();
+        reply.putInt(0); // count, filled in later.
+        final int dataStart = reply.position();
+        dir.readdir(fileSystem, offset, (entry, cookie) -> {
+            final int length = 13 // qid[13]
+                + 8 // offset[8]
+                + 1 // type[1]
+                + 2 // nname[2]
+                + entry.name.length(); // name[nname]
+            if (reply.position() - dataStart + length > count || length > reply.remaining()) {
+                return false;
+            }
+
+            final QID qid = getQID(path, entry);
+            if (qid == null) {
+                return true; // Removed since the directory was listed, skip it.
+            }
+
+            final byte d_type = switch (entry.type) {
+                case FILE -> DT_REG;
+                case DIRECTORY -> DT_DIR;
+                default -> DT_UNKNOWN;
+            };
+
+            // qid[13] offset[8] type[1] name[s]
+            putQID(reply, qid);
+            reply.putLong(cookie);
+            reply.put(d_type);
+            putString(reply, entry.name);
+            return true;
+        });
+        reply.putInt(countPosition, reply.position() - dataStart);
+
+        putReply(id, tag, reply);
     }
 
-    private void fsync(final DescriptorChain chain, final ByteBuffer request, final byte id, final short tag) throws IOException, VirtIODeviceException {
+    private void fsync(final ByteBuffer request, final byte id, final short tag, final ByteBuffer reply) throws IOException {
         // size[4] Tfsync tag[2] fid[4]
         // size[4] Rfsync tag[2]
         final int fid = request.getInt();
 
         getFile(fid); // Validate, no-op other than that.
 
-        putReply(chain, id, tag);
+        putReply(id, tag, reply);
     }
 
-    private void mkdir(final DescriptorChain chain, final ByteBuffer request, final byte id, final short tag, final ByteBuffer reply) throws IOException, VirtIODeviceException {
+    private void mkdir(final ByteBuffer request, final byte id, final short tag, final ByteBuffer reply) throws IOException {
         // size[4] Tmkdir tag[2] dfid[4] name[s] mode[4] gid[4]
         // size[4] Rmkdir tag[2] qid[13]
         final int dfid = request.getInt();
@@ -680,10 +1094,10 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
         final QID qid = getQID(path);
 
         putQID(reply, qid);
-        putReply(chain, id, tag, reply);
+        putReply(id, tag, reply);
     }
 
-    private void renameat(final DescriptorChain chain, final ByteBuffer request, final byte id, final short tag) throws IOException, VirtIODeviceException {
+    private void renameat(final ByteBuffer request, final byte id, final short tag, final ByteBuffer reply) throws IOException {
         // size[4] Trenameat tag[2] olddirfid[4] oldname[s] newdirfid[4] newname[s]
         // size[4] Rrenameat tag[2]
         final int olddirfid = request.getInt();
@@ -697,10 +1111,10 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
         final Path newpath = newdir.getPath().resolve(newname);
         fileSystem.rename(oldpath, newpath);
 
-        putReply(chain, id, tag);
+        putReply(id, tag, reply);
     }
 
-    private void unlinkat(final DescriptorChain chain, final ByteBuffer request, final byte id, final short tag) throws IOException, VirtIODeviceException {
+    private void unlinkat(final ByteBuffer request, final byte id, final short tag, final ByteBuffer reply) throws IOException {
         // size[4] Tunlinkat tag[2] dirfd[4] name[s] flags[4]
         // size[4] Runlinkat tag[2]
         final int dirfd = request.getInt();
@@ -711,7 +1125,7 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
         final Path path = dir.getPath().resolve(name);
         fileSystem.unlink(path);
 
-        putReply(chain, id, tag);
+        putReply(id, tag, reply);
     }
 
     private static int convertFlags(final int flags) {
@@ -753,6 +1167,25 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
         return qid;
     }
 
+    @Nullable
+    private QID getQID(final Path directory, final DirectoryEntry entry) {
+        // Use what the directory listing already told us about the entry, to avoid querying each one again.
+        final Path path = directory.resolve(entry.name);
+        try {
+            if (entry.type == FileType.UNKNOWN) {
+                return getQID(path);
+            }
+
+            final QID qid = new QID();
+            qid.type = entry.type == FileType.DIRECTORY ? P9_QID_TYPE_DIR : P9_QID_TYPE_FILE;
+            qid.version = 0;
+            qid.path = entry.hasUniqueId ? entry.uniqueId : fileSystem.getUniqueId(path);
+            return qid;
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
     private String getString(final ByteBuffer buffer) {
         final int strlen = buffer.getShort() & 0xFFFF;
         final byte[] bytes = new byte[strlen];
@@ -772,47 +1205,58 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
         buffer.putLong(qid.path);
     }
 
-    private void lerror(final DescriptorChain chain, final short tag, final int error) throws MemoryAccessException, VirtIODeviceException {
-        putReply(chain, P9_MSG_TLERROR, tag, ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(error));
+    private void lerror(final ByteBuffer reply, final short tag, final int error) {
+        // Discard anything a failed request may have written to the reply already.
+        reply.clear().position(P9_HEADER_SIZE);
+        reply.putInt(error);
+        putReply(P9_MSG_TLERROR, tag, reply);
     }
 
-    private void putReply(final DescriptorChain chain, final byte messageId, final short tag) throws MemoryAccessException, VirtIODeviceException {
-        putReply(chain, messageId, tag, null);
+    private static void putReply(final byte messageId, final short tag, final ByteBuffer reply) {
+        // Replies are written after a reserved header, which we fill in now, so the reply can be copied to
+        // the descriptor chain in one go.
+        reply.flip();
+        reply.putInt(0, reply.limit());
+        reply.put(4, (byte) (messageId + 1)); // Reply message type is always message type + 1.
+        reply.putShort(5, tag);
     }
 
-    private void putReply(final DescriptorChain chain, final byte messageId, final short tag, @Nullable final ByteBuffer data) throws MemoryAccessException, VirtIODeviceException {
-        if (data != null) data.flip();
-        final int dataLength = data != null ? data.remaining() : 0;
-        final ByteBuffer message = ByteBuffer.allocate(4 + 1 + 2 + dataLength).order(ByteOrder.LITTLE_ENDIAN);
-        message.putInt(message.remaining());
-        message.put((byte) (messageId + 1)); // Reply message type is always message type + 1.
-        message.putShort(tag);
-        if (data != null) message.put(data);
-        message.flip();
-        chain.skip(chain.readableBytes());
-        chain.put(message);
+    private static ByteBuffer allocateMessageBuffer(final int size) {
+        final int capacity = Math.min(VIRTIO_9P_MAX_MESSAGE_SIZE, Integer.highestOneBit(Math.max(1, size - 1)) << 1);
+        return ByteBuffer.allocateDirect(Math.max(size, capacity)).order(ByteOrder.LITTLE_ENDIAN);
     }
 
-    private FileSystemFile establishFID(final int fid, final Path path) throws IOException {
-        if (files.containsKey(fid)) {
-            throw new IOException();
-        }
+    private FileSystemFile establishFID(final int fid, final Path path, @Nullable final PendingRequest pending) throws IOException {
+        synchronized (files) {
+            // Requests still running when the device was reset must not leak fids into the next session.
+            if (pending != null && pending.resetCount != resetCount) {
+                throw new CancellationException();
+            }
+            if (files.containsKey(fid)) {
+                throw new IOException();
+            }
 
-        final FileSystemFile reference = new FileSystemFile(fid, path);
-        files.put(fid, reference);
-        return reference;
+            final FileSystemFile reference = new FileSystemFile(fid, path);
+            files.put(fid, reference);
+            return reference;
+        }
     }
 
     private FileSystemFile getFile(final int fid) throws IOException {
-        if (files.containsKey(fid)) {
-            return files.get(fid);
-        } else {
-            throw new IOException();
+        synchronized (files) {
+            final FileSystemFile file = files.get(fid);
+            if (file == null) {
+                throw new IOException();
+            }
+            return file;
         }
     }
 
     private void clunk(final int fid) {
-        final FileSystemFile file = files.remove(fid);
+        final FileSystemFile file;
+        synchronized (files) {
+            file = files.remove(fid);
+        }
         if (file != null) {
             // Note: not mentioned in the specs that clunked files are closed, but for our
             // purposes (not necessarily trusting the code running in the VM) we definitely
@@ -822,10 +1266,51 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
     }
 
     private void closeFilesAndClearFIDs() {
-        for (final FileSystemFile file : files.values()) {
-            file.close();
+        synchronized (files) {
+            for (final FileSystemFile file : files.values()) {
+                file.close();
+            }
+            files.clear();
         }
-        files.clear();
+    }
+
+    private static final class PendingRequest {
+        public final DescriptorChain chain;
+        public final ByteBuffer request;
+        public final ByteBuffer reply;
+        public final int requestSize;
+        public final int replySize;
+        public final byte id;
+        public final short tag;
+        @Nullable public final int[] fids;
+        public final int resetCount;
+        public final List<PendingFlush> flushes = new ArrayList<>(0);
+
+        // Only accessed on the thread stepping the device.
+        public boolean isDispatched;
+        public boolean isAbandoned;
+
+        // Written by the thread running the request, read after it has been queued as completed.
+        public boolean isInterrupted;
+        @Nullable public Throwable failure;
+
+        public volatile boolean isCancelled;
+
+        public PendingRequest(final DescriptorChain chain, final ByteBuffer request, final ByteBuffer reply,
+                              final byte id, final short tag, @Nullable final int[] fids, final int resetCount) {
+            this.chain = chain;
+            this.request = request;
+            this.reply = reply;
+            this.requestSize = request.limit();
+            this.replySize = reply.limit();
+            this.id = id;
+            this.tag = tag;
+            this.fids = fids;
+            this.resetCount = resetCount;
+        }
+    }
+
+    private record PendingFlush(DescriptorChain chain, short tag) {
     }
 
     public static final class QID {
@@ -836,7 +1321,7 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
     }
 
     // Explicit non-generic type for serialization.
-    public static final class FileSystemFileMap extends Int2ObjectArrayMap<FileSystemFile> {
+    public static final class FileSystemFileMap extends Int2ObjectOpenHashMap<FileSystemFile> {
     }
 
     /**
@@ -922,8 +1407,8 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
             return getHandle(fileSystem).write(offset, buffer);
         }
 
-        public List<DirectoryEntry> readdir(final FileSystem fileSystem) throws IOException {
-            return getHandle(fileSystem).readdir();
+        public void readdir(final FileSystem fileSystem, final long cookie, final FileHandle.DirectoryEntryVisitor visitor) throws IOException {
+            getHandle(fileSystem).readdir(cookie, visitor);
         }
     }
 }
@@ -1,10 +1,15 @@
 package li.cil.sedna.device.virtio;
 
 import li.cil.ceres.api.Serialized;
+import li.cil.sedna.api.device.NetworkTap;
+import li.cil.sedna.api.device.RateLimiter;
 import li.cil.sedna.api.memory.MemoryAccessException;
 import li.cil.sedna.api.memory.MemoryMap;
 
 import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 
 public final class VirtIONetworkDevice extends AbstractVirtIODevice {
     private static final long VIRTIO_NET_F_CSUM = 1L << 0; // Device handles packets with partial checksum. This "checksum offload" is a common feature on modern network cards.
@@ -49,6 +54,7 @@ public final class VirtIONetworkDevice extends AbstractVirtIODevice {
     private static final byte VIRTIO_NET_CTRL_MAC = 1;
     private static final byte VIRTIO_NET_CTRL_VLAN = 2;
     private static final byte VIRTIO_NET_CTRL_ANNOUNCE = 3;
+    private static final byte VIRTIO_NET_CTRL_MQ = 4;
 
     private static final byte VIRTIO_NET_CTRL_RX_PROMISC = 0;
     private static final byte VIRTIO_NET_CTRL_RX_ALLMULTI = 1;
@@ -65,6 +71,9 @@ public final class VirtIONetworkDevice extends AbstractVirtIODevice {
 
     private static final byte VIRTIO_NET_CTRL_ANNOUNCE_ACK = 0;
 
+    private static final byte VIRTIO_NET_CTRL_MQ_VQ_PAIRS_SET = 0;
+    private static final int VIRTIO_NET_CTRL_MQ_VQ_PAIRS_MIN = 1;
+
     private static final byte VIRTIO_NET_OK = 0;
     private static final byte VIRTIO_NET_ERR = 1;
 
@@ -79,31 +88,92 @@ public final class VirtIONetworkDevice extends AbstractVirtIODevice {
     public static final int VIRTIO_NET_HDR_GSO_TCPV6 = 4;
     public static final int VIRTIO_NET_HDR_GSO_ECN = 0x80;
 
-    // struct virtio_net_hdr {
-    private static final int HEADER_SIZE =
-        1 + // u8 flags;
-            1 + // u8 gso_type;
-            2 + // le16 hdr_len;
-            2 + // le16 gso_size;
-            2 + // le16 csum_start;
-            2 + // le16 csum_offset;
-            2;  // le16 num_buffers;
-    // };
+    private static final int HEADER_SIZE = VirtIONetworkHeader.SIZE;
+
+    private static final int DEFAULT_MTU = 1500;
+    private static final int MIN_MTU = 68;
+    private static final int MAX_MTU = 0xFFFF;
+
+    // Ethernet header with VLAN tag plus maximum IP packet size, which is what TSO frames may grow to.
+    private static final int MAX_FRAME_SIZE = 18 + 0xFFFF;
 
+    private static final int FRAME_NONE = -1;
+    private static final int FRAME_DROPPED = 0;
+    private static final int FRAME_TRANSFERRED = 1;
+
+    // Queues are laid out as receiveq1, transmitq1, ..., receiveqN, transmitqN, controlq. When multiqueue
+    // is not negotiated, the control queue is always at index two.
     private static final int VIRTQ_RECEIVE = 0; // receiveq1
     private static final int VIRTQ_TRANSMIT = 1; // transmitq1
     private static final int VIRTQ_CONTROL = 2; // controlq
 
+    // Limited by the maximum number of queues a device may have, including the control queue.
+    private static final int MAX_QUEUE_PAIRS = 7;
+
     @Serialized private byte[] mac = new byte[6];
+    @Serialized private int activeQueuePairCount = 1;
+    private final int mtu;
+    private final QueuePair[] queuePairs;
+    private final ByteBuffer controlBuffer = ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN);
+    @Nullable private RateLimiter rateLimiter;
+    @Nullable private NetworkTap tap;
+    @Nullable private ByteBuffer frameBuffer;
+    private int nextTransmitQueuePair;
 
     public VirtIONetworkDevice(final MemoryMap memoryMap) {
+        this(memoryMap, DEFAULT_MTU);
+    }
+
+    /**
+     * Creates a new network device advertising the specified MTU to the guest.
+     * <p>
+     * MTUs larger than the default of 1500 bytes allow the guest to use jumbo frames.
+     *
+     * @param memoryMap the memory map the device lives in.
+     * @param mtu       the maximum transmission unit of the device.
+     */
+    public VirtIONetworkDevice(final MemoryMap memoryMap, final int mtu) {
+        this(memoryMap, mtu, 1);
+    }
+
+    /**
+     * Creates a new network device advertising the specified MTU and number of queue pairs to the guest.
+     * <p>
+     * With multiple queue pairs, guests with multiple harts can send and receive frames on multiple queues without
+     * contending for a single queue. Each queue pair can be serviced individually via the methods taking a queue
+     * pair index. Like all other methods of this device, these must not be called concurrently.
+     *
+     * @param memoryMap  the memory map the device lives in.
+     * @param mtu        the maximum transmission unit of the device.
+     * @param queuePairs the maximum number of receive and transmit queue pairs, at least one and at most seven.
+     */
+    public VirtIONetworkDevice(final MemoryMap memoryMap, final int mtu, final int queuePairs) {
         super(memoryMap, VirtIODeviceSpec
             .builder(VirtIODeviceType.VIRTIO_DEVICE_ID_NETWORK_CARD)
-            .features(VIRTIO_NET_F_MAC)
-            .configSpaceSize(6 + 2) // mac + status
-            .queueCount(2)
+            .features(VIRTIO_NET_F_MAC |
+                VIRTIO_NET_F_MTU |
+                VIRTIO_NET_F_MRG_RXBUF |
+                VIRTIO_NET_F_CSUM |
+                VIRTIO_NET_F_GUEST_CSUM |
+                VIRTIO_NET_F_HOST_TSO4 |
+                VIRTIO_NET_F_HOST_TSO6 |
+                VIRTIO_NET_F_HOST_ECN |
+                VIRTIO_NET_F_CTRL_VQ |
+                (queuePairs > 1 ? VIRTIO_NET_F_MQ : 0))
+            .configSpaceSize(6 + 2 + 2 + 2) // mac + status + max_virtqueue_pairs + mtu
+            .queueCount(getQueueCount(queuePairs))
             .build());
 
+        if (mtu < MIN_MTU || mtu > MAX_MTU) {
+            throw new IllegalArgumentException();
+        }
+
+        this.mtu = mtu;
+        this.queuePairs = new QueuePair[queuePairs];
+        for (int i = 0; i < queuePairs; i++) {
+            this.queuePairs[i] = new QueuePair(VIRTQ_RECEIVE + i * 2, VIRTQ_TRANSMIT + i * 2);
+        }
+
         // One of the OUI patterns safe for local use:
         //xE-xx-xx-xx-xx-xx
         mac[0] = (byte) 0x5E;
@@ -117,33 +187,174 @@ public final class VirtIONetworkDevice extends AbstractVirtIODevice {
         mac[5] = (byte) (hash & 0xFF);
     }
 
+    /**
+     * Sets the rate limiter used to throttle frames passing through this device.
+     * <p>
+     * The limit applies to frames in both directions. While the limit is exceeded, no frames are read from the
+     * transmit queue, and frames written to the device are dropped.
+     *
+     * @param rateLimiter the rate limiter to use, or {@code null} to disable rate limiting.
+     */
+    public void setRateLimiter(@Nullable final RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Sets the tap notified of all frames passing through this device, e.g. to capture them.
+     * <p>
+     * Frames sent by the guest are passed to the tap after offloads have been performed, unless they are read
+     * along with their headers.
+     *
+     * @param tap the tap to use, or {@code null} to disable tapping.
+     */
+    public void setTap(@Nullable final NetworkTap tap) {
+        this.tap = tap;
+    }
+
+    /**
+     * The number of queue pairs currently used by the guest.
+     * <p>
+     * This starts out as one and may be raised by the guest up to the number of queue pairs this device
+     * was created with.
+     *
+     * @return the number of active queue pairs.
+     */
+    public int getQueuePairCount() {
+        return activeQueuePairCount;
+    }
+
     @Nullable
     public byte[] readEthernetFrame() {
         if (hasDeviceFailed()) {
             return null;
         }
 
+        final ByteBuffer frame = getFrameBuffer();
         try {
-            final DescriptorChain transmit = validateReadOnlyDescriptorChain(VIRTQ_TRANSMIT, null);
-            if (transmit == null) {
-                return null;
+            final int queuePairCount = activeQueuePairCount;
+            for (int i = 0; i < queuePairCount; i++) {
+                final QueuePair queuePair = queuePairs[nextTransmitQueuePair(queuePairCount)];
+
+                int result;
+                do {
+                    result = queuePair.readFrame(frame, null);
+                } while (result == FRAME_DROPPED);
+
+                if (result == FRAME_TRANSFERRED) {
+                    final byte[] packet = new byte[frame.remaining()];
+                    frame.get(packet);
+                    return packet;
+                }
             }
+        } catch (final VirtIODeviceException | MemoryAccessException e) {
+            error();
+        }
 
-            // We completely ignore the header. We don't have any flags that would require us checking it.
-            for (int i = 0; i < HEADER_SIZE; i++) {
-                transmit.get();
-            }
+        return null;
+    }
 
-            final byte[] packet = new byte[transmit.readableBytes()];
-            transmit.get(packet, 0, packet.length);
+    /**
+     * Reads up to {@code count} frames sent by the guest into the specified buffers.
+     * <p>
+     * Each buffer used is cleared, filled with a single frame and flipped, so that the frame can be read from it
+     * directly. Buffers are filled in order, starting at {@code offset}. Frames that do not fit into the buffer
+     * they would be read into are dropped, see {@link #getDroppedFrameCount()}.
+     * <p>
+     * Offloads requested by the guest are performed before frames are returned, i.e. checksums are filled in
+     * and large TCP segments are split into frames of regular size.
+     * <p>
+     * Frames are read from all active queue pairs.
+     * <p>
+     * This does not allocate, so it is suited to be called with pooled buffers at high packet rates.
+     *
+     * @param frames the buffers to read frames into.
+     * @param offset the index of the first buffer to use.
+     * @param count  the maximum number of frames to read.
+     * @return the number of frames read, i.e. the number of buffers filled.
+     */
+    public int readEthernetFrames(final ByteBuffer[] frames, final int offset, final int count) {
+        return readEthernetFrames(frames, null, offset, count);
+    }
 
-            transmit.use();
+    /**
+     * Reads up to {@code count} frames sent by the guest into the specified buffers, along with their headers.
+     * <p>
+     * This behaves like {@link #readEthernetFrames(ByteBuffer[], int, int)}, except that offloads are not
+     * performed, but left to the caller. The header each frame was sent with is stored in the header at the
+     * same index as the buffer the frame was read into. In particular, frames may be up to 64 KiB in size
+     * when the guest makes use of TCP segmentation offload.
+     *
+     * @param frames  the buffers to read frames into.
+     * @param headers the headers to store the header of each frame in.
+     * @param offset  the index of the first buffer and header to use.
+     * @param count   the maximum number of frames to read.
+     * @return the number of frames read, i.e. the number of buffers filled.
+     */
+    public int readEthernetFrames(final ByteBuffer[] frames, @Nullable final VirtIONetworkHeader[] headers, final int offset, final int count) {
+        validateBatch(frames, headers, offset, count);
+
+        int frameCount = 0;
+        final int queuePairCount = activeQueuePairCount;
+        for (int i = 0; i < queuePairCount && frameCount < count; i++) {
+            frameCount += readEthernetFrames(nextTransmitQueuePair(queuePairCount), frames, headers, offset + frameCount, count - frameCount);
+        }
+        return frameCount;
+    }
+
+    /**
+     * Reads up to {@code count} frames sent by the guest using the specified queue pair.
+     * <p>
+     * This behaves like {@link #readEthernetFrames(ByteBuffer[], int, int)}, but only reads from a single queue
+     * pair.
+     *
+     * @param queuePair the index of the queue pair to read from.
+     * @param frames    the buffers to read frames into.
+     * @param offset    the index of the first buffer to use.
+     * @param count     the maximum number of frames to read.
+     * @return the number of frames read, i.e. the number of buffers filled.
+     */
+    public int readEthernetFrames(final int queuePair, final ByteBuffer[] frames, final int offset, final int count) {
+        return readEthernetFrames(queuePair, frames, null, offset, count);
+    }
+
+    /**
+     * Reads up to {@code count} frames sent by the guest using the specified queue pair, along with their headers.
+     * <p>
+     * This behaves like {@link #readEthernetFrames(ByteBuffer[], VirtIONetworkHeader[], int, int)}, but only
+     * reads from a single queue pair.
+     *
+     * @param queuePair the index of the queue pair to read from.
+     * @param frames    the buffers to read frames into.
+     * @param headers   the headers to store the header of each frame in.
+     * @param offset    the index of the first buffer and header to use.
+     * @param count     the maximum number of frames to read.
+     * @return the number of frames read, i.e. the number of buffers filled.
+     */
+    public int readEthernetFrames(final int queuePair, final ByteBuffer[] frames, @Nullable final VirtIONetworkHeader[] headers, final int offset, final int count) {
+        validateBatch(frames, headers, offset, count);
+
+        if (hasDeviceFailed() || queuePair >= activeQueuePairCount) {
+            return 0;
+        }
 
-            return packet;
+        final QueuePair pair = queuePairs[queuePair];
+        int frameCount = 0;
+        try {
+            while (frameCount < count) {
+                final int index = offset + frameCount;
+                final int result = pair.readFrame(frames[index], headers != null ? headers[index] : null);
+                if (result == FRAME_NONE) {
+                    break;
+                }
+                if (result == FRAME_TRANSFERRED) {
+                    frameCount++;
+                }
+            }
         } catch (final VirtIODeviceException | MemoryAccessException e) {
             error();
-            return null;
         }
+
+        return frameCount;
     }
 
     public void writeEthernetFrame(final byte[] packet) {
@@ -151,36 +362,598 @@ public final class VirtIONetworkDevice extends AbstractVirtIODevice {
             return;
         }
 
+        final ByteBuffer frame = ByteBuffer.wrap(packet);
+        final QueuePair queuePair = queuePairs[getReceiveQueuePair(frame)];
         try {
-            final DescriptorChain receive = validateWriteOnlyDescriptorChain(VIRTQ_RECEIVE, null);
-            if (receive == null) {
-                return;
+            if (queuePair.writeFrame(frame, null) == FRAME_NONE) {
+                queuePair.droppedFrameCount++;
             }
+        } catch (final VirtIODeviceException | MemoryAccessException e) {
+            error();
+        }
+    }
+
+    /**
+     * Writes up to {@code count} frames from the specified buffers to the guest.
+     * <p>
+     * Each buffer is expected to contain a single frame between its position and limit. The position of buffers
+     * written is advanced to their limit. Frames larger than the receive buffer provided by the guest are dropped,
+     * see {@link #getDroppedFrameCount()}.
+     * <p>
+     * When fewer than {@code count} frames are written, the guest has run out of receive buffers, or the rate
+     * limit has been exceeded. The remaining frames should then be retried at a later time, or dropped.
+     * <p>
+     * When multiple queue pairs are active, frames are distributed across them based on their IP addresses
+     * and ports, so that frames of the same flow always use the same queue.
+     * <p>
+     * This does not allocate, so it is suited to be called with pooled buffers at high packet rates.
+     *
+     * @param frames the buffers containing the frames to write.
+     * @param offset the index of the first buffer to write.
+     * @param count  the maximum number of frames to write.
+     * @return the number of buffers consumed.
+     */
+    public int writeEthernetFrames(final ByteBuffer[] frames, final int offset, final int count) {
+        return writeEthernetFrames(frames, null, offset, count);
+    }
+
+    /**
+     * Writes up to {@code count} frames from the specified buffers to the guest, along with headers.
+     * <p>
+     * This behaves like {@link #writeEthernetFrames(ByteBuffer[], int, int)}, except that each frame is passed
+     * to the guest with the header at the same index. This allows marking frames with
+     * {@link #VIRTIO_NET_HDR_F_DATA_VALID}, so the guest skips verifying their checksum, or to leave computing
+     * the checksum to the guest using {@link #VIRTIO_NET_HDR_F_NEEDS_CSUM}.
+     * <p>
+     * If the guest did not negotiate checksum offloading, requested checksums are computed in place in the
+     * frame buffer before it is passed on. Segmentation offload towards the guest is not supported.
+     *
+     * @param frames  the buffers containing the frames to write.
+     * @param headers the headers to pass to the guest with each frame.
+     * @param offset  the index of the first buffer and header to write.
+     * @param count   the maximum number of frames to write.
+     * @return the number of buffers consumed.
+     * @throws IllegalArgumentException if a header requests segmentation offload.
+     */
+    public int writeEthernetFrames(final ByteBuffer[] frames, @Nullable final VirtIONetworkHeader[] headers, final int offset, final int count) {
+        validateBatch(frames, headers, offset, count);
+
+        if (hasDeviceFailed()) {
+            return 0;
+        }
 
-            // We don't use any flags that require us to provide a header, so just write an empty one.
-            for (int i = 0; i < HEADER_SIZE; i++) {
-                receive.put((byte) 0);
+        int frameCount = 0;
+        try {
+            while (frameCount < count) {
+                final int index = offset + frameCount;
+                final ByteBuffer frame = frames[index];
+                final QueuePair queuePair = queuePairs[getReceiveQueuePair(frame)];
+                if (queuePair.writeFrame(frame, headers != null ? headers[index] : null) == FRAME_NONE) {
+                    break;
+                }
+                frameCount++;
             }
+        } catch (final VirtIODeviceException | MemoryAccessException e) {
+            error();
+        }
 
-            receive.put(packet, 0, packet.length);
-            receive.use();
+        return frameCount;
+    }
+
+    /**
+     * Writes up to {@code count} frames to the guest using the specified queue pair.
+     * <p>
+     * This behaves like {@link #writeEthernetFrames(ByteBuffer[], int, int)}, but only writes to a single queue
+     * pair.
+     *
+     * @param queuePair the index of the queue pair to write to.
+     * @param frames    the buffers containing the frames to write.
+     * @param offset    the index of the first buffer to write.
+     * @param count     the maximum number of frames to write.
+     * @return the number of buffers consumed.
+     */
+    public int writeEthernetFrames(final int queuePair, final ByteBuffer[] frames, final int offset, final int count) {
+        return writeEthernetFrames(queuePair, frames, null, offset, count);
+    }
+
+    /**
+     * Writes up to {@code count} frames to the guest using the specified queue pair, along with headers.
+     * <p>
+     * This behaves like {@link #writeEthernetFrames(ByteBuffer[], VirtIONetworkHeader[], int, int)}, but only
+     * writes to a single queue pair.
+     *
+     * @param queuePair the index of the queue pair to write to.
+     * @param frames    the buffers containing the frames to write.
+     * @param headers   the headers to pass to the guest with each frame.
+     * @param offset    the index of the first buffer and header to write.
+     * @param count     the maximum number of frames to write.
+     * @return the number of buffers consumed.
+     * @throws IllegalArgumentException if a header requests segmentation offload.
+     */
+    public int writeEthernetFrames(final int queuePair, final ByteBuffer[] frames, @Nullable final VirtIONetworkHeader[] headers, final int offset, final int count) {
+        validateBatch(frames, headers, offset, count);
+
+        if (hasDeviceFailed() || queuePair >= activeQueuePairCount) {
+            return 0;
+        }
+
+        final QueuePair pair = queuePairs[queuePair];
+        int frameCount = 0;
+        try {
+            while (frameCount < count) {
+                final int index = offset + frameCount;
+                if (pair.writeFrame(frames[index], headers != null ? headers[index] : null) == FRAME_NONE) {
+                    break;
+                }
+                frameCount++;
+            }
         } catch (final VirtIODeviceException | MemoryAccessException e) {
             error();
         }
+
+        return frameCount;
+    }
+
+    /**
+     * The number of frames dropped by this device.
+     * <p>
+     * Frames are dropped when they do not fit into the buffer they are copied into, when they are malformed,
+     * or when a single frame written using {@link #writeEthernetFrame(byte[])} cannot be delivered.
+     *
+     * @return the number of dropped frames.
+     */
+    public long getDroppedFrameCount() {
+        long count = 0;
+        for (final QueuePair queuePair : queuePairs) {
+            count += queuePair.droppedFrameCount;
+        }
+        return count;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        activeQueuePairCount = 1;
+        nextTransmitQueuePair = 0;
+        for (final QueuePair queuePair : queuePairs) {
+            queuePair.reset();
+        }
     }
 
     @Override
     protected void initializeConfig() {
         setConfigValue(VIRTIO_NETWORK_CFG_MAC_OFFSET, mac);
+        setConfigValue(VIRTIO_NETWORK_CFG_MAX_VIRTQUEUE_PAIRS_OFFSET, (short) queuePairs.length);
+        setConfigValue(VIRTIO_NETWORK_CFG_MTU_OFFSET, (short) mtu);
     }
 
     @Override
     protected void handleFeaturesNegotiated() {
-        setQueueNotifications(VIRTQ_RECEIVE, false);
-        setQueueNotifications(VIRTQ_TRANSMIT, false);
+        // Without multiqueue only the first pair is in use, and queue two is the control queue, so it must
+        // keep its notifications even though it is the receive queue of the second pair with multiqueue.
+        final int usedQueuePairCount = (getNegotiatedFeatures() & VIRTIO_NET_F_MQ) != 0 ? queuePairs.length : 1;
+        for (int i = 0; i < usedQueuePairCount; i++) {
+            setQueueNotifications(queuePairs[i].receiveQueue, false);
+            setQueueNotifications(queuePairs[i].transmitQueue, false);
+        }
+    }
+
+    @Override
+    protected void handleQueueNotification(final int queueIndex) throws VirtIODeviceException, MemoryAccessException {
+        if (queueIndex == getControlQueueIndex()) {
+            processControlQueue();
+        }
+    }
+
+    private static int getQueueCount(final int queuePairs) {
+        // Validated here, since the queues are already set up by the super constructor.
+        if (queuePairs < 1 || queuePairs > MAX_QUEUE_PAIRS) {
+            throw new IllegalArgumentException();
+        }
+        return queuePairs * 2 + 1;
+    }
+
+    private int getControlQueueIndex() {
+        if ((getNegotiatedFeatures() & VIRTIO_NET_F_MQ) != 0) {
+            return queuePairs.length * 2;
+        } else {
+            return VIRTQ_CONTROL;
+        }
+    }
+
+    private void processControlQueue() throws VirtIODeviceException, MemoryAccessException {
+        final VirtqueueIterator queue = getQueueIterator(getControlQueueIndex());
+        if (queue == null) {
+            return;
+        }
+
+        while (queue.hasNext()) {
+            final DescriptorChain chain = queue.next();
+
+            // struct virtio_net_ctrl {
+            //     u8 class;
+            //     u8 command;
+            //     u8 command-specific-data[];
+            //     u8 ack;
+            // };
+            if (chain.readableBytes() < 2 || chain.writableBytes() < 1) {
+                throw new VirtIODeviceException();
+            }
+
+            final byte commandClass = chain.get();
+            final byte command = chain.get();
+            final byte ack = switch (commandClass) {
+                case VIRTIO_NET_CTRL_MQ -> handleMultiqueueCommand(chain, command);
+                default -> VIRTIO_NET_ERR;
+            };
+
+            chain.skip(chain.readableBytes());
+            chain.put(ack);
+            chain.use();
+        }
+    }
+
+    private byte handleMultiqueueCommand(final DescriptorChain chain, final byte command) throws VirtIODeviceException, MemoryAccessException {
+        if ((getNegotiatedFeatures() & VIRTIO_NET_F_MQ) == 0) {
+            return VIRTIO_NET_ERR;
+        }
+
+        if (command != VIRTIO_NET_CTRL_MQ_VQ_PAIRS_SET || chain.readableBytes() < 2) {
+            return VIRTIO_NET_ERR;
+        }
+
+        // struct virtio_net_ctrl_mq {
+        //     le16 virtqueue_pairs;
+        // };
+        controlBuffer.clear();
+        chain.get(controlBuffer);
+        controlBuffer.flip();
+        final int count = controlBuffer.getShort() & 0xFFFF;
+        if (count < VIRTIO_NET_CTRL_MQ_VQ_PAIRS_MIN || count > queuePairs.length) {
+            return VIRTIO_NET_ERR;
+        }
+
+        activeQueuePairCount = count;
+        return VIRTIO_NET_OK;
+    }
+
+    private int nextTransmitQueuePair(final int queuePairCount) {
+        final int index = nextTransmitQueuePair % queuePairCount;
+        nextTransmitQueuePair = index + 1;
+        return index;
+    }
+
+    private int getReceiveQueuePair(final ByteBuffer frame) {
+        final int queuePairCount = activeQueuePairCount;
+        if (queuePairCount <= 1) {
+            return 0;
+        }
+
+        return Math.floorMod(getFlowHash(frame), queuePairCount);
+    }
+
+    private static int getFlowHash(final ByteBuffer frame) {
+        final int base = frame.position();
+        final int length = frame.remaining();
+        if (length < 14) {
+            return 0;
+        }
+
+        int ipOffset = 14;
+        int etherType = frame.getShort(base + 12) & 0xFFFF;
+        if ((etherType == 0x8100 || etherType == 0x88A8) && length >= 18) {
+            etherType = frame.getShort(base + 16) & 0xFFFF;
+            ipOffset = 18;
+        }
+
+        final int addressOffset, addressLength, protocol, portOffset;
+        if (etherType == 0x0800 && length >= ipOffset + 20) {
+            addressOffset = ipOffset + 12;
+            addressLength = 8;
+            protocol = frame.get(base + ipOffset + 9) & 0xFF;
+            portOffset = ipOffset + (frame.get(base + ipOffset) & 0xF) * 4;
+        } else if (etherType == 0x86DD && length >= ipOffset + 40) {
+            addressOffset = ipOffset + 8;
+            addressLength = 32;
+            protocol = frame.get(base + ipOffset + 6) & 0xFF;
+            portOffset = ipOffset + 40;
+        } else {
+            return 0;
+        }
+
+        int hash = protocol;
+        for (int i = 0; i < addressLength; i += 4) {
+            hash = hash * 31 + frame.getInt(base + addressOffset + i);
+        }
+        final boolean hasPorts = protocol == 6 /* TCP */ || protocol == 17 /* UDP */;
+        if (hasPorts && length >= portOffset + 4) {
+            hash = hash * 31 + frame.getInt(base + portOffset);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static void validateBatch(final ByteBuffer[] frames, @Nullable final VirtIONetworkHeader[] headers, final int offset, final int count) {
+        if (offset < 0 || count < 0 || offset + count > frames.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (headers != null && offset + count > headers.length) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    private ByteBuffer getFrameBuffer() {
+        if (frameBuffer == null) {
+            frameBuffer = ByteBuffer.allocate(MAX_FRAME_SIZE);
+        }
+        return frameBuffer;
     }
 
     private boolean hasDeviceFailed() {
         return (getStatus() & VIRTIO_STATUS_FAILED) != 0;
     }
+
+    /**
+     * State of a single pair of receive and transmit queues.
+     * <p>
+     * Queue pairs still share the interrupt state of the device, the rate limiter and the tap, so they must not
+     * be serviced concurrently.
+     */
+    private final class QueuePair {
+        public final int receiveQueue;
+        public final int transmitQueue;
+
+        private final ArrayList<DescriptorChain> receiveChains = new ArrayList<>();
+        private final ByteBuffer transmitHeaderBuffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private final ByteBuffer receiveHeaderBuffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private final VirtIONetworkHeader transmitHeader = new VirtIONetworkHeader();
+        private final VirtIONetworkHeader receiveHeader = new VirtIONetworkHeader();
+        @Nullable private ByteBuffer segmentationBuffer;
+        private int pendingSegmentIndex, pendingSegmentCount;
+        public long droppedFrameCount;
+
+        public QueuePair(final int receiveQueue, final int transmitQueue) {
+            this.receiveQueue = receiveQueue;
+            this.transmitQueue = transmitQueue;
+        }
+
+        public void reset() {
+            pendingSegmentIndex = 0;
+            pendingSegmentCount = 0;
+        }
+
+        public int readFrame(final ByteBuffer frame, @Nullable final VirtIONetworkHeader header) throws VirtIODeviceException, MemoryAccessException {
+            if (pendingSegmentIndex < pendingSegmentCount) {
+                return readPendingSegment(frame, header);
+            }
+
+            final RateLimiter rateLimiter = VirtIONetworkDevice.this.rateLimiter;
+            if (rateLimiter != null && !rateLimiter.hasCapacity()) {
+                return FRAME_NONE;
+            }
+
+            final DescriptorChain transmit = validateReadOnlyDescriptorChain(transmitQueue, null);
+            if (transmit == null) {
+                return FRAME_NONE;
+            }
+
+            if (transmit.readableBytes() < HEADER_SIZE) {
+                throw new VirtIODeviceException();
+            }
+
+            transmitHeaderBuffer.clear();
+            transmit.get(transmitHeaderBuffer);
+            transmitHeaderBuffer.flip();
+            transmitHeader.read(transmitHeaderBuffer);
+
+            // Callers not handling offloads themselves get the frame split up into regular sized frames.
+            if (header == null && transmitHeader.isSegmented()) {
+                final ByteBuffer segmentationBuffer = getSegmentationBuffer();
+                if (!readPayload(transmit, segmentationBuffer)) {
+                    return FRAME_DROPPED;
+                }
+
+                pendingSegmentIndex = 0;
+                pendingSegmentCount = VirtIONetworkOffloads.getSegmentCount(segmentationBuffer, transmitHeader);
+                if (pendingSegmentCount == 0) {
+                    droppedFrameCount++;
+                    return FRAME_DROPPED;
+                }
+
+                return readPendingSegment(frame, null);
+            }
+
+            if (!readPayload(transmit, frame)) {
+                return FRAME_DROPPED;
+            }
+
+            if (header != null) {
+                header.set(transmitHeader);
+            } else if (!VirtIONetworkOffloads.completeChecksum(frame, transmitHeader)) {
+                droppedFrameCount++;
+                return FRAME_DROPPED;
+            }
+
+            consumeRateLimit(frame.remaining());
+            tap(frame, frame.position(), frame.remaining(), true);
+            return FRAME_TRANSFERRED;
+        }
+
+        private boolean readPayload(final DescriptorChain transmit, final ByteBuffer frame) throws VirtIODeviceException, MemoryAccessException {
+            final int length = transmit.readableBytes();
+            frame.clear();
+            if (length > frame.capacity()) {
+                transmit.skip(length);
+                transmit.use();
+                droppedFrameCount++;
+                return false;
+            }
+
+            frame.limit(length);
+            transmit.get(frame);
+            frame.flip();
+            transmit.use();
+            return true;
+        }
+
+        private int readPendingSegment(final ByteBuffer frame, @Nullable final VirtIONetworkHeader header) {
+            final ByteBuffer segmentationBuffer = getSegmentationBuffer();
+            final int index = pendingSegmentIndex++;
+
+            frame.clear();
+            if (VirtIONetworkOffloads.getSegmentLength(segmentationBuffer, transmitHeader, index) > frame.capacity()) {
+                droppedFrameCount++;
+                return FRAME_DROPPED;
+            }
+
+            VirtIONetworkOffloads.writeSegment(segmentationBuffer, transmitHeader, index, frame);
+            frame.flip();
+
+            if (header != null) {
+                header.clear();
+            }
+
+            consumeRateLimit(frame.remaining());
+            tap(frame, frame.position(), frame.remaining(), true);
+            return FRAME_TRANSFERRED;
+        }
+
+        public int writeFrame(final ByteBuffer frame, @Nullable final VirtIONetworkHeader header) throws VirtIODeviceException, MemoryAccessException {
+            if (header != null && header.isSegmented()) {
+                throw new IllegalArgumentException();
+            }
+
+            final RateLimiter rateLimiter = VirtIONetworkDevice.this.rateLimiter;
+            if (rateLimiter != null && !rateLimiter.hasCapacity()) {
+                return FRAME_NONE;
+            }
+
+            final int offset = frame.position();
+            final int length = frame.remaining();
+            if (length > MAX_FRAME_SIZE) {
+                frame.position(frame.limit());
+                droppedFrameCount++;
+                return FRAME_DROPPED;
+            }
+
+            final int result;
+            if ((getNegotiatedFeatures() & VIRTIO_NET_F_MRG_RXBUF) != 0) {
+                result = writeFrameMergeable(frame, header);
+            } else {
+                result = writeFrameSingle(frame, header);
+            }
+
+            if (result == FRAME_TRANSFERRED) {
+                consumeRateLimit(length);
+                tap(frame, offset, length, false);
+            }
+
+            return result;
+        }
+
+        private int writeFrameSingle(final ByteBuffer frame, @Nullable final VirtIONetworkHeader header) throws VirtIODeviceException, MemoryAccessException {
+            final DescriptorChain receive = validateWriteOnlyDescriptorChain(receiveQueue, null);
+            if (receive == null) {
+                return FRAME_NONE;
+            }
+
+            if (receive.writableBytes() < HEADER_SIZE + frame.remaining()) {
+                frame.position(frame.limit());
+                receive.use();
+                droppedFrameCount++;
+                return FRAME_DROPPED;
+            }
+
+            receive.put(prepareReceiveHeader(frame, header, 1));
+            receive.put(frame);
+            receive.use();
+
+            return FRAME_TRANSFERRED;
+        }
+
+        private int writeFrameMergeable(final ByteBuffer frame, @Nullable final VirtIONetworkHeader header) throws VirtIODeviceException, MemoryAccessException {
+            final VirtqueueIterator queue = getQueueIterator(receiveQueue);
+            if (queue == null) {
+                return FRAME_NONE;
+            }
+
+            // Collect enough buffers to hold the frame. Only commit to using them once we know the
+            // frame fits, otherwise leave them to be picked up again when retrying later.
+            final int requiredBytes = HEADER_SIZE + frame.remaining();
+            int availableBytes = 0;
+            try {
+                while (availableBytes < requiredBytes && queue.hasNext()) {
+                    final DescriptorChain chain = queue.next();
+                    if (chain.readableBytes() > 0) {
+                        throw new VirtIODeviceException();
+                    }
+                    receiveChains.add(chain);
+                    availableBytes += chain.writableBytes();
+                }
+
+                if (availableBytes < requiredBytes) {
+                    queue.rewind(receiveChains.size());
+                    return FRAME_NONE;
+                }
+
+                final DescriptorChain first = receiveChains.get(0);
+                if (first.writableBytes() < HEADER_SIZE) {
+                    throw new VirtIODeviceException();
+                }
+                first.put(prepareReceiveHeader(frame, header, receiveChains.size()));
+
+                final int limit = frame.limit();
+                for (final DescriptorChain chain : receiveChains) {
+                    frame.limit(frame.position() + Math.min(chain.writableBytes(), limit - frame.position()));
+                    chain.put(frame);
+                    frame.limit(limit);
+                }
+
+                for (final DescriptorChain chain : receiveChains) {
+                    chain.use();
+                }
+            } finally {
+                receiveChains.clear();
+            }
+
+            return FRAME_TRANSFERRED;
+        }
+
+        // Only charged for frames actually delivered, dropped frames do not count towards the limit.
+        private void consumeRateLimit(final int length) {
+            final RateLimiter rateLimiter = VirtIONetworkDevice.this.rateLimiter;
+            if (rateLimiter != null) {
+                rateLimiter.consume(length);
+            }
+        }
+
+        private void tap(final ByteBuffer frame, final int offset, final int length, final boolean isTransmit) {
+            final NetworkTap tap = VirtIONetworkDevice.this.tap;
+            if (tap != null) {
+                tap.capture(frame, offset, length, isTransmit);
+            }
+        }
+
+        private ByteBuffer prepareReceiveHeader(final ByteBuffer frame, @Nullable final VirtIONetworkHeader header, final int bufferCount) {
+            receiveHeader.clear();
+            if (header != null) {
+                receiveHeader.set(header);
+                if ((getNegotiatedFeatures() & VIRTIO_NET_F_GUEST_CSUM) == 0) {
+                    VirtIONetworkOffloads.completeChecksum(frame, receiveHeader);
+                    receiveHeader.flags &= ~(VIRTIO_NET_HDR_F_NEEDS_CSUM | VIRTIO_NET_HDR_F_DATA_VALID);
+                }
+            }
+
+            receiveHeaderBuffer.clear();
+            receiveHeader.write(receiveHeaderBuffer, bufferCount);
+            receiveHeaderBuffer.flip();
+            return receiveHeaderBuffer;
+        }
+
+        private ByteBuffer getSegmentationBuffer() {
+            if (segmentationBuffer == null) {
+                segmentationBuffer = ByteBuffer.allocate(MAX_FRAME_SIZE);
+            }
+            return segmentationBuffer;
+        }
+    }
 }
@@ -0,0 +1,108 @@
+package li.cil.sedna.device.virtio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The offload related parts of a {@code virtio_net_hdr}, sent along with each frame.
+ * <p>
+ * Flags and GSO types use the {@code VIRTIO_NET_HDR_*} constants declared in {@link VirtIONetworkDevice}.
+ */
+public final class VirtIONetworkHeader {
+    // struct virtio_net_hdr {
+    //     u8 flags;
+    //     u8 gso_type;
+    //     le16 hdr_len;
+    //     le16 gso_size;
+    //     le16 csum_start;
+    //     le16 csum_offset;
+    //     le16 num_buffers;
+    // };
+    public static final int SIZE = 12;
+
+    /**
+     * Combination of {@code VIRTIO_NET_HDR_F_*} flags.
+     */
+    public int flags;
+    /**
+     * One of the {@code VIRTIO_NET_HDR_GSO_*} types, optionally combined with
+     * {@link VirtIONetworkDevice#VIRTIO_NET_HDR_GSO_ECN}.
+     */
+    public int gsoType;
+    /**
+     * The length of all headers preceding the payload of a segmented frame. This is a hint only.
+     */
+    public int headerLength;
+    /**
+     * The maximum payload size of individual segments of a segmented frame.
+     */
+    public int gsoSize;
+    /**
+     * The offset into the frame from which on to compute the checksum when
+     * {@link VirtIONetworkDevice#VIRTIO_NET_HDR_F_NEEDS_CSUM} is set.
+     */
+    public int checksumStart;
+    /**
+     * The offset relative to {@link #checksumStart} to store the computed checksum at.
+     */
+    public int checksumOffset;
+
+    public void clear() {
+        flags = VirtIONetworkDevice.VIRTIO_NET_HDR_F_NONE;
+        gsoType = VirtIONetworkDevice.VIRTIO_NET_HDR_GSO_NONE;
+        headerLength = 0;
+        gsoSize = 0;
+        checksumStart = 0;
+        checksumOffset = 0;
+    }
+
+    public void set(final VirtIONetworkHeader other) {
+        flags = other.flags;
+        gsoType = other.gsoType;
+        headerLength = other.headerLength;
+        gsoSize = other.gsoSize;
+        checksumStart = other.checksumStart;
+        checksumOffset = other.checksumOffset;
+    }
+
+    public boolean needsChecksum() {
+        return (flags & VirtIONetworkDevice.VIRTIO_NET_HDR_F_NEEDS_CSUM) != 0;
+    }
+
+    public boolean isSegmented() {
+        return (gsoType & ~VirtIONetworkDevice.VIRTIO_NET_HDR_GSO_ECN) != VirtIONetworkDevice.VIRTIO_NET_HDR_GSO_NONE;
+    }
+
+    /**
+     * Reads the header from the specified buffer, which must be in {@link ByteOrder#LITTLE_ENDIAN} order.
+     *
+     * @param buffer the buffer to read from.
+     */
+    public void read(final ByteBuffer buffer) {
+        assert buffer.order() == ByteOrder.LITTLE_ENDIAN;
+        flags = buffer.get() & 0xFF;
+        gsoType = buffer.get() & 0xFF;
+        headerLength = buffer.getShort() & 0xFFFF;
+        gsoSize = buffer.getShort() & 0xFFFF;
+        checksumStart = buffer.getShort() & 0xFFFF;
+        checksumOffset = buffer.getShort() & 0xFFFF;
+        buffer.getShort(); // num_buffers
+    }
+
+    /**
+     * Writes the header into the specified buffer, which must be in {@link ByteOrder#LITTLE_ENDIAN} order.
+     *
+     * @param buffer     the buffer to write to.
+     * @param numBuffers the number of buffers the frame is spread across.
+     */
+    public void write(final ByteBuffer buffer, final int numBuffers) {
+        assert buffer.order() == ByteOrder.LITTLE_ENDIAN;
+        buffer.put((byte) flags);
+        buffer.put((byte) gsoType);
+        buffer.putShort((short) headerLength);
+        buffer.putShort((short) gsoSize);
+        buffer.putShort((short) checksumStart);
+        buffer.putShort((short) checksumOffset);
+        buffer.putShort((short) numBuffers);
+    }
+}
@@ -0,0 +1,259 @@
+package li.cil.sedna.device.virtio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Software implementations of the offloads a guest may request via a {@link VirtIONetworkHeader}.
+ * <p>
+ * These are used when handing frames to consumers that do not handle offloads themselves. All offsets
+ * are relative to the position of the frame buffer, which is expected to contain a single Ethernet frame
+ * between its position and limit.
+ */
+public final class VirtIONetworkOffloads {
+    private static final int ETHERNET_HEADER_SIZE = 14;
+    private static final int ETHERTYPE_OFFSET = 12;
+    private static final int ETHERTYPE_VLAN = 0x8100;
+    private static final int ETHERTYPE_QINQ = 0x88A8;
+    private static final int VLAN_TAG_SIZE = 4;
+
+    private static final int IPV6_HEADER_SIZE = 40;
+    private static final int IPPROTO_TCP = 6;
+
+    private static final int TCP_SEQUENCE_OFFSET = 4;
+    private static final int TCP_DATA_OFFSET_OFFSET = 12;
+    private static final int TCP_FLAGS_OFFSET = 13;
+    private static final int TCP_CHECKSUM_OFFSET = 16;
+    private static final int TCP_FLAG_FIN = 0x01;
+    private static final int TCP_FLAG_PSH = 0x08;
+    private static final int TCP_FLAG_CWR = 0x80;
+
+    /**
+     * Computes and stores the checksum requested via {@link VirtIONetworkDevice#VIRTIO_NET_HDR_F_NEEDS_CSUM}.
+     * <p>
+     * As per the specification, the checksum field already contains the checksum of the pseudo-header, so
+     * this only needs to sum up everything from {@link VirtIONetworkHeader#checksumStart} to the end.
+     *
+     * @param frame  the frame to complete the checksum of.
+     * @param header the header the frame was sent with.
+     * @return {@code true} if the checksum was valid and has been stored; {@code false} otherwise.
+     */
+    public static boolean completeChecksum(final ByteBuffer frame, final VirtIONetworkHeader header) {
+        if (!header.needsChecksum()) {
+            return true;
+        }
+
+        final int base = frame.position();
+        final int length = frame.remaining();
+        final int start = header.checksumStart;
+        final int offset = start + header.checksumOffset;
+        if (start >= length || offset + 2 > length) {
+            return false;
+        }
+
+        final int sum = sum(frame, base + start, base + length, 0);
+        int checksum = ~sum & 0xFFFF;
+        if (checksum == 0) {
+            checksum = 0xFFFF;
+        }
+        putUnsignedShort(frame, base + offset, checksum);
+
+        header.flags &= ~VirtIONetworkDevice.VIRTIO_NET_HDR_F_NEEDS_CSUM;
+        return true;
+    }
+
+    /**
+     * Computes the number of segments a frame sent with TCP segmentation offload is split into.
+     *
+     * @param frame  the frame to split.
+     * @param header the header the frame was sent with.
+     * @return the number of segments, or zero if the frame cannot be segmented.
+     */
+    public static int getSegmentCount(final ByteBuffer frame, final VirtIONetworkHeader header) {
+        final int headersLength = getHeadersLength(frame, header);
+        if (headersLength < 0) {
+            return 0;
+        }
+
+        final int payloadLength = frame.remaining() - headersLength;
+        if (header.gsoSize <= 0 || payloadLength <= header.gsoSize) {
+            return 1;
+        }
+
+        return (payloadLength + header.gsoSize - 1) / header.gsoSize;
+    }
+
+    /**
+     * Computes the length of the segment with the specified index.
+     *
+     * @param frame  the frame to split.
+     * @param header the header the frame was sent with.
+     * @param index  the index of the segment.
+     * @return the length of the segment in bytes.
+     */
+    public static int getSegmentLength(final ByteBuffer frame, final VirtIONetworkHeader header, final int index) {
+        final int headersLength = getHeadersLength(frame, header);
+        return headersLength + getSegmentPayloadLength(frame, header, headersLength, index);
+    }
+
+    /**
+     * Writes a single segment of a frame sent with TCP segmentation offload into the specified buffer.
+     * <p>
+     * The segment is written at the position of the target buffer, and the position is advanced past it.
+     * IP lengths, IPv4 identification and checksum, TCP sequence number, flags and checksum of the segment
+     * are adjusted accordingly.
+     *
+     * @param frame  the frame to split.
+     * @param header the header the frame was sent with.
+     * @param index  the index of the segment, less than {@link #getSegmentCount(ByteBuffer, VirtIONetworkHeader)}.
+     * @param dst    the buffer to write the segment into.
+     */
+    public static void writeSegment(final ByteBuffer frame, final VirtIONetworkHeader header, final int index, final ByteBuffer dst) {
+        final int base = frame.position();
+        final int ipOffset = getNetworkHeaderOffset(frame);
+        final int l4Offset = getTransportHeaderOffset(frame, header);
+        final int headersLength = getHeadersLength(frame, header);
+        final int payloadLength = getSegmentPayloadLength(frame, header, headersLength, index);
+        final int segmentCount = getSegmentCount(frame, header);
+
+        final int dstBase = dst.position();
+        dst.put(dstBase, frame, base, headersLength);
+        dst.put(dstBase + headersLength, frame, base + headersLength + index * header.gsoSize, payloadLength);
+        dst.position(dstBase + headersLength + payloadLength);
+
+        final int tcpLength = headersLength - l4Offset + payloadLength;
+        final int ip = dstBase + ipOffset;
+        final int tcp = dstBase + l4Offset;
+
+        final int pseudoHeaderSum;
+        if ((dst.get(ip) >>> 4 & 0xF) == 4) {
+            putUnsignedShort(dst, ip + 2, l4Offset - ipOffset + tcpLength);
+            putUnsignedShort(dst, ip + 4, getUnsignedShort(dst, ip + 4) + index);
+            putUnsignedShort(dst, ip + 10, 0);
+            final int ipHeaderLength = (dst.get(ip) & 0xF) * 4;
+            putUnsignedShort(dst, ip + 10, ~sum(dst, ip, ip + ipHeaderLength, 0));
+
+            int sum = sum(dst, ip + 12, ip + 20, 0);
+            sum = add(sum, IPPROTO_TCP);
+            sum = add(sum, tcpLength);
+            pseudoHeaderSum = sum;
+        } else {
+            putUnsignedShort(dst, ip + 4, l4Offset - ipOffset - IPV6_HEADER_SIZE + tcpLength);
+
+            int sum = sum(dst, ip + 8, ip + 40, 0);
+            sum = add(sum, tcpLength >>> 16);
+            sum = add(sum, tcpLength & 0xFFFF);
+            sum = add(sum, IPPROTO_TCP);
+            pseudoHeaderSum = sum;
+        }
+
+        putInt(dst, tcp + TCP_SEQUENCE_OFFSET, getInt(dst, tcp + TCP_SEQUENCE_OFFSET) + index * header.gsoSize);
+        int flags = dst.get(tcp + TCP_FLAGS_OFFSET) & 0xFF;
+        if (index < segmentCount - 1) {
+            flags &= ~(TCP_FLAG_FIN | TCP_FLAG_PSH);
+        }
+        if (index > 0) {
+            flags &= ~TCP_FLAG_CWR;
+        }
+        dst.put(tcp + TCP_FLAGS_OFFSET, (byte) flags);
+
+        putUnsignedShort(dst, tcp + TCP_CHECKSUM_OFFSET, 0);
+        putUnsignedShort(dst, tcp + TCP_CHECKSUM_OFFSET, ~sum(dst, tcp, tcp + tcpLength, pseudoHeaderSum));
+    }
+
+    private static int getSegmentPayloadLength(final ByteBuffer frame, final VirtIONetworkHeader header, final int headersLength, final int index) {
+        final int payloadLength = frame.remaining() - headersLength;
+        if (header.gsoSize <= 0) {
+            return payloadLength;
+        }
+        return Math.min(header.gsoSize, payloadLength - index * header.gsoSize);
+    }
+
+    private static int getNetworkHeaderOffset(final ByteBuffer frame) {
+        final int base = frame.position();
+        int offset = ETHERNET_HEADER_SIZE;
+        final int etherType = getUnsignedShort(frame, base + ETHERTYPE_OFFSET);
+        if (etherType == ETHERTYPE_VLAN || etherType == ETHERTYPE_QINQ) {
+            offset += VLAN_TAG_SIZE;
+        }
+        return offset;
+    }
+
+    private static int getTransportHeaderOffset(final ByteBuffer frame, final VirtIONetworkHeader header) {
+        if (header.needsChecksum()) {
+            return header.checksumStart;
+        }
+
+        final int ipOffset = getNetworkHeaderOffset(frame);
+        final byte versionAndLength = frame.get(frame.position() + ipOffset);
+        if ((versionAndLength >>> 4 & 0xF) == 4) {
+            return ipOffset + (versionAndLength & 0xF) * 4;
+        } else {
+            return ipOffset + IPV6_HEADER_SIZE;
+        }
+    }
+
+    private static int getHeadersLength(final ByteBuffer frame, final VirtIONetworkHeader header) {
+        final int length = frame.remaining();
+        if (length < ETHERNET_HEADER_SIZE + VLAN_TAG_SIZE) {
+            return -1;
+        }
+
+        final int ipOffset = getNetworkHeaderOffset(frame);
+        if (ipOffset >= length) {
+            return -1;
+        }
+
+        final int l4Offset = getTransportHeaderOffset(frame, header);
+        if (l4Offset <= ipOffset || l4Offset + TCP_CHECKSUM_OFFSET + 2 > length) {
+            return -1;
+        }
+
+        final int tcpHeaderLength = (frame.get(frame.position() + l4Offset + TCP_DATA_OFFSET_OFFSET) >>> 4 & 0xF) * 4;
+        if (tcpHeaderLength < 20 || l4Offset + tcpHeaderLength > length) {
+            return -1;
+        }
+
+        return l4Offset + tcpHeaderLength;
+    }
+
+    private static int sum(final ByteBuffer buffer, final int from, final int to, final int initial) {
+        long sum = initial;
+        int i = from;
+        for (; i + 1 < to; i += 2) {
+            sum += getUnsignedShort(buffer, i);
+        }
+        if (i < to) {
+            sum += (buffer.get(i) & 0xFF) << 8;
+        }
+        return fold(sum);
+    }
+
+    private static int getUnsignedShort(final ByteBuffer buffer, final int index) {
+        return (buffer.get(index) & 0xFF) << 8 | (buffer.get(index + 1) & 0xFF);
+    }
+
+    private static void putUnsignedShort(final ByteBuffer buffer, final int index, final int value) {
+        buffer.put(index, (byte) (value >>> 8));
+        buffer.put(index + 1, (byte) value);
+    }
+
+    private static int getInt(final ByteBuffer buffer, final int index) {
+        return getUnsignedShort(buffer, index) << 16 | getUnsignedShort(buffer, index + 2);
+    }
+
+    private static void putInt(final ByteBuffer buffer, final int index, final int value) {
+        putUnsignedShort(buffer, index, value >>> 16);
+        putUnsignedShort(buffer, index + 2, value);
+    }
+
+    private static int add(final int sum, final int value) {
+        return fold((long) sum + value);
+    }
+
+    private static int fold(long sum) {
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return (int) sum;
+    }
+}
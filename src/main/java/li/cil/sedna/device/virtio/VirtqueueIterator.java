@@ -48,6 +48,20 @@ public interface VirtqueueIterator {
      */
     DescriptorChain next() throws VirtIODeviceException, MemoryAccessException;
 
+    /**
+     * Returns the specified number of descriptor chains most recently obtained via {@link #next()}
+     * to the queue, so that they will be returned by {@link #next()} again.
+     * <p>
+     * This allows devices to inspect multiple descriptor chains before committing to using them,
+     * for example to check whether the available chains provide enough space for some data.
+     * <p>
+     * <b>None of the returned descriptor chains may have been marked used</b>, and none of them
+     * may be used after this call.
+     *
+     * @param count the number of descriptor chains to return to the queue.
+     */
+    void rewind(int count);
+
     /**
      * Performs the given action for each remaining element until all elements
      * have been processed or the action throws an exception.  Actions are
@@ -0,0 +1,466 @@
+package li.cil.sedna.fs;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A file system that caches metadata of another file system.
+ * <p>
+ * For each path looked up, whether it exists, whether it is a directory, its attributes, its unique id and its
+ * access rights are cached. Paths that do not exist are cached as well, so repeated lookups of missing files,
+ * e.g. when searching include paths, do not reach the underlying file system either. Entries in directory
+ * listings are used to pre-populate the cache.
+ * <p>
+ * Modifications made through this file system invalidate the affected entries. To pick up changes made to the
+ * underlying file system directly, e.g. by other processes modifying a host directory, entries expire after a
+ * configurable time. When the cache is full, the least recently used entry is evicted.
+ * <p>
+ * This class is thread-safe if the underlying file system is.
+ */
+public final class CachingFileSystem implements FileSystem {
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final long DEFAULT_TIME_TO_LIVE_MILLIS = 1000;
+
+    private static final int KNOWN_EXISTS = 1 << 0;
+    private static final int KNOWN_DIRECTORY = 1 << 1;
+    private static final int KNOWN_WRITABLE = 1 << 2;
+    private static final int KNOWN_READABLE = 1 << 3;
+    private static final int KNOWN_EXECUTABLE = 1 << 4;
+
+    private final FileSystem fileSystem;
+    private final int capacity;
+    private final long timeToLiveNanos;
+    private final LinkedHashMap<Path, Entry> entries;
+
+    // Incremented on every invalidation, so lookups racing with modifications don't store stale results.
+    private long invalidationCount;
+
+    private long hitCount;
+    private long missCount;
+
+    public CachingFileSystem(final FileSystem fileSystem) {
+        this(fileSystem, DEFAULT_CAPACITY, DEFAULT_TIME_TO_LIVE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a new cache in front of the specified file system.
+     *
+     * @param fileSystem the file system to cache metadata of.
+     * @param capacity   the maximum number of paths to keep in the cache.
+     * @param timeToLive the time after which cached entries are discarded.
+     * @param unit       the unit of {@code timeToLive}.
+     */
+    public CachingFileSystem(final FileSystem fileSystem, final int capacity, final long timeToLive, final TimeUnit unit) {
+        if (capacity <= 0 || timeToLive < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        this.fileSystem = fileSystem;
+        this.capacity = capacity;
+        this.timeToLiveNanos = unit.toNanos(timeToLive);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Path, Entry> eldest) {
+                return size() > CachingFileSystem.this.capacity;
+            }
+        };
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized void resetStatistics() {
+        hitCount = 0;
+        missCount = 0;
+    }
+
+    /**
+     * Drops all cached entries, e.g. after the underlying file system was known to be modified externally.
+     */
+    public synchronized void invalidateAll() {
+        entries.clear();
+        invalidationCount++;
+    }
+
+    @Override
+    public FileSystemStats statfs() throws IOException {
+        return fileSystem.statfs();
+    }
+
+    @Override
+    public Path getRoot() {
+        return fileSystem.getRoot();
+    }
+
+    @Override
+    public long getUniqueId(final Path path) throws IOException {
+        final long stamp;
+        synchronized (this) {
+            final Entry entry = getEntry(path);
+            if (entry != null && entry.hasUniqueId) {
+                hitCount++;
+                return entry.uniqueId;
+            }
+            if (entry != null && (entry.known & KNOWN_EXISTS) != 0 && !entry.exists) {
+                hitCount++;
+                throw new NoSuchFileException(path.toString());
+            }
+            missCount++;
+            stamp = invalidationCount;
+        }
+
+        final long uniqueId = fileSystem.getUniqueId(path);
+
+        synchronized (this) {
+            final Entry entry = getOrCreateEntry(path, stamp);
+            if (entry != null) {
+                entry.uniqueId = uniqueId;
+                entry.hasUniqueId = true;
+            }
+        }
+        return uniqueId;
+    }
+
+    @Override
+    public boolean exists(final Path path) {
+        final long stamp;
+        synchronized (this) {
+            final Entry entry = getEntry(path);
+            if (entry != null && (entry.known & KNOWN_EXISTS) != 0) {
+                hitCount++;
+                return entry.exists;
+            }
+            missCount++;
+            stamp = invalidationCount;
+        }
+
+        return lookup(path, stamp).exists;
+    }
+
+    @Override
+    public boolean isDirectory(final Path path) {
+        final long stamp;
+        synchronized (this) {
+            final Entry entry = getEntry(path);
+            if (entry != null && (entry.known & KNOWN_DIRECTORY) != 0) {
+                hitCount++;
+                return entry.isDirectory;
+            }
+            missCount++;
+            stamp = invalidationCount;
+        }
+
+        return lookup(path, stamp).isDirectory;
+    }
+
+    @Override
+    public boolean isWritable(final Path path) {
+        return getAccess(path, KNOWN_WRITABLE);
+    }
+
+    @Override
+    public boolean isReadable(final Path path) {
+        return getAccess(path, KNOWN_READABLE);
+    }
+
+    @Override
+    public boolean isExecutable(final Path path) {
+        return getAccess(path, KNOWN_EXECUTABLE);
+    }
+
+    @Override
+    public BasicFileAttributes getAttributes(final Path path) throws IOException {
+        final long stamp;
+        synchronized (this) {
+            final Entry entry = getEntry(path);
+            if (entry != null && entry.attributes != null) {
+                hitCount++;
+                return entry.attributes;
+            }
+            if (entry != null && (entry.known & KNOWN_EXISTS) != 0 && !entry.exists) {
+                hitCount++;
+                throw new NoSuchFileException(path.toString());
+            }
+            missCount++;
+            stamp = invalidationCount;
+        }
+
+        final Lookup result = lookup(path, stamp);
+        if (result.attributes == null) {
+            // Lookup could not tell why reading attributes failed, so let the underlying file system throw.
+            return fileSystem.getAttributes(path);
+        }
+        return result.attributes;
+    }
+
+    @Override
+    public void mkdir(final Path path) throws IOException {
+        try {
+            fileSystem.mkdir(path);
+        } finally {
+            invalidate(path, true, false);
+        }
+    }
+
+    @Override
+    public FileHandle open(final Path path, final int flags) throws IOException {
+        if ((flags & FileMode.TRUNCATE) != 0) {
+            invalidate(path, false, false);
+        }
+        return new CachingFileHandle(path, fileSystem.open(path, flags));
+    }
+
+    @Override
+    public FileHandle create(final Path path, final int flags) throws IOException {
+        try {
+            return new CachingFileHandle(path, fileSystem.create(path, flags));
+        } finally {
+            invalidate(path, true, false);
+        }
+    }
+
+    @Override
+    public void unlink(final Path path) throws IOException {
+        try {
+            fileSystem.unlink(path);
+        } finally {
+            invalidate(path, true, true);
+        }
+    }
+
+    @Override
+    public void rename(final Path oldPath, final Path newPath) throws IOException {
+        try {
+            fileSystem.rename(oldPath, newPath);
+        } finally {
+            invalidate(oldPath, true, true);
+            invalidate(newPath, true, true);
+        }
+    }
+
+    private boolean getAccess(final Path path, final int flag) {
+        final long stamp;
+        synchronized (this) {
+            final Entry entry = getEntry(path);
+            if (entry != null && (entry.known & flag) != 0) {
+                hitCount++;
+                return (entry.access & flag) != 0;
+            }
+            if (entry != null && (entry.known & KNOWN_EXISTS) != 0 && !entry.exists) {
+                hitCount++;
+                return false;
+            }
+            missCount++;
+            stamp = invalidationCount;
+        }
+
+        final boolean value = switch (flag) {
+            case KNOWN_WRITABLE -> fileSystem.isWritable(path);
+            case KNOWN_READABLE -> fileSystem.isReadable(path);
+            case KNOWN_EXECUTABLE -> fileSystem.isExecutable(path);
+            default -> throw new IllegalArgumentException();
+        };
+
+        synchronized (this) {
+            final Entry entry = getOrCreateEntry(path, stamp);
+            if (entry != null) {
+                entry.known |= flag;
+                if (value) {
+                    entry.access |= flag;
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Fetches existence, type and attributes of a path with a single query, where possible.
+     */
+    private Lookup lookup(final Path path, final long stamp) {
+        final Lookup result = new Lookup();
+        try {
+            result.attributes = fileSystem.getAttributes(path);
+            result.exists = true;
+            result.isDirectory = result.attributes.isDirectory();
+        } catch (final NoSuchFileException e) {
+            result.exists = false;
+            result.isDirectory = false;
+        } catch (final IOException e) {
+            result.exists = fileSystem.exists(path);
+            result.isDirectory = result.exists && fileSystem.isDirectory(path);
+        }
+
+        synchronized (this) {
+            final Entry entry = getOrCreateEntry(path, stamp);
+            if (entry != null) {
+                entry.exists = result.exists;
+                entry.isDirectory = result.isDirectory;
+                entry.known |= KNOWN_EXISTS | KNOWN_DIRECTORY;
+                if (result.attributes != null) {
+                    entry.attributes = result.attributes;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private synchronized void populate(final Path directory, final DirectoryEntry directoryEntry, final long stamp) {
+        if (stamp != invalidationCount || directoryEntry.type == FileType.UNKNOWN) {
+            return;
+        }
+
+        final Path path = directory.resolve(directoryEntry.name);
+        final Entry entry = getOrCreateEntry(path, stamp);
+        if (entry == null) {
+            return;
+        }
+
+        // The listing is more recent than anything cached, so if it disagrees, drop what we had.
+        final boolean isDirectory = directoryEntry.type == FileType.DIRECTORY;
+        if (((entry.known & KNOWN_EXISTS) != 0 && !entry.exists) ||
+            ((entry.known & KNOWN_DIRECTORY) != 0 && entry.isDirectory != isDirectory)) {
+            entry.known = 0;
+            entry.access = 0;
+            entry.attributes = null;
+            entry.hasUniqueId = false;
+        }
+
+        entry.exists = true;
+        entry.isDirectory = isDirectory;
+        entry.known |= KNOWN_EXISTS | KNOWN_DIRECTORY;
+        if (directoryEntry.hasUniqueId && !entry.hasUniqueId) {
+            entry.uniqueId = directoryEntry.uniqueId;
+            entry.hasUniqueId = true;
+        }
+    }
+
+    private synchronized void invalidate(final Path path, final boolean includeParent, final boolean includeChildren) {
+        invalidationCount++;
+        entries.remove(path);
+
+        // The parent's attributes, e.g. its modification time, change when entries are added or removed.
+        if (includeParent && !path.equals(getRoot())) {
+            entries.remove(path.resolve(".."));
+        }
+
+        if (includeChildren) {
+            final Iterator<Path> iterator = entries.keySet().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().startsWith(path)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private synchronized long getInvalidationCount() {
+        return invalidationCount;
+    }
+
+    @Nullable
+    private Entry getEntry(final Path path) {
+        final Entry entry = entries.get(path);
+        if (entry != null && entry.expiresAt - System.nanoTime() < 0) {
+            entries.remove(path);
+            return null;
+        }
+        return entry;
+    }
+
+    @Nullable
+    private Entry getOrCreateEntry(final Path path, final long stamp) {
+        if (stamp != invalidationCount) {
+            return null;
+        }
+
+        Entry entry = getEntry(path);
+        if (entry == null) {
+            entry = new Entry(System.nanoTime() + timeToLiveNanos);
+            entries.put(path, entry);
+        }
+        return entry;
+    }
+
+    private static final class Entry {
+        public final long expiresAt;
+        public int known;
+        public int access;
+        public boolean exists;
+        public boolean isDirectory;
+        @Nullable public BasicFileAttributes attributes;
+        public boolean hasUniqueId;
+        public long uniqueId;
+
+        public Entry(final long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class Lookup {
+        public boolean exists;
+        public boolean isDirectory;
+        @Nullable public BasicFileAttributes attributes;
+    }
+
+    private final class CachingFileHandle implements FileHandle {
+        private final Path path;
+        private final FileHandle handle;
+
+        public CachingFileHandle(final Path path, final FileHandle handle) {
+            this.path = path;
+            this.handle = handle;
+        }
+
+        @Override
+        public int read(final long offset, final ByteBuffer buffer) throws IOException {
+            return handle.read(offset, buffer);
+        }
+
+        @Override
+        public int write(final long offset, final ByteBuffer buffer) throws IOException {
+            try {
+                return handle.write(offset, buffer);
+            } finally {
+                invalidate(path, false, false);
+            }
+        }
+
+        @Override
+        public List<DirectoryEntry> readdir() throws IOException {
+            final long stamp = getInvalidationCount();
+            final List<DirectoryEntry> directoryEntries = handle.readdir();
+            for (final DirectoryEntry directoryEntry : directoryEntries) {
+                populate(path, directoryEntry, stamp);
+            }
+            return directoryEntries;
+        }
+
+        @Override
+        public void readdir(final long cookie, final DirectoryEntryVisitor visitor) throws IOException {
+            final long stamp = getInvalidationCount();
+            handle.readdir(cookie, (directoryEntry, entryCookie) -> {
+                populate(path, directoryEntry, stamp);
+                return visitor.visit(directoryEntry, entryCookie);
+            });
+        }
+
+        @Override
+        public void close() throws IOException {
+            handle.close();
+        }
+    }
+}
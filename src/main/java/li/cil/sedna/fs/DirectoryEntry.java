@@ -6,6 +6,10 @@ public final class DirectoryEntry {
     public FileType type;
     public String name;
 
+    // Optional, set by file systems that can determine it while listing a directory at no extra cost.
+    public boolean hasUniqueId;
+    public long uniqueId;
+
     public static DirectoryEntry create(final File f) {
         final DirectoryEntry entry = new DirectoryEntry();
         entry.type = f.isDirectory() ? FileType.DIRECTORY : FileType.FILE;
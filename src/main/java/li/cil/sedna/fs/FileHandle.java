@@ -43,4 +43,40 @@ public interface FileHandle extends Closeable {
      * @return the list of entries in this directory.
      */
     List<DirectoryEntry> readdir() throws IOException;
+
+    /**
+     * Passes entries of the directory to the specified visitor, starting at the specified cookie.
+     * <p>
+     * Each entry is passed along with its cookie, which can be used to continue reading after that entry
+     * in a later call. Reading stops when the visitor returns {@code false}; the entry it rejected will be
+     * the first entry passed when continuing with the cookie of the last accepted entry.
+     * <p>
+     * Implementations should override this to avoid listing the whole directory up front. The default
+     * implementation uses the index into the list returned by {@link #readdir()} as cookie.
+     * <p>
+     * <b>Only valid if this handle references a directory.</b>
+     *
+     * @param cookie  {@code 0} to start at the first entry, or a cookie passed to the visitor earlier.
+     * @param visitor the visitor to pass entries to.
+     */
+    default void readdir(final long cookie, final DirectoryEntryVisitor visitor) throws IOException {
+        final List<DirectoryEntry> entries = readdir();
+        for (long i = Math.max(0, cookie); i < entries.size(); i++) {
+            if (!visitor.visit(entries.get((int) i), i + 1)) {
+                break;
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface DirectoryEntryVisitor {
+        /**
+         * Called for each visited directory entry.
+         *
+         * @param entry  the directory entry.
+         * @param cookie the cookie to continue reading after this entry.
+         * @return {@code true} to continue with the next entry; {@code false} to stop.
+         */
+        boolean visit(DirectoryEntry entry, long cookie) throws IOException;
+    }
 }
@@ -1,23 +1,110 @@
 package li.cil.sedna.fs;
 
+import com.sun.nio.file.ExtendedOpenOption;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
+
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
 
+/**
+ * A file system exposing a directory of the host file system.
+ * <p>
+ * File handles share open {@link FileChannel}s: all handles to the same file use a single channel, and channels
+ * of files that are no longer open are kept in a pool of limited size, least recently used channels being closed
+ * first. Reopening a pooled file therefore only costs a check that the file at the path is still the same one.
+ * <p>
+ * Optionally, large sequential transfers can bypass the host's page cache, see
+ * {@link #setDirectTransferThreshold(int)}.
+ */
 public final class HostFileSystem implements FileSystem {
+    public static final int DEFAULT_MAX_POOLED_CHANNELS = 64;
+
+    // Unique ids are built from a per-device prefix in the upper bits and the inode in the lower bits. Files
+    // that don't fit, or where the host provides no inode, get an id from a counter, with the top bit set.
+    private static final int UNIQUE_ID_INODE_BITS = 48;
+    private static final long UNIQUE_ID_INODE_MASK = (1L << UNIQUE_ID_INODE_BITS) - 1;
+    private static final int UNIQUE_ID_MAX_DEVICE_PREFIX = (1 << (63 - UNIQUE_ID_INODE_BITS)) - 1;
+    private static final long UNIQUE_ID_REMAPPED = 1L << 63;
+
+    private static final int UNIX_S_IFMT = 0170000;
+    private static final int UNIX_S_IFDIR = 0040000;
+
     private final File root;
+    private final boolean hasUnixAttributes;
+    private final int maxPooledChannels;
+    private final LinkedHashMap<java.nio.file.Path, PooledChannel> channels = new LinkedHashMap<>(16, 0.75f, true);
+    private volatile int directTransferThreshold;
+    private final Long2IntOpenHashMap devicePrefixes = new Long2IntOpenHashMap();
+    private final Object2LongOpenHashMap<Object> remappedUniqueIds = new Object2LongOpenHashMap<>();
 
     public HostFileSystem() {
         this(new File("."));
     }
 
     public HostFileSystem(final File root) {
+        this(root, DEFAULT_MAX_POOLED_CHANNELS);
+    }
+
+    /**
+     * Creates a new file system for the specified directory.
+     *
+     * @param root              the directory to expose.
+     * @param maxPooledChannels the maximum number of channels kept open for files no handle refers to.
+     */
+    public HostFileSystem(final File root, final int maxPooledChannels) {
+        if (maxPooledChannels < 0) {
+            throw new IllegalArgumentException();
+        }
+
         this.root = root.getAbsoluteFile();
+        this.maxPooledChannels = maxPooledChannels;
+        this.hasUnixAttributes = this.root.toPath().getFileSystem().supportedFileAttributeViews().contains("unix");
+        devicePrefixes.defaultReturnValue(-1);
+        remappedUniqueIds.defaultReturnValue(0); // Remapped ids always have the top bit set.
+    }
+
+    /**
+     * Sets the minimum size of sequential transfers that bypass the host's page cache, using direct I/O where the
+     * host supports it. Only transfers continuing where the previous transfer on the same handle ended qualify.
+     * Writes additionally need to be aligned to the block size of the host file system.
+     * <p>
+     * This avoids evicting other data from the page cache when streaming large files, at the cost of additional
+     * copies and reading partial blocks twice. Disabled by default.
+     *
+     * @param threshold the minimum transfer size in bytes, or zero to disable direct transfers.
+     */
+    public void setDirectTransferThreshold(final int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException();
+        }
+        directTransferThreshold = threshold;
+    }
+
+    /**
+     * Empties the pool of open channels, closing all channels no handle refers to anymore. Channels still in use
+     * are closed when their last handle is closed.
+     */
+    public void closeIdleChannels() {
+        final ArrayList<FileChannel> idleChannels = new ArrayList<>();
+        synchronized (channels) {
+            channels.values().forEach(channel -> detach(channel, idleChannels));
+            channels.clear();
+        }
+        closeAll(idleChannels);
     }
 
     @Override
@@ -29,9 +116,25 @@ public final class HostFileSystem implements FileSystem {
         return result;
     }
 
+    /**
+     * Returns an id for the file at the specified path, which is unique and stable for as long as this
+     * instance exists.
+     * <p>
+     * Where the host provides them, the id is derived from device and inode of the file, so hard links share
+     * the same id, and ids survive renames. Otherwise, ids are assigned per file key or, if there is none, per
+     * path.
+     */
     @Override
-    public long getUniqueId(final Path path) {
-        return toHost(path).hashCode();
+    public long getUniqueId(final Path path) throws IOException {
+        final java.nio.file.Path hostPath = toHost(path);
+        if (hasUnixAttributes) {
+            final Map<String, Object> attributes = Files.readAttributes(hostPath, "unix:dev,ino");
+            if (attributes.get("dev") instanceof Long device && attributes.get("ino") instanceof Long inode) {
+                return getUniqueId(device, inode);
+            }
+        }
+
+        return getRemappedUniqueId(hostPath, Files.readAttributes(hostPath, BasicFileAttributes.class));
     }
 
     @Override
@@ -71,71 +174,28 @@ public final class HostFileSystem implements FileSystem {
 
     @Override
     public FileHandle open(final Path path, final int flags) throws IOException {
-        final String mode;
-        if ((flags & FileMode.WRITE) != 0) {
-            mode = "rw";
-        } else if ((flags & FileMode.READ) != 0) {
-            mode = "r";
-        } else {
+        final boolean isWritable = (flags & FileMode.WRITE) != 0;
+        if (!isWritable && (flags & FileMode.READ) == 0) {
             throw new IOException();
         }
 
         final java.nio.file.Path hostPath = toHost(path);
-        if (Files.isDirectory(hostPath)) {
-            final List<DirectoryEntry> entries = Files.list(hostPath)
-                .map(java.nio.file.Path::toFile)
-                .map(DirectoryEntry::create)
-                .collect(Collectors.toList());
-            return new FileHandle() {
-                @Override
-                public int read(final long offset, final ByteBuffer buffer) throws IOException {
-                    throw new IOException();
-                }
-
-                @Override
-                public int write(final long offset, final ByteBuffer buffer) throws IOException {
-                    throw new IOException();
-                }
-
-                @Override
-                public List<DirectoryEntry> readdir() {
-                    return entries;
-                }
+        final BasicFileAttributes attributes = Files.readAttributes(hostPath, BasicFileAttributes.class);
+        if (attributes.isDirectory()) {
+            return new DirectoryHandle(hostPath);
+        }
 
-                @Override
-                public void close() {
-                }
-            };
-        } else {
-            final RandomAccessFile openedFile = new RandomAccessFile(hostPath.toFile(), mode);
+        final PooledChannel channel = acquireChannel(hostPath, attributes, isWritable);
+        try {
             if ((flags & FileMode.TRUNCATE) != 0) {
-                openedFile.setLength(0);
+                channel.channel.truncate(0);
             }
-
-            return new FileHandle() {
-                @Override
-                public int read(final long offset, final ByteBuffer buffer) throws IOException {
-                    openedFile.seek(offset);
-                    return openedFile.getChannel().read(buffer, offset);
-                }
-
-                @Override
-                public int write(final long offset, final ByteBuffer buffer) throws IOException {
-                    openedFile.seek(offset);
-                    return openedFile.getChannel().write(buffer, offset);
-                }
-
-                @Override
-                public List<DirectoryEntry> readdir() throws IOException {
-                    throw new IOException();
-                }
-
-                @Override
-                public void close() throws IOException {
-                    openedFile.close();
-                }
-            };
+        } catch (final IOException e) {
+            releaseChannel(channel);
+            throw e;
         }
+
+        return new FileChannelHandle(hostPath, channel, isWritable);
     }
 
     @Override
@@ -146,12 +206,185 @@ public final class HostFileSystem implements FileSystem {
 
     @Override
     public void unlink(final Path path) throws IOException {
-        Files.delete(toHost(path));
+        final java.nio.file.Path hostPath = toHost(path);
+        detachChannels(hostPath);
+        Files.delete(hostPath);
     }
 
     @Override
     public void rename(final Path oldPath, final Path newPath) throws IOException {
-        Files.move(toHost(oldPath), toHost(newPath));
+        final java.nio.file.Path oldHostPath = toHost(oldPath);
+        detachChannels(oldHostPath);
+        Files.move(oldHostPath, toHost(newPath));
+    }
+
+    /**
+     * Returns a channel for the file at the specified path, reusing a pooled channel if it is still open on the
+     * same file and has the required access mode.
+     */
+    private PooledChannel acquireChannel(final java.nio.file.Path hostPath, final BasicFileAttributes attributes, final boolean isWritable) throws IOException {
+        final Object identity = getIdentity(attributes);
+        synchronized (channels) {
+            final PooledChannel pooled = channels.get(hostPath);
+            if (pooled != null && pooled.identity.equals(identity) && (pooled.isWritable || !isWritable)) {
+                pooled.handleCount++;
+                return pooled;
+            }
+        }
+
+        final FileChannel channel = isWritable
+            ? FileChannel.open(hostPath, StandardOpenOption.READ, StandardOpenOption.WRITE)
+            : FileChannel.open(hostPath, StandardOpenOption.READ);
+        final PooledChannel opened = new PooledChannel(channel, identity, isWritable);
+
+        final ArrayList<FileChannel> evictedChannels = new ArrayList<>();
+        synchronized (channels) {
+            final PooledChannel replaced = channels.put(hostPath, opened);
+            if (replaced != null) {
+                detach(replaced, evictedChannels);
+            }
+        }
+        closeAll(evictedChannels);
+
+        return opened;
+    }
+
+    private void releaseChannel(final PooledChannel channel) {
+        final ArrayList<FileChannel> evictedChannels = new ArrayList<>();
+        synchronized (channels) {
+            channel.handleCount--;
+            if (channel.handleCount == 0) {
+                if (channel.isDetached) {
+                    evictedChannels.add(channel.channel);
+                } else {
+                    evictIdleChannels(evictedChannels);
+                }
+            }
+        }
+        closeAll(evictedChannels);
+    }
+
+    private void evictIdleChannels(final List<FileChannel> evictedChannels) {
+        int idleCount = 0;
+        for (final PooledChannel channel : channels.values()) {
+            if (channel.handleCount == 0) {
+                idleCount++;
+            }
+        }
+
+        // Iterates from least to most recently used.
+        final Iterator<PooledChannel> iterator = channels.values().iterator();
+        while (idleCount > maxPooledChannels && iterator.hasNext()) {
+            final PooledChannel channel = iterator.next();
+            if (channel.handleCount == 0) {
+                iterator.remove();
+                evictedChannels.add(channel.channel);
+                idleCount--;
+            }
+        }
+    }
+
+    /**
+     * Removes channels of the specified file, or of files in the specified directory, from the pool, so that
+     * they are not reused for different files later on. Channels still in use are closed when released.
+     */
+    private void detachChannels(final java.nio.file.Path hostPath) throws IOException {
+        final ArrayList<FileChannel> idleChannels = new ArrayList<>();
+        synchronized (channels) {
+            final Iterator<Map.Entry<java.nio.file.Path, PooledChannel>> iterator = channels.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<java.nio.file.Path, PooledChannel> entry = iterator.next();
+                if (entry.getKey().startsWith(hostPath)) {
+                    iterator.remove();
+                    detach(entry.getValue(), idleChannels);
+                }
+            }
+        }
+        closeAll(idleChannels);
+    }
+
+    private static void detach(final PooledChannel channel, final List<FileChannel> idleChannels) {
+        channel.isDetached = true;
+        if (channel.handleCount == 0) {
+            idleChannels.add(channel.channel);
+        }
+    }
+
+    private static void closeAll(final List<FileChannel> channels) {
+        for (final FileChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (final IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Returns a value that changes when the file at a path is replaced, e.g. by a program on the host writing
+     * a new file and renaming it over the old one.
+     */
+    private static Object getIdentity(final BasicFileAttributes attributes) {
+        final Object fileKey = attributes.fileKey();
+        return fileKey != null ? fileKey : attributes.creationTime();
+    }
+
+    private synchronized long getUniqueId(final long device, final long inode) {
+        int prefix = devicePrefixes.get(device);
+        if (prefix < 0) {
+            prefix = devicePrefixes.size();
+            devicePrefixes.put(device, prefix);
+        }
+
+        if (prefix <= UNIQUE_ID_MAX_DEVICE_PREFIX && (inode & ~UNIQUE_ID_INODE_MASK) == 0) {
+            return ((long) prefix << UNIQUE_ID_INODE_BITS) | inode;
+        } else {
+            return getRemappedUniqueId(new DeviceInode(device, inode));
+        }
+    }
+
+    private long getRemappedUniqueId(final java.nio.file.Path hostPath, final BasicFileAttributes attributes) {
+        final Object fileKey = attributes.fileKey();
+        return getRemappedUniqueId(fileKey != null ? fileKey : hostPath.toAbsolutePath().normalize().toString());
+    }
+
+    private synchronized long getRemappedUniqueId(final Object key) {
+        long id = remappedUniqueIds.getLong(key);
+        if (id == 0) {
+            id = UNIQUE_ID_REMAPPED | remappedUniqueIds.size();
+            remappedUniqueIds.put(key, id);
+        }
+        return id;
+    }
+
+    /**
+     * Creates an entry for a file found while listing a directory, including type and unique id, with a
+     * single query for the file's attributes.
+     */
+    private DirectoryEntry createEntry(final java.nio.file.Path hostPath) {
+        final DirectoryEntry entry = new DirectoryEntry();
+        entry.name = hostPath.getFileName().toString();
+        entry.type = FileType.UNKNOWN;
+        try {
+            if (hasUnixAttributes) {
+                final Map<String, Object> attributes = Files.readAttributes(hostPath, "unix:mode,dev,ino");
+                if (attributes.get("mode") instanceof Integer mode &&
+                    attributes.get("dev") instanceof Long device &&
+                    attributes.get("ino") instanceof Long inode) {
+                    entry.type = (mode & UNIX_S_IFMT) == UNIX_S_IFDIR ? FileType.DIRECTORY : FileType.FILE;
+                    entry.uniqueId = getUniqueId(device, inode);
+                    entry.hasUniqueId = true;
+                    return entry;
+                }
+            }
+
+            final BasicFileAttributes attributes = Files.readAttributes(hostPath, BasicFileAttributes.class);
+            entry.type = attributes.isDirectory() ? FileType.DIRECTORY : FileType.FILE;
+            entry.uniqueId = getRemappedUniqueId(hostPath, attributes);
+            entry.hasUniqueId = true;
+        } catch (final IOException ignored) {
+            // File was removed since it was listed, or is not accessible. Leave it to the caller to decide.
+        }
+        return entry;
     }
 
     private java.nio.file.Path toHost(final Path path) {
@@ -161,4 +394,257 @@ public final class HostFileSystem implements FileSystem {
         }
         return result;
     }
+
+    private record DeviceInode(long device, long inode) {
+    }
+
+    private static final class PooledChannel {
+        public final FileChannel channel;
+        public final Object identity;
+        public final boolean isWritable;
+        public int handleCount = 1;
+        public boolean isDetached; // No longer in the pool, close when the last handle is closed.
+
+        public PooledChannel(final FileChannel channel, final Object identity, final boolean isWritable) {
+            this.channel = channel;
+            this.identity = identity;
+            this.isWritable = isWritable;
+        }
+    }
+
+    /**
+     * Reads and writes a file using positional operations on a shared channel.
+     */
+    private final class FileChannelHandle implements FileHandle {
+        private final java.nio.file.Path hostPath;
+        private final boolean isWritable;
+        @Nullable private PooledChannel channel;
+        private long sequentialPosition = -1; // End of the last transfer, to detect sequential access.
+
+        // Lazily opened, for transfers bypassing the page cache.
+        @Nullable private FileChannel directChannel;
+        @Nullable private ByteBuffer directBuffer;
+        private int directAlignment;
+        private boolean isDirectUnsupported;
+
+        public FileChannelHandle(final java.nio.file.Path hostPath, final PooledChannel channel, final boolean isWritable) {
+            this.hostPath = hostPath;
+            this.channel = channel;
+            this.isWritable = isWritable;
+        }
+
+        @Override
+        public int read(final long offset, final ByteBuffer buffer) throws IOException {
+            final FileChannel channel = getChannel();
+            final int count;
+            if (isDirectTransfer(offset, buffer.remaining())) {
+                count = readDirect(offset, buffer);
+            } else {
+                count = Math.max(0, channel.read(buffer, offset)); // Report end of file as no data, like readDirect.
+            }
+            sequentialPosition = offset + count;
+            return count;
+        }
+
+        @Override
+        public int write(final long offset, final ByteBuffer buffer) throws IOException {
+            // The pooled channel may be writable even if this handle is not, when it is shared with a writer.
+            if (!isWritable) {
+                throw new IOException("File not opened for writing.");
+            }
+
+            final FileChannel channel = getChannel();
+            final int count;
+            if (isDirectTransfer(offset, buffer.remaining()) && (offset | buffer.remaining()) % directAlignment == 0) {
+                count = writeDirect(offset, buffer);
+            } else {
+                count = channel.write(buffer, offset);
+            }
+            sequentialPosition = offset + count;
+            return count;
+        }
+
+        @Override
+        public List<DirectoryEntry> readdir() throws IOException {
+            throw new IOException();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (directChannel != null) {
+                directChannel.close();
+                directChannel = null;
+            }
+            directBuffer = null;
+
+            if (channel != null) {
+                final PooledChannel released = channel;
+                channel = null;
+                releaseChannel(released);
+            }
+        }
+
+        private FileChannel getChannel() throws IOException {
+            if (channel == null) {
+                throw new IOException();
+            }
+            return channel.channel;
+        }
+
+        private boolean isDirectTransfer(final long offset, final int length) {
+            final int threshold = directTransferThreshold;
+            if (threshold == 0 || length < threshold || offset != sequentialPosition || isDirectUnsupported) {
+                return false;
+            }
+
+            if (directChannel == null) {
+                try {
+                    directAlignment = Math.toIntExact(Files.getFileStore(hostPath).getBlockSize());
+                    if (directAlignment <= 0 || Integer.bitCount(directAlignment) != 1) {
+                        // Unknown block size, or one we cannot align buffers to, fall back to buffered I/O.
+                        isDirectUnsupported = true;
+                        return false;
+                    }
+                    directChannel = isWritable
+                        ? FileChannel.open(hostPath, StandardOpenOption.READ, StandardOpenOption.WRITE, ExtendedOpenOption.DIRECT)
+                        : FileChannel.open(hostPath, StandardOpenOption.READ, ExtendedOpenOption.DIRECT);
+                } catch (final IOException | UnsupportedOperationException | ArithmeticException e) {
+                    isDirectUnsupported = true; // E.g. host file system does not support direct I/O.
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private ByteBuffer getDirectBuffer(final int length) {
+            if (directBuffer == null || directBuffer.capacity() < length) {
+                directBuffer = ByteBuffer.allocateDirect(length + directAlignment).alignedSlice(directAlignment);
+            }
+            return directBuffer.clear().limit(length);
+        }
+
+        private int readDirect(final long offset, final ByteBuffer buffer) throws IOException {
+            final long alignedOffset = offset - offset % directAlignment;
+            final long end = offset + buffer.remaining();
+            final long alignedEnd = (end + directAlignment - 1) / directAlignment * directAlignment;
+            final ByteBuffer aligned = getDirectBuffer(Math.toIntExact(alignedEnd - alignedOffset));
+
+            while (aligned.hasRemaining()) {
+                // Partial blocks are only read at the end of the file, and would make the next read unaligned.
+                if (directChannel.read(aligned, alignedOffset + aligned.position()) <= 0 ||
+                    aligned.position() % directAlignment != 0) {
+                    break;
+                }
+            }
+
+            final int skip = (int) (offset - alignedOffset);
+            if (aligned.position() <= skip) {
+                return 0;
+            }
+
+            final int count = Math.min(buffer.remaining(), aligned.position() - skip);
+            buffer.put(buffer.position(), aligned, skip, count);
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        private int writeDirect(final long offset, final ByteBuffer buffer) throws IOException {
+            final int count = buffer.remaining();
+            final ByteBuffer aligned = getDirectBuffer(count);
+            aligned.put(0, buffer, buffer.position(), count);
+
+            while (aligned.hasRemaining()) {
+                directChannel.write(aligned, offset + aligned.position());
+            }
+
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+    }
+
+    /**
+     * Lists a directory incrementally, using the index of entries in the directory stream as cookies.
+     * <p>
+     * Continuing where the last call left off is free. Going back requires listing the directory again.
+     */
+    private final class DirectoryHandle implements FileHandle {
+        private final java.nio.file.Path directory;
+        @Nullable private DirectoryStream<java.nio.file.Path> stream;
+        @Nullable private Iterator<java.nio.file.Path> iterator;
+        @Nullable private DirectoryEntry pendingEntry; // Taken from the iterator, but rejected by the visitor.
+        private long position; // Cookie of the entry the next call would start at.
+
+        public DirectoryHandle(final java.nio.file.Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        public int read(final long offset, final ByteBuffer buffer) throws IOException {
+            throw new IOException();
+        }
+
+        @Override
+        public int write(final long offset, final ByteBuffer buffer) throws IOException {
+            throw new IOException();
+        }
+
+        @Override
+        public List<DirectoryEntry> readdir() throws IOException {
+            final ArrayList<DirectoryEntry> entries = new ArrayList<>();
+            readdir(0, (entry, cookie) -> entries.add(entry));
+            return entries;
+        }
+
+        @Override
+        public void readdir(final long cookie, final DirectoryEntryVisitor visitor) throws IOException {
+            if (iterator == null || cookie < position) {
+                close();
+                stream = Files.newDirectoryStream(directory);
+                iterator = stream.iterator();
+                position = 0;
+            }
+
+            try {
+                while (position < cookie) {
+                    if (pendingEntry != null) {
+                        pendingEntry = null;
+                    } else if (iterator.hasNext()) {
+                        iterator.next();
+                    } else {
+                        return;
+                    }
+                    position++;
+                }
+
+                for (; ; ) {
+                    if (pendingEntry == null) {
+                        if (!iterator.hasNext()) {
+                            return;
+                        }
+                        pendingEntry = createEntry(iterator.next());
+                    }
+
+                    if (!visitor.visit(pendingEntry, position + 1)) {
+                        return;
+                    }
+
+                    pendingEntry = null;
+                    position++;
+                }
+            } catch (final DirectoryIteratorException e) {
+                throw e.getCause();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            pendingEntry = null;
+            iterator = null;
+            if (stream != null) {
+                stream.close();
+                stream = null;
+            }
+        }
+    }
 }
@@ -0,0 +1,599 @@
+package li.cil.sedna.fs;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A writable file system keeping all its contents in memory, for scratch space that never touches the host disk.
+ * <p>
+ * File contents are stored off-heap in fixed-size chunks, which are only allocated for ranges that have been
+ * written to, so sparse files are cheap. Appending never copies existing data, and chunks dropped by truncating
+ * a file immediately stop counting towards the capacity, though their memory is only reclaimed by the garbage
+ * collector. The total size of all allocated chunks is limited by the capacity of the file system; writes
+ * exceeding it fail with a {@link NoSpaceLeftException}. Files may be at most {@link #MAX_FILE_SIZE}
+ * bytes large. Nodes are looked up by their full path, so path lookups do not depend on directory depth. In
+ * turn, renaming a directory is linear in the number of nodes below it.
+ * <p>
+ * Contents of unlinked files remain accessible through handles that were open at the time, and are released
+ * when the last of these handles is closed.
+ * <p>
+ * This class is thread-safe. Instances can be serialized using the serializer registered in
+ * {@link li.cil.sedna.Sedna#initialize()}, see {@link #exportNodes()}. Devices using a file system, such as
+ * {@link li.cil.sedna.device.virtio.VirtIOFileSystemDevice}, do not serialize it, so to keep its contents in a
+ * snapshot, the owner of the file system has to serialize it alongside the device.
+ */
+public final class MemoryFileSystem implements FileSystem {
+    public static final int CHUNK_SIZE = 16 * 1024;
+    public static final long MAX_FILE_SIZE = (long) Integer.MAX_VALUE * CHUNK_SIZE;
+
+    private static final long ROOT_UNIQUE_ID = 1;
+
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(CHUNK_SIZE).asReadOnlyBuffer();
+
+    private final long capacity;
+    private final HashMap<Path, Node> nodes = new HashMap<>();
+    private long allocatedSize;
+    private long nextUniqueId = ROOT_UNIQUE_ID + 1; // Never reset, files open across a clear() keep their id.
+
+    /**
+     * Creates a new, empty file system.
+     *
+     * @param capacity the maximum number of bytes of file contents the file system may hold.
+     */
+    public MemoryFileSystem(final long capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        this.capacity = capacity;
+        clear();
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getAllocatedSize() {
+        return allocatedSize;
+    }
+
+    /**
+     * Removes all files and directories. As with {@link #unlink(Path)}, open handles keep the contents of their
+     * files until they are closed.
+     */
+    public synchronized void clear() {
+        nodes.values().forEach(node -> {
+            node.isUnlinked = true;
+            if (node.openCount == 0) {
+                release(node);
+            }
+        });
+        nodes.clear();
+        nodes.put(new Path(), new Node(ROOT_UNIQUE_ID, true));
+    }
+
+    @Override
+    public synchronized FileSystemStats statfs() {
+        final FileSystemStats result = new FileSystemStats();
+        result.blockSize = CHUNK_SIZE;
+        result.blockCount = capacity / CHUNK_SIZE;
+        result.freeBlockCount = (capacity - allocatedSize) / CHUNK_SIZE;
+        result.availableBlockCount = result.freeBlockCount;
+        result.fileCount = nodes.size();
+        return result;
+    }
+
+    @Override
+    public synchronized long getUniqueId(final Path path) throws IOException {
+        return getNodeOrThrow(path).uniqueId;
+    }
+
+    @Override
+    public synchronized boolean exists(final Path path) {
+        return nodes.containsKey(path);
+    }
+
+    @Override
+    public synchronized boolean isDirectory(final Path path) {
+        final Node node = nodes.get(path);
+        return node != null && node.isDirectory();
+    }
+
+    @Override
+    public boolean isWritable(final Path path) {
+        return exists(path);
+    }
+
+    @Override
+    public boolean isReadable(final Path path) {
+        return exists(path);
+    }
+
+    @Override
+    public boolean isExecutable(final Path path) {
+        return exists(path);
+    }
+
+    @Override
+    public synchronized BasicFileAttributes getAttributes(final Path path) throws IOException {
+        return new NodeAttributes(getNodeOrThrow(path));
+    }
+
+    @Override
+    public synchronized void mkdir(final Path path) throws IOException {
+        addNode(path, new Node(nextUniqueId++, true));
+    }
+
+    @Override
+    public synchronized FileHandle open(final Path path, final int flags) throws IOException {
+        final Node node = getNodeOrThrow(path);
+        if (!node.isDirectory() && (flags & FileMode.WRITE) != 0 && (flags & FileMode.TRUNCATE) != 0) {
+            release(node);
+            node.touch();
+        }
+        return openNode(node);
+    }
+
+    @Override
+    public synchronized FileHandle create(final Path path, final int flags) throws IOException {
+        final Node node = new Node(nextUniqueId++, false);
+        addNode(path, node);
+        return openNode(node);
+    }
+
+    @Override
+    public synchronized void unlink(final Path path) throws IOException {
+        final Node node = getNodeOrThrow(path);
+        if (path.getParts().length == 0) {
+            throw new IOException();
+        }
+        if (node.isDirectory() && !node.children.isEmpty()) {
+            throw new DirectoryNotEmptyException(path.toString());
+        }
+
+        final Node parent = nodes.get(parentOf(path));
+        parent.children.remove(getName(path));
+        parent.touch();
+        nodes.remove(path);
+
+        node.isUnlinked = true;
+        if (node.openCount == 0) {
+            release(node);
+        }
+    }
+
+    @Override
+    public synchronized void rename(final Path oldpath, final Path newpath) throws IOException {
+        final Node node = getNodeOrThrow(oldpath);
+        if (nodes.containsKey(newpath)) {
+            throw new FileAlreadyExistsException(newpath.toString());
+        }
+        if (newpath.startsWith(oldpath)) {
+            throw new IOException();
+        }
+        final Node newParent = getParentOrThrow(newpath);
+
+        final Node oldParent = nodes.get(parentOf(oldpath));
+        oldParent.children.remove(getName(oldpath));
+        oldParent.touch();
+        newParent.children.put(getName(newpath), node);
+        newParent.touch();
+        move(node, oldpath, newpath);
+    }
+
+    /**
+     * Returns the state of all nodes in this file system, in an order where directories precede their contents.
+     * The root directory is not included.
+     * <p>
+     * This is intended for serialization, use {@link #importNodes(List)} to restore the exported state.
+     *
+     * @return the state of all nodes.
+     * @throws IOException if a file is too large to be exported.
+     */
+    public synchronized List<NodeState> exportNodes() throws IOException {
+        final ArrayList<NodeState> result = new ArrayList<>(nodes.size() - 1);
+        exportChildren(new Path(), nodes.get(new Path()), result);
+        return result;
+    }
+
+    /**
+     * Replaces the contents of this file system with previously exported nodes.
+     *
+     * @param states the state of the nodes to restore, as returned by {@link #exportNodes()}.
+     * @throws IOException if the nodes exceed the capacity of this file system or are malformed.
+     */
+    public synchronized void importNodes(final List<NodeState> states) throws IOException {
+        clear();
+        for (final NodeState state : states) {
+            final Node node = new Node(state.uniqueId(), state.isDirectory());
+            node.creationTime = state.creationTime();
+            addNode(state.path(), node);
+            if (!state.isDirectory()) {
+                importChunks(node, state);
+            }
+            node.lastModifiedTime = state.lastModifiedTime();
+            nextUniqueId = Math.max(nextUniqueId, state.uniqueId() + 1);
+        }
+    }
+
+    private void importChunks(final Node node, final NodeState state) throws IOException {
+        final int[] chunkIndices = state.chunkIndices();
+        final byte[] chunkData = state.chunkData();
+        if (state.size() < 0 || state.size() > MAX_FILE_SIZE || chunkIndices == null || chunkData == null ||
+            chunkData.length != (long) chunkIndices.length * CHUNK_SIZE) {
+            throw new IOException("Invalid node state.");
+        }
+        if ((long) chunkIndices.length * CHUNK_SIZE > capacity - allocatedSize) {
+            throw new NoSpaceLeftException();
+        }
+
+        for (int i = 0; i < chunkIndices.length; i++) {
+            final int index = chunkIndices[i];
+            if (index < 0 || (long) index * CHUNK_SIZE >= state.size() || node.chunks.containsKey(index)) {
+                throw new IOException("Invalid node state.");
+            }
+            final ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            chunk.put(0, chunkData, i * CHUNK_SIZE, CHUNK_SIZE);
+            node.chunks.put(index, chunk);
+            allocatedSize += CHUNK_SIZE;
+        }
+        node.size = state.size();
+    }
+
+    private void exportChildren(final Path path, final Node directory, final List<NodeState> result) throws IOException {
+        for (final var child : directory.children.entrySet()) {
+            final Path childPath = path.resolve(child.getKey());
+            final Node node = child.getValue();
+            int[] chunkIndices = null;
+            byte[] chunkData = null;
+            if (!node.isDirectory()) {
+                // Only chunks that are allocated are exported, so sparse files stay sparse.
+                if ((long) node.chunks.size() * CHUNK_SIZE > Integer.MAX_VALUE - 8) {
+                    throw new IOException("File too large to be exported.");
+                }
+                chunkIndices = node.chunks.keySet().toIntArray();
+                IntArrays.quickSort(chunkIndices);
+                chunkData = new byte[chunkIndices.length * CHUNK_SIZE];
+                for (int i = 0; i < chunkIndices.length; i++) {
+                    node.chunks.get(chunkIndices[i]).get(0, chunkData, i * CHUNK_SIZE, CHUNK_SIZE);
+                }
+            }
+            result.add(new NodeState(childPath, node.isDirectory(), node.uniqueId, node.creationTime,
+                node.lastModifiedTime, node.size, chunkIndices, chunkData));
+            if (node.isDirectory()) {
+                exportChildren(childPath, node, result);
+            }
+        }
+    }
+
+    private Node getNodeOrThrow(final Path path) throws IOException {
+        final Node node = nodes.get(path);
+        if (node == null) {
+            throw new NoSuchFileException(path.toString());
+        }
+        return node;
+    }
+
+    private Node getParentOrThrow(final Path path) throws IOException {
+        final Path parentPath = parentOf(path);
+        final Node parent = getNodeOrThrow(parentPath);
+        if (!parent.isDirectory()) {
+            throw new NotDirectoryException(parentPath.toString());
+        }
+        return parent;
+    }
+
+    private void addNode(final Path path, final Node node) throws IOException {
+        if (nodes.containsKey(path)) {
+            throw new FileAlreadyExistsException(path.toString());
+        }
+        final Node parent = getParentOrThrow(path);
+        parent.children.put(getName(path), node);
+        parent.touch();
+        nodes.put(path, node);
+    }
+
+    private void move(final Node node, final Path oldpath, final Path newpath) {
+        nodes.remove(oldpath);
+        nodes.put(newpath, node);
+        if (node.isDirectory()) {
+            node.children.forEach((name, child) -> move(child, oldpath.resolve(name), newpath.resolve(name)));
+        }
+    }
+
+    private FileHandle openNode(final Node node) {
+        if (node.isDirectory()) {
+            return new DirectoryHandle(node);
+        } else {
+            node.openCount++;
+            return new FileNodeHandle(node);
+        }
+    }
+
+    private void release(final Node node) {
+        allocatedSize -= (long) node.chunks.size() * CHUNK_SIZE;
+        node.chunks.clear();
+        node.chunks.trim();
+        node.size = 0;
+    }
+
+    private int read(final Node node, final long offset, final ByteBuffer buffer) {
+        if (offset >= node.size) {
+            return 0;
+        }
+
+        final int count = (int) Math.min(buffer.remaining(), node.size - offset);
+        long position = offset;
+        final long end = offset + count;
+        while (position < end) {
+            final int chunkOffset = (int) (position % CHUNK_SIZE);
+            final int chunkCount = (int) Math.min(end - position, CHUNK_SIZE - chunkOffset);
+            final ByteBuffer chunk = node.chunks.get((int) (position / CHUNK_SIZE));
+            if (chunk != null) {
+                buffer.put(buffer.position(), chunk, chunkOffset, chunkCount);
+            } else {
+                buffer.put(buffer.position(), ZEROS, 0, chunkCount);
+            }
+            buffer.position(buffer.position() + chunkCount);
+            position += chunkCount;
+        }
+
+        return count;
+    }
+
+    private int write(final Node node, final long offset, final ByteBuffer buffer) throws IOException {
+        final int count = buffer.remaining();
+        if (count == 0) {
+            return 0;
+        }
+
+        // Written this way round so offsets close to Long.MAX_VALUE cannot overflow.
+        if (offset > MAX_FILE_SIZE - count) {
+            throw new IOException("File too large.");
+        }
+
+        // Check capacity before modifying anything, so failed writes leave the file unchanged.
+        final long end = offset + count;
+        final int firstChunk = (int) (offset / CHUNK_SIZE);
+        final int lastChunk = (int) ((end - 1) / CHUNK_SIZE);
+        long requiredSize = 0;
+        for (int i = firstChunk; i <= lastChunk; i++) {
+            if (!node.chunks.containsKey(i)) {
+                requiredSize += CHUNK_SIZE;
+            }
+        }
+        if (requiredSize > capacity - allocatedSize) {
+            throw new NoSpaceLeftException();
+        }
+
+        long position = offset;
+        while (position < end) {
+            final int index = (int) (position / CHUNK_SIZE);
+            final int chunkOffset = (int) (position % CHUNK_SIZE);
+            final int chunkCountInChunk = (int) Math.min(end - position, CHUNK_SIZE - chunkOffset);
+            ByteBuffer chunk = node.chunks.get(index);
+            if (chunk == null) {
+                chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+                node.chunks.put(index, chunk);
+                allocatedSize += CHUNK_SIZE;
+            }
+            chunk.put(chunkOffset, buffer, buffer.position(), chunkCountInChunk);
+            buffer.position(buffer.position() + chunkCountInChunk);
+            position += chunkCountInChunk;
+        }
+
+        node.size = Math.max(node.size, end);
+        node.touch();
+        return count;
+    }
+
+    private static Path parentOf(final Path path) {
+        return path.resolve("..");
+    }
+
+    private static String getName(final Path path) {
+        final String[] parts = path.getParts();
+        return parts.length > 0 ? parts[parts.length - 1] : "";
+    }
+
+    /**
+     * The serializable state of a single file or directory.
+     *
+     * @param path             the path of the node.
+     * @param isDirectory      whether the node is a directory.
+     * @param uniqueId         the unique id of the node.
+     * @param creationTime     the creation time of the node, in milliseconds since the epoch.
+     * @param lastModifiedTime the last modification time of the node, in milliseconds since the epoch.
+     * @param size             the size of the node if it is a file, zero otherwise.
+     * @param chunkIndices     the indices of the allocated chunks if the node is a file, {@code null} otherwise.
+     * @param chunkData        the contents of the allocated chunks, in the order of {@code chunkIndices}, if the
+     *                         node is a file, {@code null} otherwise.
+     */
+    public record NodeState(Path path, boolean isDirectory, long uniqueId, long creationTime, long lastModifiedTime,
+                            long size, @Nullable int[] chunkIndices, @Nullable byte[] chunkData) {
+    }
+
+    private static final class Node {
+        public final long uniqueId;
+        @Nullable public final LinkedHashMap<String, Node> children;
+        public final Int2ObjectOpenHashMap<ByteBuffer> chunks = new Int2ObjectOpenHashMap<>(0); // Only ranges written to.
+        public long size;
+        public long creationTime;
+        public long lastModifiedTime;
+        public int openCount;
+        public boolean isUnlinked;
+
+        public Node(final long uniqueId, final boolean isDirectory) {
+            this.uniqueId = uniqueId;
+            this.children = isDirectory ? new LinkedHashMap<>() : null;
+            this.creationTime = System.currentTimeMillis();
+            this.lastModifiedTime = creationTime;
+        }
+
+        public boolean isDirectory() {
+            return children != null;
+        }
+
+        public void touch() {
+            lastModifiedTime = System.currentTimeMillis();
+        }
+    }
+
+    private final class DirectoryHandle implements FileHandle {
+        private final Node node;
+
+        public DirectoryHandle(final Node node) {
+            this.node = node;
+        }
+
+        @Override
+        public int read(final long offset, final ByteBuffer buffer) throws IOException {
+            throw new IOException();
+        }
+
+        @Override
+        public int write(final long offset, final ByteBuffer buffer) throws IOException {
+            throw new IOException();
+        }
+
+        @Override
+        public List<DirectoryEntry> readdir() {
+            synchronized (MemoryFileSystem.this) {
+                final ArrayList<DirectoryEntry> result = new ArrayList<>(node.children.size());
+                node.children.forEach((name, child) -> {
+                    final DirectoryEntry entry = new DirectoryEntry();
+                    entry.name = name;
+                    entry.type = child.isDirectory() ? FileType.DIRECTORY : FileType.FILE;
+                    entry.hasUniqueId = true;
+                    entry.uniqueId = child.uniqueId;
+                    result.add(entry);
+                });
+                return result;
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final class FileNodeHandle implements FileHandle {
+        @Nullable private Node node;
+
+        public FileNodeHandle(final Node node) {
+            this.node = node;
+        }
+
+        @Override
+        public int read(final long offset, final ByteBuffer buffer) throws IOException {
+            synchronized (MemoryFileSystem.this) {
+                if (node == null || offset < 0) {
+                    throw new IOException();
+                }
+                return MemoryFileSystem.this.read(node, offset, buffer);
+            }
+        }
+
+        @Override
+        public int write(final long offset, final ByteBuffer buffer) throws IOException {
+            synchronized (MemoryFileSystem.this) {
+                if (node == null || offset < 0) {
+                    throw new IOException();
+                }
+                return MemoryFileSystem.this.write(node, offset, buffer);
+            }
+        }
+
+        @Override
+        public List<DirectoryEntry> readdir() throws IOException {
+            throw new IOException();
+        }
+
+        @Override
+        public void close() {
+            synchronized (MemoryFileSystem.this) {
+                if (node == null) {
+                    return;
+                }
+                node.openCount--;
+                if (node.isUnlinked && node.openCount == 0) {
+                    release(node);
+                }
+                node = null;
+            }
+        }
+    }
+
+    private static final class NodeAttributes implements BasicFileAttributes {
+        private final Node node;
+        private final FileTime lastModifiedTime;
+        private final FileTime creationTime;
+        private final long size;
+
+        public NodeAttributes(final Node node) {
+            this.node = node;
+            this.lastModifiedTime = FileTime.fromMillis(node.lastModifiedTime);
+            this.creationTime = FileTime.fromMillis(node.creationTime);
+            this.size = node.size;
+        }
+
+        @Override
+        public FileTime lastModifiedTime() {
+            return lastModifiedTime;
+        }
+
+        @Override
+        public FileTime lastAccessTime() {
+            return lastModifiedTime;
+        }
+
+        @Override
+        public FileTime creationTime() {
+            return creationTime;
+        }
+
+        @Override
+        public boolean isRegularFile() {
+            return !node.isDirectory();
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return node.isDirectory();
+        }
+
+        @Override
+        public boolean isSymbolicLink() {
+            return false;
+        }
+
+        @Override
+        public boolean isOther() {
+            return false;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public Object fileKey() {
+            return node;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package li.cil.sedna.fs;
+
+import java.nio.file.FileSystemException;
+
+/**
+ * Thrown when a write or file creation fails because a file system has run out of space.
+ */
+public final class NoSpaceLeftException extends FileSystemException {
+    public NoSpaceLeftException() {
+        super(null, null, "No space left on device");
+    }
+}
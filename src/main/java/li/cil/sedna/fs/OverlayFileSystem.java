@@ -0,0 +1,440 @@
+package li.cil.sedna.fs;
+
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * A file system layering a writable upper file system over a lower file system, which is never modified.
+ * <p>
+ * Files are looked up in the upper file system first, then in the lower one. Files from the lower file system
+ * are copied to the upper file system when they are first opened for writing. Removing a file that exists in
+ * the lower file system creates a whiteout in the upper file system, which hides the lower file from then on.
+ * Whiteouts are stored as empty files named {@code .wh.<name>}, and directories replacing a removed lower
+ * directory are marked with an empty {@code .wh..wh..opq} file, so the upper file system can be persisted and
+ * reused like any other. Names starting with {@code .wh.} are therefore reserved, and cannot be used by clients.
+ * <p>
+ * Directory listings merge the contents of both file systems. Renaming directories copies the entire directory
+ * from the lower file system to the upper one first, so this is expensive for large lower directories.
+ * <p>
+ * Unique ids are assigned per file system instance, so they are only stable for the lifetime of this instance,
+ * and change when a file is copied up.
+ */
+public final class OverlayFileSystem implements FileSystem {
+    private static final String WHITEOUT_PREFIX = ".wh.";
+    private static final String OPAQUE_MARKER = WHITEOUT_PREFIX + WHITEOUT_PREFIX + ".opq";
+    private static final String COPY_UP_PREFIX = WHITEOUT_PREFIX + WHITEOUT_PREFIX + ".copy.";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final FileSystem lower;
+    private final FileSystem upper;
+    private final Long2LongOpenHashMap lowerUniqueIds = new Long2LongOpenHashMap();
+    private final Long2LongOpenHashMap upperUniqueIds = new Long2LongOpenHashMap();
+    private long nextUniqueId = 1;
+
+    public OverlayFileSystem(final FileSystem lower, final FileSystem upper) {
+        this.lower = lower;
+        this.upper = upper;
+        lowerUniqueIds.defaultReturnValue(0);
+        upperUniqueIds.defaultReturnValue(0);
+    }
+
+    @Override
+    public FileSystemStats statfs() throws IOException {
+        return upper.statfs();
+    }
+
+    @Override
+    public long getUniqueId(final Path path) throws IOException {
+        final FileSystem layer = getLayerOrThrow(path);
+        return getUniqueId(layer, layer.getUniqueId(path));
+    }
+
+    @Override
+    public boolean exists(final Path path) {
+        return getLayer(path) != null;
+    }
+
+    @Override
+    public boolean isDirectory(final Path path) {
+        final FileSystem layer = getLayer(path);
+        return layer != null && layer.isDirectory(path);
+    }
+
+    @Override
+    public boolean isWritable(final Path path) {
+        final FileSystem layer = getLayer(path);
+        return layer == upper ? upper.isWritable(path) : layer != null;
+    }
+
+    @Override
+    public boolean isReadable(final Path path) {
+        final FileSystem layer = getLayer(path);
+        return layer != null && layer.isReadable(path);
+    }
+
+    @Override
+    public boolean isExecutable(final Path path) {
+        final FileSystem layer = getLayer(path);
+        return layer != null && layer.isExecutable(path);
+    }
+
+    @Override
+    public BasicFileAttributes getAttributes(final Path path) throws IOException {
+        return getLayerOrThrow(path).getAttributes(path);
+    }
+
+    @Override
+    public synchronized void mkdir(final Path path) throws IOException {
+        prepareCreate(path);
+        upper.mkdir(path);
+        if (isLowerVisible(path) && lower.exists(path)) {
+            markOpaque(path);
+        }
+    }
+
+    @Override
+    public synchronized FileHandle open(final Path path, final int flags) throws IOException {
+        final FileSystem layer = getLayerOrThrow(path);
+        if (layer.isDirectory(path)) {
+            return new MergedDirectoryHandle(path);
+        }
+
+        if (layer == lower && (flags & FileMode.WRITE) != 0) {
+            copyUp(path, (flags & FileMode.TRUNCATE) == 0);
+            return upper.open(path, flags);
+        }
+
+        return layer.open(path, flags);
+    }
+
+    @Override
+    public synchronized FileHandle create(final Path path, final int flags) throws IOException {
+        prepareCreate(path);
+        return upper.create(path, flags);
+    }
+
+    @Override
+    public synchronized void unlink(final Path path) throws IOException {
+        final FileSystem layer = getLayerOrThrow(path);
+        if (layer.isDirectory(path) && !listMerged(path).isEmpty()) {
+            throw new DirectoryNotEmptyException(path.toString());
+        }
+
+        if (upper.exists(path)) {
+            removeUpper(path);
+        }
+        if (isLowerVisible(path) && lower.exists(path)) {
+            createWhiteout(path);
+        }
+    }
+
+    @Override
+    public synchronized void rename(final Path oldPath, final Path newPath) throws IOException {
+        getLayerOrThrow(oldPath);
+        if (isReserved(newPath)) {
+            throw new IOException();
+        }
+        if (getLayer(newPath) != null) {
+            throw new FileAlreadyExistsException(newPath.toString());
+        }
+        getLayerOrThrow(parentOf(newPath));
+
+        copyUpTree(oldPath);
+        final boolean hasLowerOld = isLowerVisible(oldPath) && lower.exists(oldPath);
+
+        ensureUpperDirectory(parentOf(newPath));
+        upper.rename(oldPath, newPath);
+        removeWhiteout(newPath);
+
+        if (hasLowerOld) {
+            createWhiteout(oldPath);
+        }
+
+        // Checked only after removing the whiteout of newPath, which hid deleted lower entries from this check.
+        if (upper.isDirectory(newPath) && isLowerVisible(newPath) && lower.exists(newPath)) {
+            markOpaque(newPath);
+        }
+    }
+
+    @Nullable
+    private FileSystem getLayer(final Path path) {
+        if (isReserved(path)) {
+            return null;
+        }
+        if (upper.exists(path)) {
+            return upper;
+        }
+        if (isLowerVisible(path) && lower.exists(path)) {
+            return lower;
+        }
+        return null;
+    }
+
+    private FileSystem getLayerOrThrow(final Path path) throws IOException {
+        final FileSystem layer = getLayer(path);
+        if (layer == null) {
+            throw new NoSuchFileException(path.toString());
+        }
+        return layer;
+    }
+
+    /**
+     * Checks whether a path in the lower file system is not hidden by a whiteout, an opaque directory, or a
+     * file in the upper file system.
+     */
+    private boolean isLowerVisible(final Path path) {
+        Path current = new Path();
+        for (final String part : path.getParts()) {
+            if (upper.exists(current)) {
+                if (!upper.isDirectory(current) || upper.exists(current.resolve(OPAQUE_MARKER))) {
+                    return false;
+                }
+                if (upper.exists(current.resolve(WHITEOUT_PREFIX + part))) {
+                    return false;
+                }
+            }
+            current = current.resolve(part);
+        }
+        return true;
+    }
+
+    private List<DirectoryEntry> listMerged(final Path path) throws IOException {
+        final ArrayList<DirectoryEntry> result = new ArrayList<>();
+        final HashSet<String> hiddenNames = new HashSet<>();
+
+        if (upper.isDirectory(path)) {
+            try (final FileHandle handle = upper.open(path, FileMode.READ)) {
+                for (final DirectoryEntry entry : handle.readdir()) {
+                    if (entry.name.startsWith(WHITEOUT_PREFIX)) {
+                        if (!entry.name.equals(OPAQUE_MARKER)) {
+                            hiddenNames.add(entry.name.substring(WHITEOUT_PREFIX.length()));
+                        }
+                        continue;
+                    }
+                    hiddenNames.add(entry.name);
+                    result.add(copyEntry(upper, entry));
+                }
+            }
+        }
+
+        if (isLowerVisible(path) && !upper.exists(path.resolve(OPAQUE_MARKER)) && lower.isDirectory(path)) {
+            try (final FileHandle handle = lower.open(path, FileMode.READ)) {
+                for (final DirectoryEntry entry : handle.readdir()) {
+                    if (!hiddenNames.contains(entry.name) && !entry.name.startsWith(WHITEOUT_PREFIX)) {
+                        result.add(copyEntry(lower, entry));
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private DirectoryEntry copyEntry(final FileSystem layer, final DirectoryEntry entry) {
+        final DirectoryEntry result = new DirectoryEntry();
+        result.name = entry.name;
+        result.type = entry.type;
+        if (entry.hasUniqueId) {
+            result.uniqueId = getUniqueId(layer, entry.uniqueId);
+            result.hasUniqueId = true;
+        }
+        return result;
+    }
+
+    private synchronized long getUniqueId(final FileSystem layer, final long layerUniqueId) {
+        final Long2LongOpenHashMap uniqueIds = layer == upper ? upperUniqueIds : lowerUniqueIds;
+        long uniqueId = uniqueIds.get(layerUniqueId);
+        if (uniqueId == 0) {
+            uniqueId = nextUniqueId++;
+            uniqueIds.put(layerUniqueId, uniqueId);
+        }
+        return uniqueId;
+    }
+
+    private void prepareCreate(final Path path) throws IOException {
+        if (isReserved(path)) {
+            throw new IOException();
+        }
+        if (getLayer(path) != null) {
+            throw new FileAlreadyExistsException(path.toString());
+        }
+
+        final Path parent = parentOf(path);
+        if (!isDirectory(parent)) {
+            throw new NoSuchFileException(parent.toString());
+        }
+
+        ensureUpperDirectory(parent);
+        removeWhiteout(path);
+    }
+
+    private void copyUp(final Path path, final boolean copyData) throws IOException {
+        ensureUpperDirectory(parentOf(path));
+        if (!copyData) {
+            upper.create(path, FileMode.WRITE).close();
+            return;
+        }
+
+        // Copy to a reserved name first, so a failed copy never leaves a truncated file shadowing the lower one.
+        final Path copy = parentOf(path).resolve(COPY_UP_PREFIX + getName(path));
+        if (upper.exists(copy)) {
+            upper.unlink(copy); // Left behind by an interrupted copy.
+        }
+        try {
+            copyData(path, copy);
+            upper.rename(copy, path);
+        } catch (final IOException e) {
+            try {
+                upper.unlink(copy);
+            } catch (final IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    private void copyData(final Path path, final Path copy) throws IOException {
+        try (final FileHandle target = upper.create(copy, FileMode.WRITE)) {
+            try (final FileHandle source = lower.open(path, FileMode.READ)) {
+                final ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+                long offset = 0;
+                for (; ; ) {
+                    buffer.clear();
+                    if (source.read(offset, buffer) <= 0) {
+                        break;
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        offset += target.write(offset, buffer);
+                    }
+                }
+            }
+        }
+    }
+
+    private void copyUpTree(final Path path) throws IOException {
+        if (upper.exists(path) && !isDirectory(path)) {
+            return;
+        }
+
+        if (!isDirectory(path)) {
+            copyUp(path, true);
+            return;
+        }
+
+        ensureUpperDirectory(path);
+        for (final DirectoryEntry entry : listMerged(path)) {
+            copyUpTree(path.resolve(entry.name));
+        }
+        if (isLowerVisible(path) && lower.exists(path)) {
+            markOpaque(path);
+        }
+    }
+
+    private void ensureUpperDirectory(final Path path) throws IOException {
+        Path current = new Path();
+        for (final String part : path.getParts()) {
+            current = current.resolve(part);
+            if (!upper.exists(current)) {
+                upper.mkdir(current);
+            }
+        }
+    }
+
+    private void removeUpper(final Path path) throws IOException {
+        if (upper.isDirectory(path)) {
+            // Only whiteouts left, otherwise the merged directory would not have been empty.
+            try (final FileHandle handle = upper.open(path, FileMode.READ)) {
+                for (final DirectoryEntry entry : handle.readdir()) {
+                    upper.unlink(path.resolve(entry.name));
+                }
+            }
+        }
+        upper.unlink(path);
+    }
+
+    private void createWhiteout(final Path path) throws IOException {
+        final Path parent = parentOf(path);
+        ensureUpperDirectory(parent);
+        final Path whiteout = parent.resolve(WHITEOUT_PREFIX + getName(path));
+        if (!upper.exists(whiteout)) {
+            upper.create(whiteout, FileMode.WRITE).close();
+        }
+    }
+
+    private void removeWhiteout(final Path path) throws IOException {
+        final Path whiteout = parentOf(path).resolve(WHITEOUT_PREFIX + getName(path));
+        if (upper.exists(whiteout)) {
+            upper.unlink(whiteout);
+        }
+    }
+
+    private void markOpaque(final Path path) throws IOException {
+        final Path marker = path.resolve(OPAQUE_MARKER);
+        if (!upper.exists(marker)) {
+            upper.create(marker, FileMode.WRITE).close();
+        }
+    }
+
+    private static boolean isReserved(final Path path) {
+        final String[] parts = path.getParts();
+        for (final String part : parts) {
+            if (part.startsWith(WHITEOUT_PREFIX)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Path parentOf(final Path path) {
+        return path.resolve("..");
+    }
+
+    private static String getName(final Path path) {
+        final String[] parts = path.getParts();
+        return parts.length > 0 ? parts[parts.length - 1] : "";
+    }
+
+    private final class MergedDirectoryHandle implements FileHandle {
+        private final Path path;
+        @Nullable private List<DirectoryEntry> entries;
+
+        public MergedDirectoryHandle(final Path path) {
+            this.path = path;
+        }
+
+        @Override
+        public int read(final long offset, final ByteBuffer buffer) throws IOException {
+            throw new IOException();
+        }
+
+        @Override
+        public int write(final long offset, final ByteBuffer buffer) throws IOException {
+            throw new IOException();
+        }
+
+        @Override
+        public List<DirectoryEntry> readdir() throws IOException {
+            // Listed once per handle, so cookies stay valid while the handle is open.
+            if (entries == null) {
+                entries = listMerged(path);
+            }
+            return entries;
+        }
+
+        @Override
+        public void close() {
+            entries = null;
+        }
+    }
+}
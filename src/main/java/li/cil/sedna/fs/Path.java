@@ -38,6 +38,23 @@ public final class Path {
         return parts.toArray(new String[0]);
     }
 
+    public boolean startsWith(final Path other) {
+        return parts.size() >= other.parts.size() && parts.subList(0, other.parts.size()).equals(other.parts);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        final Path that = (Path) o;
+        return parts.equals(that.parts);
+    }
+
+    @Override
+    public int hashCode() {
+        return parts.hashCode();
+    }
+
     @Override
     public String toString() {
         return toString("/");
@@ -0,0 +1,177 @@
+package li.cil.sedna.fs;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A size-bounded cache of decompressed zip entries, stored off-heap.
+ * <p>
+ * Entries are identified by the name of the zip file they belong to and their name, size, checksum and
+ * modification time within that zip file. This allows multiple {@link ZipFileSystem}s, each with its own
+ * {@link ZipFile} instance of the same archive, to share decompressed data. When the cache is full, the least
+ * recently used entries are evicted. Entries larger than a quarter of the capacity are never cached.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class ZipEntryCache {
+    public static final long DEFAULT_CAPACITY = 64 * 1024 * 1024;
+
+    private static final ZipEntryCache SHARED = new ZipEntryCache(DEFAULT_CAPACITY);
+
+    private final long capacity;
+    private final long maxEntrySize;
+    private final LinkedHashMap<Key, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * The cache used by {@link ZipFileSystem}s by default.
+     *
+     * @return the shared cache.
+     */
+    public static ZipEntryCache getShared() {
+        return SHARED;
+    }
+
+    public ZipEntryCache(final long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException();
+        }
+
+        this.capacity = capacity;
+        this.maxEntrySize = Math.min(Integer.MAX_VALUE, capacity / 4);
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Whether the specified entry may be stored in this cache.
+     *
+     * @param entry the entry to check.
+     * @return {@code true} if the entry has a known size small enough to be cached; {@code false} otherwise.
+     */
+    public boolean canCache(final ZipEntry entry) {
+        return !entry.isDirectory() && entry.getSize() >= 0 && entry.getSize() <= maxEntrySize;
+    }
+
+    /**
+     * Returns the decompressed contents of an entry, if cached.
+     *
+     * @param zipFile the zip file the entry belongs to.
+     * @param entry   the entry to get the contents of.
+     * @return a read-only view of the contents, or {@code null} if the entry is not cached.
+     */
+    @Nullable
+    public synchronized ByteBuffer get(final ZipFile zipFile, final ZipEntry entry) {
+        final ByteBuffer data = entries.get(new Key(zipFile, entry));
+        if (data != null) {
+            hitCount++;
+            return data.duplicate();
+        } else {
+            missCount++;
+            return null;
+        }
+    }
+
+    /**
+     * Returns the decompressed contents of an entry, decompressing and caching it if necessary.
+     *
+     * @param zipFile the zip file the entry belongs to.
+     * @param entry   the entry to get the contents of.
+     * @return a read-only view of the contents.
+     * @throws IOException if the entry cannot be cached or reading it fails.
+     */
+    public ByteBuffer load(final ZipFile zipFile, final ZipEntry entry) throws IOException {
+        final ByteBuffer cached = get(zipFile, entry);
+        if (cached != null) {
+            return cached;
+        }
+
+        if (!canCache(entry)) {
+            throw new IOException("Entry too large to be cached.");
+        }
+
+        final ByteBuffer data = ByteBuffer.allocateDirect((int) entry.getSize());
+        final byte[] transferBuffer = new byte[Math.min(64 * 1024, Math.max(1, data.capacity()))];
+        try (final InputStream stream = zipFile.getInputStream(entry)) {
+            while (data.hasRemaining()) {
+                final int count = stream.read(transferBuffer, 0, Math.min(transferBuffer.length, data.remaining()));
+                if (count < 0) {
+                    throw new IOException("Unexpected end of zip entry.");
+                }
+                data.put(transferBuffer, 0, count);
+            }
+        }
+
+        return put(zipFile, entry, data.flip());
+    }
+
+    /**
+     * Stores the decompressed contents of an entry.
+     * <p>
+     * If the entry is already cached, the existing data is kept and returned instead.
+     *
+     * @param zipFile the zip file the entry belongs to.
+     * @param entry   the entry to store the contents of.
+     * @param data    the decompressed contents of the entry. Must not be modified after this call.
+     * @return a read-only view of the cached contents.
+     */
+    public synchronized ByteBuffer put(final ZipFile zipFile, final ZipEntry entry, final ByteBuffer data) {
+        final Key key = new Key(zipFile, entry);
+        final ByteBuffer existing = entries.get(key);
+        if (existing != null) {
+            return existing.duplicate();
+        }
+
+        final ByteBuffer stored = data.asReadOnlyBuffer();
+        entries.put(key, stored);
+        size += stored.capacity();
+
+        // Handles still referencing evicted data keep working, its memory is freed once they are gone.
+        final Iterator<Map.Entry<Key, ByteBuffer>> iterator = entries.entrySet().iterator();
+        while (size > capacity && iterator.hasNext()) {
+            final Map.Entry<Key, ByteBuffer> eldest = iterator.next();
+            if (eldest.getKey().equals(key)) {
+                continue;
+            }
+            size -= eldest.getValue().capacity();
+            iterator.remove();
+        }
+
+        return stored.duplicate();
+    }
+
+    private record Key(String zipFileName, String entryName, long size, long crc, long time) {
+        public Key(final ZipFile zipFile, final ZipEntry entry) {
+            this(zipFile.getName(), entry.getName(), entry.getSize(), entry.getCrc(), entry.getTime());
+        }
+    }
+}
@@ -13,8 +13,17 @@ import java.util.*;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
+/**
+ * A read-only file system backed by a {@link ZipFile}.
+ * <p>
+ * Files are decompressed while they are read sequentially. Files that are read non-sequentially, or read
+ * sequentially in full, are stored in a {@link ZipEntryCache}, which by default is shared between all instances.
+ */
 public final class ZipFileSystem implements FileSystem {
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
     private final ZipFile zipFile;
+    @Nullable private final ZipEntryCache cache;
     private final ZipNode root = new ZipNode();
 
     private static final class ZipNode {
@@ -23,7 +32,18 @@ public final class ZipFileSystem implements FileSystem {
     }
 
     public ZipFileSystem(final ZipFile zipFile) {
+        this(zipFile, ZipEntryCache.getShared());
+    }
+
+    /**
+     * Creates a new file system for the specified zip file.
+     *
+     * @param zipFile the zip file to provide access to.
+     * @param cache   the cache to store decompressed files in, or {@code null} to disable caching.
+     */
+    public ZipFileSystem(final ZipFile zipFile, @Nullable final ZipEntryCache cache) {
         this.zipFile = zipFile;
+        this.cache = cache;
         constructTree();
     }
 
@@ -239,38 +259,7 @@ public final class ZipFileSystem implements FileSystem {
                 }
             };
         } else {
-            // Zip file InputStreams don't support seeking, so we have to copy to memory :/
-            final InputStream stream = zipFile.getInputStream(node.entry);
-            final ByteBuffer data = ByteBuffer.wrap(IOUtils.toByteArray(stream));
-            stream.close();
-            return new FileHandle() {
-                @Override
-                public int read(final long offset, final ByteBuffer buffer) throws IOException {
-                    if (offset < 0 || offset > data.capacity()) {
-                        throw new IOException();
-                    }
-                    data.position((int) offset);
-                    final int count = Math.min(buffer.remaining(), data.capacity() - data.position());
-                    data.limit(data.position() + count);
-                    buffer.put(data);
-                    return count;
-                }
-
-                @Override
-                public int write(final long offset, final ByteBuffer buffer) throws IOException {
-                    throw new IOException();
-                }
-
-                @Override
-                public List<DirectoryEntry> readdir() throws IOException {
-                    throw new IOException();
-                }
-
-                @Override
-                public void close() throws IOException {
-                    stream.close();
-                }
-            };
+            return new ZipEntryFileHandle(node.entry);
         }
     }
 
@@ -310,4 +299,140 @@ public final class ZipFileSystem implements FileSystem {
         }
         return node;
     }
+
+    private final class ZipEntryFileHandle implements FileHandle {
+        private final ZipEntry entry;
+        private final boolean isCacheable;
+
+        // Decompressed contents, once available.
+        @Nullable private ByteBuffer data;
+
+        // Stream used for sequential reads, and where it currently is in the entry.
+        @Nullable private InputStream stream;
+        private long streamPosition;
+        @Nullable private byte[] transferBuffer;
+
+        // Collects data read sequentially from the start, to be added to the cache when complete. Allocated on
+        // demand and grown as data arrives, so handles that only read the start of an entry stay cheap.
+        @Nullable private ByteBuffer spool;
+        private boolean isSpooling;
+
+        public ZipEntryFileHandle(final ZipEntry entry) {
+            this.entry = entry;
+            this.isCacheable = cache != null && cache.canCache(entry);
+            if (cache != null) {
+                data = cache.get(zipFile, entry);
+            }
+        }
+
+        @Override
+        public int read(final long offset, final ByteBuffer buffer) throws IOException {
+            if (offset < 0) {
+                throw new IOException();
+            }
+
+            if (data == null && offset < streamPosition && isCacheable) {
+                // Non-sequential access, decompress the whole entry once instead of restarting the stream.
+                closeStream();
+                data = cache.load(zipFile, entry);
+            }
+
+            if (data != null) {
+                if (offset > data.capacity()) {
+                    throw new IOException();
+                }
+                final int count = Math.min(buffer.remaining(), data.capacity() - (int) offset);
+                buffer.put(buffer.position(), data, (int) offset, count);
+                buffer.position(buffer.position() + count);
+                return count;
+            }
+
+            return readFromStream(offset, buffer);
+        }
+
+        @Override
+        public int write(final long offset, final ByteBuffer buffer) throws IOException {
+            throw new IOException();
+        }
+
+        @Override
+        public List<DirectoryEntry> readdir() throws IOException {
+            throw new IOException();
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeStream();
+            data = null;
+        }
+
+        private int readFromStream(final long offset, final ByteBuffer buffer) throws IOException {
+            if (stream == null || offset < streamPosition) {
+                closeStream();
+                stream = zipFile.getInputStream(entry);
+                streamPosition = 0;
+                isSpooling = isCacheable;
+            }
+
+            if (offset > streamPosition) {
+                isSpooling = false;
+                spool = null;
+                streamPosition += IOUtils.skip(stream, offset - streamPosition);
+                if (streamPosition < offset) {
+                    return 0;
+                }
+            }
+
+            if (transferBuffer == null) {
+                transferBuffer = new byte[TRANSFER_BUFFER_SIZE];
+            }
+            final int count = stream.read(transferBuffer, 0, Math.min(buffer.remaining(), transferBuffer.length));
+            if (count <= 0) {
+                return 0;
+            }
+
+            buffer.put(transferBuffer, 0, count);
+            streamPosition += count;
+
+            if (isSpooling) {
+                spool(count);
+            }
+
+            return count;
+        }
+
+        private void spool(final int count) throws IOException {
+            final long size = entry.getSize();
+            if (streamPosition > size) {
+                // Entry is larger than declared, don't trust it.
+                isSpooling = false;
+                spool = null;
+                return;
+            }
+
+            if (spool == null || spool.remaining() < count) {
+                final long grownCapacity = spool != null ? spool.capacity() * 2L : TRANSFER_BUFFER_SIZE;
+                final ByteBuffer grown = ByteBuffer.allocateDirect((int) Math.min(size, Math.max(grownCapacity, streamPosition)));
+                if (spool != null) {
+                    grown.put(spool.flip());
+                }
+                spool = grown;
+            }
+
+            spool.put(transferBuffer, 0, count);
+            if (streamPosition == size) {
+                data = cache.put(zipFile, entry, spool.flip());
+                closeStream();
+            }
+        }
+
+        private void closeStream() throws IOException {
+            isSpooling = false;
+            spool = null;
+            if (stream != null) {
+                stream.close();
+                stream = null;
+            }
+        }
+    }
 }
@@ -1,11 +1,14 @@
 package li.cil.sedna.fs;
 
 import javax.annotation.Nullable;
-import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
@@ -15,15 +18,66 @@ import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
+/**
+ * A read-only file system reading the contents of a zip file from a stream.
+ * <p>
+ * By default, the decompressed contents of all files are held in memory. For large archives, use
+ * {@link #spool(InputStream)} instead, which writes the decompressed contents to a temporary file once and
+ * serves reads from memory-mapped views of it, so data is only paged in when read.
+ * <p>
+ * Instances are immutable after construction and may be shared between multiple devices.
+ */
 public final class ZipStreamFileSystem implements FileSystem {
+    // Size of individual mappings of the spool file, which are limited to 2 GiB each.
+    private static final int SPOOL_SEGMENT_SIZE = 1 << 30;
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
     private final ZipNode root = new ZipNode();
     private final long totalSize;
     private final int totalFileCount;
+    @Nullable private final ByteBuffer[] spoolSegments;
 
     public ZipStreamFileSystem(final InputStream stream) throws IOException {
+        this(stream, null);
+    }
+
+    /**
+     * Creates a file system that keeps the decompressed contents of the archive in a temporary file in the
+     * default temporary-file directory.
+     *
+     * @param stream the stream to read the zip file from.
+     * @return the new file system.
+     * @throws IOException if reading the stream or writing the temporary file fails.
+     * @see #spool(InputStream, java.nio.file.Path)
+     */
+    public static ZipStreamFileSystem spool(final InputStream stream) throws IOException {
+        return spool(stream, Paths.get(System.getProperty("java.io.tmpdir")));
+    }
+
+    /**
+     * Creates a file system that keeps the decompressed contents of the archive in a temporary file.
+     * <p>
+     * The file is deleted as soon as it has been memory-mapped, so it does not outlive this process. Its space
+     * is freed once the file system has been garbage collected.
+     *
+     * @param stream    the stream to read the zip file from.
+     * @param directory the directory to create the temporary file in.
+     * @return the new file system.
+     * @throws IOException if reading the stream or writing the temporary file fails.
+     */
+    public static ZipStreamFileSystem spool(final InputStream stream, final java.nio.file.Path directory) throws IOException {
+        final java.nio.file.Path spoolFile = Files.createTempFile(directory, "sedna-zip-", ".bin");
+        try (final FileChannel channel = FileChannel.open(spoolFile, StandardOpenOption.READ,
+            StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)) {
+            return new ZipStreamFileSystem(stream, channel);
+        }
+    }
+
+    private ZipStreamFileSystem(final InputStream stream, @Nullable final FileChannel spool) throws IOException {
         final ZipInputStream zipStream = new ZipInputStream(stream);
         final HashMap<ZipNode, ZipNode> parents = new HashMap<>();
         final ArrayList<ZipNode> nodes = new ArrayList<>();
+        final byte[] transferBuffer = new byte[TRANSFER_BUFFER_SIZE];
 
         nodes.add(root);
 
@@ -52,8 +106,14 @@ public final class ZipStreamFileSystem implements FileSystem {
             }
 
             if (current != null) {
-                current.data = readEntryData(zipStream);
-                current.attributes = new ZipNodeFileAttributes(entry, current.data.length);
+                if (spool != null) {
+                    current.dataOffset = spool.position();
+                    current.dataLength = spoolEntryData(zipStream, spool, transferBuffer);
+                } else {
+                    current.data = zipStream.readAllBytes();
+                    current.dataLength = current.data.length;
+                }
+                current.attributes = new ZipNodeFileAttributes(entry, current.dataLength);
                 size += current.attributes.size();
                 if (!current.isDirectory()) {
                     fileCount++;
@@ -64,19 +124,44 @@ public final class ZipStreamFileSystem implements FileSystem {
         totalFileCount = fileCount;
         totalSize = size;
 
+        if (spool != null) {
+            final long spoolSize = spool.position();
+            spoolSegments = new ByteBuffer[(int) ((spoolSize + SPOOL_SEGMENT_SIZE - 1) / SPOOL_SEGMENT_SIZE)];
+            for (int i = 0; i < spoolSegments.length; i++) {
+                final long position = (long) i * SPOOL_SEGMENT_SIZE;
+                spoolSegments[i] = spool.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SPOOL_SEGMENT_SIZE, spoolSize - position));
+            }
+        } else {
+            spoolSegments = null;
+        }
+
         nodes.forEach(ZipNode::buildEntries);
     }
 
-    private byte[] readEntryData(final ZipInputStream zipStream) throws IOException {
-        final ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-        final byte[] buffer = new byte[512];
-        while (zipStream.available() > 0) {
-            final int count = zipStream.read(buffer);
-            if (count > 0) {
-                dataStream.write(buffer, 0, count);
+    private static long spoolEntryData(final ZipInputStream zipStream, final FileChannel spool, final byte[] transferBuffer) throws IOException {
+        long length = 0;
+        int count;
+        while ((count = zipStream.read(transferBuffer)) >= 0) {
+            final ByteBuffer buffer = ByteBuffer.wrap(transferBuffer, 0, count);
+            while (buffer.hasRemaining()) {
+                spool.write(buffer);
             }
+            length += count;
         }
-        return dataStream.toByteArray();
+        return length;
+    }
+
+    private int readSpooled(final long position, final ByteBuffer buffer, final int length) {
+        int count = 0;
+        while (count < length) {
+            final ByteBuffer segment = spoolSegments[(int) ((position + count) / SPOOL_SEGMENT_SIZE)];
+            final int segmentOffset = (int) ((position + count) % SPOOL_SEGMENT_SIZE);
+            final int segmentCount = Math.min(length - count, segment.capacity() - segmentOffset);
+            buffer.put(buffer.position(), segment, segmentOffset, segmentCount);
+            buffer.position(buffer.position() + segmentCount);
+            count += segmentCount;
+        }
+        return count;
     }
 
     @Override
@@ -210,16 +295,19 @@ public final class ZipStreamFileSystem implements FileSystem {
                 }
             };
         } else {
-            final byte[] data = node.data;
             return new FileHandle() {
                 @Override
                 public int read(final long offset, final ByteBuffer buffer) throws IOException {
-                    if (offset < 0 || offset > data.length) {
+                    if (offset < 0 || offset > node.dataLength) {
                         throw new IOException();
                     }
-                    final int count = Math.min(buffer.remaining(), (int) Math.min(Integer.MAX_VALUE, data.length - offset));
-                    buffer.put(data, (int) offset, count);
-                    return count;
+                    final int count = (int) Math.min(buffer.remaining(), node.dataLength - offset);
+                    if (node.data != null) {
+                        buffer.put(node.data, (int) offset, count);
+                        return count;
+                    } else {
+                        return readSpooled(node.dataOffset + offset, buffer, count);
+                    }
                 }
 
                 @Override
@@ -283,7 +371,9 @@ public final class ZipStreamFileSystem implements FileSystem {
 
     private static final class ZipNode {
         public ZipNodeFileAttributes attributes;
-        public byte[] data;
+        @Nullable public byte[] data; // Contents when held in memory.
+        public long dataOffset; // Offset of contents in spool file otherwise.
+        public long dataLength;
         public LinkedHashMap<String, ZipNode> children = new LinkedHashMap<>();
         public ArrayList<DirectoryEntry> entries = new ArrayList<>();
 
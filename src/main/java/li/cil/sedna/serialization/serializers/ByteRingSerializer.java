@@ -0,0 +1,41 @@
+package li.cil.sedna.serialization.serializers;
+
+import li.cil.ceres.api.DeserializationVisitor;
+import li.cil.ceres.api.SerializationException;
+import li.cil.ceres.api.SerializationVisitor;
+import li.cil.ceres.api.Serializer;
+import li.cil.sedna.utils.ByteRing;
+
+import javax.annotation.Nullable;
+
+public final class ByteRingSerializer implements Serializer<ByteRing> {
+    @Override
+    public void serialize(final SerializationVisitor visitor, final Class<ByteRing> type, final Object value) throws SerializationException {
+        final ByteRing ring = (ByteRing) value;
+        visitor.putInt("capacity", ring.getCapacity());
+        visitor.putObject("values", byte[].class, ring.toArray());
+    }
+
+    @Override
+    public ByteRing deserialize(final DeserializationVisitor visitor, final Class<ByteRing> type, @Nullable final Object value) throws SerializationException {
+        ByteRing ring = (ByteRing) value;
+        if (!visitor.exists("values")) {
+            return ring;
+        }
+
+        final byte[] values = (byte[]) visitor.getObject("values", byte[].class, null);
+        if (values == null) {
+            return null;
+        }
+
+        if (ring == null) {
+            final int capacity = visitor.exists("capacity") ? visitor.getInt("capacity") : values.length;
+            ring = new ByteRing(Math.max(1, Math.max(capacity, values.length)));
+        }
+
+        ring.clear();
+        ring.write(values, 0, values.length);
+
+        return ring;
+    }
+}
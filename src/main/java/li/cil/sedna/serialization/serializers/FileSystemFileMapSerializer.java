@@ -1,6 +1,6 @@
 package li.cil.sedna.serialization.serializers;
 
-import it.unimi.dsi.fastutil.ints.Int2ObjectArrayMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import li.cil.ceres.api.DeserializationVisitor;
 import li.cil.ceres.api.SerializationException;
 import li.cil.ceres.api.SerializationVisitor;
@@ -13,7 +13,7 @@ import javax.annotation.Nullable;
 public final class FileSystemFileMapSerializer implements Serializer<FileSystemFileMap> {
     @Override
     public void serialize(final SerializationVisitor visitor, final Class<FileSystemFileMap> type, final Object value) throws SerializationException {
-        final Int2ObjectArrayMap<?> map = (Int2ObjectArrayMap<?>) value;
+        final Int2ObjectMap<?> map = (Int2ObjectMap<?>) value;
         visitor.putObject("keys", int[].class, map.keySet().toIntArray());
         visitor.putObject("values", FileSystemFile[].class, map.values().toArray(new Object[0]));
     }
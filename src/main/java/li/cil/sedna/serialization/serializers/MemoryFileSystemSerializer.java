@@ -0,0 +1,103 @@
+package li.cil.sedna.serialization.serializers;
+
+import li.cil.ceres.api.DeserializationVisitor;
+import li.cil.ceres.api.SerializationException;
+import li.cil.ceres.api.SerializationVisitor;
+import li.cil.ceres.api.Serializer;
+import li.cil.sedna.fs.MemoryFileSystem;
+import li.cil.sedna.fs.MemoryFileSystem.NodeState;
+import li.cil.sedna.fs.Path;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class MemoryFileSystemSerializer implements Serializer<MemoryFileSystem> {
+    @Override
+    public void serialize(final SerializationVisitor visitor, final Class<MemoryFileSystem> type, final Object value) throws SerializationException {
+        final MemoryFileSystem fileSystem = (MemoryFileSystem) value;
+
+        final List<NodeState> nodes;
+        try {
+            nodes = fileSystem.exportNodes();
+        } catch (final IOException e) {
+            throw new SerializationException(e);
+        }
+
+        final String[][] paths = new String[nodes.size()][];
+        final boolean[] directories = new boolean[nodes.size()];
+        final long[] uniqueIds = new long[nodes.size()];
+        final long[] creationTimes = new long[nodes.size()];
+        final long[] lastModifiedTimes = new long[nodes.size()];
+        final long[] sizes = new long[nodes.size()];
+        final int[][] chunkIndices = new int[nodes.size()][];
+        final byte[][] chunkData = new byte[nodes.size()][];
+        for (int i = 0; i < nodes.size(); i++) {
+            final NodeState node = nodes.get(i);
+            paths[i] = node.path().getParts();
+            directories[i] = node.isDirectory();
+            uniqueIds[i] = node.uniqueId();
+            creationTimes[i] = node.creationTime();
+            lastModifiedTimes[i] = node.lastModifiedTime();
+            sizes[i] = node.size();
+            chunkIndices[i] = node.chunkIndices() != null ? node.chunkIndices() : new int[0];
+            chunkData[i] = node.chunkData() != null ? node.chunkData() : new byte[0];
+        }
+
+        visitor.putLong("capacity", fileSystem.getCapacity());
+        visitor.putObject("paths", String[][].class, paths);
+        visitor.putObject("directories", boolean[].class, directories);
+        visitor.putObject("uniqueIds", long[].class, uniqueIds);
+        visitor.putObject("creationTimes", long[].class, creationTimes);
+        visitor.putObject("lastModifiedTimes", long[].class, lastModifiedTimes);
+        visitor.putObject("sizes", long[].class, sizes);
+        visitor.putObject("chunkIndices", int[][].class, chunkIndices);
+        visitor.putObject("chunkData", byte[][].class, chunkData);
+    }
+
+    @Override
+    public MemoryFileSystem deserialize(final DeserializationVisitor visitor, final Class<MemoryFileSystem> type, @Nullable final Object value) throws SerializationException {
+        MemoryFileSystem fileSystem = (MemoryFileSystem) value;
+        if (!visitor.exists("capacity") || !visitor.exists("paths")) {
+            return fileSystem;
+        }
+
+        final String[][] paths = (String[][]) visitor.getObject("paths", String[][].class, null);
+        final boolean[] directories = (boolean[]) visitor.getObject("directories", boolean[].class, null);
+        final long[] uniqueIds = (long[]) visitor.getObject("uniqueIds", long[].class, null);
+        final long[] creationTimes = (long[]) visitor.getObject("creationTimes", long[].class, null);
+        final long[] lastModifiedTimes = (long[]) visitor.getObject("lastModifiedTimes", long[].class, null);
+        final long[] sizes = (long[]) visitor.getObject("sizes", long[].class, null);
+        final int[][] chunkIndices = (int[][]) visitor.getObject("chunkIndices", int[][].class, null);
+        final byte[][] chunkData = (byte[][]) visitor.getObject("chunkData", byte[][].class, null);
+        if (paths == null || directories == null || uniqueIds == null || creationTimes == null ||
+            lastModifiedTimes == null || sizes == null || chunkIndices == null || chunkData == null) {
+            return fileSystem;
+        }
+        if (directories.length != paths.length || uniqueIds.length != paths.length ||
+            creationTimes.length != paths.length || lastModifiedTimes.length != paths.length ||
+            sizes.length != paths.length || chunkIndices.length != paths.length || chunkData.length != paths.length) {
+            throw new SerializationException("Inconsistent memory file system state.");
+        }
+
+        if (fileSystem == null) {
+            fileSystem = new MemoryFileSystem(visitor.getLong("capacity"));
+        }
+
+        final ArrayList<NodeState> nodes = new ArrayList<>(paths.length);
+        for (int i = 0; i < paths.length; i++) {
+            nodes.add(new NodeState(new Path(List.of(paths[i])), directories[i], uniqueIds[i],
+                creationTimes[i], lastModifiedTimes[i], directories[i] ? 0 : sizes[i],
+                directories[i] ? null : chunkIndices[i], directories[i] ? null : chunkData[i]));
+        }
+
+        try {
+            fileSystem.importNodes(nodes);
+        } catch (final IOException e) {
+            throw new SerializationException(e);
+        }
+
+        return fileSystem;
+    }
+}
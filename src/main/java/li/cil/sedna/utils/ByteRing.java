@@ -0,0 +1,163 @@
+package li.cil.sedna.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock-free ring of bytes for exactly one producer and one consumer thread.
+ * <p>
+ * Besides the usual single byte operations, bytes can be moved in bulk using {@link #write(byte[], int, int)}
+ * and {@link #read(byte[], int, int)}, which publish all transferred bytes with a single ordered store.
+ * <p>
+ * Both sides may drop the bytes currently in the ring: the consumer via {@link #clear()}, the producer via
+ * {@link #discard()}. The latter is useful for devices that act as producer but need to flush their output.
+ */
+public final class ByteRing {
+    private final byte[] buffer;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // Next byte to read, written by consumer.
+    private final AtomicLong tail = new AtomicLong(); // Next byte to write, written by producer.
+    private final AtomicLong discarded = new AtomicLong(); // Bytes before this were dropped, written by producer.
+
+    /**
+     * Creates a new ring.
+     *
+     * @param capacity the number of bytes the ring can hold. Rounded up to the next power of two.
+     */
+    public ByteRing(final int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException();
+        }
+
+        buffer = new byte[Math.max(1, Integer.highestOneBit(capacity - 1) << 1)];
+        mask = buffer.length - 1;
+    }
+
+    public int getCapacity() {
+        return buffer.length;
+    }
+
+    public int size() {
+        // Read tail first; any discard preceding that tail is then guaranteed to be visible.
+        final long end = tail.get();
+        return (int) Math.max(0, end - getReadPosition());
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Adds a byte to the ring. May only be called by the producer.
+     *
+     * @param value the byte to add.
+     * @return {@code true} if the byte was added; {@code false} if the ring is full.
+     */
+    public boolean offer(final byte value) {
+        final long index = tail.get();
+        if (index - getReadPosition() >= buffer.length) {
+            return false;
+        }
+
+        buffer[(int) index & mask] = value;
+        tail.lazySet(index + 1);
+        return true;
+    }
+
+    /**
+     * Copies as many bytes as fit into the ring. May only be called by the producer.
+     *
+     * @param src    the array to copy bytes from.
+     * @param offset the offset in the array of the first byte to copy.
+     * @param length the maximum number of bytes to copy.
+     * @return the number of bytes copied.
+     */
+    public int write(final byte[] src, final int offset, final int length) {
+        final long index = tail.get();
+        final int count = (int) Math.min(length, buffer.length - (index - getReadPosition()));
+        if (count <= 0) {
+            return 0;
+        }
+
+        final int start = (int) index & mask;
+        final int firstCount = Math.min(count, buffer.length - start);
+        System.arraycopy(src, offset, buffer, start, firstCount);
+        System.arraycopy(src, offset + firstCount, buffer, 0, count - firstCount);
+        tail.lazySet(index + count);
+        return count;
+    }
+
+    /**
+     * Drops all bytes currently in the ring. May only be called by the producer.
+     */
+    public void discard() {
+        discarded.lazySet(tail.get());
+    }
+
+    /**
+     * Removes the oldest byte from the ring. May only be called by the consumer.
+     *
+     * @return the oldest byte as an unsigned value, or {@code -1} if the ring is empty.
+     */
+    public int poll() {
+        final long end = tail.get();
+        final long index = getReadPosition();
+        if (index >= end) {
+            return -1;
+        }
+
+        final int value = buffer[(int) index & mask] & 0xFF;
+        head.lazySet(index + 1);
+        return value;
+    }
+
+    /**
+     * Copies as many bytes as available out of the ring. May only be called by the consumer.
+     *
+     * @param dst    the array to copy bytes into.
+     * @param offset the offset in the array to copy the first byte to.
+     * @param length the maximum number of bytes to copy.
+     * @return the number of bytes copied.
+     */
+    public int read(final byte[] dst, final int offset, final int length) {
+        final long end = tail.get();
+        final long index = getReadPosition();
+        final int count = (int) Math.min(length, end - index);
+        if (count <= 0) {
+            return 0;
+        }
+
+        final int start = (int) index & mask;
+        final int firstCount = Math.min(count, buffer.length - start);
+        System.arraycopy(buffer, start, dst, offset, firstCount);
+        System.arraycopy(buffer, 0, dst, offset + firstCount, count - firstCount);
+        head.lazySet(index + count);
+        return count;
+    }
+
+    /**
+     * Drops all bytes currently in the ring. May only be called by the consumer.
+     */
+    public void clear() {
+        head.lazySet(Math.max(head.get(), tail.get()));
+    }
+
+    /**
+     * Returns a copy of the bytes currently in the ring, without removing them.
+     * <p>
+     * This is intended for serialization, and may only be called while neither side modifies the ring.
+     *
+     * @return the bytes in the ring.
+     */
+    public byte[] toArray() {
+        final byte[] result = new byte[size()];
+        final long index = getReadPosition();
+        for (int i = 0; i < result.length; i++) {
+            result[i] = buffer[(int) (index + i) & mask];
+        }
+        return result;
+    }
+
+    private long getReadPosition() {
+        return Math.max(head.get(), discarded.get());
+    }
+}
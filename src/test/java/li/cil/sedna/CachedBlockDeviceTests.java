@@ -0,0 +1,228 @@
+package li.cil.sedna;
+
+import li.cil.sedna.api.device.BlockDevice;
+import li.cil.sedna.device.block.ByteBufferBlockDevice;
+import li.cil.sedna.device.block.CachedBlockDevice;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class CachedBlockDeviceTests {
+    private static final int BLOCK_SIZE = 256;
+
+    private byte[] array;
+    private ByteBufferBlockDevice lower;
+
+    @BeforeEach
+    public void setupEach() {
+        array = new byte[16 * BLOCK_SIZE + 100];
+        new Random(0xdeadbeef).nextBytes(array);
+        lower = ByteBufferBlockDevice.wrap(ByteBuffer.wrap(array), false);
+    }
+
+    @Test
+    public void readingReadsUnderlyingBlockDevice() throws IOException {
+        final CachedBlockDevice cached = new CachedBlockDevice(lower, BLOCK_SIZE, 4, CachedBlockDevice.WriteMode.WRITE_THROUGH, null, 0);
+        assertEquals(lower.getCapacity(), cached.getCapacity());
+
+        assertArrayEquals(array, cached.getInputStream().readAllBytes());
+        assertEquals(17, cached.getMissCount());
+
+        final byte[] data = new byte[10];
+        assertEquals(data.length, cached.getInputStream(16 * BLOCK_SIZE).read(data));
+        assertEquals(1, cached.getHitCount());
+    }
+
+    @Test
+    public void writeThroughWritesUnderlyingBlockDevice() throws IOException {
+        final CachedBlockDevice cached = new CachedBlockDevice(lower, BLOCK_SIZE, 4, CachedBlockDevice.WriteMode.WRITE_THROUGH, null, 0);
+        cached.getOutputStream(BLOCK_SIZE - 1).write(new byte[]{1, 2, 3});
+
+        assertEquals(1, array[BLOCK_SIZE - 1]);
+        assertEquals(2, array[BLOCK_SIZE]);
+        assertEquals(3, array[BLOCK_SIZE + 1]);
+    }
+
+    @Test
+    public void writeBackDefersWritesUntilFlushOrEviction() throws IOException {
+        final byte[] original = array.clone();
+        final CachedBlockDevice cached = new CachedBlockDevice(lower, BLOCK_SIZE, 2, CachedBlockDevice.WriteMode.WRITE_BACK, null, 0);
+
+        cached.getOutputStream(0).write(original[0] + 1);
+        assertEquals(original[0], array[0]);
+        assertEquals((byte) (original[0] + 1), (byte) cached.getInputStream().read());
+
+        cached.getInputStream(BLOCK_SIZE).read();
+        cached.getInputStream(2 * BLOCK_SIZE).read();
+        assertEquals((byte) (original[0] + 1), array[0]);
+        assertEquals(1, cached.getWriteBackCount());
+
+        cached.getOutputStream(3 * BLOCK_SIZE).write(original[3 * BLOCK_SIZE] + 1);
+        assertEquals(original[3 * BLOCK_SIZE], array[3 * BLOCK_SIZE]);
+        cached.flush();
+        assertEquals((byte) (original[3 * BLOCK_SIZE] + 1), array[3 * BLOCK_SIZE]);
+    }
+
+    @Test
+    public void sequentialReadsTriggerReadAhead() throws IOException {
+        final CachedBlockDevice cached = new CachedBlockDevice(lower, BLOCK_SIZE, 8, CachedBlockDevice.WriteMode.WRITE_THROUGH, Runnable::run, 2);
+
+        final byte[] data = new byte[BLOCK_SIZE];
+        for (int i = 0; i < 6; i++) {
+            assertEquals(data.length, cached.getInputStream((long) i * BLOCK_SIZE).read(data));
+        }
+
+        assertEquals(2, cached.getMissCount());
+        assertTrue(cached.getReadAheadCount() > 0);
+        assertEquals(4, cached.getHitCount());
+    }
+
+    @Test
+    public void failedWriteBackKeepsDirtyBlock() throws IOException {
+        final byte[] original = array.clone();
+        final boolean[] failWrites = {false};
+        final BlockDevice failing = new BlockDevice() {
+            @Override
+            public boolean isReadonly() {
+                return false;
+            }
+
+            @Override
+            public long getCapacity() {
+                return lower.getCapacity();
+            }
+
+            @Override
+            public InputStream getInputStream(final long offset) {
+                return lower.getInputStream(offset);
+            }
+
+            @Override
+            public OutputStream getOutputStream(final long offset) {
+                final OutputStream stream = lower.getOutputStream(offset);
+                return new OutputStream() {
+                    @Override
+                    public void write(final int b) throws IOException {
+                        write(new byte[]{(byte) b}, 0, 1);
+                    }
+
+                    @Override
+                    public void write(final byte[] b, final int off, final int len) throws IOException {
+                        if (failWrites[0]) {
+                            throw new IOException();
+                        }
+                        stream.write(b, off, len);
+                    }
+                };
+            }
+        };
+
+        final CachedBlockDevice cached = new CachedBlockDevice(failing, BLOCK_SIZE, 1, CachedBlockDevice.WriteMode.WRITE_BACK, null, 0);
+        cached.getOutputStream(0).write(original[0] + 1);
+
+        failWrites[0] = true;
+        assertThrows(IOException.class, () -> cached.getInputStream(BLOCK_SIZE).read());
+
+        failWrites[0] = false;
+        assertEquals((byte) (original[0] + 1), (byte) cached.getInputStream().read());
+        cached.flush();
+        assertEquals((byte) (original[0] + 1), array[0]);
+    }
+
+    @Test
+    public void supersededReadAheadDoesNotInstallStaleData() throws Exception {
+        final CountDownLatch readAheadStarted = new CountDownLatch(1);
+        final CountDownLatch readAheadMayContinue = new CountDownLatch(1);
+        final boolean[] blockNextRead = {false};
+        final BlockDevice blocking = new BlockDevice() {
+            @Override
+            public boolean isReadonly() {
+                return false;
+            }
+
+            @Override
+            public long getCapacity() {
+                return lower.getCapacity();
+            }
+
+            @Override
+            public InputStream getInputStream(final long offset) {
+                // Called while holding the lock on this device, so regular reads wait for the read-ahead.
+                if (blockNextRead[0]) {
+                    blockNextRead[0] = false;
+                    readAheadStarted.countDown();
+                    try {
+                        readAheadMayContinue.await();
+                    } catch (final InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return lower.getInputStream(offset);
+            }
+
+            @Override
+            public OutputStream getOutputStream(final long offset) {
+                return lower.getOutputStream(offset);
+            }
+        };
+
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        final CachedBlockDevice cached = new CachedBlockDevice(blocking, BLOCK_SIZE, 2, CachedBlockDevice.WriteMode.WRITE_BACK, tasks::add, 1);
+
+        // Sequential reads schedule a read-ahead of block 5, which gets stuck reading the lower device.
+        readBlocks(cached, 2, 3, 4);
+        assertEquals(1, tasks.size());
+        blockNextRead[0] = true;
+        final Thread readAhead = new Thread(tasks.poll());
+        readAhead.start();
+        readAheadStarted.await();
+
+        final byte[] written = new byte[BLOCK_SIZE];
+        Arrays.fill(written, (byte) 42);
+        synchronized (cached) {
+            readAheadMayContinue.countDown();
+
+            // Load and modify the block, evict it and schedule another read-ahead of it, all before the stuck
+            // read-ahead can install the data it read before the modification.
+            readBlocks(cached, 5);
+            cached.getOutputStream(5L * BLOCK_SIZE).write(written);
+            readBlocks(cached, 2, 3, 4);
+            assertEquals(written[0], array[5 * BLOCK_SIZE]);
+        }
+        readAhead.join();
+
+        final byte[] data = new byte[BLOCK_SIZE];
+        assertEquals(data.length, cached.getInputStream(5L * BLOCK_SIZE).read(data));
+        assertArrayEquals(written, data);
+        assertEquals(0, cached.getReadAheadCount());
+    }
+
+    @Test
+    public void closedDeviceRejectsAccess() throws IOException {
+        final CachedBlockDevice cached = new CachedBlockDevice(lower, BLOCK_SIZE, 4, CachedBlockDevice.WriteMode.WRITE_BACK, null, 0);
+        cached.getOutputStream(0).write(1);
+        cached.close();
+        cached.close();
+
+        assertEquals(1, array[0]);
+        assertEquals(-1, cached.getInputStream().read());
+        assertThrows(IOException.class, () -> cached.getOutputStream().write(1));
+    }
+
+    private static void readBlocks(final CachedBlockDevice cached, final int... blockIndices) throws IOException {
+        final byte[] data = new byte[BLOCK_SIZE];
+        for (final int blockIndex : blockIndices) {
+            assertEquals(data.length, cached.getInputStream((long) blockIndex * BLOCK_SIZE).read(data));
+        }
+    }
+}
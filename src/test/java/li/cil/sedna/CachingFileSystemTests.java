@@ -0,0 +1,119 @@
+package li.cil.sedna;
+
+import li.cil.sedna.fs.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class CachingFileSystemTests {
+    @TempDir
+    java.nio.file.Path root;
+
+    private HostFileSystem host;
+
+    @BeforeEach
+    public void setupEach() throws IOException {
+        Files.createDirectory(root.resolve("include"));
+        Files.write(root.resolve("include/a.h"), new byte[10]);
+        host = new HostFileSystem(root.toFile());
+    }
+
+    @Test
+    public void repeatedLookupsAreCached() throws IOException {
+        final CachingFileSystem cached = new CachingFileSystem(host);
+        final Path header = path("include", "a.h");
+        final Path missing = path("include", "b.h");
+
+        assertTrue(cached.exists(header));
+        assertFalse(cached.isDirectory(header));
+        assertEquals(10, cached.getAttributes(header).size());
+        assertFalse(cached.exists(missing));
+        assertThrows(NoSuchFileException.class, () -> cached.getAttributes(missing));
+        assertEquals(2, cached.getMissCount());
+        assertEquals(3, cached.getHitCount());
+
+        // Missing files are not picked up until the entry expires or is invalidated.
+        Files.write(root.resolve("include/b.h"), new byte[0]);
+        assertFalse(cached.exists(missing));
+        cached.invalidateAll();
+        assertTrue(cached.exists(missing));
+    }
+
+    @Test
+    public void directoryListingsPopulateCache() throws IOException {
+        final CachingFileSystem cached = new CachingFileSystem(host);
+        try (final FileHandle handle = cached.open(path("include"), FileMode.READ)) {
+            assertEquals(1, handle.readdir().size());
+        }
+
+        cached.resetStatistics();
+        assertTrue(cached.exists(path("include", "a.h")));
+        assertFalse(cached.isDirectory(path("include", "a.h")));
+        assertEquals(0, cached.getMissCount());
+    }
+
+    @Test
+    public void modificationsInvalidateEntries() throws IOException {
+        final CachingFileSystem cached = new CachingFileSystem(host);
+        final Path file = path("include", "c.h");
+        assertFalse(cached.exists(file));
+
+        try (final FileHandle handle = cached.create(file, FileMode.READ | FileMode.WRITE)) {
+            assertTrue(cached.exists(file));
+            assertEquals(0, cached.getAttributes(file).size());
+            handle.write(0, ByteBuffer.wrap(new byte[5]));
+            assertEquals(5, cached.getAttributes(file).size());
+        }
+
+        final Path moved = path("moved");
+        assertFalse(cached.exists(moved.resolve("c.h")));
+        cached.rename(path("include"), moved);
+        assertFalse(cached.exists(file));
+        assertTrue(cached.exists(moved.resolve("c.h")));
+
+        cached.unlink(moved.resolve("c.h"));
+        assertFalse(cached.exists(moved.resolve("c.h")));
+    }
+
+    @Test
+    public void entriesExpire() throws IOException, InterruptedException {
+        final CachingFileSystem cached = new CachingFileSystem(host, 16, 1, TimeUnit.MILLISECONDS);
+        final Path file = path("include", "d.h");
+        assertFalse(cached.exists(file));
+
+        Files.write(root.resolve("include/d.h"), new byte[0]);
+        Thread.sleep(5);
+        assertTrue(cached.exists(file));
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreEvicted() {
+        final CachingFileSystem cached = new CachingFileSystem(host, 2, 1, TimeUnit.HOURS);
+        cached.exists(path("a"));
+        cached.exists(path("b"));
+        cached.exists(path("a"));
+        cached.exists(path("c"));
+
+        cached.resetStatistics();
+        cached.exists(path("a"));
+        cached.exists(path("b"));
+        assertEquals(1, cached.getHitCount());
+        assertEquals(1, cached.getMissCount());
+    }
+
+    private static Path path(final String... parts) {
+        Path result = new Path();
+        for (final String part : parts) {
+            result = result.resolve(part);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,78 @@
+package li.cil.sedna;
+
+import li.cil.sedna.device.block.CompressedBlockDevice;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class CompressedBlockDeviceTests {
+    private static final int CHUNK_SIZE = 1024;
+
+    @TempDir File directory;
+
+    @Test
+    public void readingReturnsOriginalData() throws IOException {
+        // Mix of compressible and incompressible chunks, with a partial last chunk.
+        final byte[] array = new byte[10 * CHUNK_SIZE + 123];
+        new Random(0xdeadbeef).nextBytes(array);
+        for (int i = 0; i < 4 * CHUNK_SIZE; i++) {
+            array[i] = (byte) (i % 7);
+        }
+
+        final File file = new File(directory, "image");
+        CompressedBlockDevice.convert(new ByteArrayInputStream(array), file, CHUNK_SIZE);
+        assertTrue(file.length() < array.length + 12 * 8 + 24);
+
+        try (final CompressedBlockDevice device = CompressedBlockDevice.open(file, 2)) {
+            assertTrue(device.isReadonly());
+            assertEquals(array.length, device.getCapacity());
+            assertArrayEquals(array, device.getInputStream().readAllBytes());
+
+            final byte[] data = new byte[CHUNK_SIZE];
+            final int offset = 3 * CHUNK_SIZE + 500;
+            assertEquals(data.length, device.getInputStream(offset).readNBytes(data, 0, data.length));
+            for (int i = 0; i < data.length; i++) {
+                assertEquals(array[offset + i], data[i]);
+            }
+
+            assertThrows(UnsupportedOperationException.class, () -> device.getOutputStream(0));
+        }
+    }
+
+    @Test
+    public void corruptHeaderIsRejected() throws IOException {
+        final File file = new File(directory, "image");
+        CompressedBlockDevice.convert(new ByteArrayInputStream(new byte[10 * CHUNK_SIZE]), file, CHUNK_SIZE);
+
+        // Capacity covering fewer chunks than the index, which would give later chunks a negative length.
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(16);
+            raf.write(new byte[]{1, 0, 0, 0, 0, 0, 0, 0});
+        }
+
+        assertThrows(IOException.class, () -> CompressedBlockDevice.open(file));
+    }
+
+    @Test
+    public void emptyChunkIsRejected() throws IOException {
+        final File file = new File(directory, "image");
+        CompressedBlockDevice.convert(new ByteArrayInputStream(new byte[10 * CHUNK_SIZE]), file, CHUNK_SIZE);
+
+        // Give the second chunk the same offset as the first, leaving the first without any compressed data.
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            final byte[] offset = new byte[8];
+            raf.seek(24);
+            raf.readFully(offset);
+            raf.write(offset);
+        }
+
+        assertThrows(IOException.class, () -> CompressedBlockDevice.open(file));
+    }
+}
@@ -0,0 +1,125 @@
+package li.cil.sedna;
+
+import li.cil.sedna.device.block.ByteBufferBlockDevice;
+import li.cil.sedna.device.block.CopyOnWriteBlockDevice;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class CopyOnWriteBlockDeviceTests {
+    private static final int CLUSTER_SIZE = 512;
+
+    @TempDir File directory;
+
+    private byte[] array;
+    private ByteBufferBlockDevice lower;
+
+    @BeforeEach
+    public void setupEach() {
+        array = new byte[8 * 1024 + 100];
+        new Random(0xdeadbeef).nextBytes(array);
+        lower = ByteBufferBlockDevice.wrap(ByteBuffer.wrap(array), true);
+    }
+
+    @Test
+    public void readingReadsUnderlyingBlockDevice() throws IOException {
+        try (final CopyOnWriteBlockDevice overlay = CopyOnWriteBlockDevice.create(new File(directory, "overlay"), lower, null, CLUSTER_SIZE)) {
+            assertEquals(lower.getCapacity(), overlay.getCapacity());
+            assertFalse(overlay.isReadonly());
+
+            final byte[] data = overlay.getInputStream().readAllBytes();
+            assertArrayEquals(array, data);
+        }
+    }
+
+    @Test
+    public void writingDoesNotModifyUnderlyingDevice() throws IOException {
+        final byte[] original = array.clone();
+        final byte[] overwriteData = "something something not random out".getBytes(StandardCharsets.UTF_8);
+
+        try (final CopyOnWriteBlockDevice overlay = CopyOnWriteBlockDevice.create(new File(directory, "overlay"), lower, null, CLUSTER_SIZE)) {
+            overlay.getOutputStream(CLUSTER_SIZE - 10).write(overwriteData);
+
+            final byte[] expected = original.clone();
+            System.arraycopy(overwriteData, 0, expected, CLUSTER_SIZE - 10, overwriteData.length);
+
+            assertArrayEquals(expected, overlay.getInputStream().readAllBytes());
+            assertArrayEquals(original, array);
+        }
+    }
+
+    @Test
+    public void reopeningRetainsWrittenData() throws IOException {
+        final File file = new File(directory, "overlay");
+        final byte[] overwriteData = new byte[3 * CLUSTER_SIZE];
+        new Random(0xcafebabe).nextBytes(overwriteData);
+
+        try (final CopyOnWriteBlockDevice overlay = CopyOnWriteBlockDevice.create(file, lower, null, CLUSTER_SIZE)) {
+            overlay.getOutputStream(array.length - overwriteData.length).write(overwriteData);
+        }
+
+        try (final CopyOnWriteBlockDevice overlay = CopyOnWriteBlockDevice.open(file, lower, true)) {
+            final byte[] data = new byte[overwriteData.length];
+            assertEquals(data.length, overlay.getInputStream(array.length - overwriteData.length).readNBytes(data, 0, data.length));
+            assertArrayEquals(overwriteData, data);
+        }
+    }
+
+    @Test
+    public void openResolvesBackingChain() throws IOException {
+        final File base = new File(directory, "base.img");
+        Files.write(base.toPath(), array);
+
+        final File middle = new File(directory, "middle.img");
+        try (final CopyOnWriteBlockDevice overlay = CopyOnWriteBlockDevice.create(middle, lower, "base.img", CLUSTER_SIZE)) {
+            overlay.getOutputStream(0).write(1);
+        }
+
+        final File top = new File(directory, "top.img");
+        try (final CopyOnWriteBlockDevice lowerOverlay = CopyOnWriteBlockDevice.open(middle, true);
+             final CopyOnWriteBlockDevice overlay = CopyOnWriteBlockDevice.create(top, lowerOverlay, "middle.img", CLUSTER_SIZE)) {
+            overlay.getOutputStream(1).write(2);
+        }
+
+        try (final CopyOnWriteBlockDevice overlay = CopyOnWriteBlockDevice.open(top, true)) {
+            final byte[] data = overlay.getInputStream().readAllBytes();
+            assertEquals(1, data[0]);
+            assertEquals(2, data[1]);
+            assertEquals(ByteBuffer.wrap(array, 2, array.length - 2), ByteBuffer.wrap(data, 2, data.length - 2));
+        }
+    }
+
+    @Test
+    public void cyclicBackingChainsAreRejected() throws IOException {
+        CopyOnWriteBlockDevice.create(new File(directory, "a.img"), lower, "b.img", CLUSTER_SIZE).close();
+        CopyOnWriteBlockDevice.create(new File(directory, "b.img"), lower, "a.img", CLUSTER_SIZE).close();
+        CopyOnWriteBlockDevice.create(new File(directory, "self.img"), lower, "self.img", CLUSTER_SIZE).close();
+
+        assertThrows(IOException.class, () -> CopyOnWriteBlockDevice.open(new File(directory, "a.img"), true));
+        assertThrows(IOException.class, () -> CopyOnWriteBlockDevice.open(new File(directory, "self.img"), true));
+    }
+
+    @Test
+    public void inconsistentL1TableSizeIsRejected() throws IOException {
+        final File file = new File(directory, "overlay");
+        CopyOnWriteBlockDevice.create(file, lower, null, CLUSTER_SIZE).close();
+
+        // The L1 table size is stored right after magic, version and cluster bits.
+        final byte[] image = Files.readAllBytes(file.toPath());
+        final ByteBuffer header = ByteBuffer.wrap(image).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(12, header.getInt(12) - 1);
+        Files.write(file.toPath(), image);
+
+        assertThrows(IOException.class, () -> CopyOnWriteBlockDevice.open(file, lower, true));
+    }
+}
@@ -0,0 +1,132 @@
+package li.cil.sedna;
+
+import li.cil.sedna.device.block.ByteBufferBlockDevice;
+import li.cil.sedna.device.block.DeduplicatingBlockDevice;
+import li.cil.sedna.device.block.DeduplicatingBlockStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class DeduplicatingBlockDeviceTests {
+    private static final int BLOCK_SIZE = 512;
+
+    @TempDir File directory;
+
+    private byte[] array;
+    private ByteBufferBlockDevice source;
+    private DeduplicatingBlockStore store;
+
+    @BeforeEach
+    public void setupEach() throws IOException {
+        array = new byte[8 * BLOCK_SIZE + 100];
+        new Random(0xdeadbeef).nextBytes(array);
+        source = ByteBufferBlockDevice.wrap(ByteBuffer.wrap(array), true);
+        store = DeduplicatingBlockStore.open(new File(directory, "store"), BLOCK_SIZE);
+    }
+
+    @AfterEach
+    public void teardownEach() throws IOException {
+        store.close();
+    }
+
+    @Test
+    public void identicalDevicesShareBlocks() throws IOException {
+        final DeduplicatingBlockDevice a = DeduplicatingBlockDevice.create(store, source, false);
+        final DeduplicatingBlockDevice b = DeduplicatingBlockDevice.create(store, source, false);
+
+        assertEquals(9, store.getBlockCount());
+        assertArrayEquals(array, a.getInputStream().readAllBytes());
+        assertArrayEquals(array, b.getInputStream().readAllBytes());
+
+        a.delete();
+        assertEquals(9, store.getBlockCount());
+        b.close();
+        assertEquals(9, store.getBlockCount());
+        b.delete();
+        assertEquals(0, store.getBlockCount());
+    }
+
+    @Test
+    public void writingCopiesSharedBlock() throws IOException {
+        final DeduplicatingBlockDevice a = DeduplicatingBlockDevice.create(store, source, false);
+        final DeduplicatingBlockDevice b = a.snapshot();
+
+        a.getOutputStream(BLOCK_SIZE + 1).write(array[BLOCK_SIZE + 1] + 1);
+        assertEquals(10, store.getBlockCount());
+
+        final byte[] dataA = a.getInputStream().readAllBytes();
+        final byte[] dataB = b.getInputStream().readAllBytes();
+        assertEquals((byte) (array[BLOCK_SIZE + 1] + 1), dataA[BLOCK_SIZE + 1]);
+        assertArrayEquals(array, dataB);
+
+        b.delete();
+        assertEquals(9, store.getBlockCount());
+    }
+
+    @Test
+    public void zeroBlocksAreNotStored() throws IOException {
+        final DeduplicatingBlockDevice device = new DeduplicatingBlockDevice(store, 4 * BLOCK_SIZE, false);
+        device.getOutputStream(10).write(new byte[]{1, 2, 3});
+        assertEquals(1, store.getBlockCount());
+
+        device.getOutputStream(10).write(new byte[3]);
+        assertEquals(0, store.getBlockCount());
+        assertArrayEquals(new byte[4 * BLOCK_SIZE], device.getInputStream().readAllBytes());
+    }
+
+    @Test
+    public void storeIsPersistedAcrossReopening() throws IOException {
+        final byte[] block = new byte[BLOCK_SIZE];
+        System.arraycopy(array, 0, block, 0, BLOCK_SIZE);
+        final int id = store.put(block);
+        store.put(block);
+        store.close();
+
+        store = DeduplicatingBlockStore.open(new File(directory, "store"), BLOCK_SIZE);
+        assertEquals(1, store.getBlockCount());
+        final byte[] read = new byte[BLOCK_SIZE];
+        store.read(id, 0, read, 0, BLOCK_SIZE);
+        assertArrayEquals(block, read);
+        assertEquals(id, store.put(block));
+
+        // Reference count was persisted, so all three references must be released to free the block.
+        store.release(id);
+        store.release(id);
+        assertEquals(1, store.getBlockCount());
+        store.release(id);
+        assertEquals(0, store.getBlockCount());
+
+        store.close();
+        assertThrows(IOException.class, () -> DeduplicatingBlockStore.open(new File(directory, "store"), 2 * BLOCK_SIZE));
+        store = DeduplicatingBlockStore.open(new File(directory, "store"), BLOCK_SIZE);
+    }
+
+    @Test
+    public void releasedSlotsAreOnlyReusedAfterFlush() throws IOException {
+        final byte[] first = new byte[BLOCK_SIZE];
+        final byte[] second = new byte[BLOCK_SIZE];
+        System.arraycopy(array, 0, first, 0, BLOCK_SIZE);
+        System.arraycopy(array, BLOCK_SIZE, second, 0, BLOCK_SIZE);
+
+        final int id = store.put(first);
+        store.flush();
+        store.release(id);
+
+        // The flushed index still references the slot, so it must not be overwritten yet.
+        final int secondId = store.put(second);
+        assertNotEquals(id, secondId);
+        assertThrows(IOException.class, () -> store.read(id, 0, new byte[BLOCK_SIZE], 0, BLOCK_SIZE));
+
+        store.flush();
+        store.release(secondId);
+        assertEquals(id, store.put(first));
+    }
+}
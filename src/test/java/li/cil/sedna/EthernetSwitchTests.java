@@ -0,0 +1,144 @@
+package li.cil.sedna;
+
+import li.cil.sedna.device.network.EthernetSwitch;
+import li.cil.sedna.device.network.FrameRing;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class EthernetSwitchTests {
+    private static final byte[] MAC_A = {0x02, 0, 0, 0, 0, 0x0A};
+    private static final byte[] MAC_B = {0x02, 0, 0, 0, 0, 0x0B};
+    private static final byte[] MAC_C = {0x02, 0, 0, 0, 0, 0x0C};
+    private static final byte[] BROADCAST = {-1, -1, -1, -1, -1, -1};
+
+    private EthernetSwitch ethernetSwitch;
+
+    @BeforeEach
+    public void setupEach() {
+        ethernetSwitch = new EthernetSwitch();
+    }
+
+    @Test
+    public void frameRingIsBounded() {
+        final FrameRing ring = new FrameRing(3, 64);
+        assertEquals(4, ring.getCapacity());
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(ByteBuffer.wrap(new byte[]{(byte) i})));
+        }
+        assertFalse(ring.offer(ByteBuffer.wrap(new byte[]{4})));
+
+        final ByteBuffer frame = ByteBuffer.allocate(64);
+        for (int i = 0; i < 4; i++) {
+            frame.clear();
+            assertEquals(1, ring.poll(frame));
+            assertEquals(i, frame.get(0));
+        }
+        assertEquals(-1, ring.poll(frame));
+        assertFalse(ring.offer(ByteBuffer.allocate(65)));
+    }
+
+    @Test
+    public void unknownDestinationsAreFloodedAndKnownOnesAreNot() {
+        final EthernetSwitch.HostPort a = ethernetSwitch.attachHost();
+        final EthernetSwitch.HostPort b = ethernetSwitch.attachHost();
+        final EthernetSwitch.HostPort c = ethernetSwitch.attachHost();
+
+        assertTrue(a.transmit(frame(MAC_B, MAC_A, 0x0800)));
+        ethernetSwitch.forward();
+        assertReceived(b, frame(MAC_B, MAC_A, 0x0800));
+        assertReceived(c, frame(MAC_B, MAC_A, 0x0800));
+        assertNothingReceived(a);
+
+        // A is known now, so the reply only goes to A; B is learned from the reply.
+        assertTrue(b.transmit(frame(MAC_A, MAC_B, 0x0800)));
+        ethernetSwitch.forward();
+        assertReceived(a, frame(MAC_A, MAC_B, 0x0800));
+        assertNothingReceived(c);
+
+        assertTrue(a.transmit(frame(MAC_B, MAC_A, 0x0800)));
+        ethernetSwitch.forward();
+        assertReceived(b, frame(MAC_B, MAC_A, 0x0800));
+        assertNothingReceived(c);
+
+        assertTrue(a.transmit(frame(BROADCAST, MAC_A, 0x0806)));
+        ethernetSwitch.forward();
+        assertReceived(b, frame(BROADCAST, MAC_A, 0x0806));
+        assertReceived(c, frame(BROADCAST, MAC_A, 0x0806));
+    }
+
+    @Test
+    public void vlansAreIsolatedAndTaggedOnTrunks() {
+        final EthernetSwitch.HostPort a = ethernetSwitch.attachHost(1, false);
+        final EthernetSwitch.HostPort b = ethernetSwitch.attachHost(2, false);
+        final EthernetSwitch.HostPort trunk = ethernetSwitch.attachHost(0, true);
+
+        assertTrue(a.transmit(frame(BROADCAST, MAC_A, 0x0800)));
+        ethernetSwitch.forward();
+        assertNothingReceived(b);
+        assertReceived(trunk, taggedFrame(BROADCAST, MAC_A, 1, 0x0800));
+
+        assertTrue(trunk.transmit(taggedFrame(MAC_A, MAC_C, 1, 0x0800)));
+        ethernetSwitch.forward();
+        assertReceived(a, frame(MAC_A, MAC_C, 0x0800));
+        assertNothingReceived(b);
+
+        assertTrue(trunk.transmit(taggedFrame(MAC_B, MAC_C, 2, 0x0800)));
+        ethernetSwitch.forward();
+        assertReceived(b, frame(MAC_B, MAC_C, 0x0800));
+        assertNothingReceived(a);
+    }
+
+    @Test
+    public void detachedPortsReceiveNothing() {
+        final EthernetSwitch.HostPort a = ethernetSwitch.attachHost();
+        final EthernetSwitch.HostPort b = ethernetSwitch.attachHost();
+        final EthernetSwitch.HostPort c = ethernetSwitch.attachHost();
+
+        assertTrue(b.transmit(frame(MAC_A, MAC_B, 0x0800)));
+        ethernetSwitch.forward();
+        assertReceived(a, frame(MAC_A, MAC_B, 0x0800));
+        assertReceived(c, frame(MAC_A, MAC_B, 0x0800));
+
+        b.detach();
+
+        assertTrue(a.transmit(frame(MAC_B, MAC_A, 0x0800)));
+        ethernetSwitch.forward();
+        assertNothingReceived(b);
+        assertReceived(c, frame(MAC_B, MAC_A, 0x0800));
+        assertEquals(1, a.getReceivedFrameCount());
+    }
+
+    private static ByteBuffer frame(final byte[] destination, final byte[] source, final int etherType) {
+        final ByteBuffer frame = ByteBuffer.allocate(60);
+        frame.put(destination).put(source).putShort((short) etherType);
+        while (frame.hasRemaining()) {
+            frame.put((byte) frame.position());
+        }
+        return frame.flip();
+    }
+
+    private static ByteBuffer taggedFrame(final byte[] destination, final byte[] source, final int vlanId, final int etherType) {
+        final ByteBuffer untagged = frame(destination, source, etherType);
+        final ByteBuffer frame = ByteBuffer.allocate(untagged.remaining() + 4);
+        frame.put(destination).put(source).putShort((short) 0x8100).putShort((short) vlanId);
+        untagged.position(12);
+        frame.put(untagged);
+        return frame.flip();
+    }
+
+    private static void assertReceived(final EthernetSwitch.HostPort port, final ByteBuffer expected) {
+        final ByteBuffer frame = ByteBuffer.allocate(2048);
+        assertEquals(expected.remaining(), port.receive(frame));
+        assertEquals(expected, frame.flip());
+        assertNothingReceived(port);
+    }
+
+    private static void assertNothingReceived(final EthernetSwitch.HostPort port) {
+        assertEquals(-1, port.receive(ByteBuffer.allocate(2048)));
+    }
+}
@@ -0,0 +1,195 @@
+package li.cil.sedna;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import li.cil.sedna.fs.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class HostFileSystemTests {
+    @TempDir
+    java.nio.file.Path root;
+
+    @Test
+    public void uniqueIdsAreDistinctAndStable() throws IOException {
+        final HostFileSystem fileSystem = new HostFileSystem(root.toFile());
+        final LongOpenHashSet ids = new LongOpenHashSet();
+        for (int i = 0; i < 1000; i++) {
+            Files.write(root.resolve("f" + i), new byte[0]);
+            assertTrue(ids.add(fileSystem.getUniqueId(new Path().resolve("f" + i))));
+        }
+        assertTrue(ids.add(fileSystem.getUniqueId(new Path())));
+
+        assertEquals(fileSystem.getUniqueId(new Path().resolve("f0")), fileSystem.getUniqueId(new Path().resolve("f0")));
+    }
+
+    @Test
+    public void uniqueIdsFollowFilesOnHostsWithInodes() throws IOException {
+        final HostFileSystem fileSystem = new HostFileSystem(root.toFile());
+        Files.write(root.resolve("a"), new byte[0]);
+        final long id = fileSystem.getUniqueId(new Path().resolve("a"));
+
+        fileSystem.rename(new Path().resolve("a"), new Path().resolve("b"));
+        if (root.getFileSystem().supportedFileAttributeViews().contains("unix")) {
+            assertEquals(id, fileSystem.getUniqueId(new Path().resolve("b")));
+        }
+    }
+
+    @Test
+    public void readdirResumesAtCookies() throws IOException {
+        final HostFileSystem fileSystem = new HostFileSystem(root.toFile());
+        for (int i = 0; i < 100; i++) {
+            Files.write(root.resolve("f" + i), new byte[0]);
+        }
+        Files.createDirectory(root.resolve("dir"));
+
+        try (final FileHandle handle = fileSystem.open(new Path(), FileMode.READ)) {
+            final List<DirectoryEntry> all = handle.readdir();
+            assertEquals(101, all.size());
+
+            // Read in pages of ten, resuming after the last accepted entry.
+            final ArrayList<String> names = new ArrayList<>();
+            final long[] cookie = {0};
+            for (; ; ) {
+                final int[] count = {0};
+                handle.readdir(cookie[0], (entry, entryCookie) -> {
+                    if (count[0] == 10) {
+                        return false;
+                    }
+                    count[0]++;
+                    names.add(entry.name);
+                    cookie[0] = entryCookie;
+
+                    assertTrue(entry.hasUniqueId);
+                    assertEquals(fileSystem.getUniqueId(new Path().resolve(entry.name)), entry.uniqueId);
+                    assertEquals(entry.name.equals("dir") ? FileType.DIRECTORY : FileType.FILE, entry.type);
+                    return true;
+                });
+                if (count[0] == 0) {
+                    break;
+                }
+            }
+            assertEquals(all.stream().map(entry -> entry.name).toList(), names);
+
+            // Going back restarts the listing.
+            final ArrayList<String> restarted = new ArrayList<>();
+            handle.readdir(5, (entry, entryCookie) -> restarted.add(entry.name));
+            assertEquals(names.subList(5, names.size()), restarted);
+        }
+    }
+
+    @Test
+    public void pooledChannelsAreNotReusedForReplacedFiles() throws IOException {
+        final HostFileSystem fileSystem = new HostFileSystem(root.toFile());
+        final Path file = new Path().resolve("a");
+        Files.writeString(root.resolve("a"), "old");
+
+        try (final FileHandle first = fileSystem.open(file, FileMode.READ);
+             final FileHandle second = fileSystem.open(file, FileMode.READ)) {
+            assertEquals("old", read(first));
+            assertEquals("old", read(second));
+        }
+
+        // Replaced on the host, as editors do when saving.
+        Files.writeString(root.resolve("b"), "new");
+        Files.move(root.resolve("b"), root.resolve("a"), StandardCopyOption.REPLACE_EXISTING);
+        try (final FileHandle handle = fileSystem.open(file, FileMode.READ)) {
+            assertEquals("new", read(handle));
+        }
+
+        // Replaced through the file system.
+        fileSystem.unlink(file);
+        try (final FileHandle handle = fileSystem.create(file, FileMode.READ | FileMode.WRITE)) {
+            handle.write(0, ByteBuffer.wrap("newer".getBytes(StandardCharsets.UTF_8)));
+        }
+        try (final FileHandle handle = fileSystem.open(file, FileMode.READ | FileMode.WRITE | FileMode.TRUNCATE)) {
+            assertEquals("", read(handle));
+        }
+
+        fileSystem.closeIdleChannels();
+    }
+
+    @Test
+    public void readOnlyHandlesSharingWritableChannelsCannotWrite() throws IOException {
+        final HostFileSystem fileSystem = new HostFileSystem(root.toFile());
+        final Path file = new Path().resolve("a");
+        Files.writeString(root.resolve("a"), "old");
+
+        try (final FileHandle writer = fileSystem.open(file, FileMode.READ | FileMode.WRITE);
+             final FileHandle reader = fileSystem.open(file, FileMode.READ)) {
+            assertThrows(IOException.class, () -> reader.write(0, ByteBuffer.wrap("new".getBytes(StandardCharsets.UTF_8))));
+            assertEquals("old", read(reader));
+            assertEquals(0, reader.read(3, ByteBuffer.allocate(16)));
+        }
+        assertEquals("old", Files.readString(root.resolve("a")));
+    }
+
+    @Test
+    public void handlesKeepWorkingWhenChannelsAreEvicted() throws IOException {
+        final HostFileSystem fileSystem = new HostFileSystem(root.toFile(), 1);
+        for (int i = 0; i < 4; i++) {
+            Files.writeString(root.resolve("f" + i), "f" + i);
+        }
+
+        final FileHandle handle = fileSystem.open(new Path().resolve("f0"), FileMode.READ);
+        for (int i = 1; i < 4; i++) {
+            try (final FileHandle other = fileSystem.open(new Path().resolve("f" + i), FileMode.READ)) {
+                assertEquals("f" + i, read(other));
+            }
+        }
+        fileSystem.closeIdleChannels();
+        assertEquals("f0", read(handle));
+        handle.close();
+        assertThrows(IOException.class, () -> read(handle));
+    }
+
+    @Test
+    public void directTransfersReturnSameData() throws IOException {
+        final HostFileSystem fileSystem = new HostFileSystem(root.toFile());
+        fileSystem.setDirectTransferThreshold(8 * 1024);
+
+        final byte[] data = new byte[1024 * 1024 + 123];
+        new Random(0xdeadbeef).nextBytes(data);
+        final int chunkSize = 64 * 1024;
+        try (final FileHandle handle = fileSystem.create(new Path().resolve("large"), FileMode.WRITE)) {
+            for (int offset = 0; offset < data.length; offset += chunkSize) {
+                final ByteBuffer buffer = ByteBuffer.wrap(data, offset, Math.min(chunkSize, data.length - offset));
+                while (buffer.hasRemaining()) {
+                    handle.write(buffer.position(), buffer);
+                }
+            }
+        }
+        assertArrayEquals(data, Files.readAllBytes(root.resolve("large")));
+
+        final byte[] read = new byte[data.length];
+        try (final FileHandle handle = fileSystem.open(new Path().resolve("large"), FileMode.READ)) {
+            final ByteBuffer buffer = ByteBuffer.wrap(read);
+            while (buffer.hasRemaining()) {
+                final int count = handle.read(buffer.position(), buffer.slice(buffer.position(), Math.min(chunkSize, buffer.remaining())));
+                if (count <= 0) {
+                    break;
+                }
+                buffer.position(buffer.position() + count);
+            }
+            assertEquals(0, handle.read(data.length, ByteBuffer.allocate(chunkSize)));
+        }
+        assertArrayEquals(data, read);
+    }
+
+    private static String read(final FileHandle handle) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(1024);
+        while (handle.read(buffer.position(), buffer) > 0) {
+        }
+        return new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+    }
+}
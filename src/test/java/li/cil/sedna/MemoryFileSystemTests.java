@@ -0,0 +1,215 @@
+package li.cil.sedna;
+
+import li.cil.ceres.BinarySerialization;
+import li.cil.sedna.fs.*;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class MemoryFileSystemTests {
+    private static final int CAPACITY = 16 * MemoryFileSystem.CHUNK_SIZE;
+
+    private MemoryFileSystem fileSystem;
+    private byte[] data;
+
+    @BeforeAll
+    public static void setup() {
+        Sedna.initialize();
+    }
+
+    @BeforeEach
+    public void setupEach() throws IOException {
+        fileSystem = new MemoryFileSystem(CAPACITY);
+        fileSystem.mkdir(path("tmp"));
+
+        data = new byte[3 * MemoryFileSystem.CHUNK_SIZE + 123];
+        new Random(0xdeadbeef).nextBytes(data);
+    }
+
+    @Test
+    public void appendedDataCanBeReadBack() throws IOException {
+        try (final FileHandle handle = fileSystem.create(path("tmp", "a.o"), FileMode.WRITE)) {
+            for (int offset = 0; offset < data.length; offset += 1000) {
+                handle.write(offset, ByteBuffer.wrap(data, offset, Math.min(1000, data.length - offset)));
+            }
+        }
+
+        assertEquals(data.length, fileSystem.getAttributes(path("tmp", "a.o")).size());
+        assertEquals(4L * MemoryFileSystem.CHUNK_SIZE, fileSystem.getAllocatedSize());
+        try (final FileHandle handle = fileSystem.open(path("tmp", "a.o"), FileMode.READ)) {
+            assertArrayEquals(data, readAll(handle, 0, data.length));
+            assertEquals(0, handle.read(data.length, ByteBuffer.allocate(1)));
+        }
+    }
+
+    @Test
+    public void holesReadAsZerosAndAreNotAllocated() throws IOException {
+        final long offset = 5L * MemoryFileSystem.CHUNK_SIZE;
+        try (final FileHandle handle = fileSystem.create(path("sparse"), FileMode.READ | FileMode.WRITE)) {
+            handle.write(offset, ByteBuffer.wrap(new byte[]{1, 2, 3}));
+            assertEquals(MemoryFileSystem.CHUNK_SIZE, fileSystem.getAllocatedSize());
+
+            final byte[] read = readAll(handle, offset - 2, 5);
+            assertArrayEquals(new byte[]{0, 0, 1, 2, 3}, read);
+        }
+    }
+
+    @Test
+    public void quotaIsEnforced() throws IOException {
+        try (final FileHandle handle = fileSystem.create(path("big"), FileMode.WRITE)) {
+            handle.write(0, ByteBuffer.wrap(new byte[CAPACITY]));
+            assertThrows(NoSpaceLeftException.class, () -> handle.write(CAPACITY, ByteBuffer.wrap(new byte[1])));
+        }
+        assertEquals(CAPACITY, fileSystem.getAttributes(path("big")).size());
+
+        fileSystem.open(path("big"), FileMode.WRITE | FileMode.TRUNCATE).close();
+        assertEquals(0, fileSystem.getAllocatedSize());
+        assertEquals(0, fileSystem.getAttributes(path("big")).size());
+    }
+
+    @Test
+    public void writesFarBeyondTheEndDoNotAllocateIntermediateChunks() throws IOException {
+        try (final FileHandle handle = fileSystem.create(path("sparse"), FileMode.READ | FileMode.WRITE)) {
+            final long offset = 1L << 40;
+            assertEquals(1, handle.write(offset, ByteBuffer.wrap(new byte[]{42})));
+            assertEquals(offset + 1, fileSystem.getAttributes(path("sparse")).size());
+            assertEquals(MemoryFileSystem.CHUNK_SIZE, fileSystem.getAllocatedSize());
+            assertArrayEquals(new byte[]{0, 42}, readAll(handle, offset - 1, 2));
+
+            assertThrows(IOException.class, () -> handle.write(MemoryFileSystem.MAX_FILE_SIZE, ByteBuffer.wrap(new byte[1])));
+            assertThrows(IOException.class, () -> handle.write(Long.MAX_VALUE, ByteBuffer.wrap(new byte[2])));
+            assertEquals(offset + 1, fileSystem.getAttributes(path("sparse")).size());
+        }
+    }
+
+    @Test
+    public void unlinkedFilesStayReadableWhileOpen() throws IOException {
+        fileSystem.create(path("tmp", "a"), FileMode.WRITE).write(0, ByteBuffer.wrap(data));
+        assertThrows(DirectoryNotEmptyException.class, () -> fileSystem.unlink(path("tmp")));
+
+        final FileHandle handle = fileSystem.open(path("tmp", "a"), FileMode.READ);
+        fileSystem.unlink(path("tmp", "a"));
+        fileSystem.unlink(path("tmp"));
+        assertFalse(fileSystem.exists(path("tmp", "a")));
+        assertArrayEquals(data, readAll(handle, 0, data.length));
+
+        // The handle returned by create is still open as well.
+        assertNotEquals(0, fileSystem.getAllocatedSize());
+    }
+
+    @Test
+    public void uniqueIdsAreNotReusedAfterClear() throws IOException {
+        final FileHandle handle = fileSystem.create(path("a"), FileMode.WRITE);
+        final long uniqueId = fileSystem.getUniqueId(path("a"));
+
+        // The handle still refers to the old file, which must not be confused with new ones.
+        fileSystem.clear();
+        fileSystem.mkdir(path("tmp"));
+        fileSystem.create(path("a"), FileMode.WRITE).close();
+        assertNotEquals(uniqueId, fileSystem.getUniqueId(path("a")));
+        handle.close();
+    }
+
+    @Test
+    public void renamedDirectoriesMoveTheirContents() throws IOException {
+        fileSystem.mkdir(path("tmp", "build"));
+        fileSystem.create(path("tmp", "build", "out.bin"), FileMode.WRITE).close();
+        final long id = fileSystem.getUniqueId(path("tmp", "build", "out.bin"));
+
+        fileSystem.rename(path("tmp"), path("scratch"));
+        assertFalse(fileSystem.exists(path("tmp", "build", "out.bin")));
+        assertEquals(id, fileSystem.getUniqueId(path("scratch", "build", "out.bin")));
+        assertThrows(IOException.class, () -> fileSystem.rename(path("scratch"), path("scratch", "build", "x")));
+        assertThrows(FileAlreadyExistsException.class, () -> fileSystem.mkdir(path("scratch", "build")));
+        assertThrows(NoSuchFileException.class, () -> fileSystem.mkdir(path("tmp", "x")));
+    }
+
+    @Test
+    public void exportedNodesCanBeImported() throws IOException {
+        fileSystem.mkdir(path("tmp", "empty"));
+        fileSystem.create(path("tmp", "a"), FileMode.WRITE).write(0, ByteBuffer.wrap(data));
+        final long id = fileSystem.getUniqueId(path("tmp", "a"));
+
+        final MemoryFileSystem restored = new MemoryFileSystem(CAPACITY);
+        restored.importNodes(fileSystem.exportNodes());
+
+        assertTrue(restored.isDirectory(path("tmp", "empty")));
+        assertEquals(id, restored.getUniqueId(path("tmp", "a")));
+        try (final FileHandle handle = restored.open(path("tmp", "a"), FileMode.READ)) {
+            assertArrayEquals(data, readAll(handle, 0, data.length));
+        }
+
+        // New nodes must not reuse restored ids.
+        restored.mkdir(path("new"));
+        assertTrue(restored.getUniqueId(path("new")) > id);
+    }
+
+    @Test
+    public void sparseFilesStaySparseWhenExported() throws IOException {
+        // Nearly fills the file system, with a file much larger than its capacity.
+        final long offset = 1000L * MemoryFileSystem.CHUNK_SIZE;
+        try (final FileHandle handle = fileSystem.create(path("sparse"), FileMode.WRITE)) {
+            handle.write(0, ByteBuffer.wrap(data, 0, 1));
+            handle.write(offset, ByteBuffer.wrap(data, 1, 1));
+            handle.write(MemoryFileSystem.CHUNK_SIZE, ByteBuffer.wrap(new byte[CAPACITY - 3 * MemoryFileSystem.CHUNK_SIZE]));
+        }
+        assertEquals(CAPACITY - MemoryFileSystem.CHUNK_SIZE, fileSystem.getAllocatedSize());
+
+        final MemoryFileSystem restored = new MemoryFileSystem(CAPACITY);
+        restored.importNodes(fileSystem.exportNodes());
+        assertEquals(fileSystem.getAllocatedSize(), restored.getAllocatedSize());
+        assertEquals(offset + 1, restored.getAttributes(path("sparse")).size());
+        try (final FileHandle handle = restored.open(path("sparse"), FileMode.READ)) {
+            assertArrayEquals(new byte[]{data[0], 0}, readAll(handle, 0, 2));
+            assertArrayEquals(new byte[]{0, data[1]}, readAll(handle, offset - 1, 2));
+        }
+    }
+
+    @Test
+    public void serializationRetainsContents() throws IOException {
+        fileSystem.create(path("tmp", "a"), FileMode.WRITE).write(0, ByteBuffer.wrap(data));
+        fileSystem.create(path("sparse"), FileMode.WRITE).write(10L * MemoryFileSystem.CHUNK_SIZE, ByteBuffer.wrap(data, 0, 10));
+        final long id = fileSystem.getUniqueId(path("tmp", "a"));
+
+        final ByteBuffer serialized = BinarySerialization.serialize(fileSystem);
+        final MemoryFileSystem deserialized = BinarySerialization.deserialize(serialized, new MemoryFileSystem(CAPACITY));
+
+        assertEquals(id, deserialized.getUniqueId(path("tmp", "a")));
+        assertEquals(fileSystem.getAllocatedSize(), deserialized.getAllocatedSize());
+        try (final FileHandle handle = deserialized.open(path("tmp", "a"), FileMode.READ)) {
+            assertArrayEquals(data, readAll(handle, 0, data.length));
+        }
+        final byte[] sparse = new byte[10 * MemoryFileSystem.CHUNK_SIZE + 10];
+        System.arraycopy(data, 0, sparse, 10 * MemoryFileSystem.CHUNK_SIZE, 10);
+        try (final FileHandle handle = deserialized.open(path("sparse"), FileMode.READ)) {
+            assertArrayEquals(sparse, readAll(handle, 0, sparse.length));
+        }
+    }
+
+    private static byte[] readAll(final FileHandle handle, final long offset, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (handle.read(offset + buffer.position(), buffer) <= 0) {
+                break;
+            }
+        }
+        return buffer.array();
+    }
+
+    private static Path path(final String... parts) {
+        Path result = new Path();
+        for (final String part : parts) {
+            result = result.resolve(part);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,159 @@
+package li.cil.sedna;
+
+import li.cil.sedna.fs.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class OverlayFileSystemTests {
+    @TempDir
+    java.nio.file.Path root;
+
+    private java.nio.file.Path lowerRoot;
+    private java.nio.file.Path upperRoot;
+    private OverlayFileSystem overlay;
+
+    @BeforeEach
+    public void setupEach() throws IOException {
+        lowerRoot = Files.createDirectory(root.resolve("lower"));
+        upperRoot = Files.createDirectory(root.resolve("upper"));
+        Files.createDirectories(lowerRoot.resolve("etc/init.d"));
+        Files.writeString(lowerRoot.resolve("etc/hostname"), "lower");
+        Files.writeString(lowerRoot.resolve("etc/init.d/rcS"), "#!/bin/sh");
+        overlay = new OverlayFileSystem(new HostFileSystem(lowerRoot.toFile()), new HostFileSystem(upperRoot.toFile()));
+    }
+
+    @Test
+    public void writesCopyUpAndLeaveLowerUnchanged() throws IOException {
+        final Path hostname = path("etc", "hostname");
+        try (final FileHandle handle = overlay.open(hostname, FileMode.READ)) {
+            assertEquals("lower", read(handle));
+        }
+        assertFalse(Files.exists(upperRoot.resolve("etc")));
+
+        try (final FileHandle handle = overlay.open(hostname, FileMode.READ | FileMode.WRITE)) {
+            handle.write(0, ByteBuffer.wrap("upper".getBytes(StandardCharsets.UTF_8)));
+        }
+
+        try (final FileHandle handle = overlay.open(hostname, FileMode.READ)) {
+            assertEquals("upper", read(handle));
+        }
+        assertEquals("lower", Files.readString(lowerRoot.resolve("etc/hostname")));
+        assertEquals("upper", Files.readString(upperRoot.resolve("etc/hostname")));
+    }
+
+    @Test
+    public void directoryListingsAreMerged() throws IOException {
+        overlay.create(path("etc", "fstab"), FileMode.WRITE).close();
+        overlay.open(path("etc", "hostname"), FileMode.WRITE).close();
+
+        assertEquals(Set.of("init.d", "hostname", "fstab"), list(path("etc")));
+    }
+
+    @Test
+    public void unlinkedLowerFilesAreHidden() throws IOException {
+        final Path hostname = path("etc", "hostname");
+        overlay.unlink(hostname);
+
+        assertFalse(overlay.exists(hostname));
+        assertThrows(NoSuchFileException.class, () -> overlay.open(hostname, FileMode.READ));
+        assertEquals(Set.of("init.d"), list(path("etc")));
+        assertTrue(Files.exists(lowerRoot.resolve("etc/hostname")));
+
+        // Whiteouts are internal, they cannot be seen or opened.
+        assertFalse(overlay.exists(path("etc", ".wh.hostname")));
+
+        overlay.create(hostname, FileMode.WRITE).close();
+        assertTrue(overlay.exists(hostname));
+        assertEquals(0, overlay.getAttributes(hostname).size());
+    }
+
+    @Test
+    public void recreatedDirectoriesDoNotShowLowerContents() throws IOException {
+        overlay.unlink(path("etc", "init.d", "rcS"));
+        overlay.unlink(path("etc", "init.d"));
+        assertFalse(overlay.exists(path("etc", "init.d")));
+
+        overlay.mkdir(path("etc", "init.d"));
+        assertTrue(overlay.isDirectory(path("etc", "init.d")));
+        assertEquals(Set.of(), list(path("etc", "init.d")));
+        assertFalse(overlay.exists(path("etc", "init.d", "rcS")));
+    }
+
+    @Test
+    public void directoriesRenamedOverDeletedOnesDoNotShowLowerContents() throws IOException {
+        overlay.unlink(path("etc", "init.d", "rcS"));
+        overlay.unlink(path("etc", "init.d"));
+
+        overlay.mkdir(path("etc", "rc"));
+        overlay.rename(path("etc", "rc"), path("etc", "init.d"));
+        assertTrue(overlay.isDirectory(path("etc", "init.d")));
+        assertEquals(Set.of(), list(path("etc", "init.d")));
+        assertFalse(overlay.exists(path("etc", "init.d", "rcS")));
+        assertFalse(overlay.exists(path("etc", "rc")));
+    }
+
+    @Test
+    public void renamedLowerDirectoriesAreCopiedUp() throws IOException {
+        overlay.rename(path("etc"), path("config"));
+
+        assertFalse(overlay.exists(path("etc")));
+        assertEquals(Set.of("config"), list(new Path()));
+        assertEquals(Set.of("init.d", "hostname"), list(path("config")));
+        try (final FileHandle handle = overlay.open(path("config", "init.d", "rcS"), FileMode.READ)) {
+            assertEquals("#!/bin/sh", read(handle));
+        }
+        assertTrue(Files.exists(lowerRoot.resolve("etc/init.d/rcS")));
+    }
+
+    @Test
+    public void failedCopyUpLeavesLowerFileVisible() throws IOException {
+        final byte[] data = new byte[256 * 1024];
+        Files.write(lowerRoot.resolve("etc/large"), data);
+
+        // Too small to hold the copy, so copying up fails part way through.
+        final MemoryFileSystem upper = new MemoryFileSystem(128 * 1024);
+        final OverlayFileSystem overlay = new OverlayFileSystem(new HostFileSystem(lowerRoot.toFile()), upper);
+        final Path large = path("etc", "large");
+        assertThrows(IOException.class, () -> overlay.open(large, FileMode.READ | FileMode.WRITE));
+
+        assertEquals(data.length, overlay.getAttributes(large).size());
+        try (final FileHandle handle = upper.open(path("etc"), FileMode.READ)) {
+            assertEquals(List.of(), handle.readdir());
+        }
+        assertEquals(upper.statfs().blockCount, upper.statfs().freeBlockCount);
+    }
+
+    private Set<String> list(final Path path) throws IOException {
+        try (final FileHandle handle = overlay.open(path, FileMode.READ)) {
+            final List<DirectoryEntry> entries = handle.readdir();
+            return entries.stream().map(entry -> entry.name).collect(Collectors.toSet());
+        }
+    }
+
+    private static String read(final FileHandle handle) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(1024);
+        while (handle.read(buffer.position(), buffer) > 0) {
+        }
+        return new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+    }
+
+    private static Path path(final String... parts) {
+        Path result = new Path();
+        for (final String part : parts) {
+            result = result.resolve(part);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,73 @@
+package li.cil.sedna;
+
+import li.cil.sedna.device.network.PacketCapture;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class PacketCaptureTests {
+    @TempDir
+    Path directory;
+
+    @Test
+    public void framesAreWrittenAsEnhancedPacketBlocks() throws IOException {
+        final Path path = directory.resolve("capture.pcapng");
+        final PacketCapture capture = PacketCapture.open(path, 4096, 100);
+
+        final ByteBuffer frame = ByteBuffer.allocate(200);
+        for (int i = 0; i < frame.capacity(); i++) {
+            frame.put(i, (byte) i);
+        }
+
+        capture.capture(frame, 10, 61, true);
+        capture.capture(frame, 0, 200, false);
+        capture.close();
+
+        assertEquals(2, capture.getCapturedFrameCount());
+        assertEquals(0, capture.getDroppedFrameCount());
+
+        final ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(0x0A0D0D0A, file.getInt(0));
+        assertEquals(0x1A2B3C4D, file.getInt(8));
+        final int sectionLength = file.getInt(4);
+        assertEquals(1, file.getInt(sectionLength));
+        assertEquals(100, file.getInt(sectionLength + 12));
+
+        int block = sectionLength + file.getInt(sectionLength + 4);
+
+        // First frame: 61 bytes, padded to 64.
+        assertEquals(6, file.getInt(block));
+        assertEquals(32 + 64 + 12, file.getInt(block + 4));
+        assertEquals(61, file.getInt(block + 20));
+        assertEquals(61, file.getInt(block + 24));
+        assertEquals(10, file.get(block + 28));
+        assertEquals(70, file.get(block + 28 + 60));
+        assertEquals(2, file.getInt(block + 28 + 64 + 4));
+        block += file.getInt(block + 4);
+
+        // Second frame: truncated to snap length.
+        assertEquals(6, file.getInt(block));
+        assertEquals(100, file.getInt(block + 20));
+        assertEquals(200, file.getInt(block + 24));
+        assertEquals(1, file.getInt(block + 28 + 100 + 4));
+        block += file.getInt(block + 4);
+
+        assertEquals(file.capacity(), block);
+    }
+
+    @Test
+    public void framesAreDroppedAfterClose() throws IOException {
+        final PacketCapture capture = PacketCapture.open(directory.resolve("capture.pcapng"));
+        capture.close();
+        capture.capture(ByteBuffer.allocate(64), 0, 64, true);
+        assertEquals(0, capture.getCapturedFrameCount());
+        assertEquals(1, capture.getDroppedFrameCount());
+    }
+}
@@ -0,0 +1,73 @@
+package li.cil.sedna;
+
+import li.cil.sedna.api.device.rtc.RealTimeCounter;
+import li.cil.sedna.device.qos.TokenBucketRateLimiter;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class TokenBucketRateLimiterTests {
+    private static final int FREQUENCY = 1000;
+
+    private final ManualClock clock = new ManualClock();
+
+    @Test
+    public void bandwidthIsLimitedAfterBurst() {
+        final TokenBucketRateLimiter limiter = TokenBucketRateLimiter.builder(clock)
+            .bandwidth(1000, 2000)
+            .build();
+
+        assertTrue(limiter.hasCapacity());
+        limiter.consume(1500);
+        assertTrue(limiter.hasCapacity());
+        limiter.consume(1500);
+        assertFalse(limiter.hasCapacity());
+
+        // Debt of 1000 bytes, paid off after one second.
+        clock.time += FREQUENCY;
+        assertFalse(limiter.hasCapacity());
+        clock.time += 1;
+        assertTrue(limiter.hasCapacity());
+    }
+
+    @Test
+    public void operationsAreLimited() {
+        final TokenBucketRateLimiter limiter = TokenBucketRateLimiter.builder(clock)
+            .operations(10, 2)
+            .build();
+
+        limiter.consume(1 << 20);
+        limiter.consume(1 << 20);
+        assertFalse(limiter.hasCapacity());
+
+        clock.time += FREQUENCY / 10;
+        assertTrue(limiter.hasCapacity());
+        limiter.consume(0);
+        assertFalse(limiter.hasCapacity());
+    }
+
+    @Test
+    public void refillIsCappedAtBurst() {
+        final TokenBucketRateLimiter limiter = TokenBucketRateLimiter.builder(clock)
+            .bandwidth(1000, 500)
+            .build();
+
+        clock.time += 100 * FREQUENCY;
+        limiter.consume(600);
+        assertFalse(limiter.hasCapacity());
+    }
+
+    private static final class ManualClock implements RealTimeCounter {
+        public long time;
+
+        @Override
+        public long getTime() {
+            return time;
+        }
+
+        @Override
+        public int getFrequency() {
+            return FREQUENCY;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package li.cil.sedna;
+
+import li.cil.sedna.api.Sizes;
+import li.cil.sedna.device.serial.UART16550A;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class UART16550ATests {
+    private static final int RBR_THR = 0;
+    private static final int IER = 1;
+    private static final int IIR_FCR = 2;
+    private static final int LSR = 5;
+
+    private static final int LSR_DR = 1 << 0;
+    private static final int LSR_OE = 1 << 1;
+    private static final int LSR_THRE = 1 << 5;
+
+    private UART16550A uart;
+
+    @BeforeEach
+    public void setupEach() {
+        uart = new UART16550A();
+        uart.store(IIR_FCR, 1 /* enable fifo */, Sizes.SIZE_8_LOG2);
+    }
+
+    @Test
+    public void bulkReadDrainsTransmitFifo() {
+        for (int i = 0; i < 20; i++) {
+            uart.store(RBR_THR, i, Sizes.SIZE_8_LOG2);
+        }
+        assertEquals(0, uart.load(LSR, Sizes.SIZE_8_LOG2) & LSR_THRE);
+
+        // Bytes written while the FIFO is full are lost.
+        final byte[] buffer = new byte[32];
+        assertEquals(16, uart.read(buffer, 0, buffer.length));
+        for (int i = 0; i < 16; i++) {
+            assertEquals(i, buffer[i]);
+        }
+
+        assertEquals(0, uart.read(buffer, 0, buffer.length));
+        assertEquals(-1, uart.read());
+        assertNotEquals(0, uart.load(LSR, Sizes.SIZE_8_LOG2) & LSR_THRE);
+    }
+
+    @Test
+    public void bulkWriteRespectsFifoCapacity() {
+        final byte[] data = new byte[20];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (0xF0 + i);
+        }
+
+        assertEquals(16, uart.write(data, 0, data.length));
+        assertFalse(uart.canPutByte());
+        assertEquals(0, uart.write(data, 16, 4));
+
+        uart.step(1);
+        final int lsr = (int) uart.load(LSR, Sizes.SIZE_8_LOG2);
+        assertNotEquals(0, lsr & LSR_DR);
+        assertEquals(0, lsr & LSR_OE);
+
+        for (int i = 0; i < 16; i++) {
+            assertEquals(data[i], (byte) uart.load(RBR_THR, Sizes.SIZE_8_LOG2));
+        }
+        assertEquals(0, uart.load(LSR, Sizes.SIZE_8_LOG2) & LSR_DR);
+        assertTrue(uart.canPutByte());
+    }
+
+    @Test
+    public void putByteOnFullFifoSignalsOverrun() {
+        for (int i = 0; i < 17; i++) {
+            uart.putByte((byte) i);
+        }
+
+        assertNotEquals(0, uart.load(LSR, Sizes.SIZE_8_LOG2) & LSR_OE);
+        assertEquals(0, uart.load(LSR, Sizes.SIZE_8_LOG2) & LSR_OE);
+    }
+
+    @Test
+    public void receivedDataRaisesInterrupt() {
+        uart.store(IER, 1 /* received data available */, Sizes.SIZE_8_LOG2);
+        assertNotEquals(0, uart.load(IIR_FCR, Sizes.SIZE_8_LOG2) & 1 /* no interrupt */);
+
+        uart.putByte((byte) 42);
+        uart.step(1);
+        assertEquals(0, uart.load(IIR_FCR, Sizes.SIZE_8_LOG2) & 1 /* no interrupt */);
+
+        assertEquals(42, uart.load(RBR_THR, Sizes.SIZE_8_LOG2));
+        assertNotEquals(0, uart.load(IIR_FCR, Sizes.SIZE_8_LOG2) & 1 /* no interrupt */);
+    }
+}
@@ -0,0 +1,210 @@
+package li.cil.sedna;
+
+import li.cil.sedna.device.network.EthernetSwitch;
+import li.cil.sedna.device.network.UserModeNetwork;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Predicate;
+
+import static li.cil.sedna.device.network.UserModeNetworkInterface.GATEWAY_ADDRESS;
+import static li.cil.sedna.device.network.UserModeNetworkInterface.GUEST_ADDRESS;
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class UserModeNetworkTests {
+    private static final byte[] GUEST_MAC = {0x02, 0, 0, 0, 0, 0x15};
+    private static final byte[] BROADCAST_MAC = {-1, -1, -1, -1, -1, -1};
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final int GUEST_PORT = 40000;
+
+    private EthernetSwitch ethernetSwitch;
+    private UserModeNetwork network;
+    private EthernetSwitch.HostPort guest;
+
+    @BeforeEach
+    public void setupEach() throws IOException {
+        ethernetSwitch = new EthernetSwitch();
+        network = UserModeNetwork.create();
+        guest = ethernetSwitch.attachHost();
+        network.attach(ethernetSwitch.attachHost());
+    }
+
+    @AfterEach
+    public void teardownEach() {
+        network.close();
+    }
+
+    @Test
+    public void gatewayAnswersArpAndDhcp() throws IOException {
+        final ByteBuffer arp = ethernet(BROADCAST_MAC, 0x0806, 28);
+        arp.putShort((short) 1).putShort((short) 0x0800).put((byte) 6).put((byte) 4).putShort((short) 1);
+        arp.put(GUEST_MAC).putInt(GUEST_ADDRESS).put(new byte[6]).putInt(GATEWAY_ADDRESS);
+        send(arp);
+
+        final ByteBuffer arpReply = receive(frame -> frame.getShort(12) == 0x0806);
+        assertEquals(2, arpReply.getShort(14 + 6));
+        assertEquals(GATEWAY_ADDRESS, arpReply.getInt(14 + 14));
+        assertEquals(GUEST_ADDRESS, arpReply.getInt(14 + 24));
+
+        final ByteBuffer discover = ipv4(17, 0, 0xFFFFFFFF, 8 + 244);
+        discover.putShort((short) 68).putShort((short) 67).putShort((short) (8 + 244)).putShort((short) 0);
+        final int dhcp = discover.position();
+        discover.put((byte) 1).put((byte) 1).put((byte) 6);
+        discover.putInt(dhcp + 4, 0x12345678);
+        discover.put(dhcp + 28, GUEST_MAC);
+        discover.putInt(dhcp + 236, 0x63825363);
+        discover.put(dhcp + 240, (byte) 53).put(dhcp + 241, (byte) 1).put(dhcp + 242, (byte) 1).put(dhcp + 243, (byte) 255);
+        discover.position(discover.limit());
+        send(discover);
+
+        final ByteBuffer offer = receive(frame -> isUdp(frame) && frame.getShort(34 + 2) == 68);
+        final int reply = 34 + 8;
+        assertEquals(2, offer.get(reply));
+        assertEquals(0x12345678, offer.getInt(reply + 4));
+        assertEquals(GUEST_ADDRESS, offer.getInt(reply + 16));
+        assertEquals(53, offer.get(reply + 240));
+        assertEquals(2, offer.get(reply + 242));
+    }
+
+    @Test
+    public void udpIsRelayedToLoopback() throws IOException {
+        try (final DatagramChannel server = DatagramChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+            server.configureBlocking(false);
+            final int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+
+            final byte[] request = "ping".getBytes(StandardCharsets.US_ASCII);
+            final ByteBuffer datagram = ipv4(17, GUEST_ADDRESS, GATEWAY_ADDRESS, 8 + request.length);
+            datagram.putShort((short) GUEST_PORT).putShort((short) port).putShort((short) (8 + request.length)).putShort((short) 0);
+            datagram.put(request);
+            send(datagram);
+
+            final ByteBuffer received = ByteBuffer.allocate(64);
+            final SocketAddress client = pumpUntil(() -> server.receive(received));
+            assertEquals("ping", new String(received.array(), 0, received.position(), StandardCharsets.US_ASCII));
+
+            server.send(ByteBuffer.wrap("pong".getBytes(StandardCharsets.US_ASCII)), client);
+
+            final ByteBuffer reply = receive(UserModeNetworkTests::isUdp);
+            assertEquals(GATEWAY_ADDRESS, reply.getInt(26));
+            assertEquals(port, reply.getShort(34) & 0xFFFF);
+            assertEquals(GUEST_PORT, reply.getShort(36) & 0xFFFF);
+            assertEquals("pong", new String(reply.array(), reply.arrayOffset() + 42, 4, StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    public void tcpIsRelayedToLoopback() throws IOException {
+        try (final ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+            server.configureBlocking(false);
+            final int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+
+            final int guestSequence = 1000;
+            send(tcp(port, guestSequence, 0, 0x02, new byte[0]));
+
+            final ByteBuffer synAck = receive(frame -> isTcp(frame) && (frame.get(34 + 13) & 0x12) == 0x12);
+            assertEquals(guestSequence + 1, synAck.getInt(34 + 8));
+            final int hostSequence = synAck.getInt(34 + 4) + 1;
+
+            final byte[] request = "hello".getBytes(StandardCharsets.US_ASCII);
+            send(tcp(port, guestSequence + 1, hostSequence, 0x18, request));
+
+            try (final SocketChannel connection = pumpUntil(server::accept)) {
+                connection.configureBlocking(false);
+                final ByteBuffer received = ByteBuffer.allocate(64);
+                pumpUntil(() -> connection.read(received) > 0 && received.position() >= request.length ? received : null);
+                assertEquals("hello", new String(received.array(), 0, received.position(), StandardCharsets.US_ASCII));
+
+                connection.write(ByteBuffer.wrap("world".getBytes(StandardCharsets.US_ASCII)));
+
+                final ByteBuffer data = receive(frame -> isTcp(frame) && payloadLength(frame) > 0);
+                assertEquals(hostSequence, data.getInt(34 + 4));
+                assertEquals(guestSequence + 1 + request.length, data.getInt(34 + 8));
+                final int payload = 34 + ((data.get(34 + 12) >>> 4) & 0xF) * 4;
+                assertEquals("world", new String(data.array(), data.arrayOffset() + payload, 5, StandardCharsets.US_ASCII));
+            }
+        }
+    }
+
+    private void send(final ByteBuffer frame) {
+        assertTrue(guest.transmit(frame.flip()));
+    }
+
+    private ByteBuffer receive(final Predicate<ByteBuffer> filter) throws IOException {
+        return pumpUntil(() -> {
+            final ByteBuffer frame = ByteBuffer.allocate(2048);
+            if (guest.receive(frame) > 0 && filter.test(frame.flip())) {
+                return frame;
+            }
+            return null;
+        });
+    }
+
+    private <T> T pumpUntil(final IOSupplier<T> condition) throws IOException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            ethernetSwitch.forward();
+            network.poll(1);
+            ethernetSwitch.forward();
+
+            final T result = condition.get();
+            if (result != null) {
+                return result;
+            }
+        }
+        return fail("Timed out.");
+    }
+
+    private static boolean isUdp(final ByteBuffer frame) {
+        return frame.getShort(12) == 0x0800 && frame.get(14 + 9) == 17;
+    }
+
+    private static boolean isTcp(final ByteBuffer frame) {
+        return frame.getShort(12) == 0x0800 && frame.get(14 + 9) == 6;
+    }
+
+    private static int payloadLength(final ByteBuffer frame) {
+        return (frame.getShort(14 + 2) & 0xFFFF) - 20 - ((frame.get(34 + 12) >>> 4) & 0xF) * 4;
+    }
+
+    private static ByteBuffer ethernet(final byte[] destination, final int etherType, final int payloadLength) {
+        final ByteBuffer frame = ByteBuffer.allocate(14 + payloadLength);
+        frame.put(destination).put(GUEST_MAC).putShort((short) etherType);
+        return frame;
+    }
+
+    private static ByteBuffer ipv4(final int protocol, final int source, final int destination, final int payloadLength) {
+        final ByteBuffer frame = ethernet(BROADCAST_MAC, 0x0800, 20 + payloadLength);
+        frame.put((byte) 0x45).put((byte) 0).putShort((short) (20 + payloadLength));
+        frame.putShort((short) 0).putShort((short) 0x4000);
+        frame.put((byte) 64).put((byte) protocol).putShort((short) 0);
+        frame.putInt(source).putInt(destination);
+        return frame;
+    }
+
+    private static ByteBuffer tcp(final int port, final int sequence, final int acknowledgement, final int flags, final byte[] payload) {
+        final ByteBuffer frame = ipv4(6, GUEST_ADDRESS, GATEWAY_ADDRESS, 20 + payload.length);
+        frame.putShort((short) GUEST_PORT).putShort((short) port);
+        frame.putInt(sequence).putInt(acknowledgement);
+        frame.put((byte) (5 << 4)).put((byte) flags).putShort((short) 0xFFFF);
+        frame.putShort((short) 0).putShort((short) 0);
+        frame.put(payload);
+        return frame;
+    }
+
+    @FunctionalInterface
+    private interface IOSupplier<T> {
+        T get() throws IOException;
+    }
+}
@@ -0,0 +1,272 @@
+package li.cil.sedna;
+
+import li.cil.sedna.api.Sizes;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.device.memory.Memory;
+import li.cil.sedna.device.virtio.VirtIOConsoleDevice;
+import li.cil.sedna.memory.SimpleMemoryMap;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class VirtIOConsoleDeviceTests {
+    private static final long MEMORY_ADDRESS = 0x80000000L;
+    private static final int MEMORY_SIZE = 256 * 1024;
+
+    private static final int VIRTIO_MMIO_DEVICE_FEATURES = 0x010;
+    private static final int VIRTIO_MMIO_DEVICE_FEATURES_SEL = 0x014;
+    private static final int VIRTIO_MMIO_DRIVER_FEATURES = 0x020;
+    private static final int VIRTIO_MMIO_DRIVER_FEATURES_SEL = 0x024;
+    private static final int VIRTIO_MMIO_QUEUE_SEL = 0x030;
+    private static final int VIRTIO_MMIO_QUEUE_NUM = 0x038;
+    private static final int VIRTIO_MMIO_QUEUE_READY = 0x044;
+    private static final int VIRTIO_MMIO_QUEUE_NOTIFY = 0x050;
+    private static final int VIRTIO_MMIO_STATUS = 0x070;
+    private static final int VIRTIO_MMIO_QUEUE_DESC_LOW = 0x080;
+    private static final int VIRTIO_MMIO_QUEUE_DRIVER_LOW = 0x090;
+    private static final int VIRTIO_MMIO_QUEUE_DEVICE_LOW = 0x0A0;
+
+    private static final int VIRTIO_CONSOLE_DEVICE_READY = 0;
+    private static final int VIRTIO_CONSOLE_DEVICE_ADD = 1;
+    private static final int VIRTIO_CONSOLE_PORT_READY = 3;
+    private static final int VIRTIO_CONSOLE_CONSOLE_PORT = 4;
+    private static final int VIRTIO_CONSOLE_PORT_OPEN = 6;
+    private static final int VIRTIO_CONSOLE_PORT_NAME = 7;
+
+    private static final int VIRTQ_RECEIVE = 0;
+    private static final int VIRTQ_TRANSMIT = 1;
+    private static final int VIRTQ_RECEIVE_CONTROL = 2;
+    private static final int VIRTQ_TRANSMIT_CONTROL = 3;
+    private static final int VIRTQ_RECEIVE_PORT1 = 4;
+    private static final int VIRTQ_TRANSMIT_PORT1 = 5;
+    private static final int QUEUE_COUNT = 6;
+
+    private static final int QUEUE_SIZE = 16;
+    private static final long BUFFERS = MEMORY_ADDRESS + QUEUE_COUNT * 0x4000L;
+    private static final int BUFFER_SIZE = 0x100;
+
+    private SimpleMemoryMap memoryMap;
+    private VirtIOConsoleDevice device;
+    private final int[] availableIndices = new int[QUEUE_COUNT];
+    private final int[] usedIndices = new int[QUEUE_COUNT];
+
+    @BeforeEach
+    public void setupEach() throws MemoryAccessException {
+        memoryMap = new SimpleMemoryMap();
+        memoryMap.addDevice(MEMORY_ADDRESS, Memory.create(MEMORY_SIZE));
+        device = new VirtIOConsoleDevice(memoryMap, "data");
+        initializeDriver();
+    }
+
+    @Test
+    public void controlQueueHandshakeSetsUpPorts() throws MemoryAccessException {
+        for (int i = 0; i < 8; i++) {
+            addBuffer(VIRTQ_RECEIVE_CONTROL, BUFFER_SIZE);
+        }
+        assertTrue(pollUsed(VIRTQ_RECEIVE_CONTROL).isEmpty());
+
+        sendControl(0, VIRTIO_CONSOLE_DEVICE_READY, 1);
+        List<ControlMessage> messages = pollControl();
+        assertEquals(List.of(
+            new ControlMessage(0, VIRTIO_CONSOLE_DEVICE_ADD, 0, ""),
+            new ControlMessage(1, VIRTIO_CONSOLE_DEVICE_ADD, 0, "")), messages);
+        assertFalse(device.getPort(1).isReady());
+
+        sendControl(0, VIRTIO_CONSOLE_PORT_READY, 1);
+        sendControl(1, VIRTIO_CONSOLE_PORT_READY, 1);
+        messages = pollControl();
+        assertEquals(List.of(
+            new ControlMessage(0, VIRTIO_CONSOLE_CONSOLE_PORT, 1, ""),
+            new ControlMessage(0, VIRTIO_CONSOLE_PORT_OPEN, 1, ""),
+            new ControlMessage(1, VIRTIO_CONSOLE_PORT_NAME, 1, "data"),
+            new ControlMessage(1, VIRTIO_CONSOLE_PORT_OPEN, 1, "")), messages);
+        assertTrue(device.getPort(1).isReady());
+
+        assertFalse(device.getPort(1).isOpenInGuest());
+        sendControl(1, VIRTIO_CONSOLE_PORT_OPEN, 1);
+        assertTrue(device.getPort(1).isOpenInGuest());
+        assertFalse(device.getPort(0).isOpenInGuest());
+        sendControl(1, VIRTIO_CONSOLE_PORT_OPEN, 0);
+        assertFalse(device.getPort(1).isOpenInGuest());
+    }
+
+    @Test
+    public void controlMessagesWaitForReceiveBuffers() throws MemoryAccessException {
+        sendControl(0, VIRTIO_CONSOLE_DEVICE_READY, 1);
+        assertTrue(pollUsed(VIRTQ_RECEIVE_CONTROL).isEmpty());
+
+        // Messages are sent once the driver makes buffers available.
+        addBuffer(VIRTQ_RECEIVE_CONTROL, BUFFER_SIZE);
+        assertEquals(List.of(new ControlMessage(0, VIRTIO_CONSOLE_DEVICE_ADD, 0, "")), pollControl());
+        addBuffer(VIRTQ_RECEIVE_CONTROL, BUFFER_SIZE);
+        assertEquals(List.of(new ControlMessage(1, VIRTIO_CONSOLE_DEVICE_ADD, 0, "")), pollControl());
+    }
+
+    @Test
+    public void dataIsRoutedToItsPort() throws MemoryAccessException {
+        addBuffer(VIRTQ_TRANSMIT, "console".getBytes(StandardCharsets.UTF_8));
+        addBuffer(VIRTQ_TRANSMIT_PORT1, "data".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("data", read(device.getPort(1)));
+        assertEquals("console", read(device.getPort(0)));
+        assertEquals(1, pollUsed(VIRTQ_TRANSMIT).size());
+        assertEquals(1, pollUsed(VIRTQ_TRANSMIT_PORT1).size());
+
+        addBuffer(VIRTQ_RECEIVE, BUFFER_SIZE);
+        addBuffer(VIRTQ_RECEIVE_PORT1, BUFFER_SIZE);
+        final byte[] toPort = "to port".getBytes(StandardCharsets.UTF_8);
+        device.getPort(1).write(toPort, 0, toPort.length);
+        device.getPort(1).flush();
+        assertTrue(pollUsed(VIRTQ_RECEIVE).isEmpty());
+
+        final List<UsedElement> used = pollUsed(VIRTQ_RECEIVE_PORT1);
+        assertEquals(1, used.size());
+        assertEquals("to port", StandardCharsets.UTF_8.decode(readBuffer(VIRTQ_RECEIVE_PORT1, used.get(0))).toString());
+
+        device.putByte((byte) 'c');
+        device.flush();
+        assertEquals(1, pollUsed(VIRTQ_RECEIVE).size());
+    }
+
+    private static String read(final VirtIOConsoleDevice.Port port) {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final int count = port.read(buffer, 0, buffer.length);
+        return new String(buffer, 0, count, StandardCharsets.UTF_8);
+    }
+
+    private void initializeDriver() throws MemoryAccessException {
+        writeRegister(VIRTIO_MMIO_STATUS, 0);
+        writeRegister(VIRTIO_MMIO_STATUS, 1); // ACKNOWLEDGE
+        writeRegister(VIRTIO_MMIO_STATUS, 1 | 2); // DRIVER
+
+        for (int i = 0; i < 2; i++) {
+            writeRegister(VIRTIO_MMIO_DEVICE_FEATURES_SEL, i);
+            final long features = device.load(VIRTIO_MMIO_DEVICE_FEATURES, Sizes.SIZE_32_LOG2);
+            writeRegister(VIRTIO_MMIO_DRIVER_FEATURES_SEL, i);
+            writeRegister(VIRTIO_MMIO_DRIVER_FEATURES, features);
+        }
+        writeRegister(VIRTIO_MMIO_STATUS, 1 | 2 | 8); // FEATURES_OK
+
+        for (int queue = 0; queue < QUEUE_COUNT; queue++) {
+            writeRegister(VIRTIO_MMIO_QUEUE_SEL, queue);
+            writeRegister(VIRTIO_MMIO_QUEUE_NUM, QUEUE_SIZE);
+            writeRegister(VIRTIO_MMIO_QUEUE_DESC_LOW, getDescriptorTable(queue));
+            writeRegister(VIRTIO_MMIO_QUEUE_DRIVER_LOW, getAvailableRing(queue));
+            writeRegister(VIRTIO_MMIO_QUEUE_DEVICE_LOW, getUsedRing(queue));
+            writeRegister(VIRTIO_MMIO_QUEUE_READY, 1);
+        }
+        writeRegister(VIRTIO_MMIO_STATUS, 1 | 2 | 8 | 4); // DRIVER_OK
+    }
+
+    private void writeRegister(final int offset, final long value) throws MemoryAccessException {
+        device.store(offset, (int) value, Sizes.SIZE_32_LOG2);
+    }
+
+    private void sendControl(final int id, final int event, final int value) throws MemoryAccessException {
+        final ByteBuffer message = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        message.putInt(id).putShort((short) event).putShort((short) value);
+        addBuffer(VIRTQ_TRANSMIT_CONTROL, message.array());
+    }
+
+    private List<ControlMessage> pollControl() throws MemoryAccessException {
+        final ArrayList<ControlMessage> result = new ArrayList<>();
+        for (final UsedElement used : pollUsed(VIRTQ_RECEIVE_CONTROL)) {
+            final ByteBuffer message = readBuffer(VIRTQ_RECEIVE_CONTROL, used);
+            final int id = message.getInt();
+            final int event = message.getShort() & 0xFFFF;
+            final int value = message.getShort() & 0xFFFF;
+            result.add(new ControlMessage(id, event, value, StandardCharsets.UTF_8.decode(message).toString()));
+        }
+        return result;
+    }
+
+    /**
+     * Makes a single writable descriptor of the specified length available in the specified queue.
+     */
+    private void addBuffer(final int queue, final int length) throws MemoryAccessException {
+        final int descriptor = availableIndices[queue] % QUEUE_SIZE;
+        putDescriptor(queue, descriptor, length, 2); // WRITE
+        makeAvailable(queue, descriptor);
+    }
+
+    /**
+     * Makes a single readable descriptor with the specified data available in the specified queue.
+     */
+    private void addBuffer(final int queue, final byte[] data) throws MemoryAccessException {
+        final int descriptor = availableIndices[queue] % QUEUE_SIZE;
+        final long address = getBuffer(queue, descriptor);
+        for (int i = 0; i < data.length; i++) {
+            memoryMap.store(address + i, data[i], Sizes.SIZE_8_LOG2);
+        }
+        putDescriptor(queue, descriptor, data.length, 0);
+        makeAvailable(queue, descriptor);
+    }
+
+    private void putDescriptor(final int queue, final int index, final int length, final int flags) throws MemoryAccessException {
+        final long descriptor = getDescriptorTable(queue) + 16L * index;
+        memoryMap.store(descriptor, getBuffer(queue, index), Sizes.SIZE_64_LOG2);
+        memoryMap.store(descriptor + 8, length, Sizes.SIZE_32_LOG2);
+        memoryMap.store(descriptor + 12, flags, Sizes.SIZE_16_LOG2);
+        memoryMap.store(descriptor + 14, 0, Sizes.SIZE_16_LOG2);
+    }
+
+    private void makeAvailable(final int queue, final int head) throws MemoryAccessException {
+        final long ring = getAvailableRing(queue);
+        memoryMap.store(ring + 4 + 2L * (availableIndices[queue] % QUEUE_SIZE), head, Sizes.SIZE_16_LOG2);
+        availableIndices[queue] = (availableIndices[queue] + 1) & 0xFFFF;
+        memoryMap.store(ring + 2, availableIndices[queue], Sizes.SIZE_16_LOG2);
+        writeRegister(VIRTIO_MMIO_QUEUE_NOTIFY, queue);
+    }
+
+    private List<UsedElement> pollUsed(final int queue) throws MemoryAccessException {
+        final ArrayList<UsedElement> result = new ArrayList<>();
+        final long ring = getUsedRing(queue);
+        final int deviceIndex = (int) memoryMap.load(ring + 2, Sizes.SIZE_16_LOG2) & 0xFFFF;
+        while (usedIndices[queue] != deviceIndex) {
+            final long element = ring + 4 + 8L * (usedIndices[queue] % QUEUE_SIZE);
+            result.add(new UsedElement(
+                (int) memoryMap.load(element, Sizes.SIZE_32_LOG2),
+                (int) memoryMap.load(element + 4, Sizes.SIZE_32_LOG2)));
+            usedIndices[queue] = (usedIndices[queue] + 1) & 0xFFFF;
+        }
+        return result;
+    }
+
+    private ByteBuffer readBuffer(final int queue, final UsedElement used) throws MemoryAccessException {
+        final long address = getBuffer(queue, used.id());
+        final ByteBuffer data = ByteBuffer.allocate(used.length()).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < used.length(); i++) {
+            data.put(i, (byte) memoryMap.load(address + i, Sizes.SIZE_8_LOG2));
+        }
+        return data;
+    }
+
+    private static long getDescriptorTable(final int queue) {
+        return MEMORY_ADDRESS + queue * 0x4000L;
+    }
+
+    private static long getAvailableRing(final int queue) {
+        return getDescriptorTable(queue) + 0x1000;
+    }
+
+    private static long getUsedRing(final int queue) {
+        return getDescriptorTable(queue) + 0x2000;
+    }
+
+    private static long getBuffer(final int queue, final int descriptor) {
+        return BUFFERS + (long) (queue * QUEUE_SIZE + descriptor) * BUFFER_SIZE;
+    }
+
+    private record UsedElement(int id, int length) {
+    }
+
+    private record ControlMessage(int id, int event, int value, String name) {
+    }
+}
@@ -0,0 +1,379 @@
+package li.cil.sedna;
+
+import li.cil.sedna.api.Sizes;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.device.memory.Memory;
+import li.cil.sedna.device.virtio.VirtIOFileSystemDevice;
+import li.cil.sedna.fs.MemoryFileSystem;
+import li.cil.sedna.memory.SimpleMemoryMap;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class VirtIOFileSystemDeviceTests {
+    private static final long MEMORY_ADDRESS = 0x80000000L;
+    private static final int MEMORY_SIZE = 256 * 1024;
+
+    private static final int VIRTIO_MMIO_DEVICE_FEATURES = 0x010;
+    private static final int VIRTIO_MMIO_DEVICE_FEATURES_SEL = 0x014;
+    private static final int VIRTIO_MMIO_DRIVER_FEATURES = 0x020;
+    private static final int VIRTIO_MMIO_DRIVER_FEATURES_SEL = 0x024;
+    private static final int VIRTIO_MMIO_QUEUE_NUM = 0x038;
+    private static final int VIRTIO_MMIO_QUEUE_READY = 0x044;
+    private static final int VIRTIO_MMIO_QUEUE_NOTIFY = 0x050;
+    private static final int VIRTIO_MMIO_STATUS = 0x070;
+    private static final int VIRTIO_MMIO_QUEUE_DESC_LOW = 0x080;
+    private static final int VIRTIO_MMIO_QUEUE_DRIVER_LOW = 0x090;
+    private static final int VIRTIO_MMIO_QUEUE_DEVICE_LOW = 0x0A0;
+
+    private static final int QUEUE_SIZE = 16;
+    private static final long DESCRIPTOR_TABLE = MEMORY_ADDRESS;
+    private static final long AVAILABLE_RING = MEMORY_ADDRESS + 0x1000;
+    private static final long USED_RING = MEMORY_ADDRESS + 0x2000;
+    private static final long BUFFERS = MEMORY_ADDRESS + 0x4000;
+    private static final int BUFFER_SIZE = 0x1000;
+    private static final long LARGE_REQUEST = MEMORY_ADDRESS + 0x20000;
+
+    private static final int P9_MSG_RLERROR = 7;
+    private static final int P9_MSG_RVERSION = 101;
+    private static final int P9_MSG_TGETATTR = 24;
+    private static final int P9_MSG_RGETATTR = 25;
+    private static final int P9_MSG_TVERSION = 100;
+    private static final int P9_MSG_TATTACH = 104;
+    private static final int P9_MSG_TFLUSH = 108;
+    private static final int P9_MSG_RFLUSH = 109;
+    private static final int P9_MSG_TWALK = 110;
+
+    private SimpleMemoryMap memoryMap;
+    private VirtIOFileSystemDevice device;
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private int availableIndex, usedIndex;
+
+    @BeforeEach
+    public void setupEach() throws MemoryAccessException {
+        memoryMap = new SimpleMemoryMap();
+        memoryMap.addDevice(MEMORY_ADDRESS, Memory.create(MEMORY_SIZE));
+        device = new VirtIOFileSystemDevice(memoryMap, "test", new MemoryFileSystem(1024 * 1024));
+        initializeDriver();
+
+        call(version());
+        call(attach(1, 0));
+        call(walk(2, 0, 1));
+        call(walk(3, 0, 2));
+
+        // Runs nothing by itself, so tests decide when and in which order requests run.
+        device.setExecutor(tasks::add);
+    }
+
+    @Test
+    public void independentRequestsAreDispatchedConcurrently() throws MemoryAccessException {
+        final int first = submit(getAttributes(10, 1));
+        final int second = submit(getAttributes(11, 2));
+        device.step(1_000_000);
+        assertEquals(2, tasks.size());
+        assertTrue(device.hasInFlightRequests());
+
+        // Complete in reverse order, replies are sent in completion order.
+        tasks.removeLast().run();
+        tasks.removeLast().run();
+        device.step(1_000_000);
+
+        final List<UsedElement> used = pollUsed();
+        assertEquals(List.of(second, first), used.stream().map(UsedElement::head).toList());
+        assertReply(used.get(0), P9_MSG_RGETATTR, 11);
+        assertReply(used.get(1), P9_MSG_RGETATTR, 10);
+        assertFalse(device.hasInFlightRequests());
+    }
+
+    @Test
+    public void requestsOnTheSameFidAreProcessedInOrder() throws MemoryAccessException {
+        final int first = submit(getAttributes(10, 1));
+        final int second = submit(getAttributes(11, 1));
+        final int other = submit(getAttributes(12, 2));
+        device.step(1_000_000);
+
+        // The second request on fid 1 must wait for the first one, the request on fid 2 may overtake it.
+        assertEquals(2, tasks.size());
+        runTasks();
+        device.step(1_000_000);
+        assertEquals(List.of(first, other), pollUsed().stream().map(UsedElement::head).toList());
+
+        assertEquals(1, tasks.size());
+        runTasks();
+        device.step(1_000_000);
+        final List<UsedElement> used = pollUsed();
+        assertEquals(1, used.size());
+        assertEquals(second, used.get(0).head());
+        assertReply(used.get(0), P9_MSG_RGETATTR, 11);
+    }
+
+    @Test
+    public void flushCancelsRequestsThatHaveNotStarted() throws MemoryAccessException {
+        final int first = submit(getAttributes(10, 1));
+        final int second = submit(getAttributes(11, 1));
+        device.step(1_000_000);
+        assertEquals(1, tasks.size());
+
+        final int flush = submit(flush(12, 11));
+        device.step(1_000_000);
+
+        // The flushed request is returned without a reply, before the flush is answered.
+        final List<UsedElement> used = pollUsed();
+        assertEquals(List.of(second, flush), used.stream().map(UsedElement::head).toList());
+        assertEquals(0, used.get(0).length());
+        assertReply(used.get(1), P9_MSG_RFLUSH, 12);
+
+        runTasks();
+        device.step(1_000_000);
+        final List<UsedElement> remaining = pollUsed();
+        assertEquals(1, remaining.size());
+        assertEquals(first, remaining.get(0).head());
+        assertReply(remaining.get(0), P9_MSG_RGETATTR, 10);
+        assertTrue(tasks.isEmpty());
+        assertFalse(device.hasInFlightRequests());
+    }
+
+    @Test
+    public void flushOfDispatchedRequestIsAnsweredAfterItCompletes() throws MemoryAccessException {
+        final int request = submit(getAttributes(10, 1));
+        device.step(1_000_000);
+        assertEquals(1, tasks.size());
+
+        final int flush = submit(flush(11, 10));
+        device.step(1_000_000);
+        assertTrue(pollUsed().isEmpty());
+
+        runTasks();
+        device.step(1_000_000);
+        final List<UsedElement> used = pollUsed();
+        assertEquals(List.of(request, flush), used.stream().map(UsedElement::head).toList());
+        assertEquals(0, used.get(0).length());
+        assertReply(used.get(1), P9_MSG_RFLUSH, 11);
+        assertFalse(device.hasInFlightRequests());
+    }
+
+    @Test
+    public void requestsAbandonedByResetDoNotEstablishFids() throws MemoryAccessException {
+        submit(walk(10, 0, 5));
+        device.step(1_000_000);
+        assertEquals(1, tasks.size());
+
+        // The driver starts over while the walk is still running.
+        availableIndex = 0;
+        usedIndex = 0;
+        initializeDriver();
+        device.setExecutor(null);
+        call(attach(1, 0));
+
+        // Completing now must not add the new fid to the new session, or walking to it again would fail.
+        runTasks();
+        device.step(1_000_000);
+        assertTrue(pollUsed().isEmpty());
+        call(walk(2, 0, 5));
+    }
+
+    @Test
+    public void requestsExceedingNegotiatedMessageSizeAreAnsweredWithError() throws MemoryAccessException {
+        device.setExecutor(null);
+        assertEquals(512 * 1024, negotiateMessageSize(1024 * 1024));
+        assertEquals(16 * 1024, negotiateMessageSize(16 * 1024));
+        call(attach(1, 0));
+
+        for (final boolean isConcurrent : new boolean[]{true, false}) {
+            device.setExecutor(isConcurrent ? tasks::add : null);
+
+            final int oversized = submit(padded(getAttributes(10, 0), 16 * 1024 + 1));
+            device.step(1_000_000);
+            assertTrue(tasks.isEmpty());
+            List<UsedElement> used = pollUsed();
+            assertEquals(List.of(oversized), used.stream().map(UsedElement::head).toList());
+            assertReply(used.get(0), P9_MSG_RLERROR, 10);
+            assertEquals(90, readReply(used.get(0)).getInt(7)); // EMSGSIZE
+
+            // Still working, and requests of exactly the negotiated size are accepted.
+            final int request = submit(padded(getAttributes(11, 0), 16 * 1024));
+            device.step(1_000_000);
+            runTasks();
+            device.step(1_000_000);
+            used = pollUsed();
+            assertEquals(List.of(request), used.stream().map(UsedElement::head).toList());
+            assertReply(used.get(0), P9_MSG_RGETATTR, 11);
+        }
+    }
+
+    private int negotiateMessageSize(final int messageSize) throws MemoryAccessException {
+        submit(version(messageSize));
+        device.step(1_000_000);
+        final List<UsedElement> used = pollUsed();
+        assertEquals(1, used.size());
+        assertReply(used.get(0), P9_MSG_RVERSION, 0xFFFF);
+        return readReply(used.get(0)).getInt(7);
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty()) {
+            tasks.poll().run();
+        }
+    }
+
+    private void initializeDriver() throws MemoryAccessException {
+        writeRegister(VIRTIO_MMIO_STATUS, 0);
+        writeRegister(VIRTIO_MMIO_STATUS, 1); // ACKNOWLEDGE
+        writeRegister(VIRTIO_MMIO_STATUS, 1 | 2); // DRIVER
+
+        for (int i = 0; i < 2; i++) {
+            writeRegister(VIRTIO_MMIO_DEVICE_FEATURES_SEL, i);
+            final long features = device.load(VIRTIO_MMIO_DEVICE_FEATURES, Sizes.SIZE_32_LOG2);
+            writeRegister(VIRTIO_MMIO_DRIVER_FEATURES_SEL, i);
+            writeRegister(VIRTIO_MMIO_DRIVER_FEATURES, features);
+        }
+        writeRegister(VIRTIO_MMIO_STATUS, 1 | 2 | 8); // FEATURES_OK
+
+        writeRegister(VIRTIO_MMIO_QUEUE_NUM, QUEUE_SIZE);
+        writeRegister(VIRTIO_MMIO_QUEUE_DESC_LOW, DESCRIPTOR_TABLE);
+        writeRegister(VIRTIO_MMIO_QUEUE_DRIVER_LOW, AVAILABLE_RING);
+        writeRegister(VIRTIO_MMIO_QUEUE_DEVICE_LOW, USED_RING);
+        writeRegister(VIRTIO_MMIO_QUEUE_READY, 1);
+        writeRegister(VIRTIO_MMIO_STATUS, 1 | 2 | 8 | 4); // DRIVER_OK
+    }
+
+    private void writeRegister(final int offset, final long value) throws MemoryAccessException {
+        device.store(offset, (int) value, Sizes.SIZE_32_LOG2);
+    }
+
+    private void call(final ByteBuffer message) throws MemoryAccessException {
+        final int head = submit(message);
+        for (int i = 0; i < 100; i++) {
+            device.step(1_000_000);
+            final List<UsedElement> used = pollUsed();
+            if (!used.isEmpty()) {
+                assertEquals(head, used.get(0).head());
+                assertNotEquals(P9_MSG_RLERROR, readReply(used.get(0)).get(4));
+                return;
+            }
+        }
+        fail("No reply received.");
+    }
+
+    /**
+     * Makes a request available in a chain of one readable and one writable descriptor.
+     *
+     * @return the index of the head descriptor of the chain.
+     */
+    private int submit(final ByteBuffer message) throws MemoryAccessException {
+        message.putInt(0, message.position());
+        final int head = (availableIndex * 2) % QUEUE_SIZE;
+
+        // Large requests do not fit the per descriptor buffers, so they share a separate area.
+        final long requestAddress = message.position() > BUFFER_SIZE ? LARGE_REQUEST : BUFFERS + (long) head * BUFFER_SIZE;
+        for (int i = 0; i < message.position(); i++) {
+            memoryMap.store(requestAddress + i, message.get(i), Sizes.SIZE_8_LOG2);
+        }
+        putDescriptor(head, requestAddress, message.position(), 1, head + 1); // NEXT
+        putDescriptor(head + 1, BUFFERS + (long) (head + 1) * BUFFER_SIZE, BUFFER_SIZE, 2, 0); // WRITE
+
+        memoryMap.store(AVAILABLE_RING + 4 + 2L * (availableIndex % QUEUE_SIZE), head, Sizes.SIZE_16_LOG2);
+        availableIndex++;
+        memoryMap.store(AVAILABLE_RING + 2, availableIndex, Sizes.SIZE_16_LOG2);
+        writeRegister(VIRTIO_MMIO_QUEUE_NOTIFY, 0);
+        return head;
+    }
+
+    private void putDescriptor(final int index, final long address, final int length, final int flags, final int next) throws MemoryAccessException {
+        final long descriptor = DESCRIPTOR_TABLE + 16L * index;
+        memoryMap.store(descriptor, address, Sizes.SIZE_64_LOG2);
+        memoryMap.store(descriptor + 8, length, Sizes.SIZE_32_LOG2);
+        memoryMap.store(descriptor + 12, flags, Sizes.SIZE_16_LOG2);
+        memoryMap.store(descriptor + 14, next, Sizes.SIZE_16_LOG2);
+    }
+
+    private List<UsedElement> pollUsed() throws MemoryAccessException {
+        final ArrayList<UsedElement> result = new ArrayList<>();
+        final int deviceIndex = (int) memoryMap.load(USED_RING + 2, Sizes.SIZE_16_LOG2) & 0xFFFF;
+        while (usedIndex != deviceIndex) {
+            final long element = USED_RING + 4 + 8L * (usedIndex % QUEUE_SIZE);
+            result.add(new UsedElement(
+                (int) memoryMap.load(element, Sizes.SIZE_32_LOG2),
+                (int) memoryMap.load(element + 4, Sizes.SIZE_32_LOG2)));
+            usedIndex = (usedIndex + 1) & 0xFFFF;
+        }
+        return result;
+    }
+
+    private ByteBuffer readReply(final UsedElement used) throws MemoryAccessException {
+        final long replyAddress = BUFFERS + (long) (used.head() + 1) * BUFFER_SIZE;
+        final ByteBuffer reply = ByteBuffer.allocate(used.length()).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < used.length(); i++) {
+            reply.put(i, (byte) memoryMap.load(replyAddress + i, Sizes.SIZE_8_LOG2));
+        }
+        return reply;
+    }
+
+    private void assertReply(final UsedElement used, final int id, final int tag) throws MemoryAccessException {
+        final ByteBuffer reply = readReply(used);
+        assertEquals(used.length(), reply.getInt(0));
+        assertEquals(id, reply.get(4));
+        assertEquals(tag, reply.getShort(5) & 0xFFFF);
+    }
+
+    private static ByteBuffer message(final int id, final int tag) {
+        return ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN)
+            .putInt(0).put((byte) id).putShort((short) tag);
+    }
+
+    private static ByteBuffer putString(final ByteBuffer message, final String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return message.putShort((short) bytes.length).put(bytes);
+    }
+
+    /**
+     * Appends zeros to a message until it has the specified size. Trailing data is ignored by the device.
+     */
+    private static ByteBuffer padded(final ByteBuffer message, final int size) {
+        final ByteBuffer result = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        result.put(message.flip());
+        return result.position(size);
+    }
+
+    private static ByteBuffer version() {
+        return version(8192);
+    }
+
+    private static ByteBuffer version(final int messageSize) {
+        // size[4] Tversion tag[2] msize[4] version[s]
+        return putString(message(P9_MSG_TVERSION, 0xFFFF).putInt(messageSize), "9P2000.L");
+    }
+
+    private static ByteBuffer attach(final int tag, final int fid) {
+        // size[4] Tattach tag[2] fid[4] afid[4] uname[s] aname[s] n_uname[4]
+        final ByteBuffer message = message(P9_MSG_TATTACH, tag).putInt(fid).putInt(-1);
+        return putString(putString(message, "root"), "").putInt(0);
+    }
+
+    private static ByteBuffer walk(final int tag, final int fid, final int newFid) {
+        // size[4] Twalk tag[2] fid[4] newfid[4] nwname[2] nwname*(wname[s])
+        return message(P9_MSG_TWALK, tag).putInt(fid).putInt(newFid).putShort((short) 0);
+    }
+
+    private static ByteBuffer getAttributes(final int tag, final int fid) {
+        // size[4] Tgetattr tag[2] fid[4] request_mask[8]
+        return message(P9_MSG_TGETATTR, tag).putInt(fid).putLong(0x7FF);
+    }
+
+    private static ByteBuffer flush(final int tag, final int oldTag) {
+        // size[4] Tflush tag[2] oldtag[2]
+        return message(P9_MSG_TFLUSH, tag).putShort((short) oldTag);
+    }
+
+    private record UsedElement(int head, int length) {
+    }
+}
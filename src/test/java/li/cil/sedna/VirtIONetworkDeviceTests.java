@@ -0,0 +1,502 @@
+package li.cil.sedna;
+
+import li.cil.sedna.api.Sizes;
+import li.cil.sedna.api.device.RateLimiter;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.device.memory.Memory;
+import li.cil.sedna.device.virtio.VirtIONetworkDevice;
+import li.cil.sedna.device.virtio.VirtIONetworkHeader;
+import li.cil.sedna.memory.SimpleMemoryMap;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class VirtIONetworkDeviceTests {
+    private static final long MEMORY_ADDRESS = 0x80000000L;
+    private static final int MEMORY_SIZE = 256 * 1024;
+
+    private static final int VIRTIO_MMIO_DEVICE_FEATURES = 0x010;
+    private static final int VIRTIO_MMIO_DEVICE_FEATURES_SEL = 0x014;
+    private static final int VIRTIO_MMIO_DRIVER_FEATURES = 0x020;
+    private static final int VIRTIO_MMIO_DRIVER_FEATURES_SEL = 0x024;
+    private static final int VIRTIO_MMIO_QUEUE_SEL = 0x030;
+    private static final int VIRTIO_MMIO_QUEUE_NUM = 0x038;
+    private static final int VIRTIO_MMIO_QUEUE_READY = 0x044;
+    private static final int VIRTIO_MMIO_QUEUE_NOTIFY = 0x050;
+    private static final int VIRTIO_MMIO_INTERRUPT_STATUS = 0x060;
+    private static final int VIRTIO_MMIO_INTERRUPT_ACK = 0x064;
+    private static final int VIRTIO_MMIO_STATUS = 0x070;
+    private static final int VIRTIO_MMIO_QUEUE_DESC_LOW = 0x080;
+    private static final int VIRTIO_MMIO_QUEUE_DRIVER_LOW = 0x090;
+    private static final int VIRTIO_MMIO_QUEUE_DEVICE_LOW = 0x0A0;
+
+    private static final long VIRTIO_NET_F_GUEST_CSUM = 1L << 1;
+    private static final long VIRTIO_NET_F_MRG_RXBUF = 1L << 15;
+    private static final long VIRTIO_F_VERSION_1 = 1L << 32;
+
+    private static final int VIRTQ_RECEIVE = 0;
+    private static final int VIRTQ_TRANSMIT = 1;
+    private static final int VIRTQ_CONTROL = 2;
+    private static final int QUEUE_COUNT = 3; // receiveq1, transmitq1, controlq
+
+    private static final int QUEUE_SIZE = 16;
+    private static final long BUFFERS = MEMORY_ADDRESS + QUEUE_COUNT * 0x4000L;
+    private static final int BUFFER_SIZE = 0x1000;
+    private static final int HEADER_SIZE = 12;
+
+    private static final int IP_OFFSET = 14;
+    private static final int TCP_OFFSET = IP_OFFSET + 20;
+    private static final int PAYLOAD_OFFSET = TCP_OFFSET + 20;
+
+    private SimpleMemoryMap memoryMap;
+    private VirtIONetworkDevice device;
+    private final int[] availableIndices = new int[QUEUE_COUNT];
+    private final int[] usedIndices = new int[QUEUE_COUNT];
+
+    @BeforeEach
+    public void setupEach() {
+        memoryMap = new SimpleMemoryMap();
+        memoryMap.addDevice(MEMORY_ADDRESS, Memory.create(MEMORY_SIZE));
+        device = new VirtIONetworkDevice(memoryMap);
+    }
+
+    @Test
+    public void invalidQueuePairCountsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new VirtIONetworkDevice(memoryMap, 1500, 0));
+        assertThrows(IllegalArgumentException.class, () -> new VirtIONetworkDevice(memoryMap, 1500, 8));
+        assertDoesNotThrow(() -> new VirtIONetworkDevice(memoryMap, 1500, 7));
+    }
+
+    @Test
+    public void droppedFramesDoNotConsumeRateLimit() throws MemoryAccessException {
+        final CountingRateLimiter rateLimiter = new CountingRateLimiter();
+        device.setRateLimiter(rateLimiter);
+        initializeDriver(~VIRTIO_NET_F_MRG_RXBUF);
+
+        // Too large for the receive buffer, so it is dropped.
+        addReceiveBuffer(HEADER_SIZE + 100);
+        assertEquals(1, device.writeEthernetFrames(new ByteBuffer[]{createFrame(200)}, 0, 1));
+        assertEquals(1, device.getDroppedFrameCount());
+        assertEquals(0, rateLimiter.consumed);
+
+        addReceiveBuffer(BUFFER_SIZE);
+        assertEquals(1, device.writeEthernetFrames(new ByteBuffer[]{createFrame(200)}, 0, 1));
+        assertEquals(200, rateLimiter.consumed);
+
+        // Too large for the buffer it is read into, so it is dropped.
+        transmit(createFrame(300));
+        final ByteBuffer[] small = {ByteBuffer.allocate(100)};
+        assertEquals(0, device.readEthernetFrames(small, 0, 1));
+        assertEquals(2, device.getDroppedFrameCount());
+        assertEquals(200, rateLimiter.consumed);
+
+        transmit(createFrame(300));
+        final ByteBuffer[] large = {ByteBuffer.allocate(BUFFER_SIZE)};
+        assertEquals(1, device.readEthernetFrames(large, 0, 1));
+        assertEquals(500, rateLimiter.consumed);
+    }
+
+    @Test
+    public void mergeableReceiveBuffersSplitFramesAcrossBuffers() throws MemoryAccessException {
+        initializeDriver(~0L);
+
+        // Not enough space yet, the buffers stay available for later.
+        addReceiveBuffer(256);
+        addReceiveBuffer(256);
+        final ByteBuffer frame = createFrame(600);
+        assertEquals(0, device.writeEthernetFrames(new ByteBuffer[]{frame}, 0, 1));
+        assertTrue(pollUsed(VIRTQ_RECEIVE).isEmpty());
+        assertEquals(0, device.getDroppedFrameCount());
+
+        addReceiveBuffer(256);
+        addReceiveBuffer(256);
+        assertEquals(1, device.writeEthernetFrames(new ByteBuffer[]{frame}, 0, 1));
+
+        final List<UsedElement> used = pollUsed(VIRTQ_RECEIVE);
+        assertEquals(List.of(
+            new UsedElement(0, 256),
+            new UsedElement(1, 256),
+            new UsedElement(2, HEADER_SIZE + 600 - 512)), used);
+
+        final ByteBuffer received = ByteBuffer.allocate(HEADER_SIZE + 600).order(ByteOrder.LITTLE_ENDIAN);
+        for (final UsedElement element : used) {
+            received.put(readBuffer(VIRTQ_RECEIVE, element));
+        }
+        received.flip();
+        assertEquals(3, received.getShort(10)); // num_buffers
+        assertEquals(createFrame(600), received.position(HEADER_SIZE));
+
+        // The fourth buffer is left for the next frame.
+        assertEquals(1, device.writeEthernetFrames(new ByteBuffer[]{createFrame(100)}, 0, 1));
+        final List<UsedElement> next = pollUsed(VIRTQ_RECEIVE);
+        assertEquals(List.of(new UsedElement(3, HEADER_SIZE + 100)), next);
+        assertEquals(1, readBuffer(VIRTQ_RECEIVE, next.get(0)).getShort(10));
+    }
+
+    @Test
+    public void transmitOffloadsArePerformedUnlessHeadersAreRequested() throws MemoryAccessException {
+        initializeDriver(~0L);
+
+        final VirtIONetworkHeader checksumHeader = new VirtIONetworkHeader();
+        checksumHeader.flags = VirtIONetworkDevice.VIRTIO_NET_HDR_F_NEEDS_CSUM;
+        checksumHeader.checksumStart = TCP_OFFSET;
+        checksumHeader.checksumOffset = 16;
+        transmit(writeHeader(checksumHeader), createTcpFrame(100));
+
+        final ByteBuffer[] frames = {ByteBuffer.allocate(BUFFER_SIZE), ByteBuffer.allocate(BUFFER_SIZE), ByteBuffer.allocate(BUFFER_SIZE)};
+        assertEquals(1, device.readEthernetFrames(frames, 0, 3));
+        assertEquals(PAYLOAD_OFFSET + 100, frames[0].remaining());
+        assertEquals(0xFFFF, tcpChecksum(frames[0]));
+
+        final VirtIONetworkHeader segmentationHeader = new VirtIONetworkHeader();
+        segmentationHeader.set(checksumHeader);
+        segmentationHeader.gsoType = VirtIONetworkDevice.VIRTIO_NET_HDR_GSO_TCPV4;
+        segmentationHeader.gsoSize = 1000;
+        segmentationHeader.headerLength = PAYLOAD_OFFSET;
+        transmit(writeHeader(segmentationHeader), createTcpFrame(2500));
+
+        assertEquals(3, device.readEthernetFrames(frames, 0, 3));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(PAYLOAD_OFFSET + (i < 2 ? 1000 : 500), frames[i].remaining());
+            assertEquals(0xFFFF, tcpChecksum(frames[i]));
+            assertEquals(1000 + i * 1000, frames[i].getInt(TCP_OFFSET + 4));
+        }
+
+        // Callers asking for headers get the frame as sent, along with its header.
+        transmit(writeHeader(segmentationHeader), createTcpFrame(2500));
+        final VirtIONetworkHeader[] headers = {new VirtIONetworkHeader()};
+        assertEquals(1, device.readEthernetFrames(frames, headers, 0, 1));
+        assertEquals(createTcpFrame(2500), frames[0]);
+        assertTrue(headers[0].needsChecksum());
+        assertTrue(headers[0].isSegmented());
+        assertEquals(VirtIONetworkDevice.VIRTIO_NET_HDR_GSO_TCPV4, headers[0].gsoType);
+        assertEquals(1000, headers[0].gsoSize);
+        assertEquals(PAYLOAD_OFFSET, headers[0].headerLength);
+        assertEquals(TCP_OFFSET, headers[0].checksumStart);
+        assertEquals(16, headers[0].checksumOffset);
+    }
+
+    @Test
+    public void receiveChecksumIsLeftToGuestIfNegotiated() throws MemoryAccessException {
+        initializeDriver(~0L);
+
+        final VirtIONetworkHeader header = new VirtIONetworkHeader();
+        header.flags = VirtIONetworkDevice.VIRTIO_NET_HDR_F_NEEDS_CSUM;
+        header.checksumStart = TCP_OFFSET;
+        header.checksumOffset = 16;
+
+        addReceiveBuffer(BUFFER_SIZE);
+        assertEquals(1, device.writeEthernetFrames(new ByteBuffer[]{createTcpFrame(100)}, new VirtIONetworkHeader[]{header}, 0, 1));
+
+        final ByteBuffer received = readBuffer(VIRTQ_RECEIVE, pollUsed(VIRTQ_RECEIVE).get(0));
+        assertEquals(VirtIONetworkDevice.VIRTIO_NET_HDR_F_NEEDS_CSUM, received.get(0));
+        assertEquals(VirtIONetworkDevice.VIRTIO_NET_HDR_GSO_NONE, received.get(1));
+        assertEquals(TCP_OFFSET, received.getShort(6));
+        assertEquals(16, received.getShort(8));
+        assertEquals(createTcpFrame(100), received.position(HEADER_SIZE).slice());
+
+        final VirtIONetworkHeader segmented = new VirtIONetworkHeader();
+        segmented.gsoType = VirtIONetworkDevice.VIRTIO_NET_HDR_GSO_TCPV4;
+        segmented.gsoSize = 1000;
+        assertThrows(IllegalArgumentException.class, () ->
+            device.writeEthernetFrames(new ByteBuffer[]{createTcpFrame(2500)}, new VirtIONetworkHeader[]{segmented}, 0, 1));
+    }
+
+    @Test
+    public void receiveChecksumIsCompletedIfNotNegotiated() throws MemoryAccessException {
+        initializeDriver(~VIRTIO_NET_F_GUEST_CSUM);
+
+        final VirtIONetworkHeader header = new VirtIONetworkHeader();
+        header.flags = VirtIONetworkDevice.VIRTIO_NET_HDR_F_NEEDS_CSUM;
+        header.checksumStart = TCP_OFFSET;
+        header.checksumOffset = 16;
+
+        addReceiveBuffer(BUFFER_SIZE);
+        assertEquals(1, device.writeEthernetFrames(new ByteBuffer[]{createTcpFrame(100)}, new VirtIONetworkHeader[]{header}, 0, 1));
+
+        final ByteBuffer received = readBuffer(VIRTQ_RECEIVE, pollUsed(VIRTQ_RECEIVE).get(0));
+        assertEquals(VirtIONetworkDevice.VIRTIO_NET_HDR_F_NONE, received.get(0));
+        final ByteBuffer frame = received.position(HEADER_SIZE).slice().order(ByteOrder.BIG_ENDIAN);
+        assertEquals(PAYLOAD_OFFSET + 100, frame.remaining());
+        assertEquals(0xFFFF, tcpChecksum(frame));
+    }
+
+    @Test
+    public void eventIndexSuppressesAndRearmsNotifications() throws MemoryAccessException {
+        initializeDriver(~0L);
+
+        // Queues not dispatching notifications ask to never be notified, others to be notified of the next buffer.
+        assertEquals(0xFFFF, getAvailableEvent(VIRTQ_RECEIVE));
+        assertEquals(0, getAvailableEvent(VIRTQ_CONTROL));
+
+        // Only interrupt once the second buffer has been used.
+        setUsedEvent(VIRTQ_CONTROL, 1);
+        submitControl();
+        assertEquals(0, getInterruptStatus());
+        assertEquals(1, getAvailableEvent(VIRTQ_CONTROL));
+
+        submitControl();
+        assertEquals(1, getInterruptStatus());
+        assertEquals(2, getAvailableEvent(VIRTQ_CONTROL));
+        writeRegister(VIRTIO_MMIO_INTERRUPT_ACK, 1);
+
+        // Move the indices right before the wrap-around, without asking for interrupts.
+        while (availableIndices[VIRTQ_CONTROL] != 0xFFFE) {
+            setUsedEvent(VIRTQ_CONTROL, availableIndices[VIRTQ_CONTROL] - 1);
+            submitControl();
+        }
+        assertEquals(0, getInterruptStatus());
+        assertEquals(0xFFFE, getAvailableEvent(VIRTQ_CONTROL));
+
+        setUsedEvent(VIRTQ_CONTROL, 0xFFFF);
+        submitControl();
+        assertEquals(0, getInterruptStatus());
+        assertEquals(0xFFFF, getAvailableEvent(VIRTQ_CONTROL));
+
+        // Used index wraps to zero, passing used_event.
+        submitControl();
+        assertEquals(1, getInterruptStatus());
+        assertEquals(0, getAvailableEvent(VIRTQ_CONTROL));
+        assertEquals(0, availableIndices[VIRTQ_CONTROL]);
+        assertEquals(0, memoryMap.load(getUsedRing(VIRTQ_CONTROL) + 2, Sizes.SIZE_16_LOG2));
+    }
+
+    private static ByteBuffer createFrame(final int length) {
+        final ByteBuffer frame = ByteBuffer.allocate(length);
+        for (int i = 0; i < length; i++) {
+            frame.put(i, (byte) i);
+        }
+        return frame;
+    }
+
+    /**
+     * Creates a TCP/IPv4 frame with the pseudo-header checksum in the checksum field, as a guest
+     * requesting checksum offload would send it.
+     */
+    private static ByteBuffer createTcpFrame(final int payloadLength) {
+        final ByteBuffer frame = ByteBuffer.allocate(PAYLOAD_OFFSET + payloadLength);
+        frame.putShort(12, (short) 0x0800);
+
+        frame.put(IP_OFFSET, (byte) 0x45);
+        frame.putShort(IP_OFFSET + 2, (short) (20 + 20 + payloadLength));
+        frame.putShort(IP_OFFSET + 4, (short) 0x1234);
+        frame.put(IP_OFFSET + 8, (byte) 64);
+        frame.put(IP_OFFSET + 9, (byte) 6);
+        frame.putInt(IP_OFFSET + 12, 0x0A000001);
+        frame.putInt(IP_OFFSET + 16, 0x0A000002);
+        frame.putShort(IP_OFFSET + 10, (short) ~checksum(frame, IP_OFFSET, TCP_OFFSET, 0));
+
+        frame.putShort(TCP_OFFSET, (short) 12345);
+        frame.putShort(TCP_OFFSET + 2, (short) 80);
+        frame.putInt(TCP_OFFSET + 4, 1000);
+        frame.put(TCP_OFFSET + 12, (byte) 0x50);
+        frame.put(TCP_OFFSET + 13, (byte) 0x10);
+
+        for (int i = 0; i < payloadLength; i++) {
+            frame.put(PAYLOAD_OFFSET + i, (byte) i);
+        }
+
+        frame.putShort(TCP_OFFSET + 16, (short) pseudoHeaderSum(frame, 20 + payloadLength));
+        return frame;
+    }
+
+    private static int pseudoHeaderSum(final ByteBuffer frame, final int tcpLength) {
+        return checksum(frame, IP_OFFSET + 12, IP_OFFSET + 20, 6 + tcpLength);
+    }
+
+    private static int tcpChecksum(final ByteBuffer frame) {
+        final int tcpLength = frame.remaining() - TCP_OFFSET;
+        return checksum(frame, frame.position() + TCP_OFFSET, frame.limit(), pseudoHeaderSum(frame.slice(), tcpLength));
+    }
+
+    private static int checksum(final ByteBuffer buffer, final int from, final int to, final int initial) {
+        long sum = initial;
+        for (int i = from; i < to; i += 2) {
+            sum += (buffer.get(i) & 0xFF) << 8;
+            if (i + 1 < to) {
+                sum += buffer.get(i + 1) & 0xFF;
+            }
+        }
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return (int) sum;
+    }
+
+    private static ByteBuffer writeHeader(final VirtIONetworkHeader header) {
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.write(buffer, 0);
+        return buffer.flip();
+    }
+
+    private void initializeDriver(final long acceptedFeatures) throws MemoryAccessException {
+        writeRegister(VIRTIO_MMIO_STATUS, 0);
+        writeRegister(VIRTIO_MMIO_STATUS, 1); // ACKNOWLEDGE
+        writeRegister(VIRTIO_MMIO_STATUS, 1 | 2); // DRIVER
+
+        final long features = acceptedFeatures | VIRTIO_F_VERSION_1;
+        for (int i = 0; i < 2; i++) {
+            writeRegister(VIRTIO_MMIO_DEVICE_FEATURES_SEL, i);
+            final long offered = device.load(VIRTIO_MMIO_DEVICE_FEATURES, Sizes.SIZE_32_LOG2) & 0xFFFFFFFFL;
+            writeRegister(VIRTIO_MMIO_DRIVER_FEATURES_SEL, i);
+            writeRegister(VIRTIO_MMIO_DRIVER_FEATURES, offered & (features >>> (i * 32)));
+        }
+        writeRegister(VIRTIO_MMIO_STATUS, 1 | 2 | 8); // FEATURES_OK
+
+        for (int queue = 0; queue < QUEUE_COUNT; queue++) {
+            writeRegister(VIRTIO_MMIO_QUEUE_SEL, queue);
+            writeRegister(VIRTIO_MMIO_QUEUE_NUM, QUEUE_SIZE);
+            writeRegister(VIRTIO_MMIO_QUEUE_DESC_LOW, getDescriptorTable(queue));
+            writeRegister(VIRTIO_MMIO_QUEUE_DRIVER_LOW, getAvailableRing(queue));
+            writeRegister(VIRTIO_MMIO_QUEUE_DEVICE_LOW, getUsedRing(queue));
+            writeRegister(VIRTIO_MMIO_QUEUE_READY, 1);
+        }
+        writeRegister(VIRTIO_MMIO_STATUS, 1 | 2 | 8 | 4); // DRIVER_OK
+    }
+
+    private void writeRegister(final int offset, final long value) throws MemoryAccessException {
+        device.store(offset, (int) value, Sizes.SIZE_32_LOG2);
+    }
+
+    private int getInterruptStatus() throws MemoryAccessException {
+        return (int) device.load(VIRTIO_MMIO_INTERRUPT_STATUS, Sizes.SIZE_32_LOG2);
+    }
+
+    private int getAvailableEvent(final int queue) throws MemoryAccessException {
+        return (int) memoryMap.load(getUsedRing(queue) + 4 + 8L * QUEUE_SIZE, Sizes.SIZE_16_LOG2) & 0xFFFF;
+    }
+
+    private void setUsedEvent(final int queue, final int index) throws MemoryAccessException {
+        memoryMap.store(getAvailableRing(queue) + 4 + 2L * QUEUE_SIZE, index, Sizes.SIZE_16_LOG2);
+    }
+
+    /**
+     * Makes a single writable descriptor of the specified length available in the receive queue.
+     *
+     * @return the index of the descriptor.
+     */
+    private int addReceiveBuffer(final int length) throws MemoryAccessException {
+        final int descriptor = availableIndices[VIRTQ_RECEIVE] % QUEUE_SIZE;
+        putDescriptor(VIRTQ_RECEIVE, descriptor, length, 2, 0); // WRITE
+        makeAvailable(VIRTQ_RECEIVE, descriptor);
+        return descriptor;
+    }
+
+    /**
+     * Makes a frame available in the transmit queue, preceded by an empty header.
+     *
+     * @return the index of the descriptor.
+     */
+    private int transmit(final ByteBuffer frame) throws MemoryAccessException {
+        return transmit(ByteBuffer.allocate(HEADER_SIZE), frame);
+    }
+
+    private int transmit(final ByteBuffer header, final ByteBuffer frame) throws MemoryAccessException {
+        final int descriptor = availableIndices[VIRTQ_TRANSMIT] % QUEUE_SIZE;
+        final long address = getBuffer(VIRTQ_TRANSMIT, descriptor);
+        store(address, header);
+        store(address + HEADER_SIZE, frame);
+        putDescriptor(VIRTQ_TRANSMIT, descriptor, HEADER_SIZE + frame.remaining(), 0, 0);
+        makeAvailable(VIRTQ_TRANSMIT, descriptor);
+        return descriptor;
+    }
+
+    /**
+     * Makes an unsupported command available in the control queue, in a chain of one readable and one
+     * writable descriptor.
+     *
+     * @return the index of the head descriptor of the chain.
+     */
+    private int submitControl() throws MemoryAccessException {
+        final int head = (availableIndices[VIRTQ_CONTROL] * 2) % QUEUE_SIZE;
+        store(getBuffer(VIRTQ_CONTROL, head), ByteBuffer.wrap(new byte[]{(byte) 0xFF, 0}));
+        putDescriptor(VIRTQ_CONTROL, head, 2, 1, head + 1); // NEXT
+        putDescriptor(VIRTQ_CONTROL, head + 1, 1, 2, 0); // WRITE
+        makeAvailable(VIRTQ_CONTROL, head);
+        return head;
+    }
+
+    private void putDescriptor(final int queue, final int index, final int length, final int flags, final int next) throws MemoryAccessException {
+        final long descriptor = getDescriptorTable(queue) + 16L * index;
+        memoryMap.store(descriptor, getBuffer(queue, index), Sizes.SIZE_64_LOG2);
+        memoryMap.store(descriptor + 8, length, Sizes.SIZE_32_LOG2);
+        memoryMap.store(descriptor + 12, flags, Sizes.SIZE_16_LOG2);
+        memoryMap.store(descriptor + 14, next, Sizes.SIZE_16_LOG2);
+    }
+
+    private void makeAvailable(final int queue, final int head) throws MemoryAccessException {
+        final long ring = getAvailableRing(queue);
+        memoryMap.store(ring + 4 + 2L * (availableIndices[queue] % QUEUE_SIZE), head, Sizes.SIZE_16_LOG2);
+        availableIndices[queue] = (availableIndices[queue] + 1) & 0xFFFF;
+        memoryMap.store(ring + 2, availableIndices[queue], Sizes.SIZE_16_LOG2);
+        writeRegister(VIRTIO_MMIO_QUEUE_NOTIFY, queue);
+    }
+
+    private List<UsedElement> pollUsed(final int queue) throws MemoryAccessException {
+        final ArrayList<UsedElement> result = new ArrayList<>();
+        final long ring = getUsedRing(queue);
+        final int deviceIndex = (int) memoryMap.load(ring + 2, Sizes.SIZE_16_LOG2) & 0xFFFF;
+        while (usedIndices[queue] != deviceIndex) {
+            final long element = ring + 4 + 8L * (usedIndices[queue] % QUEUE_SIZE);
+            result.add(new UsedElement(
+                (int) memoryMap.load(element, Sizes.SIZE_32_LOG2),
+                (int) memoryMap.load(element + 4, Sizes.SIZE_32_LOG2)));
+            usedIndices[queue] = (usedIndices[queue] + 1) & 0xFFFF;
+        }
+        return result;
+    }
+
+    private ByteBuffer readBuffer(final int queue, final UsedElement used) throws MemoryAccessException {
+        final long address = getBuffer(queue, used.id());
+        final ByteBuffer data = ByteBuffer.allocate(used.length()).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < used.length(); i++) {
+            data.put(i, (byte) memoryMap.load(address + i, Sizes.SIZE_8_LOG2));
+        }
+        return data;
+    }
+
+    private void store(final long address, final ByteBuffer data) throws MemoryAccessException {
+        for (int i = 0; i < data.remaining(); i++) {
+            memoryMap.store(address + i, data.get(data.position() + i), Sizes.SIZE_8_LOG2);
+        }
+    }
+
+    private static long getDescriptorTable(final int queue) {
+        return MEMORY_ADDRESS + queue * 0x4000L;
+    }
+
+    private static long getAvailableRing(final int queue) {
+        return getDescriptorTable(queue) + 0x1000;
+    }
+
+    private static long getUsedRing(final int queue) {
+        return getDescriptorTable(queue) + 0x2000;
+    }
+
+    private static long getBuffer(final int queue, final int descriptor) {
+        return BUFFERS + (long) (queue * QUEUE_SIZE + descriptor) * BUFFER_SIZE;
+    }
+
+    private record UsedElement(int id, int length) {
+    }
+
+    private static final class CountingRateLimiter implements RateLimiter {
+        public long consumed;
+
+        @Override
+        public boolean hasCapacity() {
+            return true;
+        }
+
+        @Override
+        public void consume(final int bytes) {
+            consumed += bytes;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package li.cil.sedna;
+
+import li.cil.sedna.device.virtio.VirtIONetworkDevice;
+import li.cil.sedna.device.virtio.VirtIONetworkHeader;
+import li.cil.sedna.device.virtio.VirtIONetworkOffloads;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class VirtIONetworkOffloadsTests {
+    private static final int IP_OFFSET = 14;
+    private static final int TCP_OFFSET = IP_OFFSET + 20;
+    private static final int PAYLOAD_OFFSET = TCP_OFFSET + 20;
+
+    @Test
+    public void completeChecksumProducesValidChecksum() {
+        final ByteBuffer frame = createTcpFrame(100);
+        final VirtIONetworkHeader header = new VirtIONetworkHeader();
+        header.flags = VirtIONetworkDevice.VIRTIO_NET_HDR_F_NEEDS_CSUM;
+        header.checksumStart = TCP_OFFSET;
+        header.checksumOffset = 16;
+
+        // Guest stores the pseudo-header checksum in the checksum field.
+        frame.putShort(TCP_OFFSET + 16, (short) pseudoHeaderSum(frame, 20 + 100));
+
+        assertTrue(VirtIONetworkOffloads.completeChecksum(frame, header));
+        assertFalse(header.needsChecksum());
+        assertEquals(0xFFFF, tcpChecksum(frame));
+    }
+
+    @Test
+    public void segmentationSplitsPayloadAndFixesHeaders() {
+        final int payloadLength = 2500;
+        final ByteBuffer frame = createTcpFrame(payloadLength);
+        frame.put(TCP_OFFSET + 13, (byte) (0x80 | 0x08 | 0x10 | 0x01)); // CWR | PSH | ACK | FIN
+
+        final VirtIONetworkHeader header = new VirtIONetworkHeader();
+        header.flags = VirtIONetworkDevice.VIRTIO_NET_HDR_F_NEEDS_CSUM;
+        header.gsoType = VirtIONetworkDevice.VIRTIO_NET_HDR_GSO_TCPV4;
+        header.gsoSize = 1000;
+        header.checksumStart = TCP_OFFSET;
+        header.checksumOffset = 16;
+
+        assertEquals(3, VirtIONetworkOffloads.getSegmentCount(frame, header));
+
+        final ByteBuffer segment = ByteBuffer.allocate(2048);
+        for (int i = 0; i < 3; i++) {
+            segment.clear();
+            VirtIONetworkOffloads.writeSegment(frame, header, i, segment);
+            segment.flip();
+
+            final int expectedPayloadLength = i < 2 ? 1000 : 500;
+            assertEquals(PAYLOAD_OFFSET + expectedPayloadLength, segment.remaining());
+            assertEquals(PAYLOAD_OFFSET + expectedPayloadLength, VirtIONetworkOffloads.getSegmentLength(frame, header, i));
+
+            assertEquals(20 + 20 + expectedPayloadLength, segment.getShort(IP_OFFSET + 2) & 0xFFFF);
+            assertEquals(0x1234 + i, segment.getShort(IP_OFFSET + 4) & 0xFFFF);
+            assertEquals(0xFFFF, checksum(segment, IP_OFFSET, TCP_OFFSET, 0));
+
+            assertEquals(1000 + i * 1000, segment.getInt(TCP_OFFSET + 4));
+            final int flags = segment.get(TCP_OFFSET + 13) & 0xFF;
+            assertEquals(i == 0, (flags & 0x80) != 0);
+            assertEquals(i == 2, (flags & 0x08) != 0);
+            assertEquals(i == 2, (flags & 0x01) != 0);
+            assertTrue((flags & 0x10) != 0);
+            assertEquals(0xFFFF, tcpChecksum(segment));
+
+            for (int j = 0; j < expectedPayloadLength; j++) {
+                assertEquals((byte) (i * 1000 + j), segment.get(PAYLOAD_OFFSET + j));
+            }
+        }
+    }
+
+    private static ByteBuffer createTcpFrame(final int payloadLength) {
+        final ByteBuffer frame = ByteBuffer.allocate(PAYLOAD_OFFSET + payloadLength);
+        frame.putShort(12, (short) 0x0800);
+
+        frame.put(IP_OFFSET, (byte) 0x45);
+        frame.putShort(IP_OFFSET + 2, (short) (20 + 20 + payloadLength));
+        frame.putShort(IP_OFFSET + 4, (short) 0x1234);
+        frame.put(IP_OFFSET + 8, (byte) 64);
+        frame.put(IP_OFFSET + 9, (byte) 6);
+        frame.putInt(IP_OFFSET + 12, 0x0A000001);
+        frame.putInt(IP_OFFSET + 16, 0x0A000002);
+
+        frame.putShort(TCP_OFFSET, (short) 12345);
+        frame.putShort(TCP_OFFSET + 2, (short) 80);
+        frame.putInt(TCP_OFFSET + 4, 1000);
+        frame.put(TCP_OFFSET + 12, (byte) 0x50);
+        frame.put(TCP_OFFSET + 13, (byte) 0x10);
+
+        for (int i = 0; i < payloadLength; i++) {
+            frame.put(PAYLOAD_OFFSET + i, (byte) i);
+        }
+
+        return frame;
+    }
+
+    private static int pseudoHeaderSum(final ByteBuffer frame, final int tcpLength) {
+        return checksum(frame, IP_OFFSET + 12, IP_OFFSET + 20, 6 + tcpLength);
+    }
+
+    private static int tcpChecksum(final ByteBuffer frame) {
+        final int tcpLength = frame.limit() - TCP_OFFSET;
+        return checksum(frame, TCP_OFFSET, frame.limit(), pseudoHeaderSum(frame, tcpLength));
+    }
+
+    private static int checksum(final ByteBuffer buffer, final int from, final int to, final int initial) {
+        long sum = initial;
+        for (int i = from; i < to; i += 2) {
+            sum += (buffer.get(i) & 0xFF) << 8;
+            if (i + 1 < to) {
+                sum += buffer.get(i + 1) & 0xFF;
+            }
+        }
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return (int) sum;
+    }
+}
@@ -0,0 +1,173 @@
+package li.cil.sedna;
+
+import li.cil.sedna.fs.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.stream.Stream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class ZipFileSystemTests {
+    @TempDir
+    java.nio.file.Path root;
+
+    private java.nio.file.Path archive;
+    private byte[] small;
+    private byte[] large;
+
+    @BeforeEach
+    public void setupEach() throws IOException {
+        final Random random = new Random(0xdeadbeef);
+        small = new byte[10000];
+        random.nextBytes(small);
+        large = new byte[300000];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) (random.nextInt(4) + i / 1000);
+        }
+
+        archive = root.resolve("test.zip");
+        try (final OutputStream file = Files.newOutputStream(archive);
+             final ZipOutputStream zip = new ZipOutputStream(file)) {
+            zip.putNextEntry(new ZipEntry("dir/small.bin"));
+            zip.write(small);
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("large.bin"));
+            zip.write(large);
+            zip.closeEntry();
+        }
+    }
+
+    @Test
+    public void sequentialReadsStreamAndRandomReadsSeek() throws IOException {
+        try (final ZipFile zipFile = new ZipFile(archive.toFile())) {
+            final ZipFileSystem fileSystem = new ZipFileSystem(zipFile, null);
+            try (final FileHandle handle = fileSystem.open(path("large.bin"), FileMode.READ)) {
+                assertArrayEquals(large, readAll(handle, 0, large.length));
+                assertArrayEquals(slice(large, 1234, 5000), readAll(handle, 1234, 5000));
+                assertArrayEquals(slice(large, 200000, 100), readAll(handle, 200000, 100));
+                assertEquals(0, handle.read(large.length, ByteBuffer.allocate(10)));
+            }
+        }
+    }
+
+    @Test
+    public void decompressedEntriesAreSharedBetweenInstances() throws IOException {
+        final ZipEntryCache cache = new ZipEntryCache(2 * 1024 * 1024);
+        try (final ZipFile zipFile1 = new ZipFile(archive.toFile());
+             final ZipFile zipFile2 = new ZipFile(archive.toFile())) {
+            final ZipFileSystem fileSystem1 = new ZipFileSystem(zipFile1, cache);
+            final ZipFileSystem fileSystem2 = new ZipFileSystem(zipFile2, cache);
+
+            // A full sequential read populates the cache.
+            try (final FileHandle handle = fileSystem1.open(path("dir", "small.bin"), FileMode.READ)) {
+                assertArrayEquals(small, readAll(handle, 0, small.length));
+            }
+            assertEquals(small.length, cache.getSize());
+
+            // Random access loads the whole entry into the cache.
+            try (final FileHandle handle = fileSystem1.open(path("large.bin"), FileMode.READ)) {
+                assertArrayEquals(slice(large, 5000, 100), readAll(handle, 5000, 100));
+                assertArrayEquals(slice(large, 10, 100), readAll(handle, 10, 100));
+            }
+            assertEquals(small.length + large.length, cache.getSize());
+
+            final long hits = cache.getHitCount();
+            try (final FileHandle handle = fileSystem2.open(path("large.bin"), FileMode.READ)) {
+                assertArrayEquals(slice(large, 299000, 1000), readAll(handle, 299000, 1000));
+            }
+            assertEquals(hits + 1, cache.getHitCount());
+        }
+    }
+
+    @Test
+    public void sequentialReadsSpoolEntriesLargerThanTheTransferBuffer() throws IOException {
+        final ZipEntryCache cache = new ZipEntryCache(2 * 1024 * 1024);
+        try (final ZipFile zipFile = new ZipFile(archive.toFile())) {
+            final ZipFileSystem fileSystem = new ZipFileSystem(zipFile, cache);
+            try (final FileHandle handle = fileSystem.open(path("large.bin"), FileMode.READ)) {
+                assertArrayEquals(slice(large, 0, 1000), readAll(handle, 0, 1000));
+                assertEquals(0, cache.getSize());
+                assertArrayEquals(slice(large, 1000, large.length - 1000), readAll(handle, 1000, large.length - 1000));
+            }
+            assertEquals(large.length, cache.getSize());
+
+            final ByteBuffer cached = cache.get(zipFile, zipFile.getEntry("large.bin"));
+            assertNotNull(cached);
+            final byte[] cachedData = new byte[cached.remaining()];
+            cached.get(cachedData);
+            assertArrayEquals(large, cachedData);
+        }
+    }
+
+    @Test
+    public void cacheOnlyAcceptsSmallEntries() throws IOException {
+        final ZipEntryCache cache = new ZipEntryCache(4 * small.length + 1);
+        try (final ZipFile zipFile = new ZipFile(archive.toFile())) {
+            final ZipEntry entry = zipFile.getEntry("dir/small.bin");
+            assertFalse(cache.canCache(zipFile.getEntry("large.bin")));
+
+            cache.load(zipFile, entry);
+            assertEquals(small.length, cache.getSize());
+
+            cache.clear();
+            assertNull(cache.get(zipFile, entry));
+        }
+    }
+
+    @Test
+    public void spooledStreamFileSystemServesMappedReads() throws IOException {
+        final ZipStreamFileSystem fileSystem;
+        try (final InputStream stream = Files.newInputStream(archive)) {
+            fileSystem = ZipStreamFileSystem.spool(stream, root);
+        }
+
+        try (final Stream<java.nio.file.Path> files = Files.list(root)) {
+            assertEquals(1, files.count()); // Only the archive, spool file has been deleted.
+        }
+
+        assertTrue(fileSystem.isDirectory(path("dir")));
+        assertEquals(small.length, fileSystem.getAttributes(path("dir", "small.bin")).size());
+        try (final FileHandle handle = fileSystem.open(path("large.bin"), FileMode.READ)) {
+            assertArrayEquals(slice(large, 123, 4567), readAll(handle, 123, 4567));
+            assertArrayEquals(large, readAll(handle, 0, large.length));
+        }
+        try (final FileHandle handle = fileSystem.open(path("dir", "small.bin"), FileMode.READ)) {
+            assertArrayEquals(small, readAll(handle, 0, small.length));
+        }
+    }
+
+    private static byte[] readAll(final FileHandle handle, final long offset, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (handle.read(offset + buffer.position(), buffer) <= 0) {
+                break;
+            }
+        }
+        return buffer.array();
+    }
+
+    private static byte[] slice(final byte[] data, final int offset, final int length) {
+        final byte[] result = new byte[length];
+        System.arraycopy(data, offset, result, 0, length);
+        return result;
+    }
+
+    private static Path path(final String... parts) {
+        Path result = new Path();
+        for (final String part : parts) {
+            result = result.resolve(part);
+        }
+        return result;
+    }
+}